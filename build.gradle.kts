@@ -2,6 +2,7 @@ plugins {
     application // 'application' extends 'java' plugin
     id("io.freefair.lombok")       version "8.0.1"
     id("org.openjfx.javafxplugin") version "0.0.13"
+    id("me.champeau.jmh")          version "0.7.2"
 }
 
 group = "com.quathar"
@@ -11,6 +12,22 @@ repositories {
     mavenCentral()
 }
 
+java {
+    // Virtual threads (ServerMode.VIRTUAL) need Java 21
+    toolchain {
+        languageVersion.set(JavaLanguageVersion.of(21))
+    }
+}
+
+sourceSets {
+    // The load generator (src/load) runs against the server classes, it isn't part of the app,
+    // and takes the self-signed key stores of its TLS runs from the test classes
+    create("load") {
+        compileClasspath += sourceSets.main.get().output + sourceSets.test.get().output
+        runtimeClasspath += sourceSets.main.get().output + sourceSets.test.get().output
+    }
+}
+
 javafx {
     // To make the app works you have to go to
     // Run >> Edit Configurations
@@ -40,4 +57,30 @@ dependencies {
 
 tasks.test {
     useJUnitPlatform()
-}
\ No newline at end of file
+}
+
+jmh {
+    // ./gradlew jmh runs the benchmarks in src/jmh, includes.set(listOf("Routing")) narrows them down
+    jmhVersion.set("1.37")
+    // TlsBenchmark generates its key store with the test classes
+    includeTests.set(true)
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    // The allocation rate per operation is as important as the time
+    profilers.add("gc")
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+}
+
+tasks.register<JavaExec>("loadTest") {
+    // e.g. ./gradlew loadTest --args="--server virtual --clients 2000 --rate 100"
+    description = "Runs the loopback load generator against a chat server"
+    group = "verification"
+    classpath = sourceSets["load"].runtimeClasspath
+    mainClass.set("com.quathar.chatserver.LoadGenerator")
+    // The chatserver.* settings reach the server it starts
+    systemProperties(System.getProperties()
+            .filterKeys { it.toString().startsWith("chatserver.") }
+            .mapKeys { it.key.toString() })
+}
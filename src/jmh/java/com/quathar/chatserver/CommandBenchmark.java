@@ -0,0 +1,108 @@
+package com.quathar.chatserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>CommandBenchmark</h1>
+ * <br>
+ * The parsing of the lines a peer sends ({@link ChatServer#dispatch(Peer, String)},
+ * what {@code ChatPeer.run} and {@code ChannelPeer} call for every line),
+ * the same messages as binary frames, and the rendering of the command answers.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandBenchmark {
+
+    // <<-FIELDS->>
+    /**
+     * Only '/people' and the broadcast depend on it.
+     */
+    @Param({"10", "1000", "100000"})
+    public int peers;
+
+    private ChatServer _server;
+    private Peer _sender;
+    private byte[] _privateMessageFrame;
+    private Frame _privateMessage;
+
+    // <<-SETUP->>
+    @Setup
+    public void setUp() throws IOException {
+        _server = FakePeer.newServer(peers, new ServerConfig().setHistoryMaxMessages(0).setAdminPassword("secret"));
+        _sender = _server.getChatPeers().get("peer0");
+        // '/stats' is for admins only
+        _server.serverMessage(_sender, "/admin secret");
+        _privateMessage = Frame.of(Frame.PRIVATE, 1, "peer1", "are you there?");
+        byte[] encoded  = _privateMessage.encode();
+        // Without the length, as the peers hand it over
+        _privateMessageFrame = Arrays.copyOfRange(encoded, 1, encoded.length);
+    }
+
+    // <<-BENCHMARKS->>
+    @Benchmark
+    public void dispatchPrivateMessage() throws IOException {
+        _server.dispatch(_sender, "@peer1 are you there?");
+    }
+
+    @Benchmark
+    public Frame decodePrivateMessageFrame() throws IOException {
+        return Frame.decode(_privateMessageFrame, 0, _privateMessageFrame.length);
+    }
+
+    @Benchmark
+    public void dispatchPrivateMessageFrame() throws IOException {
+        _server.dispatch(_sender, _privateMessage);
+    }
+
+    @Benchmark
+    public void dispatchCommand() throws IOException {
+        _server.dispatch(_sender, "/me");
+    }
+
+    @Benchmark
+    public void dispatchPortCommand() throws IOException {
+        _server.dispatch(_sender, "/port");
+    }
+
+    @Benchmark
+    public void dispatchUnknownCommand() throws IOException {
+        _server.dispatch(_sender, "/whatever");
+    }
+
+    @Benchmark
+    public void dispatchBroadcast() throws IOException {
+        _server.dispatch(_sender, "hello everybody");
+    }
+
+    @Benchmark
+    public void renderHelp() throws IOException {
+        _server.serverMessage(_sender, "/help");
+    }
+
+    @Benchmark
+    public void renderPeople() throws IOException {
+        _server.serverMessage(_sender, "/people");
+    }
+
+    @Benchmark
+    public void renderStats() throws IOException {
+        _server.serverMessage(_sender, "/stats");
+    }
+
+}
@@ -0,0 +1,202 @@
+package com.quathar.chatserver;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>CompressionBenchmark</h1>
+ * <br>
+ * What {@link Compression} costs and saves on what people actually send: a chat line, a pasted log,
+ * pasted code and a pasted JSON document, each as the frame of a broadcast. The threshold is {@code 0} here,
+ * so the chat line shows what compressing below the default threshold would buy.<br>
+ * <br>
+ * The bytes before and after are counted along with the time (the {@code raw} and {@code wire} counters),
+ * their ratio being the bandwidth saved. A frame is compressed once whatever its recipients,
+ * but every one of them inflates it.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompressionBenchmark {
+
+    // <<-FIELDS->>
+    @Param({"chat", "log", "code", "json"})
+    public String corpus;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    private Compression _compression;
+    private byte[] _frame;
+    /**
+     * The frames without their length, as the peers hand them over.
+     */
+    private byte[] _plainFields;
+    private byte[] _compressedFields;
+
+    // <<-SETUP->>
+    @Setup
+    public void setUp() {
+        _compression = new Compression(level, 0, null);
+        String body = switch (corpus) {
+            case "chat" -> "hey, did anyone look at the build failing on main? I think it's the flaky test again, "
+                           + "the one with the timeout in the cluster link. can someone rerun it? thanks!";
+            case "log"  -> log();
+            case "code" -> code();
+            case "json" -> json();
+            default     -> throw new IllegalArgumentException(corpus);
+        };
+        _frame = Frame.encode(Frame.BROADCAST, 0, 123_456, System.currentTimeMillis(), "someone", "", body);
+        _plainFields      = withoutLength(_frame);
+        byte[] compressed = _compression.compress(_frame);
+        _compressedFields = withoutLength(compressed != null ? compressed : _frame);
+    }
+
+    private static byte[] withoutLength(byte[] frame) {
+        int start = 0;
+        while ((frame[start] & 0x80) != 0)
+            start++;
+        start++;
+        return Arrays.copyOfRange(frame, start, frame.length);
+    }
+
+    /**
+     * A few dozen lines of an application log and a stack trace, as pasted to ask what went wrong.
+     */
+    private static String log() {
+        Random random = new Random(1);
+        String[] levels  = {"INFO", "DEBUG", "WARN", "ERROR"};
+        String[] loggers = {"c.q.c.ChatServer", "c.q.c.ChannelPeer", "o.a.k.c.NetworkClient", "c.z.h.p.HikariPool"};
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 40; i++)
+            sb.append(String.format("2023-07-30 12:%02d:%02d.%03d %-5s [pool-%d-thread-%d] %s - Request %08x took %d ms (status=%d, bytes=%d)%n",
+                      i / 60, i % 60, random.nextInt(1000), levels[random.nextInt(levels.length)],
+                      1 + random.nextInt(3), 1 + random.nextInt(16), loggers[random.nextInt(loggers.length)],
+                      random.nextInt(), random.nextInt(500), 200 + 100 * random.nextInt(4), random.nextInt(100_000)));
+        sb.append("java.lang.IllegalStateException: Connection reset\n")
+          .append("\tat java.base/sun.nio.ch.SocketChannelImpl.read(SocketChannelImpl.java:401)\n")
+          .append("\tat com.quathar.chatserver.ChannelPeer.read(ChannelPeer.java:180)\n")
+          .append("\tat com.quathar.chatserver.ChatEventLoop.run(ChatEventLoop.java:293)\n")
+          .append("\tat java.base/java.lang.Thread.run(Thread.java:1583)\n");
+        return sb.toString();
+    }
+
+    /**
+     * A couple of methods, as pasted for a review.
+     */
+    private static String code() {
+        return """
+                    /**
+                     * Hands a peer that takes messages again what was held for it, in one go.
+                     *
+                     * @param peer the peer
+                     */
+                    void flush(Peer peer) {
+                        Inbox inbox = _inboxes.get(peer);
+                        if (inbox == null) return;
+
+                        List<Held> sent = new ArrayList<>();
+                        synchronized (inbox) {
+                            Held held;
+                            while ((held = inbox._held.peek()) != null && peer.deliver(held._message)) {
+                                inbox._held.poll();
+                                sent.add(held);
+                            }
+                            release(inbox, sent.size(), sent);
+                            if (inbox._held.isEmpty())
+                                forget(peer, inbox);
+                        }
+                        for (Held held : sent)
+                            delivered(held._sender, held._ack, held._message, held._startNanos, true);
+                    }
+
+                    /**
+                     * Throws away the inbox of a peer that left for good.
+                     *
+                     * @param peer the peer
+                     */
+                    void drop(Peer peer) {
+                        Inbox inbox = _inboxes.remove(peer);
+                        if (inbox == null) return;
+
+                        int lost;
+                        synchronized (inbox) {
+                            lost = inbox._held.size();
+                            release(inbox, lost, inbox._held);
+                            inbox._held.clear();
+                            inbox._closed = true;
+                        }
+                        if (lost > 0)
+                            _metrics.privateMessagesLost(lost);
+                    }
+                """;
+    }
+
+    /**
+     * A JSON answer of some API, as pasted to show what it returns.
+     */
+    private static String json() {
+        Random random = new Random(2);
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < 30; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(String.format("{\"id\":%d,\"user\":\"user%d\",\"active\":%b,\"score\":%.2f,\"tags\":[\"chat\",\"beta\"]}",
+                      i, random.nextInt(1000), random.nextBoolean(), random.nextDouble() * 100));
+        }
+        return sb.append(']').toString();
+    }
+
+    // <<-BENCHMARKS->>
+    @Benchmark
+    public byte[] compress(Bytes bytes) {
+        byte[] compressed = _compression.compress(_frame);
+        bytes.raw  += _frame.length;
+        bytes.wire += compressed != null ? compressed.length : _frame.length;
+        return compressed;
+    }
+
+    @Benchmark
+    public Frame decodeCompressed() throws IOException {
+        return Frame.decode(_compressedFields, 0, _compressedFields.length);
+    }
+
+    @Benchmark
+    public Frame decodePlain() throws IOException {
+        return Frame.decode(_plainFields, 0, _plainFields.length);
+    }
+
+    // <<-COUNTERS->>
+    /**
+     * The bytes of the frames compressed, before and after.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Bytes {
+        public long raw;
+        public long wire;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            raw  = 0;
+            wire = 0;
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.quathar.chatserver;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+/**
+ * <h1>FakePeer</h1>
+ * <br>
+ * An in-memory peer for the benchmarks: it doesn't need a socket, it only counts what it is sent.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class FakePeer implements Peer {
+
+    // <<-FIELDS->>
+    private final String _nickname;
+    private long _received;
+    private long _bytes;
+
+    // <<-CONSTRUCTOR->>
+    public FakePeer(String nickname) {
+        _nickname = nickname;
+    }
+
+    // <<-METHODS->>
+    /**
+     * Creates a server with some fake peers in it, named {@code peer0}, {@code peer1}...<br>
+     * <br>
+     * The peers go straight into the registry, without the join messages of {@link ChatServer#claimNickname(String, Peer)}.
+     *
+     * @param peers how many peers
+     * @param config the server settings
+     * @return the server, it doesn't accept connections
+     */
+    static ChatServer newServer(int peers, ServerConfig config) {
+        ChatServer server = new ChatServer(ServerMode.THREAD, config, newListener());
+        for (int i = 0; i < peers; i++) {
+            FakePeer peer = new FakePeer("peer" + i);
+            server.getChatPeers().claim(peer.getNickname(), peer);
+        }
+        return server;
+    }
+
+    private static ServerSocket newListener() {
+        try {
+            return new ServerSocket();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void send(Payload msg) {
+        _received++;
+        _bytes += msg.length();
+    }
+
+    @Override
+    public void replay(Replay replay) {
+        // Nothing to catch up with
+    }
+
+    @Override
+    public void disconnect(Payload farewell) {
+        send(farewell);
+    }
+
+    @Override
+    public void changeNickname() {
+        // The benchmarks don't rename
+    }
+
+    // <<-GETTERS->>
+    @Override
+    public String getNickname() {
+        return _nickname;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return 0;
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return 0;
+    }
+
+    public long getReceived() {
+        return _received;
+    }
+
+    public long getBytes() {
+        return _bytes;
+    }
+
+}
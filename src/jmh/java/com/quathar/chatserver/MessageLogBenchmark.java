@@ -0,0 +1,170 @@
+package com.quathar.chatserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * <h1>MessageLogBenchmark</h1>
+ * <br>
+ * Append throughput of the {@link MessageLog} (group commit included)
+ * and the latency of its range reads, warm and cold.<br>
+ * <br>
+ * The log is filled once per trial with a million records, 1 in 10 of them in a room.
+ * The cold reads open the log again before every read, so the segments are mapped
+ * from scratch (the OS page cache may still hold them).
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class MessageLogBenchmark {
+
+    // <<-CONSTANTS->>
+    private static final int RECORDS = 1_000_000;
+    private static final int APPEND_BATCH = 10_000;
+    private static final Payload MESSAGE = Payload.of("peer0: the quick brown fox jumps over the lazy dog 0123456789");
+
+    // <<-STATE->>
+    @State(Scope.Benchmark)
+    public static class Filled {
+
+        Path directory;
+        ServerConfig config;
+        MessageLog log;
+        Payload[] batch;
+
+        @Setup(Level.Trial)
+        public void fill() throws IOException {
+            directory = Files.createTempDirectory("chat-log-bench");
+            config    = new ServerConfig().setLogDirectory(directory).setLogRetentionHours(0).setLogRetentionBytes(0);
+            batch     = new Payload[64];
+            MessageLog filling = MessageLog.open(config);
+            for (int i = 0; i < RECORDS; i++) {
+                while (filling.getPending() > 60_000)
+                    Thread.onSpinWait();
+                filling.append(i % 10 == 0 ? "#bench" : MessageLog.CHAT, MESSAGE);
+            }
+            filling.close();
+            log = MessageLog.open(config);
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws IOException {
+            log.close();
+            MessageLogBenchmark.delete(directory);
+        }
+
+        int drain(Replay replay) {
+            int lines = 0;
+            for (int read; (read = replay.next(batch, batch.length)) > 0; )
+                lines += read;
+            return lines;
+        }
+
+    }
+
+    @State(Scope.Benchmark)
+    public static class Empty {
+
+        Path directory;
+        MessageLog log;
+
+        @Setup(Level.Iteration)
+        public void open() throws IOException {
+            directory = Files.createTempDirectory("chat-log-bench");
+            log = MessageLog.open(new ServerConfig().setLogDirectory(directory));
+        }
+
+        @TearDown(Level.Iteration)
+        public void delete() throws IOException {
+            log.close();
+            MessageLogBenchmark.delete(directory);
+        }
+
+    }
+
+    @State(Scope.Benchmark)
+    public static class Reopened {
+
+        MessageLog log;
+
+        @Setup(Level.Invocation)
+        public void open(Filled filled) throws IOException {
+            log = MessageLog.open(filled.config);
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() {
+            log.close();
+        }
+
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList())
+                Files.delete(file);
+        }
+    }
+
+    // <<-BENCHMARKS->>
+    /**
+     * Appends a batch and waits until the writer has synced all of it.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(APPEND_BATCH)
+    public long append(Empty empty) {
+        MessageLog log = empty.log;
+        for (int i = 0; i < APPEND_BATCH; i++) {
+            while (log.getPending() > 60_000)
+                Thread.onSpinWait();
+            log.append(MessageLog.CHAT, MESSAGE);
+        }
+        while (log.getPending() > 0)
+            Thread.onSpinWait();
+        return log.getDropped();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int lastHundredWarm(Filled filled) {
+        return filled.drain(filled.log.last(MessageLog.CHAT, "the chat", 100));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int lastTenThousandOfRoomWarm(Filled filled) {
+        return filled.drain(filled.log.last("#bench", "#bench", 10_000));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 10)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int lastHundredCold(Filled filled, Reopened reopened) {
+        return filled.drain(reopened.log.last(MessageLog.CHAT, "the chat", 100));
+    }
+
+}
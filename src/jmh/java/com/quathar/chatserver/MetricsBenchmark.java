@@ -0,0 +1,66 @@
+package com.quathar.chatserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>MetricsBenchmark</h1>
+ * <br>
+ * The recording paths that run for every message: the metrics and the in-memory history.
+ * The gc profiler must report no allocation for any of them.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricsBenchmark {
+
+    // <<-FIELDS->>
+    private Metrics _metrics;
+    private Histogram _histogram;
+    private History _history;
+    private Payload _payload;
+    private long _value;
+
+    // <<-SETUP->>
+    @Setup
+    public void setUp() {
+        _metrics   = new Metrics();
+        _histogram = new Histogram();
+        _history   = new ServerConfig().newHistory("the chat");
+        _payload   = Payload.of("peer0: hello everybody");
+    }
+
+    // <<-BENCHMARKS->>
+    @Benchmark
+    public void histogramRecord() {
+        _histogram.record(_value++ * 997 & 0xFFFFFF);
+    }
+
+    @Benchmark
+    public void broadcastMetrics() {
+        _metrics.broadcast(System.nanoTime());
+    }
+
+    @Benchmark
+    public void messageCounters() {
+        _metrics.messageIn();
+        _metrics.messageOut();
+    }
+
+    @Benchmark
+    public void historyAppend() {
+        _history.append(_payload);
+    }
+
+}
@@ -0,0 +1,80 @@
+package com.quathar.chatserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>RateLimiterBenchmark</h1>
+ * <br>
+ * The rate limit check every message goes through, without limits, within them
+ * (per peer and global buckets) and with several readers sharing the global buckets.
+ * The gc profiler must report no allocation for any of them.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RateLimiterBenchmark {
+
+    // <<-FIELDS->>
+    private RateLimiter _unlimited;
+    private RateLimiter _limited;
+    private Peer _peer;
+
+    // <<-SETUP->>
+    @Setup
+    public void setUp() {
+        Metrics metrics = new Metrics();
+        _unlimited = new RateLimiter(new ServerConfig(), metrics);
+        // Limits no benchmark reaches, every bucket is taken from
+        _limited   = new RateLimiter(new ServerConfig().setRateMessagesPerSecond(1_000_000_000L)
+                                                       .setRateBytesPerSecond(1_000_000_000_000L)
+                                                       .setRateGlobalMessagesPerSecond(1_000_000_000L)
+                                                       .setRateGlobalBytesPerSecond(1_000_000_000_000L), metrics);
+        _peer      = new FakePeer("peer0");
+    }
+
+    /**
+     * The buckets of the peer of a benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class PeerQuota {
+        private RateLimiter.Quota _unlimited;
+        private RateLimiter.Quota _limited;
+
+        @Setup
+        public void setUp(RateLimiterBenchmark benchmark) {
+            _unlimited = benchmark._unlimited.newQuota();
+            _limited   = benchmark._limited.newQuota();
+        }
+    }
+
+    // <<-BENCHMARKS->>
+    @Benchmark
+    public long admitUnlimited(PeerQuota quota) {
+        return _unlimited.admit(_peer, quota._unlimited, 32);
+    }
+
+    @Benchmark
+    public long admitWithinLimits(PeerQuota quota) {
+        return _limited.admit(_peer, quota._limited, 32);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long admitWithinLimitsShared(PeerQuota quota) {
+        return _limited.admit(_peer, quota._limited, 32);
+    }
+
+}
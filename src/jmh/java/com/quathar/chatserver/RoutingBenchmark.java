@@ -0,0 +1,90 @@
+package com.quathar.chatserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>RoutingBenchmark</h1>
+ * <br>
+ * The message routing paths of {@link ChatServer} at different server (and room) sizes:
+ * broadcast, room posts, private messages and nickname lookups.<br>
+ * <br>
+ * {@link #broadcastEncodedPerRecipient()} is the old broadcast (one encoding per recipient),
+ * the gc profiler shows what encoding once saves.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RoutingBenchmark {
+
+    // <<-FIELDS->>
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int peers;
+
+    private ChatServer _server;
+    private Peer _sender;
+    private String _lastNickname;
+    private String[] _nicknames;
+    private int _next;
+
+    // <<-SETUP->>
+    @Setup
+    public void setUp() {
+        _server = FakePeer.newServer(peers, new ServerConfig().setHistoryMaxMessages(0));
+        _sender = _server.getChatPeers().get("peer0");
+        _lastNickname = "peer" + (peers - 1);
+        _nicknames = new String[peers];
+        for (int i = 0; i < peers; i++) {
+            _nicknames[i] = "peer" + i;
+            _server.getRooms().join("#bench", _server.getChatPeers().get(_nicknames[i]));
+        }
+    }
+
+    // <<-BENCHMARKS->>
+    @Benchmark
+    public void broadcast() {
+        _server.broadcast(_sender, "hello everybody");
+    }
+
+    @Benchmark
+    public void broadcastEncodedPerRecipient() {
+        String msg = "peer0: hello everybody";
+        for (Peer peer : _server.getChatPeers().peers())
+            if (peer != _sender)
+                peer.send(msg);
+    }
+
+    @Benchmark
+    public void roomMessage() {
+        _server.roomMessage(_sender, "#bench", "hello room");
+    }
+
+    @Benchmark
+    public void privateMessage() {
+        String dst = _nicknames[_next++ % _nicknames.length];
+        _server.privateMessage(_sender, dst, "psst");
+    }
+
+    @Benchmark
+    public boolean nicknameExistsHit() {
+        return _server.nicknameExists(_lastNickname);
+    }
+
+    @Benchmark
+    public boolean nicknameExistsMiss() {
+        return _server.nicknameExists("nobody");
+    }
+
+}
@@ -0,0 +1,182 @@
+package com.quathar.chatserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>SearchBenchmark</h1>
+ * <br>
+ * What {@link SearchIndex} costs: adding a message, the memory of the index, and answering a '/search'.<br>
+ * <br>
+ * The messages are made up: {@value #USERS} users writing 3 to 20 words each, taken from a vocabulary
+ * of {@value #VOCABULARY} words with Zipf frequencies, as in any language. The setup indexes {@code messages} of them
+ * and prints how long it took and how much memory the index takes, per message and per million messages.
+ * A query reads every result, as the writer of the peer that asked would.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SearchBenchmark {
+
+    // <<-CONSTANTS->>
+    private static final int USERS = 200;
+    private static final int VOCABULARY = 20_000;
+    /**
+     * Messages made up ahead for {@link #index()}, so it measures the index and not the making up.
+     */
+    private static final int PENDING = 65_536;
+    private static final String[] SYLLABLES = {"ka", "lo", "mi", "ne", "ru", "sa", "ti", "vo", "de", "pa", "xe", "zu",
+                                               "bri", "cho", "fen", "gla", "ith", "mor", "nul", "str"};
+
+    // <<-FIELDS->>
+    @Param({"100000", "1000000"})
+    public int messages;
+
+    private String[] _words;
+    private double[] _frequencies;
+    private String[] _users;
+    private Random _random;
+    private SearchIndex _index;
+    /**
+     * Indexed into by {@link #index()}, the oldest messages going as in a server that has run for a while.
+     */
+    private SearchIndex _growing;
+    private Payload[] _pending;
+    private int _next;
+    private Payload[] _batch;
+
+    // <<-SETUP->>
+    @Setup
+    public void setUp() {
+        _random = new Random(1);
+        _words  = new String[VOCABULARY];
+        for (int i = 0; i < VOCABULARY; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int n = i; ; n /= SYLLABLES.length) {
+                word.append(SYLLABLES[n % SYLLABLES.length]);
+                if (n < SYLLABLES.length) break;
+            }
+            _words[i] = word.toString();
+        }
+        // The cumulative Zipf frequencies, the i-th word being i times rarer than the first
+        _frequencies = new double[VOCABULARY];
+        double sum = 0;
+        for (int i = 0; i < VOCABULARY; i++)
+            _frequencies[i] = sum += 1.0 / (i + 1);
+        for (int i = 0; i < VOCABULARY; i++)
+            _frequencies[i] /= sum;
+        _users = new String[USERS];
+        for (int i = 0; i < USERS; i++)
+            _users[i] = "user" + i;
+
+        _index = new SearchIndex(new ServerConfig().setSearchMaxMessages(messages), new Metrics());
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++)
+            _index.index(message(i));
+        long nanos = System.nanoTime() - start;
+        long bytes = _index.getBytes();
+        System.out.printf("%n%d messages indexed in %d ms (%.0f messages/s), %.1f MiB: %d bytes per message, %.0f MiB per million%n",
+                          messages, nanos / 1_000_000, messages * 1e9 / nanos, bytes / 1048576.0,
+                          bytes / messages, bytes * 1e6 / messages / 1048576.0);
+        _growing = new SearchIndex(new ServerConfig().setSearchMaxMessages(messages), new Metrics());
+        _pending = new Payload[PENDING];
+        for (int i = 0; i < PENDING; i++)
+            _pending[i] = message(i);
+        _batch   = new Payload[64];
+    }
+
+    private Payload message(long id) {
+        String user = _users[_random.nextInt(USERS)];
+        StringBuilder body = new StringBuilder();
+        for (int i = 3 + _random.nextInt(18); i > 0; i--) {
+            if (!body.isEmpty()) body.append(' ');
+            body.append(word());
+        }
+        return Payload.message(Frame.BROADCAST, id, System.currentTimeMillis(), user, "", body.toString(),
+                               user + ": " + body);
+    }
+
+    private String word() {
+        int i = Arrays.binarySearch(_frequencies, _random.nextDouble());
+        return _words[Math.min(i >= 0 ? i : -i - 1, VOCABULARY - 1)];
+    }
+
+    // <<-BENCHMARKS->>
+    @Benchmark
+    public void index() {
+        _growing.index(_pending[_next++ & (PENDING - 1)]);
+    }
+
+    /**
+     * A common word, found in every segment: the newest results, from the newest segment.
+     */
+    @Benchmark
+    public int commonTerm() {
+        return read(_index.search(_words[10], null, 0, Long.MAX_VALUE, 50));
+    }
+
+    /**
+     * A rare word, found a handful of times: every segment is searched.
+     */
+    @Benchmark
+    public int rareTerm() {
+        return read(_index.search(_words[VOCABULARY - 1], null, 0, Long.MAX_VALUE, 50));
+    }
+
+    /**
+     * Two words that are seldom together: every segment is searched, their postings intersected.
+     */
+    @Benchmark
+    public int twoTerms() {
+        return read(_index.search(_words[500] + " " + _words[900], null, 0, Long.MAX_VALUE, 50));
+    }
+
+    /**
+     * A word of a user: every segment is searched, the postings of the user intersected with those of the word.
+     */
+    @Benchmark
+    public int fromUser() {
+        return read(_index.search(_words[300], "user7", 0, Long.MAX_VALUE, 50));
+    }
+
+    /**
+     * The words starting with a syllable, a few hundred of them in every segment.
+     */
+    @Benchmark
+    public int prefix() {
+        return read(_index.search("bri*", null, 0, Long.MAX_VALUE, 50));
+    }
+
+    /**
+     * A word nobody wrote: a lookup per segment.
+     */
+    @Benchmark
+    public int missing() {
+        return read(_index.search("nowhere", null, 0, Long.MAX_VALUE, 50));
+    }
+
+    private int read(Replay results) {
+        int lines = 0;
+        int count;
+        do {
+            count = results.next(_batch, _batch.length);
+            lines += count;
+        } while (count > 0);
+        return lines;
+    }
+
+}
@@ -0,0 +1,182 @@
+package com.quathar.chatserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>TlsBenchmark</h1>
+ * <br>
+ * What TLS costs the server, with the engines talking to each other in memory (no sockets):
+ * a full handshake and a resumed one (the handshake threads of {@link TlsListener} run these),
+ * and a batch of messages encrypted and decrypted against the plain copy it replaces.<br>
+ * <br>
+ * The key store is self-signed, generated once per trial.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TlsBenchmark {
+
+    // <<-CONSTANTS->>
+    private static final String PASSWORD = "benchmark";
+    private static final String HOST = "localhost";
+    private static final int PORT = 7443;
+    /**
+     * A full batch of the writers, see {@link ServerConfig#getFlushMaxBytes()}.
+     */
+    private static final int BATCH_BYTES = 16 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    // <<-FIELDS->>
+    private Path _directory;
+    private SSLContext _server;
+    private SSLContext _client;
+    private ByteBuffer _toServer;
+    private ByteBuffer _toClient;
+    private ByteBuffer _app;
+    /**
+     * The server side of the last handshake.
+     */
+    private SSLEngine _lastServer;
+    /**
+     * An established pair for the batches.
+     */
+    private SSLEngine _clientEngine;
+    private SSLEngine _serverEngine;
+    private ByteBuffer _batch;
+    private ByteBuffer _copy;
+
+    // <<-SETUP->>
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, GeneralSecurityException {
+        _directory = Files.createTempDirectory("chat-tls-bench");
+        Path keyStore = SelfSignedKeyStore.create(_directory, PASSWORD);
+        _server   = TlsContexts.server(new ServerConfig().setTlsKeyStore(keyStore).setTlsKeyStorePassword(PASSWORD));
+        _client   = TlsContexts.client(keyStore, PASSWORD);
+        _toServer = ByteBuffer.allocate(64 * 1024);
+        _toClient = ByteBuffer.allocate(64 * 1024);
+        _app      = ByteBuffer.allocate(64 * 1024);
+
+        _clientEngine = handshake(_client.createSSLEngine(HOST, PORT));
+        _serverEngine = _lastServer;
+        byte[] batch = new byte[BATCH_BYTES];
+        Arrays.fill(batch, (byte) 'x');
+        _batch = ByteBuffer.wrap(batch);
+        _copy  = ByteBuffer.allocate(BATCH_BYTES);
+        // The session the resumed handshakes take up
+        handshake(_client.createSSLEngine(HOST, PORT));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (var files = Files.list(_directory)) {
+            for (Path file : files.toList())
+                Files.delete(file);
+        }
+        Files.delete(_directory);
+    }
+
+    /**
+     * Runs a handshake between a client engine and a new server engine, until the client has its session ticket.
+     *
+     * @return the client engine
+     */
+    private SSLEngine handshake(SSLEngine client) throws SSLException {
+        SSLEngine server = _server.createSSLEngine();
+        server.setUseClientMode(false);
+        client.setUseClientMode(true);
+        _toServer.clear();
+        _toClient.clear();
+        client.beginHandshake();
+        server.beginHandshake();
+        for (int steps = 0; !done(client) || !done(server) || _toClient.position() > 0; steps++) {
+            if (steps > 1000) throw new SSLException("The handshake doesn't end");
+            step(client, _toServer, _toClient);
+            step(server, _toClient, _toServer);
+            // The ticket of TLS 1.3 comes after the handshake
+            if (done(client) && _toClient.position() > 0) unwrap(client, _toClient);
+        }
+        _lastServer = server;
+        return client;
+    }
+
+    private static boolean done(SSLEngine engine) {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING || status == SSLEngineResult.HandshakeStatus.FINISHED;
+    }
+
+    private void step(SSLEngine engine, ByteBuffer out, ByteBuffer in) throws SSLException {
+        switch (engine.getHandshakeStatus()) {
+            case NEED_TASK -> {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null)
+                    task.run();
+            }
+            case NEED_WRAP -> engine.wrap(EMPTY, out);
+            case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> unwrap(engine, in);
+            default -> {}
+        }
+    }
+
+    private void unwrap(SSLEngine engine, ByteBuffer in) throws SSLException {
+        in.flip();
+        _app.clear();
+        engine.unwrap(in, _app);
+        in.compact();
+    }
+
+    // <<-BENCHMARKS->>
+    @Benchmark
+    public SSLEngine handshakeFull() throws SSLException {
+        // Without the peer, the client has no session to offer
+        return handshake(_client.createSSLEngine());
+    }
+
+    @Benchmark
+    public SSLEngine handshakeResumed() throws SSLException {
+        return handshake(_client.createSSLEngine(HOST, PORT));
+    }
+
+    @Benchmark
+    public int batchEncrypted() throws SSLException {
+        _batch.clear();
+        _toClient.clear();
+        _serverEngine.wrap(_batch, _toClient);
+        _toClient.flip();
+        _app.clear();
+        _clientEngine.unwrap(_toClient, _app);
+        return _app.position();
+    }
+
+    @Benchmark
+    public int batchPlain() {
+        _batch.clear();
+        _copy.clear();
+        _copy.put(_batch);
+        return _copy.position();
+    }
+
+}
@@ -0,0 +1,185 @@
+package com.quathar.chatserver;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <h1>LoadClient</h1>
+ * <br>
+ * A simulated user of the load generator, speaking the same text protocol as {@link ChatClient}.<br>
+ * <br>
+ * The messages it sends carry the moment they were meant to be sent ({@code t=<nanos>}),
+ * every client runs in the same JVM so whoever gets one knows how long the delivery took.
+ * Using the intended moment instead of the actual one means a stalled sender
+ * doesn't hide the delay from the measures (coordinated omission).
+ * An idle client only reads, as most users of a chat do most of the time.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class LoadClient {
+
+    // <<-CONSTANTS->>
+    private static final String TIMESTAMP = " t=";
+    private static final String ERROR = "E R R O R: ";
+    private static final String WELCOME = "S Y S T E M: Welcome";
+    /**
+     * Receive buffer of a slow reader, small so the server feels it soon.
+     */
+    private static final int SLOW_RECEIVE_BUFFER = 4 * 1024;
+
+    // <<-FIELDS->>
+    private final LoadGenerator _generator;
+    private final String _nickname;
+    private final boolean _slow;
+    private final boolean _idle;
+    private Socket _socket;
+    private OutputStream _socketOut;
+    private BufferedReader _socketIn;
+    private volatile boolean _closing;
+
+    // <<-CONSTRUCTOR->>
+    public LoadClient(LoadGenerator generator, String nickname, boolean slow, boolean idle) {
+        _generator = generator;
+        _nickname  = nickname;
+        _slow      = slow;
+        _idle      = idle;
+    }
+
+    // <<-METHODS->>
+    /**
+     * Connects to the server and goes through the nickname handshake.
+     *
+     * @param address the address of the server
+     * @param timeoutMillis how long to wait for the connection and for every line of the handshake
+     * @param tls the TLS context to connect with, {@code null} for a plain connection
+     * @throws IOException if the connection fails or the server refuses the nickname
+     */
+    public void connect(InetSocketAddress address, int timeoutMillis, SSLContext tls) throws IOException {
+        _socket = new Socket();
+        if (_slow)
+            _socket.setReceiveBufferSize(SLOW_RECEIVE_BUFFER);
+        _socket.setTcpNoDelay(true);
+        _socket.connect(address, timeoutMillis);
+        _socket.setSoTimeout(timeoutMillis);
+        if (tls != null) {
+            // Host and port are the key of the session cache of the context
+            SSLSocket socket = (SSLSocket) tls.getSocketFactory()
+                    .createSocket(_socket, address.getHostString(), address.getPort(), true);
+            _socket = socket;
+            socket.startHandshake();
+        }
+        _socketOut = _socket.getOutputStream();
+        _socketIn  = new BufferedReader(new InputStreamReader(_socket.getInputStream(), Payload.CHARSET));
+
+        while (!readLine().startsWith("Enter your nickname:"));
+        send(_nickname);
+        String status = readLine();
+        if (status.startsWith(ERROR))
+            throw new IOException(status);
+        while (!readLine().startsWith(WELCOME));
+        _socket.setSoTimeout(0);
+    }
+
+    private String readLine() throws IOException {
+        String line = _socketIn.readLine();
+        if (line == null) throw new IOException("Connection closed");
+        return line;
+    }
+
+    /**
+     * Reads whatever the server sends until the client is closed, timing the messages that carry a timestamp.
+     */
+    public void readLoop() {
+        long slowDelay = TimeUnit.MILLISECONDS.toNanos(_generator.getSlowReadDelayMillis());
+        try {
+            while (true) {
+                String line = _socketIn.readLine();
+                if (line == null) break;
+                long sent = timestamp(line);
+                if (sent != -1)
+                    _generator.delivered(sent, _slow);
+                if (_slow)
+                    LockSupport.parkNanos(slowDelay);
+            }
+        } catch (IOException e) {
+            // Closed by the server or by us
+        } finally {
+            if (!_closing)
+                _generator.disconnected(_slow);
+        }
+    }
+
+    /**
+     * Finds the timestamp of a line sent by another client, e.g. {@code "load7: t=123 xxx"} or {@code "[PM] load7: t=123 xxx"}.
+     *
+     * @param line the line received
+     * @return the timestamp, or {@code -1} if the line doesn't carry one
+     */
+    static long timestamp(String line) {
+        int start = line.indexOf(TIMESTAMP);
+        if (start == -1) return -1;
+        long value = 0;
+        int i = start + TIMESTAMP.length();
+        for (; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') break;
+            value = value * 10 + (c - '0');
+        }
+        return i == start + TIMESTAMP.length() ? -1 : value;
+    }
+
+    /**
+     * Builds a message body carrying a timestamp, padded up to a size.
+     *
+     * @param intendedNanos when the message was meant to be sent, from {@link System#nanoTime()}
+     * @param padding the filler that makes up the size
+     * @return the body of the message
+     */
+    static String body(long intendedNanos, String padding) {
+        return TIMESTAMP.substring(1) + intendedNanos + " " + padding;
+    }
+
+    /**
+     * Sends a line to the server, in a single write.
+     *
+     * @param line the line, without terminator
+     * @throws IOException if an I/O error occurs while writing
+     */
+    public void send(String line) throws IOException {
+        Payload.of(line).writeTo(_socketOut);
+    }
+
+    public void close() {
+        _closing = true;
+        try {
+            if (_socket != null)
+                _socket.close();
+        } catch (IOException e) {
+            // Going away anyway
+        }
+    }
+
+    // <<-GETTERS->>
+    public String getNickname() {
+        return _nickname;
+    }
+
+    public boolean isSlow() {
+        return _slow;
+    }
+
+    public boolean isIdle() {
+        return _idle;
+    }
+
+}
@@ -0,0 +1,443 @@
+package com.quathar.chatserver;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <h1>LoadGenerator</h1>
+ * <br>
+ * A headless load test of the chat server over loopback: thousands of simulated users
+ * ({@link LoadClient}) connecting, chatting and sending private messages and commands.<br>
+ * <br>
+ * It reports the connect latency (connection to welcome line), the delivery latency
+ * of every message from the moment it was meant to be sent, how many messages got through
+ * and the CPU and heap the server used meanwhile.<br>
+ * <br>
+ * Every client sends at its own steady pace (open loop), the total being the message rate.
+ * Slow readers read a line every so often on a small receive buffer, so the server has to cope
+ * with full outbound queues; their deliveries are measured apart. Idle clients join and only listen,
+ * the connections a server mostly holds (e.g. {@code --clients 10000 --idle 9900}), to see what they cost it.<br>
+ * <br>
+ * Over TLS the clients either share a context, so all but the first resume a session,
+ * or get one each, so every one of them costs the server a full handshake.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class LoadGenerator {
+
+    // <<-CONSTANTS->>
+    private static final String USAGE = """
+            Usage: java LoadGenerator [options]
+              --server <thread|virtual|nio>  starts a server in a JVM of its own (default: use --host/--port)
+              --server-jvm <options>         JVM options of that server, e.g. "-Xmx1g -XX:+UseZGC"
+              --host <host>                  host of a running server (default 127.0.0.1)
+              --port <port>                  port of a running server
+              --metrics-port <port>          scrape endpoint of a running server, for its CPU and heap
+              --tls <off|on|full>            connects over TLS, 'full' without resuming sessions (default off)
+              --tls-trust <key store>        key store of a running server to trust over TLS
+              --tls-password <password>      password of that key store
+              --clients <n>                  simulated users (default 200)
+              --connect-rate <n/s>           new connections per second (default 500)
+              --rate <n/s>                   messages per second, all clients together (default 200)
+              --size <bytes>                 size of a message body (default 64)
+              --pm <0..1>                    share of private messages (default 0.2)
+              --commands <0..1>              share of commands, '/me' (default 0)
+              --slow <0..1>                  share of slow readers (default 0)
+              --slow-delay <ms>              pause of a slow reader after every line (default 50)
+              --idle <n>                     clients that only listen, never send (default 0)
+              --warmup <s>                   seconds of traffic before measuring (default 5)
+              --duration <s>                 seconds of measured traffic (default 30)""";
+    private static final String NICKNAME_PREFIX = "load";
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+    /**
+     * Longest wait for the messages still on their way once the clients stop sending.
+     */
+    private static final long DRAIN_MILLIS = 5_000;
+    private static final long PROGRESS_MILLIS = 5_000;
+
+    // <<-FIELDS->>
+    private ServerMode _serverMode = null;
+    private List<String> _serverJvmArgs = List.of();
+    private String _host = "127.0.0.1";
+    private int _port = 0;
+    private int _metricsPort = 0;
+    private TlsMode _tls = TlsMode.OFF;
+    private Path _tlsTrust = null;
+    private String _tlsPassword = "";
+    private int _clients = 200;
+    private double _connectRate = 500;
+    private double _rate = 200;
+    private int _size = 64;
+    private double _privateMessages = 0.2;
+    private double _commands = 0;
+    private double _slowReaders = 0;
+    private long _slowReadDelayMillis = 50;
+    private int _idleClients = 0;
+    private long _warmupSeconds = 5;
+    private long _durationSeconds = 30;
+
+    private final List<LoadClient> _connected = new ArrayList<>();
+    private final Histogram _connectLatency = new Histogram();
+    private final Histogram _deliveryLatency = new Histogram();
+    private final Histogram _slowDeliveryLatency = new Histogram();
+    private final LongAdder _failedConnects = new LongAdder();
+    private volatile String _connectFailure;
+    private final LongAdder _sentBroadcasts = new LongAdder();
+    private final LongAdder _sentPrivateMessages = new LongAdder();
+    private final LongAdder _sentCommands = new LongAdder();
+    private final LongAdder _failedSends = new LongAdder();
+    /**
+     * Deliveries the measured messages should make: one per private message, one per other client for the rest.
+     */
+    private final LongAdder _expected = new LongAdder();
+    private final LongAdder _delivered = new LongAdder();
+    private final LongAdder _disconnected = new LongAdder();
+    private final LongAdder _slowDisconnected = new LongAdder();
+    /**
+     * Messages meant to be sent from this moment on are measured, the ones before are the warmup.
+     */
+    private volatile long _measureFrom = Long.MAX_VALUE;
+
+    // <<-METHODS->>
+    /**
+     * Runs the whole test: connects the clients, lets them talk and prints the report.
+     *
+     * @throws IOException if the server can't be started
+     * @throws InterruptedException if the test is interrupted
+     */
+    public void run() throws IOException, InterruptedException {
+        boolean tls = _tls != TlsMode.OFF;
+        ServerUnderTest server = _serverMode != null
+                ? ServerUnderTest.spawn(_serverMode, _serverJvmArgs, tls)
+                : ServerUnderTest.running(_host, _port, _metricsPort, tls ? _tlsTrust : null, _tlsPassword);
+        if (server.getOutput() != null)
+            System.out.printf("L O A D --> %s server on %sport %d (console in %s)%n",
+                    _serverMode.name().toLowerCase(), tls ? "TLS " : "", server.getAddress().getPort(), server.getOutput());
+        try {
+            ThreadFactory threads = Thread.ofVirtual().name("load-client-", 0).factory();
+            connectAll(server, threads);
+            if (_connected.stream().filter(client -> !client.isIdle()).count() < 2) {
+                System.err.println("E R R O R: Not enough clients connected to chat");
+                return;
+            }
+            Map<String, Double> before = server.scrape();
+            double heapMax = traffic(server, threads);
+            Map<String, Double> after = server.scrape();
+            report(before, after, heapMax);
+        } finally {
+            synchronized (_connected) {
+                _connected.forEach(LoadClient::close);
+            }
+            server.stop();
+        }
+    }
+
+    /**
+     * Connects the clients at the connect rate, every handshake on a thread of its own.
+     */
+    private void connectAll(ServerUnderTest server, ThreadFactory threads) throws IOException, InterruptedException {
+        System.out.printf("L O A D --> Connecting %d clients at %.0f/s%s%n", _clients, _connectRate,
+                _tls == TlsMode.OFF ? "" : " over TLS (" + _tls.name().toLowerCase() + ")");
+        SSLContext shared = server.newTlsContext();
+        CountDownLatch done = new CountDownLatch(_clients);
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / _connectRate);
+        long start = System.nanoTime();
+        int slowEvery = _slowReaders > 0 ? (int) Math.max(1, Math.round(1 / _slowReaders)) : 0;
+        // Idle clients every so often, as the slow readers
+        double idleEvery = _idleClients > 0 ? (double) _clients / _idleClients : 0;
+        for (int i = 0, idle = 0; i < _clients; i++) {
+            parkUntil(start + i * interval);
+            boolean idleClient = idle < _idleClients && i + 1 >= (idle + 1) * idleEvery;
+            if (idleClient) idle++;
+            LoadClient client = new LoadClient(this, NICKNAME_PREFIX + i, slowEvery > 0 && i % slowEvery == slowEvery - 1, idleClient);
+            threads.newThread(() -> {
+                long connecting = System.nanoTime();
+                try {
+                    client.connect(server.getAddress(), CONNECT_TIMEOUT_MILLIS,
+                            _tls == TlsMode.FULL ? server.newTlsContext() : shared);
+                    _connectLatency.recordSince(connecting);
+                    synchronized (_connected) {
+                        _connected.add(client);
+                    }
+                    done.countDown();
+                    client.readLoop();
+                } catch (IOException e) {
+                    _failedConnects.increment();
+                    _connectFailure = e.toString();
+                    client.close();
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        System.out.printf("L O A D --> %d connected, %d failed in %.1f s%n",
+                _connected.size(), _failedConnects.sum(), (System.nanoTime() - start) / 1e9);
+        if (_connectFailure != null)
+            System.out.printf("L O A D --> Last connect failure: %s%n", _connectFailure);
+    }
+
+    /**
+     * Has every client send its share of the messages for the warmup and the measured time,
+     * then waits for the last deliveries.
+     *
+     * @return the largest heap the server was seen using, in bytes ({@code -1} if unknown)
+     */
+    private double traffic(ServerUnderTest server, ThreadFactory threads) throws InterruptedException {
+        List<LoadClient> clients = List.copyOf(_connected);
+        List<LoadClient> chatting = clients.stream().filter(client -> !client.isIdle()).toList();
+        String padding = "x".repeat(Math.max(0, _size - LoadClient.body(System.nanoTime(), "").length()));
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) * chatting.size() / _rate);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(_warmupSeconds + _durationSeconds);
+        _measureFrom = start + TimeUnit.SECONDS.toNanos(_warmupSeconds);
+        System.out.printf("L O A D --> Sending %.0f messages/s for %d s (+%d s of warmup)%n", _rate, _durationSeconds, _warmupSeconds);
+
+        CountDownLatch senders = new CountDownLatch(chatting.size());
+        for (LoadClient client : chatting)
+            threads.newThread(() -> {
+                try {
+                    sendLoop(client, clients, padding, start + ThreadLocalRandom.current().nextLong(interval), interval, end);
+                } finally {
+                    senders.countDown();
+                }
+            }).start();
+
+        double heapMax = -1;
+        long nextProgress = start + TimeUnit.MILLISECONDS.toNanos(PROGRESS_MILLIS);
+        while (!senders.await(1, TimeUnit.SECONDS)) {
+            heapMax = Math.max(heapMax, server.scrape().getOrDefault("jvm_memory_heap_used_bytes", -1.0));
+            if (System.nanoTime() >= nextProgress) {
+                nextProgress += TimeUnit.MILLISECONDS.toNanos(PROGRESS_MILLIS);
+                System.out.printf("L O A D --> %3d s: %d sent, %d delivered, %d disconnected%n",
+                        TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), sent(), _delivered.sum(),
+                        _disconnected.sum() + _slowDisconnected.sum());
+            }
+        }
+
+        // The messages already sent are still arriving
+        long drainEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_MILLIS);
+        long delivered = -1;
+        while (System.nanoTime() < drainEnd && delivered != _delivered.sum()) {
+            delivered = _delivered.sum();
+            Thread.sleep(500);
+        }
+        return heapMax;
+    }
+
+    /**
+     * Sends the messages of one client at a steady pace until the end of the test.
+     */
+    private void sendLoop(LoadClient client, List<LoadClient> clients, String padding, long first, long interval, long end) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+            for (long intended = first; intended < end; intended += interval) {
+                parkUntil(intended);
+                boolean measured = intended >= _measureFrom;
+                double kind = random.nextDouble();
+                if (kind < _commands) {
+                    client.send("/me");
+                    if (measured) _sentCommands.increment();
+                } else if (kind < _commands + _privateMessages) {
+                    LoadClient dst = clients.get(random.nextInt(clients.size()));
+                    if (dst == client) dst = clients.get((clients.indexOf(client) + 1) % clients.size());
+                    client.send("@" + dst.getNickname() + " " + LoadClient.body(intended, padding));
+                    if (measured) {
+                        _sentPrivateMessages.increment();
+                        _expected.increment();
+                    }
+                } else {
+                    client.send(LoadClient.body(intended, padding));
+                    if (measured) {
+                        _sentBroadcasts.increment();
+                        _expected.add(clients.size() - 1);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            _failedSends.increment();
+        }
+    }
+
+    private static void parkUntil(long deadline) {
+        for (long left; (left = deadline - System.nanoTime()) > 0; )
+            LockSupport.parkNanos(left);
+    }
+
+    private long sent() {
+        return _sentBroadcasts.sum() + _sentPrivateMessages.sum() + _sentCommands.sum();
+    }
+
+    /**
+     * Records a message that reached a client.
+     *
+     * @param intendedNanos when it was meant to be sent
+     * @param slow whether the client that got it is a slow reader
+     */
+    void delivered(long intendedNanos, boolean slow) {
+        if (intendedNanos < _measureFrom) return;
+        _delivered.increment();
+        (slow ? _slowDeliveryLatency : _deliveryLatency).recordSince(intendedNanos);
+    }
+
+    /**
+     * Records a client the server has closed.
+     *
+     * @param slow whether it is a slow reader
+     */
+    void disconnected(boolean slow) {
+        (slow ? _slowDisconnected : _disconnected).increment();
+    }
+
+    private void report(Map<String, Double> before, Map<String, Double> after, double heapMax) {
+        long slow = _connected.stream().filter(LoadClient::isSlow).count();
+        long idle = _connected.stream().filter(LoadClient::isIdle).count();
+        System.out.println();
+        System.out.printf("Load test: %d clients (%d slow readers, %d idle), %.0f messages/s of %d bytes for %d s, %.0f%% PM, %.0f%% commands%n",
+                _connected.size(), slow, idle, _rate, _size, _durationSeconds, _privateMessages * 100, _commands * 100);
+        System.out.println(latency("> Connect (ms):        ", _connectLatency));
+        System.out.println(latency("> Delivery (ms):       ", _deliveryLatency));
+        if (slow > 0)
+            System.out.println(latency("> Slow delivery (ms):  ", _slowDeliveryLatency));
+        System.out.printf("> Sent:                %d broadcasts, %d PMs, %d commands (%.0f/s), %d failed connects, %d failed sends%n",
+                _sentBroadcasts.sum(), _sentPrivateMessages.sum(), _sentCommands.sum(),
+                (double) sent() / _durationSeconds, _failedConnects.sum(), _failedSends.sum());
+        System.out.printf("> Delivered:           %d of %d (%.2f%%, %.0f/s)%n",
+                _delivered.sum(), _expected.sum(), 100.0 * _delivered.sum() / Math.max(1, _expected.sum()),
+                (double) _delivered.sum() / _durationSeconds);
+        System.out.printf("> Disconnected:        %d clients, %d slow readers%n", _disconnected.sum(), _slowDisconnected.sum());
+        Double handshakes = after.get("chatserver_tls_handshake_seconds_count");
+        if (handshakes != null && handshakes > 0)
+            System.out.printf("> TLS:                 %.0f handshakes, %.0f resumed, %.2f ms on average on the server%n",
+                    handshakes, after.getOrDefault("chatserver_tls_resumed_total", 0.0),
+                    after.getOrDefault("chatserver_tls_handshake_seconds_sum", 0.0) * 1e3 / handshakes);
+
+        Double cpuBefore = before.get("process_cpu_seconds_total");
+        Double cpuAfter  = after.get("process_cpu_seconds_total");
+        if (cpuBefore != null && cpuAfter != null)
+            System.out.printf("> Server:              %.2f cores of CPU, heap up to %d MiB (%d MiB at the end), %.0f threads%n",
+                    (cpuAfter - cpuBefore) / (_warmupSeconds + _durationSeconds + DRAIN_MILLIS / 1000.0),
+                    (long) heapMax >> 20, after.getOrDefault("jvm_memory_heap_used_bytes", -1.0).longValue() >> 20,
+                    after.getOrDefault("jvm_threads_live", -1.0));
+        else System.out.println("> Server:              no metrics endpoint, run it with -Dchatserver.metrics.port and pass --metrics-port");
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os)
+            System.out.printf("> Load generator:      %.1f s of CPU%n", os.getProcessCpuTime() / 1e9);
+    }
+
+    private static String latency(String label, Histogram histogram) {
+        if (histogram.getCount() == 0)
+            return label + "no samples";
+        return String.format("%sp50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f (%d samples)",
+                label,
+                histogram.quantile(0.5) / 1e6,
+                histogram.quantile(0.9) / 1e6,
+                histogram.quantile(0.99) / 1e6,
+                histogram.quantile(0.999) / 1e6,
+                histogram.getMax() / 1e6,
+                histogram.getCount());
+    }
+
+    /**
+     * Reads the options of the command line.
+     *
+     * @param args the command-line arguments
+     * @return the load generator
+     * @throws IllegalArgumentException if an option is unknown or has an invalid value
+     */
+    static LoadGenerator parse(String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+        if (args.length % 2 != 0)
+            throw new IllegalArgumentException("every option needs a value");
+        for (int i = 0; i < args.length; i += 2) {
+            String value = args[i + 1];
+            try {
+                switch (args[i]) {
+                    case "--server"       -> generator._serverMode = ServerMode.parse(value);
+                    case "--server-jvm"   -> generator._serverJvmArgs = Arrays.asList(value.trim().split(" +"));
+                    case "--host"         -> generator._host = value;
+                    case "--port"         -> generator._port = Integer.parseInt(value);
+                    case "--metrics-port" -> generator._metricsPort = Integer.parseInt(value);
+                    case "--tls"          -> generator._tls = TlsMode.parse(value);
+                    case "--tls-trust"    -> generator._tlsTrust = Path.of(value);
+                    case "--tls-password" -> generator._tlsPassword = value;
+                    case "--clients"      -> generator._clients = Integer.parseInt(value);
+                    case "--connect-rate" -> generator._connectRate = Double.parseDouble(value);
+                    case "--rate"         -> generator._rate = Double.parseDouble(value);
+                    case "--size"         -> generator._size = Integer.parseInt(value);
+                    case "--pm"           -> generator._privateMessages = Double.parseDouble(value);
+                    case "--commands"     -> generator._commands = Double.parseDouble(value);
+                    case "--slow"         -> generator._slowReaders = Double.parseDouble(value);
+                    case "--slow-delay"   -> generator._slowReadDelayMillis = Long.parseLong(value);
+                    case "--idle"         -> generator._idleClients = Integer.parseInt(value);
+                    case "--warmup"       -> generator._warmupSeconds = Long.parseLong(value);
+                    case "--duration"     -> generator._durationSeconds = Long.parseLong(value);
+                    default -> throw new IllegalArgumentException("unknown option " + args[i]);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(args[i] + " must be a number", e);
+            }
+        }
+        if (generator._serverMode == null && generator._port <= 0)
+            throw new IllegalArgumentException("either --server or --port is needed");
+        if (generator._serverMode == null && generator._tls != TlsMode.OFF && generator._tlsTrust == null)
+            throw new IllegalArgumentException("--tls-trust is needed for a running server over TLS");
+        if (generator._clients < 2 || generator._connectRate <= 0 || generator._rate <= 0 || generator._durationSeconds <= 0)
+            throw new IllegalArgumentException("--clients must be at least 2, --connect-rate, --rate and --duration above 0");
+        if (generator._idleClients < 0 || generator._clients - generator._idleClients < 2)
+            throw new IllegalArgumentException("--idle can't be negative and must leave at least 2 clients chatting");
+        if (generator._privateMessages + generator._commands > 1)
+            throw new IllegalArgumentException("--pm and --commands can't add up to more than 1");
+        return generator;
+    }
+
+    /**
+     * How the clients connect.
+     */
+    enum TlsMode {
+        OFF, ON, FULL;
+
+        static TlsMode parse(String value) {
+            try {
+                return valueOf(value.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("--tls must be off, on or full");
+            }
+        }
+    }
+
+    // <<-GETTERS->>
+    public long getSlowReadDelayMillis() {
+        return _slowReadDelayMillis;
+    }
+
+    /**
+     * The main entry point of the load generator.
+     *
+     * @param args the command-line arguments, see {@link #USAGE}
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        LoadGenerator generator = null;
+        try {
+            generator = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.printf("E R R O R: %s%n%s%n", e.getMessage(), USAGE);
+            System.exit(1);
+        }
+        generator.run();
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,220 @@
+package com.quathar.chatserver;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <h1>ServerUnderTest</h1>
+ * <br>
+ * The chat server a load test runs against: one already running or one started
+ * in a JVM of its own, so the load generator doesn't eat into its CPU and heap figures.<br>
+ * <br>
+ * Its CPU and heap are read from the metrics scrape endpoint, when there is one.<br>
+ * <br>
+ * Over TLS, the clients trust the key store of the server: a started server gets a self-signed one.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class ServerUnderTest {
+
+    // <<-CONSTANTS->>
+    private static final Duration STARTUP_TIMEOUT = Duration.ofSeconds(15);
+    private static final String KEY_STORE_PASSWORD = "chat-load";
+
+    // <<-FIELDS->>
+    private final InetSocketAddress _address;
+    private final URI _metrics;
+    private final Process _process;
+    private final Path _output;
+    private final HttpClient _http;
+    private final Path _keyStore;
+    private final String _keyStorePassword;
+
+    // <<-CONSTRUCTOR->>
+    private ServerUnderTest(InetSocketAddress address, int metricsPort, Process process, Path output,
+                            Path keyStore, String keyStorePassword) {
+        _address          = address;
+        _metrics          = metricsPort > 0 ? URI.create("http://" + address.getHostString() + ":" + metricsPort + "/metrics") : null;
+        _process          = process;
+        _output           = output;
+        _http             = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+        _keyStore         = keyStore;
+        _keyStorePassword = keyStorePassword;
+    }
+
+    // <<-METHODS->>
+    /**
+     * Points at a server that is already running.
+     *
+     * @param host the host of the server
+     * @param port the port of the server
+     * @param metricsPort the port of its scrape endpoint, {@code 0} if it has none
+     * @param keyStore the key store of its TLS port (it's trusted as is), {@code null} for a plain port
+     * @param keyStorePassword the password of the key store
+     * @return the server
+     */
+    public static ServerUnderTest running(String host, int port, int metricsPort, Path keyStore, String keyStorePassword) {
+        return new ServerUnderTest(new InetSocketAddress(host, port), metricsPort, null, null, keyStore, keyStorePassword);
+    }
+
+    /**
+     * Starts a server on free local ports, with the same classpath and the {@code chatserver.*}
+     * system properties of this JVM, and waits until it answers.
+     *
+     * @param mode the way the server serves its connections
+     * @param jvmArgs extra options for its JVM (e.g. {@code -Xmx1g})
+     * @param tls whether the clients connect to a TLS port, with a self-signed key store
+     * @return the server
+     * @throws IOException if the server can't be started
+     */
+    public static ServerUnderTest spawn(ServerMode mode, List<String> jvmArgs, boolean tls) throws IOException {
+        int port = freePort();
+        int metricsPort = freePort();
+        int tlsPort = tls ? freePort() : 0;
+        Path keyStore = tls ? SelfSignedKeyStore.create(Files.createTempDirectory("chat-load-tls-"), KEY_STORE_PASSWORD) : null;
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        System.getProperties().stringPropertyNames().stream()
+              .filter(name -> name.startsWith("chatserver.") && !name.equals("chatserver.metrics.port"))
+              .filter(name -> !tls || !name.matches("chatserver\\.tls\\.(port|keyStore|keyStorePassword)"))
+              .forEach(name -> command.add("-D" + name + "=" + System.getProperty(name)));
+        command.add("-Dchatserver.metrics.port=" + metricsPort);
+        if (tls) {
+            command.add("-Dchatserver.tls.port=" + tlsPort);
+            command.add("-Dchatserver.tls.keyStore=" + keyStore);
+            command.add("-Dchatserver.tls.keyStorePassword=" + KEY_STORE_PASSWORD);
+        }
+        command.add(ChatServer.class.getName());
+        command.add(String.valueOf(port));
+        command.add(mode.name().toLowerCase());
+
+        // Every peer is announced on the console, it goes to a file instead of ours
+        Path output = Files.createTempFile("chat-load-server-", ".log");
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(output.toFile())
+                .start();
+        ServerUnderTest server = new ServerUnderTest(new InetSocketAddress("127.0.0.1", tls ? tlsPort : port), metricsPort,
+                                                     process, output, keyStore, KEY_STORE_PASSWORD);
+        server.awaitStartup();
+        return server;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Waits for the scrape endpoint, which answers once the chat port is bound.
+     */
+    private void awaitStartup() throws IOException {
+        long deadline = System.nanoTime() + STARTUP_TIMEOUT.toNanos();
+        while (System.nanoTime() < deadline) {
+            if (!_process.isAlive())
+                throw new IOException("The server exited with " + _process.exitValue() + ", see " + _output);
+            if (!scrape().isEmpty()) return;
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        stop();
+        throw new IOException("The server didn't start in " + STARTUP_TIMEOUT.toSeconds() + " s, see " + _output);
+    }
+
+    /**
+     * Reads the unlabelled samples of the scrape endpoint (e.g. {@code process_cpu_seconds_total}).
+     *
+     * @return the samples by name, empty if there is no endpoint or it doesn't answer
+     */
+    public Map<String, Double> scrape() {
+        Map<String, Double> samples = new HashMap<>();
+        if (_metrics == null) return samples;
+        try {
+            HttpResponse<String> response = _http.send(
+                    HttpRequest.newBuilder(_metrics).timeout(Duration.ofSeconds(2)).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            for (String line : response.body().split("\n")) {
+                int space = line.indexOf(' ');
+                if (line.startsWith("#") || space == -1 || line.indexOf('{') != -1) continue;
+                try {
+                    samples.put(line.substring(0, space), Double.parseDouble(line.substring(space + 1).trim()));
+                } catch (NumberFormatException e) {
+                    // Not a sample
+                }
+            }
+        } catch (IOException e) {
+            // Not there (yet)
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return samples;
+    }
+
+    /**
+     * Creates a client context that trusts the server. Every context has a session cache of its own:
+     * clients sharing one resume the sessions of each other, a new one means a full handshake.
+     *
+     * @return the context, or {@code null} if the server isn't tested over TLS
+     * @throws IOException if the key store can't be read
+     */
+    public SSLContext newTlsContext() throws IOException {
+        if (_keyStore == null) return null;
+        try {
+            return TlsContexts.client(_keyStore, _keyStorePassword);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Invalid key store " + _keyStore, e);
+        }
+    }
+
+    /**
+     * Stops the server if it was started by the load generator.
+     */
+    public void stop() {
+        if (_process != null)
+            _process.destroy();
+    }
+
+    // <<-GETTERS->>
+    public InetSocketAddress getAddress() {
+        return _address;
+    }
+
+    public boolean hasMetrics() {
+        return _metrics != null;
+    }
+
+    /**
+     * Returns the file the console of a started server goes to.
+     *
+     * @return the file, or {@code null} if the server wasn't started by the load generator
+     */
+    public Path getOutput() {
+        return _output;
+    }
+
+}
@@ -0,0 +1,617 @@
+package com.quathar.chatserver;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <h1>ChannelPeer</h1>
+ * <br>
+ * This is a chat peer served by a {@link ChatEventLoop} instead of a thread of its own.<br>
+ * <br>
+ * It speaks the same protocols as {@link ChatPeer}, but as a state machine:
+ * every complete line (or {@link Frame frame}) read from the channel moves the peer forward
+ * (nickname handshake, nickname change or chatting).<br>
+ * <br>
+ * A peer of the TLS port reads and writes through its {@link TlsChannel}, the selector still watches the socket.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class ChannelPeer implements Peer {
+
+    // <<-CONSTANTS->>
+    private static final String SYSTEM = "S Y S T E M: ";
+    private static final String ERROR = "E R R O R: ";
+    private static final Payload NICKNAME_PROMPT = Payload.prompt("Enter your nickname:");
+    private static final Payload PREFACE = Payload.raw(Frame.PREFACE);
+    private static final Payload COMPRESSION = Payload.compression();
+    private static final Payload PING = Payload.ping();
+    /**
+     * Longest line (in bytes) a peer is allowed to send.
+     */
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    // <<-FIELDS->>
+    private final ChatServer _chatServer;
+    private final ChatEventLoop _eventLoop;
+    private final SocketChannel _socketChannel;
+    /**
+     * The encrypted channel, {@code null} if the peer isn't on the TLS port.
+     */
+    private final TlsChannel _tls;
+    /**
+     * What the peer is read from and written to: the socket channel or the encrypted one.
+     */
+    private final ByteChannel _channel;
+    private final SelectionKey _key;
+    private final OutboundQueue _outbound;
+    private final AtomicBoolean _flushScheduled;
+    private final AtomicBoolean _urgentFlushScheduled;
+    private final Metrics _metrics;
+    private final RateLimiter _rateLimiter;
+    private final RateLimiter.Quota _quota;
+    private final Heartbeat _heartbeat;
+    private final long _connected;
+    /**
+     * The message being written, when the channel didn't take all of it.
+     */
+    private Payload _pendingWrite;
+    private int _pendingOffset;
+    /**
+     * Bytes already gathered that the channel didn't take, only while the peer is behind.
+     */
+    private ByteBuffer _backlog;
+    private byte[] _line;
+    private int _lineLength;
+    /**
+     * Bytes of the binary preface read so far, {@code -1} once the protocol is known.
+     */
+    private int _prefaceRead;
+    /**
+     * The frames being read, {@code null} while the peer speaks text.
+     */
+    private Frame.Decoder _frames;
+    /**
+     * Bytes of the message being read, for the rate limits.
+     */
+    private int _messageBytes;
+    /**
+     * When the peer may be read again, while it waits for its rate limits ({@code 0} if it doesn't).
+     */
+    private long _resumeAt;
+    /**
+     * What was read but not handled yet, while the peer waits for its rate limits.
+     */
+    private ByteBuffer _unread;
+    /**
+     * Whether the preface was written, everything after it goes out as frames.
+     */
+    private boolean _binaryOut;
+    /**
+     * The compression of the frames written to the peer, {@code null} unless the client asked for it.
+     */
+    private Compression _compression;
+    private State _state;
+    private volatile String _nickname;
+    private volatile boolean _available;
+    /**
+     * Whether the peer leaves for good (it said bye or was sent away), its session isn't kept then.
+     */
+    private volatile boolean _leaving;
+    private volatile boolean _closeRequested;
+    /**
+     * Whether the peer is closed once everything queued is written, see {@link #disconnect(Payload)}.
+     */
+    private volatile boolean _closeWhenFlushed;
+    private boolean _closed;
+
+    // <<-CONSTRUCTOR->>
+    public ChannelPeer(ChatServer chatServer, ChatEventLoop eventLoop, SocketChannel socketChannel, SelectionKey key) {
+        this(chatServer, eventLoop, socketChannel, null, key);
+    }
+
+    /**
+     * Constructs a peer of the TLS port, or a plain one if there is no encrypted channel.
+     */
+    public ChannelPeer(ChatServer chatServer, ChatEventLoop eventLoop, SocketChannel socketChannel, TlsChannel tls, SelectionKey key) {
+        _chatServer     = chatServer;
+        _eventLoop      = eventLoop;
+        _socketChannel  = socketChannel;
+        _tls            = tls;
+        _channel        = tls != null ? tls : socketChannel;
+        _key            = key;
+        _outbound       = newOutboundQueue(chatServer.getConfig());
+        _flushScheduled = new AtomicBoolean();
+        _urgentFlushScheduled = new AtomicBoolean();
+        _metrics        = chatServer.getMetrics();
+        _rateLimiter    = chatServer.getRateLimiter();
+        _quota          = _rateLimiter.newQuota();
+        _heartbeat      = new Heartbeat(chatServer, this::ping, this::reap);
+        _connected      = System.nanoTime();
+        _state          = State.NICKNAME;
+    }
+
+    // <<-METHODS->>
+    /**
+     * Creates the outbound queue of the peer.<br>
+     * <br>
+     * Senders may be event loops, which must never wait:
+     * with {@link OverflowPolicy#BLOCK} the new message is dropped right away instead.
+     *
+     * @param config the server settings
+     * @return a new outbound queue
+     */
+    private static OutboundQueue newOutboundQueue(ServerConfig config) {
+        if (config.getOverflowPolicy() == OverflowPolicy.BLOCK)
+            return new OutboundQueue(config.getOutboundCapacity(), OverflowPolicy.BLOCK, 0);
+        return config.newOutboundQueue();
+    }
+
+    /**
+     * Starts the nickname handshake, the peer is closed if it doesn't choose one in time.
+     */
+    void open() {
+        write(NICKNAME_PROMPT);
+        _heartbeat.start(true);
+    }
+
+    /**
+     * Reads whatever is available on the channel and handles every complete line or frame.
+     * <br>
+     * Runs on the event loop thread.
+     *
+     * @param buffer the read buffer of the event loop
+     */
+    void read(ByteBuffer buffer) {
+        try {
+            do {
+                buffer.clear();
+                int read = _channel.read(buffer);
+                if (read == -1) {
+                    close();
+                    return;
+                }
+                _metrics.bytesIn(read);
+                if (read > 0)
+                    _heartbeat.read();
+                buffer.flip();
+                consume(buffer);
+                if (buffer.hasRemaining() && !_closed) {
+                    // It must wait for its rate limits, the rest is kept until then
+                    _unread = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+                    return;
+                }
+            // Decrypted bytes that didn't fit the buffer won't make the socket readable again
+            } while (_tls != null && _tls.hasBufferedInput() && !_closed && _resumeAt == 0);
+            if (_tls != null && _tls.hasPendingOutput())
+                // A handshake message (e.g. a key update) must go out
+                _eventLoop.requestFlush(this, true);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Handles every complete line or frame in a buffer, unless the peer has to wait for its rate limits.
+     *
+     * @param buffer the bytes read from the channel
+     */
+    private void consume(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && !_closed && _resumeAt == 0) {
+            if (_frames != null) {
+                int start = buffer.position();
+                Frame frame = _frames.decode(buffer);
+                _messageBytes += buffer.position() - start;
+                if (frame != null) onFrame(frame);
+                continue;
+            }
+            if (_prefaceRead >= 0) {
+                readPreface(buffer);
+                continue;
+            }
+            byte b = buffer.get();
+            if (b == Payload.LINE_END) {
+                int length = _lineLength;
+                if (length > 0 && _line[length - 1] == '\r') length--;
+                String line = length == 0 ? "" : new String(_line, 0, length, Payload.CHARSET);
+                _messageBytes = _lineLength + 1;
+                _lineLength   = 0;
+                onLine(line);
+            } else appendToLine(b);
+        }
+    }
+
+    /**
+     * Detects the protocol from the first bytes of the peer: a binary client starts with the preface,
+     * a text client never sends its first byte ({@code NUL}).
+     */
+    private void readPreface(ByteBuffer buffer) throws ProtocolException {
+        byte b = buffer.get(buffer.position());
+        if (_prefaceRead == 0 && b != Frame.PREFACE[0]) {
+            _prefaceRead = -1;
+            return;
+        }
+        buffer.get();
+        if (b != Frame.PREFACE[_prefaceRead])
+            throw new ProtocolException("Bad preface");
+        if (++_prefaceRead < Frame.PREFACE.length) return;
+
+        // The client skips whatever text it gets before the preface comes back
+        _prefaceRead = -1;
+        _frames      = new Frame.Decoder();
+        _heartbeat.binary();
+        write(PREFACE);
+        write(NICKNAME_PROMPT);
+    }
+
+    private void onFrame(Frame frame) throws IOException {
+        if (frame.getOpcode() == Frame.PONG)
+            // Reading it was all it took
+            _messageBytes = 0;
+        else if (_state == State.CHAT) {
+            if (admit()) _chatServer.dispatch(this, frame);
+        } else if (frame.getOpcode() == Frame.NICKNAME)
+            onLine(frame.getBody());
+        else if (frame.getOpcode() == Frame.SESSION && _state == State.NICKNAME)
+            resumeSession(frame.getBody());
+        else if (frame.getOpcode() == Frame.COMPRESSION && _state == State.NICKNAME)
+            compression(frame);
+        else throw new ProtocolException("Expected a nickname");
+    }
+
+    /**
+     * Compresses what is written to the peer from now on, if the server has compression on, and tells the client so.
+     *
+     * @param frame what the client asked for
+     */
+    private void compression(Frame frame) {
+        Compression compression = _chatServer.getCompression();
+        if (compression == null || !frame.getBody().equals(Compression.DEFLATE)) return;
+        _compression = compression;
+        write(COMPRESSION);
+    }
+
+    private void appendToLine(byte b) throws IOException {
+        if (_lineLength == MAX_LINE_LENGTH) {
+            write(ERROR + "The message is too long");
+            throw new IOException("Line too long");
+        }
+        if (_line == null)
+            _line = new byte[128];
+        else if (_lineLength == _line.length)
+            _line = Arrays.copyOf(_line, Math.min(_line.length * 2, MAX_LINE_LENGTH));
+        _line[_lineLength++] = b;
+    }
+
+    private void onLine(String line) throws IOException {
+        switch (_state) {
+            case NICKNAME -> checkNickname(line);
+            case CHANGING_NICKNAME -> checkNewNickname(line);
+            case CHAT -> {
+                if (admit()) _chatServer.dispatch(this, line);
+            }
+        }
+    }
+
+    /**
+     * Checks the message just read against the rate limits.<br>
+     * <br>
+     * If the peer must wait, nothing more is handled nor read from the channel until it may go on:
+     * the socket buffers fill up and the client is held back by TCP.
+     *
+     * @return {@code true} to handle the message, {@code false} to throw it away
+     */
+    private boolean admit() {
+        long pause = _rateLimiter.admit(this, _quota, _messageBytes);
+        _messageBytes = 0;
+        if (pause == RateLimiter.CLOSE) {
+            _leaving = true;
+            close();
+            return false;
+        }
+        if (pause > 0) {
+            _resumeAt = System.nanoTime() + pause;
+            _key.interestOps(_key.interestOps() & ~SelectionKey.OP_READ);
+            _eventLoop.resumeLater(this, _resumeAt);
+        }
+        return pause >= 0;
+    }
+
+    /**
+     * Goes on with a peer that waited for its rate limits: first what was left unread, then the channel.
+     * <br>
+     * Runs on the event loop thread.
+     */
+    void resume() {
+        if (_closed) return;
+        _resumeAt = 0;
+        if (_unread != null) {
+            try {
+                consume(_unread);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (!_unread.hasRemaining())
+                _unread = null;
+        }
+        if (_resumeAt == 0 && !_closed) {
+            _key.interestOps(_key.interestOps() | SelectionKey.OP_READ);
+            if (_tls != null && _tls.hasBufferedInput())
+                read(_eventLoop.getReadBuffer());
+        }
+    }
+
+    private void checkNickname(String nickname) {
+        _nickname = nickname;
+        int status = _chatServer.claimNickname(nickname, this);
+        write(ChatServer.statusMessage(status));
+        if (status != 0) {
+            write(NICKNAME_PROMPT);
+            return;
+        }
+        write(SYSTEM + "Welcome, you are connected to the server");
+        Payload token = _frames != null ? _chatServer.openSession(this) : null;
+        if (token != null) write(token);
+        _metrics.handshake(_connected);
+        _heartbeat.joined();
+        _state     = State.CHAT;
+        _available = true;
+        _chatServer.replayHistory(this);
+        _chatServer.available(this);
+    }
+
+    /**
+     * Takes the place the peer had on a previous connection, the server sends it what it missed.
+     *
+     * @param token the token of its session
+     */
+    private void resumeSession(String token) {
+        // Nobody finds it until it has the session, from then on it must not miss a message
+        _available = true;
+        String nickname = _chatServer.resumeSession(token, this);
+        if (nickname == null) {
+            _available = false;
+            write(ChatServer.statusMessage(6));
+            write(NICKNAME_PROMPT);
+            return;
+        }
+        _nickname = nickname;
+        _metrics.handshake(_connected);
+        _heartbeat.joined();
+        _state    = State.CHAT;
+        _chatServer.available(this);
+    }
+
+    private void checkNewNickname(String nickname) {
+        if (!_nickname.equals(nickname)) {
+            int status = _chatServer.changeNickname(this, nickname);
+            write(ChatServer.statusMessage(status));
+            if (status != 0) {
+                write(NICKNAME_PROMPT);
+                return;
+            }
+            _nickname = nickname;
+            write(SYSTEM + "The nickname was successfully changed ;)");
+        } else write(SYSTEM + "The nick wasn't changed");
+
+        _state     = State.CHAT;
+        _available = true;
+        _chatServer.available(this);
+    }
+
+    /**
+     * Queues a line for this peer, whatever state it is in.
+     *
+     * @param msg the line to queue
+     */
+    private void write(String msg) {
+        write(Payload.of(msg));
+    }
+
+    /**
+     * Pings the peer, on the wheel thread: only if nothing is queued for it.
+     */
+    private void ping() {
+        if (_outbound.getDepth() == 0)
+            write(PING);
+    }
+
+    /**
+     * Closes the peer from the wheel thread, through its event loop.
+     */
+    private void reap() {
+        _closeRequested = true;
+        _eventLoop.requestFlush(this, true);
+    }
+
+    private void write(Payload msg) {
+        if (_closeRequested) return;
+
+        if (!_outbound.offer(msg))
+            // The peer doesn't read fast enough, we don't keep its output forever
+            _closeRequested = true;
+
+        // A full batch (or a half full queue of small messages) is written right away,
+        // without waiting for the flush max delay
+        ServerConfig config = _chatServer.getConfig();
+        if (_outbound.getBytes() >= config.getFlushMaxBytes() || _outbound.getDepth() >= config.getOutboundCapacity() / 2) {
+            if (_urgentFlushScheduled.compareAndSet(false, true))
+                _eventLoop.requestFlush(this, true);
+        } else if (_flushScheduled.compareAndSet(false, true))
+            _eventLoop.requestFlush(this, false);
+    }
+
+    /**
+     * Writes as much pending output as the channel accepts.
+     * <br>
+     * Runs on the event loop thread. The shared payloads are gathered into the loop's
+     * write buffer (one message per write if the server flushes immediately),
+     * nothing is allocated per recipient unless the channel falls behind.
+     */
+    void flush() {
+        _flushScheduled.set(false);
+        _urgentFlushScheduled.set(false);
+        if (_closeRequested) {
+            close();
+            return;
+        }
+        try {
+            if (_tls != null)
+                _tls.flush();
+            if (_backlog != null) {
+                _metrics.bytesOut(_channel.write(_backlog));
+                if (!_backlog.hasRemaining())
+                    _backlog = null;
+            }
+
+            ServerConfig config = _chatServer.getConfig();
+            ByteBuffer buffer = _eventLoop.getWriteBuffer();
+            while (_backlog == null) {
+                buffer.clear();
+                buffer.limit(Math.min(buffer.capacity(), config.getFlushMaxBytes()));
+                if (!gather(buffer, !config.isFlushImmediate())) break;
+                buffer.flip();
+                _metrics.bytesOut(_channel.write(buffer));
+                if (buffer.hasRemaining())
+                    _backlog = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+            }
+            if (!_key.isValid()) return;
+            boolean behind = _backlog != null || _tls != null && _tls.hasPendingOutput();
+            if (behind)
+                _heartbeat.writing();
+            else _heartbeat.written();
+            if (_closeWhenFlushed && !behind && _pendingWrite == null && _outbound.getDepth() == 0) {
+                close();
+                return;
+            }
+            if (!behind)
+                _key.interestOps(_key.interestOps() & ~SelectionKey.OP_WRITE);
+            else _key.interestOps(_key.interestOps() | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Copies queued messages into a buffer.
+     *
+     * @param buffer the buffer to fill
+     * @param batch {@code true} to gather as many messages as fit, {@code false} for just one
+     * @return {@code true} if anything was copied, {@code false} if there was nothing to write
+     */
+    private boolean gather(ByteBuffer buffer, boolean batch) {
+        do {
+            if (_pendingWrite == null) {
+                Payload next = _outbound.poll();
+                if (next == null) break;
+                _pendingWrite  = _binaryOut ? next.framed(_compression) : next;
+                _pendingOffset = 0;
+                _binaryOut    |= next == PREFACE;
+            }
+            _pendingOffset += _pendingWrite.copyTo(buffer, _pendingOffset);
+            if (_pendingOffset == _pendingWrite.length()) {
+                _pendingWrite = null;
+                _metrics.messageOut();
+            }
+        } while (batch && buffer.hasRemaining());
+        return buffer.position() > 0;
+    }
+
+    /**
+     * Closes the channel and takes the peer out of the chat server.
+     * <br>
+     * Runs on the event loop thread.
+     */
+    void close() {
+        if (_closed) return;
+        _closed    = true;
+        _available = false;
+        _heartbeat.stop();
+        _key.cancel();
+        try {
+            _channel.close();
+        } catch (IOException e) {
+            System.err.println(ERROR + "ChannelPeer --> _channel.close()");
+        }
+        if (_leaving)
+            _chatServer.remove(this);
+        // Its connection dropped (or it looked dead), its session waits for it if it has one
+        else _chatServer.park(this, _outbound);
+        _outbound.clear();
+    }
+
+    // <<-OVERRIDE->>
+    @Override
+    public void send(Payload msg) {
+        if (_available)
+            write(msg);
+    }
+
+    @Override
+    public boolean deliver(Payload msg) {
+        if (!_available) return false;
+        write(msg);
+        return true;
+    }
+
+    @Override
+    public void replay(Replay replay) {
+        if (_closeRequested) return;
+
+        _outbound.replay(replay);
+        if (_flushScheduled.compareAndSet(false, true))
+            _eventLoop.requestFlush(this, false);
+    }
+
+    @Override
+    public void disconnect(Payload farewell) {
+        _leaving   = true;
+        _available = false;
+        write(farewell);
+        _closeWhenFlushed = true;
+        _eventLoop.requestFlush(this, true);
+    }
+
+    @Override
+    public void changeNickname() {
+        _available = false;
+        _state     = State.CHANGING_NICKNAME;
+        write("Changing nickname...");
+        write(NICKNAME_PROMPT);
+    }
+
+    // <<-GETTERS->>
+    @Override
+    public String getNickname() {
+        return _nickname;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return _outbound.getDepth();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return _outbound.getDropped();
+    }
+
+    // <<-STATE->>
+    /**
+     * The stages of the conversation with the peer.
+     */
+    private enum State {
+        NICKNAME,
+        CHANGING_NICKNAME,
+        CHAT
+    }
+
+}
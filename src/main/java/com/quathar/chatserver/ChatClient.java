@@ -4,20 +4,18 @@ import javafx.application.Application;
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
-import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 
-import java.io.BufferedReader;
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.InetAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * <h1>ChatClient</h1>
@@ -27,6 +25,11 @@ import java.net.UnknownHostException;
  *     <li>Write from the standard input</li>
  *     <li>Read from the chat server</li>
  * </ul>
+ * It talks to the server through a {@link ChatConnection}, in the binary protocol when the server has it.
+ * With {@code tls} as third argument it connects to the TLS port of the server, trusting the certificates
+ * of the default trust store ({@code -Djavax.net.ssl.trustStore=...} for a self-signed one).
+ * If the connection drops it connects again, and gets back its session (nickname, rooms and the messages missed)
+ * if the server still keeps it.
  *
  * @since 2022-11-15
  * @version 3.0
@@ -55,20 +58,20 @@ public class ChatClient extends Application {
      * The frame title.
      */
     private static final String FRAME_TITLE = "Chat Server";
-
-    // <<-FIELDS->>
     /**
-     * Socket
+     * The most messages on screen, the oldest go away.
      */
-    private Socket _socket;
+    private static final int SCROLLBACK = 5_000;
+
+    // <<-FIELDS->>
     /**
-     * Socket Output
+     * Connection to the server
      */
-    private PrintWriter _socketOut;
+    private ChatConnection _connection;
     /**
-     * Socket Input
+     * Thread that receives the messages, woken up from its wait to reconnect when the client stops
      */
-    private BufferedReader _socketIn;
+    private Thread _networkThread;
 
     // <<-METHODS->>
     @Override
@@ -107,19 +110,36 @@ public class ChatClient extends Application {
             System.exit(1);
         }
 
+        // Checks for 'tls'
+        SSLContext tls = null;
+        if (args.length == 3) {
+            if (!args[2].equalsIgnoreCase("tls")) {
+                System.err.println("Usage: the third argument can only be 'tls'");
+                System.exit(1);
+            }
+            try {
+                tls = SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException e) {
+                System.err.println(ERROR + "TLS isn't available");
+                System.exit(1);
+            }
+        }
+
         try {
-            _socket    = new Socket(inetAddress, portNumber);
-            _socketOut = new PrintWriter(_socket.getOutputStream(), true);
-            _socketIn  = new BufferedReader(new InputStreamReader(_socket.getInputStream()));
+            _connection = new ChatConnection(inetAddress, portNumber, tls);
         } catch(IOException e) {
             System.err.println(ERROR + "ChatClient() -> IOException");
         }
     }
 
-    private void sendMessage(TextField input, TextArea display) {
+    private void sendMessage(TextField input, MessageView display) {
         String message = input.getText();
-        display.appendText(message + System.lineSeparator());
-        _socketOut.println(message);
+        display.append(message);
+        try {
+            _connection.send(message);
+        } catch (IOException e) {
+            display.append(ERROR + "The message couldn't be sent");
+        }
         input.clear();
     }
 
@@ -128,15 +148,15 @@ public class ChatClient extends Application {
         // Here we build the interface
         primaryStage.setTitle(FRAME_TITLE);
 
-        TextArea panelTA = new TextArea();
-        panelTA.setEditable(false);
+        MessageView messages = new MessageView(SCROLLBACK);
         TextField inputTF = new TextField();
-        inputTF.setOnAction(event -> sendMessage(inputTF, panelTA));
+        inputTF.setOnAction(event -> sendMessage(inputTF, messages));
         Button btnSend = new Button("Send");
-        btnSend.setOnAction(event -> sendMessage(inputTF, panelTA));
+        btnSend.setOnAction(event -> sendMessage(inputTF, messages));
 
         // Layouts
-        VBox verticalLayout = new VBox(panelTA);
+        VBox verticalLayout = new VBox(messages.getNode());
+        VBox.setVgrow(messages.getNode(), Priority.ALWAYS);
         verticalLayout.setPadding(new Insets(10));
 
         HBox horizontalLayout = new HBox(inputTF, btnSend);
@@ -153,42 +173,60 @@ public class ChatClient extends Application {
         primaryStage.show();
 
         // Network Thread
-        // This thread receives messages from the server and displays them to the user
-        new Thread(() -> {
+        // This thread receives messages from the server and displays them to the user,
+        // it only queues them: the FX thread shows them in batches (see MessageView)
+        // If the connection drops, it connects again and goes on (the session resumed if the server keeps it)
+        // It's a daemon so that it never keeps the application alive once the window is closed
+        _networkThread = new Thread(() -> {
             try {
-                String socketInput;
-                while ((socketInput = _socketIn.readLine()) != null)
-                    panelTA.appendText(socketInput + System.lineSeparator());
-            } catch (IOException e) {
-                panelTA.appendText(SYSTEM + "bye!");
+                while (true) {
+                    try {
+                        String socketInput;
+                        while ((socketInput = _connection.receive()) != null)
+                            messages.append(socketInput);
+                    } catch (IOException e) {
+                        // Dropped, or closed by the user
+                    }
+                    if (_connection.isClosed()) break;
+                    messages.append(SYSTEM + "Connection lost, reconnecting...");
+                    _connection.reconnect();
+                }
+            } catch (InterruptedException e) {
+                // Closed while reconnecting
             }
-        }).start();
+            messages.append(SYSTEM + "bye!");
+        });
+        _networkThread.setDaemon(true);
+        _networkThread.start();
     }
 
     @Override
     public void stop() {
         try {
             // When the socket is closed it triggers the 'nwkThread' exception (IOException)
-            // When closing the 'socket', 'socketOut' (PrintWriter) y 'socketIn' (BufferedReader)
-            _socket.close();
+            _connection.close();
         } catch (IOException ioE) {
             System.err.println(ERROR + "ChatClient() -> stop() -> IOException");
         }
+        // And if it is waiting to reconnect, it stops waiting
+        if (_networkThread != null)
+            _networkThread.interrupt();
     }
 
     /**
      * The main method of the EchoClient class.<br>
      * <br>
      * The first argument should be the IP address of the server<br>
-     * to connect to, and the second argument should be the port number.
+     * to connect to, and the second argument should be the port number
+     * (its TLS port if the third one is {@code tls}).
      *
      * @param args command-line arguments passed to the program.
      */
     public static void main(String[] args) {
-        // To start the client is necessary 2 arguments
+        // To start the client is necessary 2 arguments (and an optional third one)
         // the <IP> and the <Port> of the server you want to connect to
-        if (args.length != 2) {
-            System.err.println("Usage: java EchoClient <ip address> <port number>");
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: java EchoClient <ip address> <port number> [tls]");
             System.exit(1);
         }
 
@@ -0,0 +1,351 @@
+package com.quathar.chatserver;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <h1>ChatConnection</h1>
+ * <br>
+ * The connection of a client to the chat server, in the binary protocol whenever the server speaks it.<br>
+ * <br>
+ * It sends the {@link Frame#PREFACE} as soon as it connects and skips the text it gets meanwhile:
+ * a server that speaks frames sends the preface back, an older one takes it for a nickname
+ * with a space and answers with an error, and the connection goes on in text.
+ * Either way the caller reads and writes plain lines, as typed and as shown.
+ * With frames it also asks for {@link Compression}: if the server agrees, the large frames go compressed both ways.<br>
+ * <br>
+ * Over TLS the certificate of the server must be valid for the host name (or address) it is reached by.
+ * Connections made with the same {@link SSLContext} resume its session instead of doing a full handshake again.<br>
+ * <br>
+ * If the connection drops, {@link #reconnect()} connects again. A server that speaks frames gives the client
+ * a session token when it joins: on the new connection the token takes the place of the nickname,
+ * and the server sends just the messages missed meanwhile. If the session is over,
+ * the nickname is claimed again, the user only chooses another one if it was taken.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class ChatConnection implements Closeable {
+
+    // <<-CONSTANTS->>
+    private static final String ERROR = "E R R O R: ";
+    /**
+     * How long the server has to answer the preface.
+     */
+    private static final int NEGOTIATION_TIMEOUT_MILLIS = 10_000;
+    private static final byte[] PONG = Frame.of(Frame.PONG, 0, "", "").encode();
+    private static final byte[] ASK_COMPRESSION = Frame.of(Frame.COMPRESSION, 0, "", Compression.DEFLATE).encode();
+    /**
+     * How the client compresses the frames it sends once the server agreed, as a server does by default.
+     */
+    private static final Compression COMPRESSION = new Compression(6, 512, null);
+    /**
+     * The wait before the first attempt to connect again, it doubles with every failed one up to the max.
+     */
+    private static final long RECONNECT_MIN_MILLIS = 500;
+    private static final long RECONNECT_MAX_MILLIS = 30_000;
+
+    // <<-FIELDS->>
+    private final InetAddress _address;
+    private final int _port;
+    private final SSLContext _tls;
+    private volatile Socket _socket;
+    private volatile OutputStream _socketOut;
+    private volatile InputStream _socketIn;
+    private volatile boolean _binary;
+    /**
+     * The compression of the frames sent, {@code null} until the server agrees to it.
+     */
+    private volatile Compression _compression;
+    /**
+     * Whether the server is waiting for a nickname, the next line sent is one.
+     */
+    private volatile boolean _nicknamePending;
+    private long _sequence;
+    /**
+     * The last nickname sent, claimed again if the session is over.
+     */
+    private volatile String _nickname;
+    /**
+     * The token of the session the server gave, {@code null} if it gave none.
+     */
+    private volatile String _token;
+    /**
+     * What answers the next nickname prompt on a new connection:
+     * the token, then (if the session is over) the nickname, then the user.
+     */
+    private Rejoin _rejoin;
+    /**
+     * Whether the user is done with the connection (closed it or exited), it isn't connected again.
+     */
+    private volatile boolean _closed;
+
+    // <<-CONSTRUCTOR->>
+    /**
+     * Connects to a chat server and agrees on the protocol.
+     *
+     * @param address the address of the server
+     * @param port the port of the server
+     * @throws IOException if the connection fails
+     */
+    public ChatConnection(InetAddress address, int port) throws IOException {
+        this(address, port, null);
+    }
+
+    /**
+     * Connects to a chat server, over TLS if there is a context, and agrees on the protocol.
+     *
+     * @param address the address of the server
+     * @param port the port of the server (its TLS port if there is a context)
+     * @param tls the TLS context (e.g. {@code SSLContext.getDefault()}), {@code null} for a plain connection
+     * @throws IOException if the connection or the TLS handshake fails
+     */
+    public ChatConnection(InetAddress address, int port, SSLContext tls) throws IOException {
+        _address = address;
+        _port    = port;
+        _tls     = tls;
+        _rejoin  = Rejoin.USER;
+        connect();
+    }
+
+    // <<-METHODS->>
+    private synchronized void connect() throws IOException {
+        Socket socket = _tls == null ? new Socket(_address, _port) : connectTls(_tls, _address, _port);
+        try {
+            _socket      = socket;
+            _socketOut   = socket.getOutputStream();
+            _socketIn    = new BufferedInputStream(socket.getInputStream());
+            _compression = null;
+            _binary      = negotiate();
+            if (_binary)
+                _socketOut.write(ASK_COMPRESSION);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Connects again once the connection dropped, until it succeeds.<br>
+     * <br>
+     * The wait before every attempt doubles (up to a max) and is picked at random in its upper half,
+     * so the clients of a server that went away for a moment don't all come back at the same time.
+     * The session, if there is one, is resumed as the server asks for a nickname.
+     *
+     * @throws InterruptedException if the wait is interrupted, or the connection was closed meanwhile
+     */
+    public void reconnect() throws InterruptedException {
+        long wait = RECONNECT_MIN_MILLIS;
+        while (true) {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(wait / 2, wait + 1));
+            if (_closed) throw new InterruptedException("The connection is closed");
+            try {
+                connect();
+                // Closed while connecting: the new socket may have come too late for close() to see it
+                if (_closed) {
+                    _socket.close();
+                    throw new InterruptedException("The connection is closed");
+                }
+                _rejoin = _binary && _token != null ? Rejoin.TOKEN
+                        : _binary && _nickname != null ? Rejoin.NICKNAME
+                        : Rejoin.USER;
+                return;
+            } catch (IOException e) {
+                wait = Math.min(wait * 2, RECONNECT_MAX_MILLIS);
+            }
+        }
+    }
+
+    private static Socket connectTls(SSLContext tls, InetAddress address, int port) throws IOException {
+        // The host name (rather than the address) is also the key of the session the context keeps for the server
+        SSLSocket socket = (SSLSocket) tls.getSocketFactory().createSocket(address.getHostName(), port);
+        SSLParameters parameters = socket.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        socket.setSSLParameters(parameters);
+        return socket;
+    }
+
+    private boolean negotiate() throws IOException {
+        // Over TLS the first write runs the handshake, under the same timeout
+        _socket.setSoTimeout(NEGOTIATION_TIMEOUT_MILLIS);
+        String preface = new String(Frame.PREFACE, 0, Frame.PREFACE.length - 1, StandardCharsets.UTF_8);
+        try {
+            _socketOut.write(Frame.PREFACE);
+            _socketOut.flush();
+            while (true) {
+                String line = readLine();
+                if (line == null) throw new IOException("Connection closed");
+                if (line.equals(preface)) return true;
+                // The nickname prompt that follows comes through as usual
+                if (line.startsWith(ERROR)) return false;
+            }
+        } finally {
+            // A failed handshake closes the socket, its exception is the one to throw
+            if (!_socket.isClosed())
+                _socket.setSoTimeout(0);
+        }
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = _socketIn.read()) != Payload.LINE_END) {
+            if (b == -1) return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Waits for the next line to show from the server.
+     *
+     * @return the line, or {@code null} if the server closed the connection
+     * @throws IOException if an I/O error occurs while reading
+     */
+    public String receive() throws IOException {
+        if (!_binary) return readLine();
+
+        while (true) {
+            Frame frame = Frame.read(_socketIn);
+            if (frame == null) return null;
+            if (frame.getOpcode() == Frame.ACK || frame.getOpcode() == Frame.DELIVERED) continue;
+            if (frame.getOpcode() == Frame.COMPRESSION) {
+                // The frames read are inflated whatever, the answer is about the ones sent
+                _compression = COMPRESSION;
+                continue;
+            }
+            if (frame.getOpcode() == Frame.PING) {
+                // The server would take a silent client for dead
+                pong();
+                continue;
+            }
+            if (frame.getOpcode() == Frame.SESSION) {
+                // Given on joining, and again once resumed; none if it was resumed on another connection
+                _token  = frame.getBody().isEmpty() ? null : frame.getBody();
+                _rejoin = Rejoin.USER;
+                if (_token == null) _closed = true;
+                continue;
+            }
+            if (frame.getOpcode() == Frame.NICKNAME && rejoin()) continue;
+            if (frame.getOpcode() == Frame.NICKNAME) _nicknamePending = true;
+            return frame.toLine();
+        }
+    }
+
+    /**
+     * Answers a nickname prompt on a new connection, without the user.
+     *
+     * @return {@code false} if it is up to the user
+     */
+    private synchronized boolean rejoin() throws IOException {
+        switch (_rejoin) {
+            case TOKEN -> {
+                _rejoin = Rejoin.NICKNAME;
+                Frame.of(Frame.SESSION, 0, "", _token).writeTo(_socketOut);
+                return true;
+            }
+            case NICKNAME -> {
+                // The session is over (the server asks again), or there was none
+                _token  = null;
+                _rejoin = Rejoin.USER;
+                if (_nickname == null) return false;
+                Frame.of(Frame.NICKNAME, 0, "", _nickname).writeTo(_socketOut);
+                return true;
+            }
+            default -> {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Sends a line as the user typed it: a nickname when the server asked for one,
+     * a private message ({@code @nick}), a room message ({@code #room}), a command ({@code /})
+     * or a message for everyone.
+     *
+     * @param line the line
+     * @throws IOException if an I/O error occurs while writing
+     */
+    public synchronized void send(String line) throws IOException {
+        if (_nicknamePending)
+            _nickname = line;
+        if (line.equals("/exit"))
+            _closed = true;
+        if (!_binary) {
+            Payload.of(line).writeTo(_socketOut);
+            return;
+        }
+
+        Frame frame;
+        int space = line.indexOf(' ');
+        if (_nicknamePending) {
+            _nicknamePending = false;
+            frame = Frame.of(Frame.NICKNAME, 0, "", line);
+        } else if (line.startsWith("@") && space != -1)
+            frame = Frame.of(Frame.PRIVATE, ++_sequence, line.substring(1, space), line.substring(space + 1));
+        else if (line.startsWith(RoomRegistry.ROOM_PREFIX) && space != -1)
+            frame = Frame.of(Frame.ROOM, ++_sequence, line.substring(0, space), line.substring(space + 1));
+        else if (line.startsWith("/"))
+            frame = Frame.of(Frame.COMMAND, 0, "", line);
+        else frame = Frame.of(Frame.BROADCAST, ++_sequence, "", line);
+        byte[] bytes = frame.encode();
+        Compression compression = _compression;
+        byte[] compressed = compression != null ? compression.compress(bytes) : null;
+        _socketOut.write(compressed != null ? compressed : bytes);
+    }
+
+    private synchronized void pong() throws IOException {
+        _socketOut.write(PONG);
+    }
+
+    /**
+     * Closes the connection for good, the server doesn't keep the session.
+     *
+     * @throws IOException if an I/O error occurs while closing
+     */
+    @Override
+    public void close() throws IOException {
+        if (!_closed && _binary && _token != null) {
+            _closed = true;
+            try {
+                send("/exit");
+            } catch (IOException e) {
+                // It's gone already
+            }
+        }
+        _closed = true;
+        _socket.close();
+    }
+
+    // <<-GETTERS->>
+    public boolean isBinary() {
+        return _binary;
+    }
+
+    public boolean isClosed() {
+        return _closed;
+    }
+
+    // <<-REJOIN->>
+    /**
+     * What answers the next nickname prompt.
+     */
+    private enum Rejoin {
+        TOKEN,
+        NICKNAME,
+        USER
+    }
+
+}
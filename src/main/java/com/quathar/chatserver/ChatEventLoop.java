@@ -0,0 +1,320 @@
+package com.quathar.chatserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>ChatEventLoop</h1>
+ * <br>
+ * A selector loop that serves many {@link ChannelPeer}s from a single thread.<br>
+ * <br>
+ * Other threads never touch the selector keys directly, they hand the work over
+ * through a queue and wake the selector up.<br>
+ * <br>
+ * Unless the server flushes immediately, peers aren't written as soon as they get a message:
+ * they are flushed together once per loop iteration (or after the flush max delay),
+ * so everything a peer got meanwhile goes out in a single write.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class ChatEventLoop implements Runnable {
+
+    // <<-CONSTANTS->>
+    /**
+     * Size of the read and write buffers shared by every peer of the loop.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // <<-FIELDS->>
+    private final ChatServer _chatServer;
+    private final Selector _selector;
+    private final ByteBuffer _readBuffer;
+    private final ByteBuffer _writeBuffer;
+    /**
+     * Channels to register, plain ({@link SocketChannel}) or encrypted ({@link TlsChannel}).
+     */
+    private final Queue<ByteChannel> _pendingChannels;
+    private final Queue<ChannelPeer> _pendingFlushes;
+    private final Queue<ChannelPeer> _urgentFlushes;
+    /**
+     * Peers that aren't read until they are back within their rate limits, the first to resume first.
+     * Loop thread only.
+     */
+    private final PriorityQueue<Resume> _paused;
+    private final ServerConfig _config;
+    private volatile Thread _thread;
+    private volatile boolean _running;
+    /**
+     * When the pending peers must be flushed ({@code 0} if there is nothing pending).
+     */
+    private long _flushDeadline;
+
+    // <<-CONSTRUCTOR->>
+    /**
+     * Constructs a new event loop with its own selector.
+     *
+     * @param chatServer the chat server the peers belong to
+     * @throws IOException if the selector can't be opened
+     */
+    public ChatEventLoop(ChatServer chatServer) throws IOException {
+        _chatServer      = chatServer;
+        _selector        = Selector.open();
+        _readBuffer      = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        _writeBuffer     = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        _pendingChannels = new ConcurrentLinkedQueue<>();
+        _pendingFlushes  = new ConcurrentLinkedQueue<>();
+        _urgentFlushes   = new ConcurrentLinkedQueue<>();
+        _paused          = new PriorityQueue<>((a, b) -> Long.signum(a._at - b._at));
+        _config          = chatServer.getConfig();
+        _running         = true;
+    }
+
+    // <<-METHODS->>
+    /**
+     * Hands a freshly accepted channel over to this loop.
+     *
+     * @param channel the accepted channel
+     */
+    public void register(SocketChannel channel) {
+        _pendingChannels.add(channel);
+        _selector.wakeup();
+    }
+
+    /**
+     * Hands a TLS connection over to this loop, once its handshake is done.
+     *
+     * @param channel the encrypted channel
+     */
+    public void register(TlsChannel channel) {
+        _pendingChannels.add(channel);
+        _selector.wakeup();
+    }
+
+    /**
+     * Stops the loop, the peers still on it are closed whatever was queued for them.
+     */
+    public void stop() {
+        _running = false;
+        _selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to write the pending output of a peer.
+     *
+     * @param peer the peer with pending output
+     * @param urgent {@code true} if the peer has a full batch and must not wait for the flush max delay
+     */
+    void requestFlush(ChannelPeer peer, boolean urgent) {
+        boolean inEventLoop = inEventLoop();
+        if (inEventLoop && (urgent || _config.isFlushImmediate())) {
+            peer.flush();
+            return;
+        }
+        (urgent ? _urgentFlushes : _pendingFlushes).add(peer);
+        if (!inEventLoop)
+            _selector.wakeup();
+    }
+
+    /**
+     * Reads a peer again at a given time, once it is back within its rate limits.<br>
+     * <br>
+     * Only to be used from the loop thread.
+     *
+     * @param peer the peer that stopped being read
+     * @param at when to read it again, from {@link System#nanoTime()}
+     */
+    void resumeLater(ChannelPeer peer, long at) {
+        _paused.add(new Resume(peer, at));
+    }
+
+    /**
+     * Checks if the caller is running on this loop's thread.
+     *
+     * @return {@code true} if the caller is the loop thread, {@code false} otherwise
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == _thread;
+    }
+
+    /**
+     * Returns the buffer peers read their channel into.<br>
+     * <br>
+     * Only to be used from the loop thread.
+     *
+     * @return the read buffer of the loop
+     */
+    ByteBuffer getReadBuffer() {
+        return _readBuffer;
+    }
+
+    /**
+     * Returns the buffer peers copy their output into before writing it to the channel.<br>
+     * <br>
+     * Only to be used from the loop thread.
+     *
+     * @return the write buffer of the loop
+     */
+    ByteBuffer getWriteBuffer() {
+        return _writeBuffer;
+    }
+
+    /**
+     * Closes every peer of the loop and the channels it didn't take yet, then the selector.
+     */
+    private void closeAll() {
+        for (SelectionKey key : _selector.keys())
+            if (key.attachment() instanceof ChannelPeer peer)
+                peer.close();
+        ByteChannel pending;
+        while ((pending = _pendingChannels.poll()) != null) {
+            try {
+                pending.close();
+            } catch (IOException ignored) {}
+        }
+        try {
+            _selector.close();
+        } catch (IOException e) {
+            System.err.println("E R R O R: ChatEventLoop --> closeAll()");
+        }
+    }
+
+    private void registerPendingChannels() {
+        ByteChannel pending;
+        while ((pending = _pendingChannels.poll()) != null) {
+            TlsChannel tls = pending instanceof TlsChannel encrypted ? encrypted : null;
+            SocketChannel channel = tls != null ? tls.getSocketChannel() : (SocketChannel) pending;
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(_selector, SelectionKey.OP_READ);
+                ChannelPeer peer = new ChannelPeer(_chatServer, this, channel, tls, key);
+                key.attach(peer);
+                peer.open();
+                if (tls != null && tls.hasBufferedInput())
+                    // The client didn't wait for the end of the handshake, what it sent is already read
+                    peer.read(_readBuffer);
+            } catch (IOException e) {
+                System.err.println("E R R O R: ChatEventLoop --> register()");
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Returns how long the selector may wait before the pending peers must be flushed.
+     *
+     * @return the milliseconds left, {@code 0} if they are due, {@code -1} if nothing is pending
+     */
+    private long millisToFlush() {
+        if (_pendingFlushes.isEmpty()) return -1;
+
+        long now = System.nanoTime();
+        if (_flushDeadline == 0)
+            _flushDeadline = now + TimeUnit.MILLISECONDS.toNanos(_config.getFlushMaxDelayMillis());
+        long left = _flushDeadline - now;
+        return left <= 0 ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(left));
+    }
+
+    /**
+     * Returns how long the selector may wait before a paused peer must be read again.
+     *
+     * @return the milliseconds left, {@code 0} if one is due, {@code -1} if no peer is paused
+     */
+    private long millisToResume() {
+        Resume next = _paused.peek();
+        if (next == null) return -1;
+
+        long left = next._at - System.nanoTime();
+        return left <= 0 ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(left));
+    }
+
+    private void resumePausedPeers() {
+        long now = System.nanoTime();
+        while (!_paused.isEmpty() && _paused.peek()._at - now <= 0)
+            _paused.poll()._peer.resume();
+    }
+
+    private void flushUrgentPeers() {
+        ChannelPeer peer;
+        while ((peer = _urgentFlushes.poll()) != null)
+            peer.flush();
+    }
+
+    private void flushPendingPeers() {
+        if (millisToFlush() != 0) return;
+
+        _flushDeadline = 0;
+        ChannelPeer peer;
+        while ((peer = _pendingFlushes.poll()) != null)
+            peer.flush();
+    }
+
+    // <<-OVERRIDE->>
+    @Override
+    public void run() {
+        _thread = Thread.currentThread();
+        try {
+            while (_running) {
+                long millisToFlush  = millisToFlush();
+                long millisToResume = millisToResume();
+                long millisToWake   = millisToFlush < 0 || millisToResume < 0
+                                      ? Math.max(millisToFlush, millisToResume)
+                                      : Math.min(millisToFlush, millisToResume);
+                if (millisToWake < 0)       _selector.select();
+                else if (millisToWake == 0) _selector.selectNow();
+                else                        _selector.select(millisToWake);
+                registerPendingChannels();
+                resumePausedPeers();
+                flushUrgentPeers();
+
+                Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ChannelPeer peer = (ChannelPeer) key.attachment();
+                    if (!key.isValid()) {
+                        peer.close();
+                        continue;
+                    }
+                    if (key.isReadable())
+                        peer.read(_readBuffer);
+                    if (key.isValid() && key.isWritable())
+                        peer.flush();
+                }
+                flushPendingPeers();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            System.err.println("E R R O R: ChatEventLoop --> run()");
+        } finally {
+            closeAll();
+        }
+    }
+
+    // <<-RESUME->>
+    /**
+     * A paused peer and when to read it again.
+     */
+    private static final class Resume {
+        private final ChannelPeer _peer;
+        private final long _at;
+
+        private Resume(ChannelPeer peer, long at) {
+            _peer = peer;
+            _at   = at;
+        }
+    }
+
+}
@@ -1,142 +1,583 @@
 package com.quathar.chatserver;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <h1>ChatPeer</h1>
  * <br>
- * This is a chat peer, this thread is created by the chat server to comunicate whit the others users.
+ * This is a chat peer, it runs on a thread (platform or virtual) created by the chat server to comunicate whit the others users.<br>
+ * <br>
+ * Whatever is sent to the peer goes through its {@link OutboundQueue},
+ * a second thread writes it to the socket so senders never wait on a slow reader.<br>
+ * <br>
+ * The first byte the client sends tells whether it speaks text lines or binary {@link Frame frames}.
+ * A peer of the TLS port does the same through the streams of its {@link TlsChannel}.
  *
  * @since 2022-11-15
  * @version 3.0
  * @author Q
  */
-public class ChatPeer extends Thread {
+public class ChatPeer implements Runnable, Peer {
 
     // <<-CONSTANTS->>
     private static final String SYSTEM = "S Y S T E M: ";
     private static final String ERROR = "E R R O R: ";
+    private static final Payload NICKNAME_PROMPT = Payload.prompt("Enter your nickname:");
+    private static final Payload PREFACE = Payload.raw(Frame.PREFACE);
+    private static final Payload PING = Payload.ping();
+    private static final Payload COMPRESSION = Payload.compression();
+    /**
+     * Queued after the farewell of {@link #disconnect(Payload)}, the writer closes the socket when it gets here.
+     */
+    private static final Payload CLOSE = Payload.raw(new byte[0]);
+    /**
+     * Longest line (in bytes) a peer is allowed to send.
+     */
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
 
     // <<-FIELDS->>
-    private Socket _socket;
+    /**
+     * The socket, or the {@link TlsChannel} of a peer of the TLS port.
+     */
+    private Closeable _connection;
     private ChatServer _chatServer;
-    private PrintWriter _socketOut;
-    private BufferedReader _socketIn;
-    private String _nickname;
-    private boolean _available;
+    private OutputStream _socketOut;
+    private Input _socketIn;
+    /**
+     * Whether the peer speaks frames, set by the reader during the handshake.
+     */
+    private volatile boolean _binary;
+    /**
+     * The compression of the frames written to the peer, set by the reader if the client asks for it.
+     */
+    private volatile Compression _compression;
+    private OutboundQueue _outbound;
+    private RateLimiter.Quota _quota;
+    private Thread _writer;
+    private Heartbeat _heartbeat;
+    private volatile String _nickname;
+    private volatile boolean _available;
+    /**
+     * Whether the peer leaves for good (it said bye or was sent away), its session isn't kept then.
+     */
+    private volatile boolean _leaving;
 
     // <<-CONSTRUCTOR->>
-    public ChatPeer(ChatServer chatServer, Socket socket) {
+    /**
+     * Constructs a peer and goes through the nickname handshake, {@link #run()} serves it afterwards.
+     *
+     * @throws IOException if the client leaves (or is closed) before it has a nickname
+     */
+    public ChatPeer(ChatServer chatServer, Socket socket, ThreadFactory threads) throws IOException {
+        long connected = System.nanoTime();
+        _chatServer = chatServer;
+        _connection = socket;
+        open(socket.getInputStream(), socket.getOutputStream(), threads, connected);
+    }
+
+    /**
+     * Constructs a peer of the TLS port, its TLS handshake is already done.
+     *
+     * @throws IOException if the client leaves (or is closed) before it has a nickname
+     */
+    public ChatPeer(ChatServer chatServer, TlsChannel channel, ThreadFactory threads) throws IOException {
+        long connected = System.nanoTime();
+        _chatServer = chatServer;
+        _connection = channel;
+        open(channel.newInputStream(), channel.newOutputStream(), threads, connected);
+    }
+
+    // <<-METHOD->>
+    private void open(InputStream in, OutputStream out, ThreadFactory threads, long connected) throws IOException {
+        Metrics metrics = _chatServer.getMetrics();
+        // Its handshake is timed out by the handshake executor
+        _heartbeat  = new Heartbeat(_chatServer, this::ping, this::close);
+        _socketOut  = metrics.countOut(out);
+        _socketIn   = new Input(metrics.countIn(in), _heartbeat);
+        _outbound   = _chatServer.getConfig().newOutboundQueue();
+        _quota      = _chatServer.getRateLimiter().newQuota();
+        _writer     = threads.newThread(this::writeLoop);
+        _writer.start();
         try {
-            _chatServer = chatServer;
-            _socket     = socket;
-            _socketOut  = new PrintWriter(_socket.getOutputStream(), true);
-            _socketIn   = new BufferedReader(new InputStreamReader(_socket.getInputStream()));
             checkNickname();
-            _available  = true;
         } catch (IOException e) {
-            System.err.println("ERROR: ChatPeer --> constructor");
+            // It never joined the chat, nobody else will stop its writer
+            _writer.interrupt();
+            disconnect();
+            throw e;
         }
-    }
-
-    // <<-METHOD->>
-    private String statusMessage(int status) {
-        StringBuilder sb = new StringBuilder();
-
-        return switch (status) {
-            case 0  -> sb.append("=".repeat(50))
-                         .toString();
-            case 1  -> sb.append(ERROR + "Nickname is blank").toString();
-            case 2  -> sb.append(ERROR + "Nickname contains spaces").toString();
-            case 3  -> sb.append(ERROR + "Nickname already exists").toString();
-            default -> sb.append(ERROR + "Unexpected status").toString();
-        };
+        metrics.handshake(connected);
+        _available  = true;
+        _chatServer.available(this);
     }
 
     private void checkNickname() throws IOException {
+        write(NICKNAME_PROMPT);
+        detectProtocol();
         int status = -1;
         while (status != 0) {
-            _socketOut.printf("Enter your nickname:%n");
-            _nickname = _socketIn.readLine();
-            status = _chatServer.nicknameInspection(_nickname);
-            _socketOut.println(statusMessage(status));
+            Frame frame = _binary ? readNicknameFrame(true) : null;
+            if (frame != null && frame.getOpcode() == Frame.SESSION) {
+                if (resumeSession(frame.getBody())) return;
+                status = 6;
+            } else {
+                _nickname = frame != null ? frame.getBody() : readLine();
+                status = _chatServer.claimNickname(_nickname, this);
+            }
+            write(ChatServer.statusMessage(status));
+            if (status != 0) write(NICKNAME_PROMPT);
         }
-        _socketOut.println(SYSTEM + "Welcome, you are connected to the server");
-        System.out.printf("Client << %s >> has entered the chat%n", _nickname);
+        write(SYSTEM + "Welcome, you are connected to the server");
+        Payload token = _binary ? _chatServer.openSession(this) : null;
+        if (token != null) write(token);
+        _chatServer.replayHistory(this);
     }
 
-    private void changeNickname() throws IOException {
+    /**
+     * Takes the place the peer had on a previous connection, the server sends it what it missed.
+     *
+     * @param token the token of its session
+     * @return {@code false} if the session is over
+     */
+    private boolean resumeSession(String token) {
+        // Nobody finds it until it has the session, from then on it must not miss a message
+        _available = true;
+        String nickname = _chatServer.resumeSession(token, this);
+        if (nickname == null) {
+            _available = false;
+            return false;
+        }
+        _nickname = nickname;
+        return true;
+    }
+
+    @Override
+    public void changeNickname() throws IOException {
         _available = false;
-        _socketOut.printf("Changing nickname...%n");
+        write("Changing nickname...");
 
         int status = -1;
-        StringBuilder nickname = new StringBuilder();
+        String nickname = _nickname;
         while (status != 0) {
-            _socketOut.printf("Enter your nickname:%n");
-            nickname.replace(0, nickname.length(), _socketIn.readLine());
-            if (_nickname.contentEquals(nickname)) break;
-            status = _chatServer.nicknameInspection(nickname.toString());
-            _socketOut.println(statusMessage(status));
+            write(NICKNAME_PROMPT);
+            nickname = readNickname();
+            if (_nickname.equals(nickname)) break;
+            status = _chatServer.changeNickname(this, nickname);
+            write(ChatServer.statusMessage(status));
         }
 
-        if (!_nickname.contentEquals(nickname)) {
-            _chatServer.changeNickname(nickname.toString(), _nickname);
-            _nickname = nickname.toString();
-            _socketOut.printf("S Y S T E M: The nickname was successfully changed ;)%n");
-        } else _socketOut.printf("S Y S T E M: The nick wasn't changed%n");
+        if (!_nickname.equals(nickname)) {
+            _nickname = nickname;
+            write(SYSTEM + "The nickname was successfully changed ;)");
+        } else write(SYSTEM + "The nick wasn't changed");
 
         _available = true;
+        _chatServer.available(this);
+    }
+
+    /**
+     * Switches to the binary protocol if the client starts with its preface.<br>
+     * <br>
+     * The client skips whatever text it gets before the preface comes back,
+     * from then on the writer sends frames.
+     */
+    private void detectProtocol() throws IOException {
+        if (_socketIn.peek() != Frame.PREFACE[0]) return;
+
+        if (!Frame.isPreface(_socketIn.readNBytes(Frame.PREFACE.length)))
+            throw new ProtocolException("Bad preface");
+        _binary = true;
+        _heartbeat.binary();
+        write(PREFACE);
+        write(NICKNAME_PROMPT);
+    }
+
+    private String readNickname() throws IOException {
+        return _binary ? readNicknameFrame(false).getBody() : readLine();
+    }
+
+    /**
+     * Reads the answer of a binary client to the nickname prompt.<br>
+     * <br>
+     * While a user takes its time to choose a new nickname ('/nick') the heartbeat keeps pinging it,
+     * the pongs that come before the answer are skipped as the read loop does.
+     *
+     * @param resume whether it may resume a session instead
+     * @return the frame
+     */
+    private Frame readNicknameFrame(boolean resume) throws IOException {
+        Frame frame = Frame.read(_socketIn);
+        while (frame != null && (frame.getOpcode() == Frame.COMPRESSION || frame.getOpcode() == Frame.PONG)) {
+            if (frame.getOpcode() == Frame.COMPRESSION)
+                compression(frame);
+            else _socketIn.takeConsumed();
+            frame = Frame.read(_socketIn);
+        }
+        if (frame == null) throw new IOException("Connection closed");
+        if (frame.getOpcode() != Frame.NICKNAME && !(resume && frame.getOpcode() == Frame.SESSION))
+            throw new ProtocolException("Expected a nickname");
+        return frame;
+    }
+
+    /**
+     * Compresses what is written to the peer from now on, if the server has compression on, and tells the client so.
+     *
+     * @param frame what the client asked for
+     */
+    private void compression(Frame frame) {
+        Compression compression = _chatServer.getCompression();
+        if (compression == null || !frame.getBody().equals(Compression.DEFLATE)) return;
+        _compression = compression;
+        write(COMPRESSION);
+    }
+
+    private String readLine() throws IOException {
+        String line = readLineOrNull();
+        if (line == null) throw new IOException("Connection closed");
+        return line;
+    }
+
+    private String readLineOrNull() throws IOException {
+        try {
+            return _socketIn.readLine();
+        } catch (ProtocolException e) {
+            write(ERROR + "The message is too long");
+            throw e;
+        }
+    }
+
+    /**
+     * Queues a line for this peer, whatever state it is in.
+     * <br>
+     * If the queue overflows and its policy says so, the peer is disconnected.
+     *
+     * @param msg the line to queue
+     */
+    private void write(String msg) {
+        write(Payload.of(msg));
+    }
+
+    private void write(Payload msg) {
+        if (!_outbound.offer(msg))
+            disconnect();
+    }
+
+    /**
+     * Pings the peer, on the wheel thread: only if nothing is queued for it, so it never waits for room.
+     */
+    private void ping() {
+        if (_outbound.getDepth() == 0)
+            write(PING);
+    }
+
+    /**
+     * Returns what a message looks like on the wire.<br>
+     * <br>
+     * The writer turns to frames once it has written the preface,
+     * so the lines queued before the switch still go out as text.
+     * The large ones are compressed once the client asked for it.
+     *
+     * @param msg the message
+     * @param binary whether the preface was already written
+     * @return the bytes to write
+     */
+    private Payload onWire(Payload msg, boolean binary) {
+        return binary ? msg.framed(_compression) : msg;
+    }
+
+    /**
+     * Writes the outbound queue to the socket until the peer is gone.<br>
+     * <br>
+     * Unless the server flushes immediately, every write gathers all the messages queued
+     * (and those arriving within the max delay) up to the max bytes of a batch.<br>
+     * <br>
+     * It doesn't use a {@code PrintWriter}: it would hold its monitor while the write blocks,
+     * pinning the carrier of a virtual thread to a peer that doesn't read.
+     */
+    private void writeLoop() {
+        ServerConfig config = _chatServer.getConfig();
+        Metrics metrics = _chatServer.getMetrics();
+        boolean binary = false;
+        try {
+            if (config.isFlushImmediate())
+                while (true) {
+                    Payload msg = _outbound.take();
+                    if (msg == CLOSE) return;
+                    _heartbeat.writing();
+                    onWire(msg, binary).writeTo(_socketOut);
+                    _heartbeat.written();
+                    binary |= msg == PREFACE;
+                    metrics.messageOut();
+                }
+
+            int maxBytes = config.getFlushMaxBytes();
+            long maxDelay = TimeUnit.MILLISECONDS.toNanos(config.getFlushMaxDelayMillis());
+            OutputStream batch = new BufferedOutputStream(_socketOut, maxBytes);
+            while (true) {
+                Payload msg = _outbound.take();
+                _heartbeat.writing();
+                long deadline = System.nanoTime() + maxDelay;
+                int batched = 0;
+                while (msg != null) {
+                    if (msg == CLOSE) {
+                        batch.flush();
+                        return;
+                    }
+                    onWire(msg, binary).writeTo(batch);
+                    binary |= msg == PREFACE;
+                    metrics.messageOut();
+                    batched += msg.length();
+                    if (batched >= maxBytes) break;
+                    msg = _outbound.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                }
+                batch.flush();
+                _heartbeat.written();
+            }
+        } catch (InterruptedException | IOException e) {
+            // The peer has left
+        } finally {
+            disconnect();
+        }
+    }
+
+    /**
+     * Closes the connection right away, whatever is still queued, which makes the reader thread leave the chat.
+     */
+    void close() {
+        _available = false;
+        disconnect();
     }
 
-    public void send(String msg) {
+    /**
+     * Closes the connection, which makes the reader thread leave the chat.
+     */
+    private void disconnect() {
+        try {
+            _connection.close();
+        } catch (IOException e) {
+            System.err.println(ERROR + "ChatPeer --> _connection.close()");
+        }
+    }
+
+    @Override
+    public void send(Payload msg) {
         if (_available)
-            _socketOut.println(msg);
+            write(msg);
+    }
+
+    @Override
+    public boolean deliver(Payload msg) {
+        if (!_available) return false;
+        write(msg);
+        return true;
+    }
+
+    @Override
+    public void replay(Replay replay) {
+        _outbound.replay(replay);
+    }
+
+    @Override
+    public void disconnect(Payload farewell) {
+        _leaving   = true;
+        _available = false;
+        write(farewell);
+        write(CLOSE);
     }
 
     // <<-OVERRIDE->>
+    /**
+     * Reads and handles what the peer sends until it leaves.<br>
+     * <br>
+     * Every message goes through the {@link RateLimiter} first.
+     * A peer over its limits may have to wait: the reader sleeps instead of reading,
+     * so the socket buffers fill up and the client is held back by TCP itself.
+     */
     @Override
     public void run() {
+        RateLimiter rateLimiter = _chatServer.getRateLimiter();
+        _socketIn.takeConsumed();
+        _heartbeat.start(false);
         try {
             while (true) {
-                String stdInput = _socketIn.readLine();
-                if (stdInput == null) break;
-                else if (stdInput.startsWith("@") && stdInput.contains(" ")) // To send private messages
-                    _chatServer.privateMessage(
-                            _nickname,
-                            stdInput.substring(1, stdInput.indexOf(" ")),
-                            String.format("[PM] %s: %s",
-                                    _nickname,
-                                    stdInput.substring(stdInput.indexOf(" ") + 1)
-                            )
-                    );
-                else if (stdInput.startsWith("/")) // To use commands
-                    if (stdInput.equals("/nick"))
-                        changeNickname();
-                    else _chatServer.serverMessage(_nickname, stdInput);
-                else _chatServer.broadcast( // To send a message to all the users in the chat server
-                        _nickname,
-                        String.format("%s: %s", _nickname, stdInput));
+                long pause;
+                if (_binary) {
+                    Frame frame = Frame.read(_socketIn);
+                    if (frame == null) break;
+                    if (frame.getOpcode() == Frame.PONG) {
+                        // Reading it was all it took
+                        _socketIn.takeConsumed();
+                        continue;
+                    }
+                    pause = rateLimiter.admit(this, _quota, _socketIn.takeConsumed());
+                    if (pause >= 0) _chatServer.dispatch(this, frame);
+                } else {
+                    String stdInput = readLineOrNull();
+                    if (stdInput == null) break;
+                    pause = rateLimiter.admit(this, _quota, _socketIn.takeConsumed());
+                    if (pause >= 0) _chatServer.dispatch(this, stdInput);
+                }
+                if (pause == RateLimiter.CLOSE) {
+                    _leaving = true;
+                    break;
+                }
+                if (pause > 0)
+                    TimeUnit.NANOSECONDS.sleep(pause);
+                // Virtual threads aren't preempted, a busy reader must let the writers run
+                else if (Thread.currentThread().isVirtual())
+                    Thread.yield();
             }
         } catch (IOException e) {
-            System.err.println(ERROR + "ChatPeer --> run()");
+            // Unless the server closed it itself
+            if (_available)
+                System.err.println(ERROR + "ChatPeer --> run()");
+        } catch (InterruptedException e) {
+            // The server is going down
         } finally {
-            try {
-                System.out.printf("Client << %s >> has left the chat%n", _nickname);
-                _chatServer.remove(_nickname);
-                _socket.close();
-            } catch (IOException e) {
-                System.err.println(ERROR + "ChatPeer --> _socket.close()");
+            _available = false;
+            _heartbeat.stop();
+            if (_leaving)
+                _chatServer.remove(this);
+            // Its connection dropped (or it looked dead), its session waits for it if it has one
+            else _chatServer.park(this, _outbound);
+            if (_writer != null)
+                _writer.interrupt();
+            disconnect();
+        }
+    }
+
+    // <<-INPUT->>
+    /**
+     * The buffered input of the socket, for lines and frames alike.<br>
+     * <br>
+     * Only the reader thread uses it, so unlike {@code BufferedInputStream} it takes no lock per byte,
+     * and a line that is already in the buffer is decoded from there without copying it first.
+     */
+    private static final class Input extends InputStream {
+        private final InputStream _in;
+        /**
+         * Told whenever bytes arrive.
+         */
+        private final Heartbeat _heartbeat;
+        private byte[] _buffer = new byte[8 * 1024];
+        private int _position;
+        private int _limit;
+        /**
+         * Bytes read from the stream so far, and how many of them {@link #takeConsumed()} already counted.
+         */
+        private long _total;
+        private long _taken;
+
+        private Input(InputStream in, Heartbeat heartbeat) {
+            _in        = in;
+            _heartbeat = heartbeat;
+        }
+
+        /**
+         * Returns the bytes consumed since the last call, i.e. the size of the message just read.
+         *
+         * @return the bytes consumed
+         */
+        private int takeConsumed() {
+            long consumed = _total - (_limit - _position);
+            int bytes = (int) (consumed - _taken);
+            _taken = consumed;
+            return bytes;
+        }
+
+        /**
+         * Reads more bytes after the unread ones, growing the buffer if it is full of them.
+         *
+         * @return {@code false} if the stream ended
+         */
+        private boolean fill() throws IOException {
+            if (_position > 0) {
+                System.arraycopy(_buffer, _position, _buffer, 0, _limit - _position);
+                _limit   -= _position;
+                _position = 0;
+            } else if (_limit == _buffer.length)
+                _buffer = Arrays.copyOf(_buffer, _buffer.length * 2);
+            int read = _in.read(_buffer, _limit, _buffer.length - _limit);
+            if (read == -1) return false;
+            _heartbeat.read();
+            _limit += read;
+            _total += read;
+            return true;
+        }
+
+        private int peek() throws IOException {
+            if (_position == _limit && !fill()) return -1;
+            return _buffer[_position] & 0xFF;
+        }
+
+        /**
+         * Reads a UTF-8 line, without its {@code '\n'} (or {@code "\r\n"}).
+         *
+         * @return the line, or {@code null} if the stream ended
+         * @throws ProtocolException if the line is longer than {@link #MAX_LINE_LENGTH}
+         */
+        private String readLine() throws IOException {
+            int scanned = 0;
+            while (true) {
+                for (int i = _position + scanned; i < _limit; i++)
+                    if (_buffer[i] == Payload.LINE_END) {
+                        int length = i - _position;
+                        if (length > 0 && _buffer[i - 1] == '\r') length--;
+                        String line = new String(_buffer, _position, length, Payload.CHARSET);
+                        _position = i + 1;
+                        return line;
+                    }
+                scanned = _limit - _position;
+                if (scanned > MAX_LINE_LENGTH) throw new ProtocolException("Line too long");
+                if (!fill()) {
+                    if (scanned == 0) return null;
+                    String line = new String(_buffer, _position, scanned, Payload.CHARSET);
+                    _position = _limit;
+                    return line;
+                }
             }
         }
+
+        @Override
+        public int read() throws IOException {
+            if (_position == _limit && !fill()) return -1;
+            return _buffer[_position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (_position == _limit && !fill()) return -1;
+            int count = Math.min(len, _limit - _position);
+            System.arraycopy(_buffer, _position, b, off, count);
+            _position += count;
+            return count;
+        }
     }
 
-    // <<-GETTER->>
+    // <<-GETTERS->>
+    @Override
     public String getNickname() {
         return _nickname;
     }
 
-}
\ No newline at end of file
+    @Override
+    public int getQueueDepth() {
+        return _outbound.getDepth();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return _outbound.getDropped();
+    }
+
+}
@@ -1,16 +1,36 @@
 package com.quathar.chatserver;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
-import java.util.Map;
-import java.util.HashMap;
+import java.security.GeneralSecurityException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <h1>ChatServer</h1>
  * <br>
- * Chat server that manages the users and messages traffic
+ * Chat server that manages the users and messages traffic.<br>
+ * <br>
+ * It is bound when constructed, serves connections from {@link #start()} on (on threads of its own)
+ * and lets its users go with a notice on {@link #stop()}.
  *
  * @since 2022-11-15
  * @version 3.0
@@ -27,54 +47,630 @@ public class ChatServer {
      * Maximum valid port number.
      */
     private static final int MAX_PORT_NUMBER = 65535;
+    /**
+     * Pending connections the NIO listener lets the OS queue up.
+     */
+    private static final int NIO_BACKLOG = 1024;
+    /**
+     * Error prefix for error messages.
+     */
+    private static final String ERROR = "E R R O R: ";
+    /**
+     * System prefix for server notices.
+     */
+    private static final String SYSTEM = "S Y S T E M: ";
+    /**
+     * Messages replayed by '/history' when no count is given.
+     */
+    private static final int DEFAULT_HISTORY = 20;
+    /**
+     * Most messages a '/search' finds, the newest.
+     */
+    private static final int SEARCH_RESULTS = 50;
+    /**
+     * How often a stopping server looks for peers still draining.
+     */
+    private static final long DRAIN_POLL_MILLIS = 10;
+    /**
+     * Slots of the timer wheel, about a minute of ticks of 100 ms.
+     */
+    private static final int TIMER_WHEEL_SLOTS = 512;
 
     // <<-FIELDS->>
+    private final ServerMode _mode;
+    private final ServerConfig _config;
     private final ServerSocket _server;
-    private final Map<String, ChatPeer> _chatPeers;
+    /**
+     * The connected peers. It is lock-free, so nothing here blocks (or pins) the peer threads.
+     */
+    private final PeerRegistry _chatPeers;
+    /**
+     * The sessions of the binary peers, kept for a while for those whose connection drops.
+     */
+    private final SessionRegistry _sessions;
+    /**
+     * Hands out the private messages, holding them for the peers that can't take them right now.
+     */
+    private final PrivateMessageRouter _privateMessages;
+    /**
+     * The chat rooms, each with its own members so a room post only walks the room.
+     */
+    private final RoomRegistry _rooms;
+    /**
+     * The last messages sent to everyone.
+     */
+    private final History _history;
+    /**
+     * The bytes kept by the history of the chat and those of the rooms, they share a budget.
+     */
+    private final AtomicLong _historyBytes;
+    /**
+     * The durable log of the messages, {@code null} if it is off.
+     */
+    private final MessageLog _log;
+    /**
+     * The index of the messages sent to everyone for '/search', {@code null} if it is off.
+     */
+    private final SearchIndex _search;
+    private final Metrics _metrics;
+    /**
+     * The last id given to a chat message.
+     */
+    private final AtomicLong _messageIds;
+    /**
+     * The commands peers can run, more may be added (see {@link #getCommands()}).
+     */
+    private final CommandRegistry _commands;
+    /**
+     * The limits on what the peers send.
+     */
+    private final RateLimiter _rateLimiter;
+    /**
+     * Compresses the large frames for the binary peers that ask for it, {@code null} if it is off.
+     */
+    private final Compression _compression;
+    /**
+     * The peers that gave the admin password.
+     */
+    private final Set<Peer> _admins;
+    /**
+     * This server as a node of a cluster, {@code null} if it runs on its own.
+     */
+    private final ClusterNode _cluster;
+    /**
+     * The TLS port, {@code null} if there is none.
+     */
+    private final TlsListener _tls;
+    /**
+     * Runs the heartbeats of every peer.
+     */
+    private final TimerWheel _timerWheel;
+    /**
+     * The threads that accept connections and run the event loops, the ones a stop waits for.
+     */
+    private final List<Thread> _threads;
+    private final AtomicBoolean _started;
+    private final AtomicBoolean _stopping;
+    private final CountDownLatch _stopped;
+    /**
+     * Runs the nickname handshakes of the thread and virtual modes, {@code null} in NIO mode.
+     */
+    private HandshakeExecutor _handshakes;
+    /**
+     * The event loops of the NIO mode, {@code null} in the others.
+     */
+    private ChatEventLoop[] _eventLoops;
+    private MetricsEndpoint _metricsEndpoint;
 
     // <<-CONSTRUCTOR->>
     /**
-     * Constructs a new ChatServer instance and starts the server on the specified port.
+     * Constructs a new ChatServer instance bound to the specified port, see {@link #start()}.
      *
      * @param portNumber the port number to listen for incoming connections
      */
     public ChatServer(int portNumber) {
+        this(portNumber, ServerMode.THREAD);
+    }
+
+    /**
+     * Constructs a new ChatServer instance bound to the specified port, see {@link #start()}.
+     *
+     * @param portNumber the port number to listen for incoming connections
+     * @param mode the way the connections are served
+     */
+    public ChatServer(int portNumber, ServerMode mode) {
+        this(portNumber, mode, ServerConfig.fromSystemProperties());
+    }
+
+    /**
+     * Constructs a new ChatServer instance bound to the specified port, see {@link #start()}.
+     *
+     * @param portNumber the port number to listen for incoming connections ({@code 0} for any free one)
+     * @param mode the way the connections are served
+     * @param config the server settings
+     */
+    public ChatServer(int portNumber, ServerMode mode, ServerConfig config) {
+        this(mode, config, bind(portNumber, mode));
+    }
+
+    /**
+     * Constructs a new ChatServer instance around a listener, without accepting any connection.<br>
+     * <br>
+     * Peers are only added through {@link #claimNickname(String, Peer)}, e.g. by the benchmarks.
+     *
+     * @param mode the way the connections are served
+     * @param config the server settings
+     * @param server the listener, it may be unbound
+     */
+    ChatServer(ServerMode mode, ServerConfig config, ServerSocket server) {
+        _mode       = mode;
+        _config     = config;
+        _server     = server;
+        _metrics    = new Metrics();
+        _chatPeers  = new PeerRegistry();
+        _sessions   = new SessionRegistry();
+        _privateMessages = new PrivateMessageRouter(config, _metrics);
+        _historyBytes = new AtomicLong();
+        _rooms      = new RoomRegistry(config, _historyBytes);
+        _history    = config.newHistory("the chat", _historyBytes);
+        _messageIds = new AtomicLong();
+        _rateLimiter = new RateLimiter(config, _metrics);
+        _compression = config.isCompressionEnabled()
+                       ? new Compression(config.getCompressionLevel(), config.getCompressionThresholdBytes(), _metrics)
+                       : null;
+        _search     = config.getSearchMaxMessages() > 0 ? new SearchIndex(config, _metrics) : null;
+        _admins     = ConcurrentHashMap.newKeySet();
+        _commands   = new CommandRegistry("#room message  -> Sends a message to a room you are in");
+        registerCommands();
+        _cluster    = config.getClusterNode() == null ? null : new ClusterNode(this, config);
+        _timerWheel = new TimerWheel(config.getIdleTickMillis(), TIMER_WHEEL_SLOTS);
+        _threads    = new CopyOnWriteArrayList<>();
+        _started    = new AtomicBoolean();
+        _stopping   = new AtomicBoolean();
+        _stopped    = new CountDownLatch(1);
         try {
-            _server = new ServerSocket(portNumber);
-            _chatPeers = new HashMap<>();
-            start();
-            // TODO: For the time being we leave it like this, but it must be properly closed.
-            _server.close();
-        } catch (IOException e) {
+            _log = config.getLogDirectory() == null ? null : MessageLog.open(config);
+            _tls = config.getTlsPort() > 0 ? new TlsListener(config, _metrics) : null;
+        } catch (IOException | GeneralSecurityException e) {
             throw new RuntimeException(e);
         }
     }
 
     /**
-     * Starts the ChatServer and listens for incoming connections.
+     * Opens the listener of a server.
      *
-     * @throws IOException if an I/O error occurs while accepting connections
+     * @param portNumber the port number to listen for incoming connections
+     * @param mode the way the connections are served
+     * @return the bound listener
      */
-    private void start() throws IOException {
+    private static ServerSocket bind(int portNumber, ServerMode mode) {
         try {
+            if (mode == ServerMode.NIO) {
+                // The adaptor socket keeps '/ip' and '/port' working the same in both modes
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress(portNumber), NIO_BACKLOG);
+                return serverChannel.socket();
+            }
+            return new ServerSocket(portNumber);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Starts the ChatServer: it accepts connections on a thread of its own and returns right away.
+     *
+     * @throws IOException if a port of the server (metrics, cluster) can't be bound
+     * @throws IllegalStateException if it was already started
+     */
+    public void start() throws IOException {
+        if (!_started.compareAndSet(false, true))
+            throw new IllegalStateException("The server was already started");
+        _metrics.start();
+        _timerWheel.start("chat-timer-wheel");
+        if (_search != null)
+            _search.start();
+        if (_config.getMetricsPort() > 0)
+            _metricsEndpoint = new MetricsEndpoint(_config.getMetricsPort(), this::scrapeMetrics);
+        if (_cluster != null)
+            _cluster.start();
+        switch (_mode) {
+            case THREAD  -> acceptSockets(Thread.ofPlatform().name("chat-peer-", 0).factory(),
+                                          Thread.ofPlatform().name("chat-handshake-", 0).factory());
+            case VIRTUAL -> acceptSockets(Thread.ofVirtual().name("chat-peer-", 0).factory(),
+                                          Thread.ofVirtual().name("chat-handshake-", 0).factory());
+            case NIO     -> acceptChannels();
+        }
+        System.out.printf("S E R V E R --> Listening on port %d (%s mode)%n", getPort(), _mode.name().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Accepts connections giving each one a thread of its own.<br>
+     * <br>
+     * The nickname handshake runs first on a handshake thread, so there is a limit to the connections
+     * that haven't chosen a nickname yet and a time limit for each. Then the peer gets its own thread,
+     * which keeps reading from it, a second one writes the peer's outbound queue.
+     * The connections of the TLS port get in line once their TLS handshake is done.
+     *
+     * @param threads the factory of the peer threads (platform or virtual)
+     * @param handshakeThreads the factory of the handshake threads
+     */
+    private void acceptSockets(ThreadFactory threads, ThreadFactory handshakeThreads) {
+        _handshakes = new HandshakeExecutor("chat-handshake-", _config.getHandshakeThreads(), _config.getHandshakeBacklog(),
+                                            _config.getHandshakeTimeoutMillis(), handshakeThreads, _metrics::handshakeFailed);
+        if (_tls != null)
+            _tls.start(channel -> handshake(channel, () -> serve(new ChatPeer(this, channel, threads), threads)));
+        startAcceptor(() -> {
             // The server only accept connections again and again
             while (true) {
                 Socket socket = _server.accept();
-                new Thread(() -> {
-                    ChatPeer chatPeer = new ChatPeer(this, socket);
-                    synchronized (this) {
-                        _chatPeers.put(chatPeer.getNickname(), chatPeer);
-                    }
-                    chatPeer.start();
-                    System.out.printf("S E R V E R --> Total clients: %d%n", _chatPeers.size());
-                }).start();
+                _metrics.connectionAccepted();
+                handshake(socket, () -> serve(new ChatPeer(this, socket, threads), threads));
             }
-        } catch (SocketException e) {
-            System.err.println("E R R O R: The connection can't be made");
+        });
+    }
+
+    private void handshake(Closeable connection, HandshakeExecutor.Handshake handshake) {
+        if (!_handshakes.execute(connection, handshake))
+            _metrics.handshakeRefused();
+    }
+
+    /**
+     * Returns what serves a peer once it has a nickname: a thread of its own.
+     */
+    private static Runnable serve(ChatPeer peer, ThreadFactory threads) {
+        return () -> threads.newThread(peer).start();
+    }
+
+    /**
+     * Accepts connections and spreads them (round-robin) over a few event loops.
+     * The connections of the TLS port join them once their TLS handshake is done.
+     *
+     * @throws IOException if a selector can't be opened
+     */
+    private void acceptChannels() throws IOException {
+        ChatEventLoop[] eventLoops = new ChatEventLoop[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new ChatEventLoop(this);
+            Thread eventLoop = new Thread(eventLoops[i], "chat-event-loop-" + i);
+            _threads.add(eventLoop);
+            eventLoop.start();
+        }
+        _eventLoops = eventLoops;
+        if (_tls != null) {
+            AtomicInteger nextTls = new AtomicInteger();
+            _tls.start(channel -> eventLoops[Math.floorMod(nextTls.getAndIncrement(), eventLoops.length)].register(channel));
         }
+
+        ServerSocketChannel serverChannel = _server.getChannel();
+        startAcceptor(() -> {
+            // The server only accept connections again and again
+            for (int next = 0; ; next = (next + 1) % eventLoops.length) {
+                SocketChannel channel = serverChannel.accept();
+                _metrics.connectionAccepted();
+                channel.socket().setTcpNoDelay(true);
+                eventLoops[next].register(channel);
+            }
+        });
+    }
+
+    /**
+     * Runs an accept loop on a thread of its own, until the listener is closed.
+     */
+    private void startAcceptor(AcceptLoop loop) {
+        Thread acceptor = Thread.ofPlatform().name("chat-acceptor").unstarted(() -> {
+            try {
+                loop.run();
+            } catch (IOException e) {
+                if (!_stopping.get())
+                    System.err.println(ERROR + "The connection can't be made");
+            }
+        });
+        _threads.add(acceptor);
+        acceptor.start();
     }
 
     // <<-METHODS->>
+    /**
+     * Stops the ChatServer and waits until it's done.<br>
+     * <br>
+     * No more connections are accepted. Every user gets a notice after whatever was already queued for it,
+     * the ones that haven't got it all within the drain time are closed anyway.
+     * Then the cluster links, the metrics and the message log are closed, and every thread of the server ends.<br>
+     * <br>
+     * It may be called more than once (and from any thread but those of the server), the calls after the first
+     * just wait for it.
+     */
+    public void stop() {
+        if (!_stopping.compareAndSet(false, true)) {
+            try {
+                awaitTermination();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
+        close(_server);
+        if (_tls != null)
+            _tls.stop();
+
+        // Nicknames aren't given away anymore, whoever got one is in the registry
+        System.out.printf("S E R V E R --> Stopping, %d clients to let go%n", _chatPeers.size());
+        Payload farewell = Payload.of(SYSTEM + "The server is shutting down, bye");
+        for (Peer peer : _chatPeers.peers())
+            peer.disconnect(farewell);
+        drain(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_config.getShutdownDrainMillis()));
+
+        // Not before: a handshake that got its nickname just in time is still on a handshake thread
+        if (_handshakes != null)
+            _handshakes.shutdownNow();
+        // Whoever is still there doesn't read, or not fast enough (or its connection dropped meanwhile)
+        for (Peer peer : _chatPeers.peers())
+            if (peer instanceof ChatPeer chatPeer)
+                chatPeer.close();
+            else if (peer instanceof Session session)
+                session.disconnect(farewell);
+        if (_eventLoops != null)
+            for (ChatEventLoop eventLoop : _eventLoops)
+                eventLoop.stop();
+        for (Thread thread : _threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        _timerWheel.stop();
+
+        if (_cluster != null)
+            _cluster.stop();
+        if (_metricsEndpoint != null)
+            _metricsEndpoint.stop();
+        _metrics.stop();
+        if (_log != null)
+            _log.close();
+        if (_search != null)
+            _search.close();
+        System.out.println("S E R V E R --> Stopped");
+        _stopped.countDown();
+    }
+
+    /**
+     * Waits for the peers to leave, as their writers get to the notice of {@link #stop()}.
+     *
+     * @param deadline when to stop waiting, from {@link System#nanoTime()}
+     */
+    private void drain(long deadline) {
+        try {
+            while (_chatPeers.size() > 0 && System.nanoTime() - deadline < 0)
+                Thread.sleep(DRAIN_POLL_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void close(ServerSocket server) {
+        try {
+            server.close();
+        } catch (IOException e) {
+            System.err.println(ERROR + "ChatServer --> _server.close()");
+        }
+    }
+
+    /**
+     * Waits until the server has stopped.
+     *
+     * @throws InterruptedException if the wait is interrupted
+     */
+    public void awaitTermination() throws InterruptedException {
+        _stopped.await();
+    }
+
+    /**
+     * Returns the message a peer gets after a nickname inspection.
+     *
+     * @param status the code returned by {@link #nicknameInspection(String)}
+     * @return the message matching the status
+     */
+    static String statusMessage(int status) {
+        return switch (status) {
+            case 0  -> "=".repeat(50);
+            case 1  -> ERROR + "Nickname is blank";
+            case 2  -> ERROR + "Nickname contains spaces";
+            case 3  -> ERROR + "Nickname already exists";
+            case 4  -> ERROR + "Nickname contains control characters";
+            case 5  -> ERROR + "The server is shutting down";
+            case 6  -> ERROR + "That session is over, choose a nickname";
+            default -> ERROR + "Unexpected status";
+        };
+    }
+
+    /**
+     * Claims a nickname for a peer, which joins the chat if it succeeds.<br>
+     * <br>
+     * The check and the claim are a single atomic step,
+     * two peers racing for the same nickname can't both get it.
+     *
+     * @param nickname the nickname to claim
+     * @param peer the peer claiming it
+     * @return the same codes as {@link #nicknameInspection(String)}, {@code 0} meaning the peer has joined
+     *         and {@code 5} that the server is stopping
+     */
+    public int claimNickname(String nickname, Peer peer) {
+        if (_stopping.get()) return 5;
+        int status = nicknameInspection(nickname);
+        if (status != 0) return status;
+        if (!_chatPeers.claim(nickname, peer)) return 3;
+        if (_cluster != null && !_cluster.claim(nickname)) {
+            // Another node gave it away first
+            _chatPeers.release(nickname, peer);
+            return 3;
+        }
+
+        System.out.printf("Client << %s >> has entered the chat%n", nickname);
+        System.out.printf("S E R V E R --> Total clients: %d%n", _chatPeers.size());
+        return 0;
+    }
+
+    /**
+     * Opens a session for a binary peer that has just joined, so it may come back if its connection drops.
+     *
+     * @param peer the peer
+     * @return the token for the client, {@code null} if sessions are off
+     */
+    Payload openSession(Peer peer) {
+        if (_config.getSessionGraceMillis() == 0) return null;
+        return Payload.session(_sessions.open(this, peer).getToken());
+    }
+
+    /**
+     * Gives a peer of a new connection the place of the one a session belongs to.<br>
+     * <br>
+     * It gets the nickname, the rooms and the messages it missed (see {@link Session}),
+     * a welcome and the messages first, anything else after them.
+     *
+     * @param token the token of the session
+     * @param peer the peer of the new connection
+     * @return the nickname the peer has now, {@code null} if there is no such session (anymore)
+     */
+    String resumeSession(String token, Peer peer) {
+        Session session = _sessions.get(token);
+        if (session == null || _stopping.get()) return null;
+        Peer previous;
+        String nickname;
+        session.getLock().lock();
+        try {
+            // Before the session hands it to the peer, which has none of its own yet
+            nickname = session.getNickname();
+            previous = session.resume(peer);
+            if (previous == null) return null;
+            if (!_chatPeers.replace(nickname, previous, peer)) {
+                // It was evicted meanwhile, the session goes with it
+                _sessions.end(session);
+                return null;
+            }
+            _rooms.replace(previous, peer);
+            if (_admins.remove(previous))
+                _admins.add(peer);
+            _sessions.move(session, previous, peer);
+            _privateMessages.move(previous, peer);
+        } finally {
+            session.getLock().unlock();
+        }
+        if (previous != session) {
+            // The server didn't notice its connection dropped, whatever it still has goes nowhere.
+            // No token tells its client not to come back for the session
+            previous.send(Payload.session(""));
+            previous.disconnect(Payload.of(ERROR + "Your session was resumed on another connection"));
+        }
+        _metrics.sessionResumed();
+        System.out.printf("Client << %s >> is back%n", nickname);
+        return nickname;
+    }
+
+    /**
+     * Takes a peer whose connection dropped out of the chat server, and its session in, if it has one:
+     * everyone else sees it as if it were still there until the session is resumed or over.
+     *
+     * @param peer the peer
+     * @param unsent the messages queued for the peer, its session keeps them
+     */
+    void park(Peer peer, OutboundQueue unsent) {
+        Session session = _sessions.get(peer);
+        if (session == null || _stopping.get()) {
+            remove(peer);
+            return;
+        }
+        session.getLock().lock();
+        try {
+            if (session.park(peer, unsent) && _chatPeers.replace(peer.getNickname(), peer, session)) {
+                _rooms.replace(peer, session);
+                if (_admins.remove(peer))
+                    _admins.add(session);
+                _sessions.move(session, peer, session);
+                _privateMessages.move(peer, session);
+                System.out.printf("Client << %s >> lost its connection%n", peer.getNickname());
+                return;
+            }
+        } finally {
+            session.getLock().unlock();
+        }
+        // It was resumed on another connection already, or evicted
+        remove(peer);
+    }
+
+    /**
+     * Notes that a peer takes messages again: it joined, came back or changed its nickname.
+     * The private messages held for it meanwhile go to it.
+     *
+     * @param peer the peer
+     */
+    void available(Peer peer) {
+        _privateMessages.flush(peer);
+    }
+
+    /**
+     * Handles a line sent by a peer: a private message, a room message, a command or a message for everyone.
+     *
+     * @param peer the peer that sent the line
+     * @param line the line sent
+     * @throws IOException if an I/O error occurs while talking to the peer
+     */
+    public void dispatch(Peer peer, String line) throws IOException {
+        _metrics.messageIn();
+        char first = line.isEmpty() ? 0 : line.charAt(0);
+        int space = line.indexOf(' ');
+        if (first == '@' && space != -1) // To send private messages
+            privateMessage(peer, line.substring(1, space), line.substring(space + 1));
+        else if (first == RoomRegistry.ROOM_PREFIX.charAt(0) && space != -1) // To send room messages
+            roomMessage(peer, line.substring(0, space), line.substring(space + 1));
+        else if (first == '/') // To use commands
+            serverMessage(peer, line);
+        else broadcast(peer, line); // To send a message to all the users in the chat server
+    }
+
+    /**
+     * Handles a frame sent by a peer of the binary protocol, the same way as {@link #dispatch(Peer, String)}.<br>
+     * <br>
+     * The fields come already split, nothing is parsed out of the body.
+     * A message the client numbered is acknowledged with the id and timestamp it was given.
+     *
+     * @param peer the peer that sent the frame
+     * @param frame the frame sent
+     * @throws IOException if an I/O error occurs while talking to the peer
+     */
+    public void dispatch(Peer peer, Frame frame) throws IOException {
+        _metrics.messageIn();
+        // Only bodies may span lines, see Payload.message
+        if (!Payload.isSingleLine(frame.getTarget())
+            || frame.getOpcode() == Frame.COMMAND && !Payload.isSingleLine(frame.getBody())) {
+            peer.send(ERROR + "Targets and commands are a single line");
+            return;
+        }
+        Payload routed = switch (frame.getOpcode()) {
+            case Frame.BROADCAST -> broadcast(peer, frame.getBody());
+            case Frame.PRIVATE   -> {
+                // It acknowledges the message itself, before telling it was delivered
+                privateMessage(peer, frame.getTarget(), frame.getBody(), frame.getSequence());
+                yield null;
+            }
+            case Frame.ROOM      -> roomMessage(peer, frame.getTarget(), frame.getBody());
+            case Frame.COMMAND   -> {
+                if (frame.getBody().startsWith("/"))
+                    serverMessage(peer, frame.getBody());
+                else peer.send(ERROR + "Commands start with '/', try '/help'");
+                yield null;
+            }
+            default -> {
+                peer.send(ERROR + "Unexpected frame " + frame.getOpcode());
+                yield null;
+            }
+        };
+        if (routed != null && frame.getSequence() != 0)
+            peer.send(Payload.ack(frame.getSequence(), routed));
+    }
 
     /**
      * Checks if a nickname already exists in the chat system.
@@ -83,12 +679,8 @@ public class ChatServer {
      * @return {@code true} if the nickname already exists, {@code false} otherwise
      */
     public boolean nicknameExists(String nickname) {
-        // Case-sensitive
-        return _chatPeers.keySet()
-                         .stream()
-                         .anyMatch(nick -> nick.equalsIgnoreCase(nickname));
-        // Works but it doesn't detect between upper and lower case
-//        return _chatPeers.containsKey(nickname);
+        // Case-insensitive, the registry is keyed by the case-folded nickname
+        return _chatPeers.contains(nickname) || _cluster != null && _cluster.locate(nickname) != null;
     }
 
     /**
@@ -97,9 +689,11 @@ public class ChatServer {
      * @param nickname the nickname to inspect
      * @return an integer code indicating the result of the nickname inspection:
      */
-    public synchronized int nicknameInspection(String nickname) {
+    public int nicknameInspection(String nickname) {
         if (nickname.isBlank())       return 1;
         if (nickname.contains(" "))   return 2;
+        // A text peer can't send a line break, a binary one may (e.g. to forge a line of the server)
+        if (!Payload.isSingleLine(nickname)) return 4;
         if (nicknameExists(nickname)) return 3;
         return 0;
     }
@@ -107,102 +701,595 @@ public class ChatServer {
     /**
      * Sends a private message from one user to another.
      *
-     * @param srcNickname the nickname of the source user
+     * @param srcPeer the peer that sends the message
      * @param dstNickname the nickname of the destination user
+     * @param body the message content
+     * @return the message sent, or {@code null} if the destination user doesn't exist
+     */
+    public Payload privateMessage(Peer srcPeer, String dstNickname, String body) {
+        return privateMessage(srcPeer, dstNickname, body, 0);
+    }
+
+    /**
+     * Sends a private message from one user to another, through the {@link PrivateMessageRouter}:
+     * a user that can't take it right now gets it as soon as it can.
+     *
+     * @param srcPeer the peer that sends the message
+     * @param dstNickname the nickname of the destination user
+     * @param body the message content
+     * @param sequence the number the sender gave the message, it is acknowledged and the sender told once
+     *                 the destination user has it; {@code 0} for neither
+     * @return the message sent, or {@code null} if the destination user doesn't exist or can't take more messages
+     */
+    Payload privateMessage(Peer srcPeer, String dstNickname, String body, long sequence) {
+        long start = System.nanoTime();
+        Peer chatPeer = _chatPeers.get(dstNickname);
+        String dst = chatPeer != null ? chatPeer.getNickname()
+                   : _cluster != null ? _cluster.locate(dstNickname)
+                   : null;
+        if (dst == null) {
+            srcPeer.send(ERROR + "That user doesn't exist");
+            return null;
+        }
+
+        String nickname = srcPeer.getNickname();
+        Payload payload = Payload.message(Frame.PRIVATE, _messageIds.incrementAndGet(), System.currentTimeMillis(),
+                nickname, dst, body, "[PM] " + nickname + ": " + body);
+        if (chatPeer == null && !_cluster.sendTo(dst, payload)) {
+            srcPeer.send(ERROR + "That user doesn't exist");
+            return null;
+        }
+        if (chatPeer != null && !_privateMessages.route(srcPeer, sequence, chatPeer, payload, start))
+            return null;
+        if (chatPeer == null && sequence != 0)
+            srcPeer.send(Payload.ack(sequence, payload));
+        if (_log != null)
+            _log.append(MessageLog.PRIVATE_PREFIX + PeerRegistry.normalize(dstNickname), payload);
+        _metrics.privateMessage(start);
+        return payload;
+    }
+
+    /**
+     * Sends a message from a user to the other members of a room.<br>
+     * <br>
+     * Only members can post, and only the members of the room are visited.
+     *
+     * @param srcPeer the peer that sends the message
+     * @param roomName the name of the room
+     * @param body the message content
+     * @return the message sent, or {@code null} if the user isn't in the room
+     */
+    public Payload roomMessage(Peer srcPeer, String roomName, String body) {
+        Room room = _rooms.get(roomName);
+        if (room == null || !room.isMember(srcPeer)) {
+            srcPeer.send(ERROR + "You aren't in " + roomName + ", try '/join " + roomName + "'");
+            return null;
+        }
+        long start = System.nanoTime();
+        String nickname = srcPeer.getNickname();
+        Payload payload = Payload.message(Frame.ROOM, _messageIds.incrementAndGet(), System.currentTimeMillis(),
+                nickname, room.getName(), body, "[" + room.getName() + "] " + nickname + ": " + body);
+        room.getHistory().append(payload);
+        if (_log != null)
+            _log.append(RoomRegistry.normalize(room.getName()), payload);
+        roomcast(room, srcPeer, payload);
+        if (_cluster != null)
+            _cluster.broadcast(payload);
+        _metrics.broadcast(start);
+        return payload;
+    }
+
+    /**
+     * Sends a message to every member of a room but one.
+     *
+     * @param room the room
+     * @param srcPeer the member that doesn't get the message, may be {@code null}
      * @param msg the message content
      */
-    public void privateMessage(String srcNickname, String dstNickname, String msg) {
-        StringBuilder sb = new StringBuilder();
+    private void roomcast(Room room, Peer srcPeer, String msg) {
+        // Encoded once, every member writes the same bytes
+        roomcast(room, srcPeer, Payload.of(msg));
+    }
 
-        ChatPeer chatPeer = _chatPeers.get(dstNickname);
-        if (chatPeer != null)
-            chatPeer.send(sb.append(msg).toString());
-        else _chatPeers
-                .get(srcNickname)
-                .send(sb.append("E R R O R: That user doesn't exist").toString());
+    private void roomcast(Room room, Peer srcPeer, Payload payload) {
+        for (Peer peer : room.getMembers())
+            if (peer != srcPeer)
+                peer.send(payload);
     }
 
     /**
-     * Changes the nickname of a chat user.
+     * Puts a user in a room, creating it if nobody is there yet, and replays the last messages of the room.
      *
+     * @param peer the peer that joins
+     * @param roomName the name of the room
+     */
+    private void joinRoom(Peer peer, String roomName) {
+        if (!RoomRegistry.isValidName(roomName)) {
+            peer.send(ERROR + "Room names look like '#room', without spaces");
+            return;
+        }
+        Room room = _rooms.get(roomName);
+        if (room != null && room.isMember(peer)) {
+            peer.send(ERROR + "You are already in " + room.getName());
+            return;
+        }
+
+        room = _rooms.join(roomName, peer);
+        if (room == null) {
+            peer.send(ERROR + "There are too many rooms open, join one of them (see '/rooms')");
+            return;
+        }
+        roomcast(room, peer, SYSTEM + peer.getNickname() + " has joined " + room.getName());
+        peer.send(SYSTEM + "You have joined " + room.getName() + " (" + room.size() + " in the room)");
+        replay(peer, room.getHistory().last(_config.getHistoryReplayOnJoin()));
+    }
+
+    /**
+     * Takes a user out of a room, the room is gone when the last one leaves.
+     *
+     * @param peer the peer that leaves
+     * @param roomName the name of the room
+     * @return the response message for the peer
+     */
+    private String leaveRoom(Peer peer, String roomName) {
+        Room room = _rooms.get(roomName);
+        if (room == null || !_rooms.leave(roomName, peer))
+            return ERROR + "You aren't in " + roomName;
+
+        roomcast(room, null, SYSTEM + peer.getNickname() + " has left " + room.getName());
+        return SYSTEM + "You have left " + room.getName();
+    }
+
+    /**
+     * Replays the last messages sent to everyone to a user that has just entered the chat.
+     *
+     * @param peer the peer that has entered
+     */
+    public void replayHistory(Peer peer) {
+        replay(peer, _history.last(_config.getHistoryReplayOnJoin()));
+    }
+
+    private static void replay(Peer peer, Replay replay) {
+        if (!replay.isEmpty())
+            peer.replay(replay);
+    }
+
+    /**
+     * Replays the history of the chat or of a room on request.<br>
+     * <br>
+     * Arguments: {@code [#room] [count | since <HH:mm | epoch millis>]}.
+     *
+     * @param peer the peer asking
+     * @param argument the arguments of the command
+     */
+    private void history(Peer peer, String argument) {
+        String[] args = argument.isEmpty() ? new String[0] : argument.split(" +");
+        int next = 0;
+
+        History history = _history;
+        String channel = MessageLog.CHAT;
+        if (next < args.length && args[next].startsWith(RoomRegistry.ROOM_PREFIX)) {
+            Room room = _rooms.get(args[next++]);
+            if (room == null || !room.isMember(peer)) {
+                peer.send(ERROR + "You aren't in " + args[next - 1]);
+                return;
+            }
+            history = room.getHistory();
+            channel = RoomRegistry.normalize(room.getName());
+        }
+
+        // With a log, the whole log is searched instead of what is kept in memory
+        Replay replay;
+        try {
+            if (args.length > next && args[next].equals("since") && next + 2 == args.length) {
+                long since = parseSince(args[next + 1]);
+                replay = _log != null ? _log.since(channel, history.getName(), since) : history.since(since);
+            } else if (next + 1 >= args.length) {
+                int count = next == args.length ? DEFAULT_HISTORY : Integer.parseInt(args[next]);
+                replay = _log != null ? _log.last(channel, history.getName(), count) : history.last(count);
+            } else throw new IllegalArgumentException();
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            peer.send(ERROR + "Usage: /history [#room] [count | since <HH:mm | epoch millis>]");
+            return;
+        }
+
+        if (replay.isEmpty())
+            peer.send(SYSTEM + "There are no messages in " + history.getName());
+        else peer.replay(replay);
+    }
+
+    /**
+     * Searches the messages sent to everyone on request.<br>
+     * <br>
+     * Arguments: words (all of them must be in a message, {@code word*} for any word it starts)
+     * and any of {@code from:<nickname>}, {@code since:<HH:mm | epoch millis>} and {@code until:<HH:mm | epoch millis>}.
+     *
+     * @param peer the peer asking
+     * @param argument the arguments of the command
+     */
+    private void search(Peer peer, String argument) {
+        if (_search == null) {
+            peer.send(ERROR + "Search is off in this server");
+            return;
+        }
+
+        StringBuilder words = new StringBuilder();
+        String from = null;
+        long since = 0;
+        long until = Long.MAX_VALUE;
+        Replay replay;
+        try {
+            for (String word : argument.isEmpty() ? new String[0] : argument.split(" +")) {
+                if (word.startsWith("from:")) from = word.substring(5);
+                else if (word.startsWith("since:")) since = parseSince(word.substring(6));
+                else if (word.startsWith("until:")) until = parseSince(word.substring(6));
+                else words.append(word).append(' ');
+            }
+            replay = _search.search(words.toString(), from, since, until, SEARCH_RESULTS);
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            peer.send(ERROR + "Usage: /search words [prefix*] [from:nick] [since:HH:mm] [until:HH:mm]");
+            return;
+        }
+        peer.replay(replay);
+    }
+
+    /**
+     * Parses the moment a '/history since' (or a '/search since:') starts from.
+     *
+     * @param since a time of today ({@code HH:mm} or {@code HH:mm:ss}) or milliseconds since the epoch
+     * @return the moment in milliseconds since the epoch
+     */
+    private static long parseSince(String since) {
+        if (since.chars().allMatch(Character::isDigit))
+            return Long.parseLong(since);
+        return LocalTime.parse(since)
+                        .atDate(LocalDate.now())
+                        .atZone(ZoneId.systemDefault())
+                        .toInstant()
+                        .toEpochMilli();
+    }
+
+    /**
+     * Changes the nickname of a chat user.<br>
+     * <br>
+     * As with {@link #claimNickname(String, Peer)}, checking and taking the new nickname is atomic.
+     *
+     * @param peer the peer to rename, still holding its current nickname
      * @param newNickname the new nickname to assign
-     * @param oldNickname the current nickname to replace
+     * @return the same codes as {@link #nicknameInspection(String)}, {@code 0} meaning the peer was renamed
+     */
+    public int changeNickname(Peer peer, String newNickname) {
+        int status = nicknameInspection(newNickname);
+        if (status != 0) return status;
+        if (!_chatPeers.rename(peer.getNickname(), newNickname, peer)) return 3;
+        if (_cluster != null) {
+            if (!_cluster.claim(newNickname)) {
+                _chatPeers.rename(newNickname, peer.getNickname(), peer);
+                return 3;
+            }
+            _cluster.release(peer.getNickname());
+        }
+        return 0;
+    }
+
+    /**
+     * Registers the commands every server has, in the order '/help' lists them.<br>
+     * <br>
+     * The answers that never change ('/ip' and '/port') are rendered and encoded once, the socket is already bound.
+     */
+    private void registerCommands() {
+        _commands.register("/help", "/help", "Shows a list of the server commands", (peer, line, argument) -> _commands.help());
+        Payload ip = Payload.of(String.valueOf(_server.getInetAddress()));
+        _commands.register("/ip", "/ip", "Displays the server IP address", (peer, line, argument) -> ip);
+        _commands.register("/me", "/me", "Shows your nickname", (peer, line, argument) -> Payload.of("You are " + peer.getNickname()));
+        _commands.register("/nick", "/nick", "Allows to change the name", (peer, line, argument) -> {
+            peer.changeNickname();
+            return null;
+        });
+        _commands.register("/people", "/people #room", "Users connected (to the server or to a room)",
+                (peer, line, argument) -> people(CommandRegistry.argument(line, argument)));
+        Payload port = Payload.of(String.valueOf(_server.getLocalPort()));
+        _commands.register("/port", "/port", "Displays the server's Port", (peer, line, argument) -> port);
+        _commands.register("/join", "/join #room", "Joins a room (it is created if needed)", (peer, line, argument) -> {
+            joinRoom(peer, CommandRegistry.argument(line, argument));
+            return null;
+        });
+        _commands.register("/leave", "/leave #room", "Leaves a room",
+                (peer, line, argument) -> Payload.of(leaveRoom(peer, CommandRegistry.argument(line, argument))));
+        _commands.register("/rooms", "/rooms", "Rooms open in the server", (peer, line, argument) -> rooms(peer));
+        _commands.register("/stats", "/stats", "Server statistics (admins only)", (peer, line, argument) -> {
+            // They tell who is behind and how loaded the server is, that's for its operators
+            if (!_admins.contains(peer)) return Payload.of(ERROR + "Only admins can see the statistics, try '/admin'");
+            return Payload.of(_metrics.report(_chatPeers.peers(), _rooms.size(), _log));
+        });
+        _commands.register("/history", "/history", "Last messages ([#room] [N | since HH:mm])", (peer, line, argument) -> {
+            history(peer, CommandRegistry.argument(line, argument));
+            return null;
+        });
+        _commands.register("/search", "/search words", "Searches the messages (prefix*, from:nick, since:HH:mm)", (peer, line, argument) -> {
+            search(peer, CommandRegistry.argument(line, argument));
+            return null;
+        });
+        _commands.register("/admin", "/admin secret", "Lets you change the server settings",
+                (peer, line, argument) -> admin(peer, CommandRegistry.argument(line, argument)));
+        _commands.register("/limit", "/limit name N", "Shows the rate limits (admins may set one)",
+                (peer, line, argument) -> limit(peer, CommandRegistry.argument(line, argument)));
+        _commands.register("/exit", "/exit", "Exits the server", (peer, line, argument) -> {
+            // For good, a session isn't kept for it
+            peer.disconnect(Payload.of(SYSTEM + "bye!"));
+            return null;
+        });
+    }
+
+    /**
+     * Makes a peer an admin if it knows the password.
+     *
+     * @param peer the user
+     * @param password the password given
+     * @return the answer
      */
-    public synchronized void changeNickname(String newNickname, String oldNickname) {
-        _chatPeers.put(newNickname, _chatPeers.remove(oldNickname));
+    private Payload admin(Peer peer, String password) {
+        String adminPassword = _config.getAdminPassword();
+        if (adminPassword == null || !adminPassword.equals(password))
+            return Payload.of(ERROR + "Wrong password");
+        _admins.add(peer);
+        return Payload.of(SYSTEM + "You are an admin now");
     }
 
     /**
-     * Executes a command and returns the corresponding response based on the command and user nickname.
+     * Shows the rate limits or, for an admin, changes one of them ({@code /limit messages 20}).
      *
-     * @param command the command to execute
-     * @param nickname the nickname of the user
-     * @return the response message generated by the command
+     * @param peer the user
+     * @param argument the limit and its new value, or empty to show them
+     * @return the answer
      */
-    private String commandList(String command, String nickname) {
+    private Payload limit(Peer peer, String argument) {
+        if (argument.isEmpty()) return Payload.of(_rateLimiter.describe());
+        if (!_admins.contains(peer)) return Payload.of(ERROR + "Only admins can change the limits, try '/admin'");
+
+        int space = argument.indexOf(' ');
+        if (space == -1) return Payload.of(ERROR + "Usage: /limit messages|bytes|global-messages|global-bytes|burst|action value");
+        try {
+            _rateLimiter.set(argument.substring(0, space), argument.substring(space + 1).trim());
+        } catch (IllegalArgumentException e) {
+            return Payload.of(ERROR + e.getMessage());
+        }
+        System.out.printf("S E R V E R --> << %s >> changed the limits: %s%n", peer.getNickname(), argument);
+        return Payload.of(_rateLimiter.describe());
+    }
+
+    /**
+     * Renders the answer of '/people'.
+     *
+     * @param roomName the room, or empty for the whole server
+     * @return the nicknames
+     */
+    private Payload people(String roomName) {
         StringBuilder sb = new StringBuilder();
-        switch (command) {
-            case "/help" -> sb.append("Commands:").append(System.getProperty("line.separator"))
-                    .append("/help   -> Shows a list of the server commands"    ).append(System.getProperty("line.separator"))
-                    .append("/ip     -> Displays the server IP address"         ).append(System.getProperty("line.separator"))
-                    .append("/me     -> Shows your nickname"                    ).append(System.getProperty("line.separator"))
-                    .append("/nick   -> Allows to change the name"              ).append(System.getProperty("line.separator"))
-                    .append("/people -> Users currently connected to the server").append(System.getProperty("line.separator"))
-                    .append("/port   -> Displays the server's Port"             ).append(System.getProperty("line.separator"))
-                    .append("/exit   -> Exits the server");
-            case "/ip" -> sb.append(_server.getInetAddress());
-            case "/me" -> sb.append("You are ").append(nickname);
-            case "/people" -> {
-                sb.append("People connected:").append(System.getProperty("line.separator"));
-                _chatPeers.keySet()
-                          .forEach(nick -> sb.append("> ")
-                                             .append(nick)
-                                             .append(System.getProperty("line.separator")));
-            }
-            case "/port" -> sb.append(_server.getLocalPort());
-            default -> sb.append("That command doesn't exist, try '/help' :(((");
-        }
-        return sb.toString();
-    }
-
-    /**
-     * Sends a server message to a specific user based on their nickname and command.
-     *
-     * @param nickname the nickname of the user to send the message to
+        if (roomName.isEmpty()) {
+            sb.append("People connected:").append(System.getProperty("line.separator"));
+            _chatPeers.peers()
+                      .forEach(member -> sb.append("> ")
+                                           .append(member.getNickname())
+                                           .append(System.getProperty("line.separator")));
+            if (_cluster != null)
+                _cluster.remoteUsers()
+                        .forEach(user -> sb.append("> ")
+                                           .append(user)
+                                           .append(System.getProperty("line.separator")));
+        } else {
+            Room room = _rooms.get(roomName);
+            if (room == null) sb.append(ERROR).append("That room doesn't exist");
+            else {
+                sb.append("People in ").append(room.getName()).append(":").append(System.getProperty("line.separator"));
+                room.getMembers()
+                    .forEach(member -> sb.append("> ")
+                                         .append(member.getNickname())
+                                         .append(System.getProperty("line.separator")));
+            }
+        }
+        return Payload.of(sb.toString());
+    }
+
+    /**
+     * Renders the answer of '/rooms'.
+     *
+     * @param peer the user that asked, to mark the rooms joined
+     * @return the rooms
+     */
+    private Payload rooms(Peer peer) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Rooms:").append(System.getProperty("line.separator"));
+        _rooms.rooms()
+              .forEach(room -> sb.append("> ")
+                                 .append(room.getName())
+                                 .append(" (").append(room.size()).append(room.isMember(peer) ? ", joined)" : ")")
+                                 .append(System.getProperty("line.separator")));
+        return Payload.of(sb.toString());
+    }
+
+    /**
+     * Answers a command of a user.<br>
+     * <br>
+     * Whatever follows the first space is the argument of the command (e.g. the room of {@code /join #room}).
+     *
+     * @param peer the user that sent the command
      * @param command the command to execute for generating the message
+     * @throws IOException if an I/O error occurs while talking to the peer
      */
-    public void serverMessage(String nickname, String command) {
-        _chatPeers.get(nickname).send(commandList(command, nickname));
+    public void serverMessage(Peer peer, String command) throws IOException {
+        Payload response = _commands.execute(peer, command);
+        if (response != null)
+            peer.send(response);
     }
 
     /**
      * Broadcasts a message from a source user to all other connected users.
      *
-     * @param srcNickname the nickname of the source user
-     * @param msg the message content to broadcast
+     * @param srcPeer the peer that sends the message
+     * @param body the message content
+     * @return the message sent
      */
-    public void broadcast(String srcNickname, String msg) {
-        _chatPeers.keySet()
-                  .stream()
-                  .filter(nickname -> !nickname.equals(srcNickname))
-                  .forEach(nickname -> _chatPeers.get(nickname)
-                                                 .send(msg));
+    public Payload broadcast(Peer srcPeer, String body) {
+        // Encoded once, every recipient writes the same bytes
+        long start = System.nanoTime();
+        String nickname = srcPeer.getNickname();
+        Payload payload = Payload.message(Frame.BROADCAST, _messageIds.incrementAndGet(), System.currentTimeMillis(),
+                nickname, "", body, nickname + ": " + body);
+        _history.append(payload);
+        if (_log != null)
+            _log.append(MessageLog.CHAT, payload);
+        if (_search != null)
+            _search.add(payload);
+        for (Peer peer : _chatPeers.peers())
+            if (peer != srcPeer)
+                peer.send(payload);
+        if (_cluster != null)
+            _cluster.broadcast(payload);
+        _metrics.broadcast(start);
+        return payload;
     }
 
     /**
-     * Removes a chat user from the server based on their nickname.
+     * Delivers a message that a user of another node of the cluster sent,
+     * to the users of this node it is for.
      *
-     * @param nickname the nickname of the user to remove
+     * @param frame the message, as the other node encoded it
      */
-    public synchronized void remove(String nickname) {
-        _chatPeers.remove(nickname);
-        System.out.printf("S E R V E R --> Total clients: %d%n", _chatPeers.size());
-        if (_chatPeers.size() == 1) {
-            _chatPeers.get(_chatPeers.keySet().iterator().next())
-                      .send("Now you are alone on the server");
-        } else if (_chatPeers.size() == 0)
-            // Remove this 'else if' if you dont want the server to close when there are no ChatPeers in it
-            System.exit(0);
+    void deliver(Frame frame) {
+        long start = System.nanoTime();
+        Payload payload = Payload.message(frame.getOpcode(), frame.getId(), frame.getTimestamp(),
+                frame.getFrom(), frame.getTarget(), frame.getBody(), frame.toLine());
+        switch (frame.getOpcode()) {
+            case Frame.BROADCAST -> {
+                _history.append(payload);
+                if (_log != null)
+                    _log.append(MessageLog.CHAT, payload);
+                if (_search != null)
+                    _search.add(payload);
+                for (Peer peer : _chatPeers.peers())
+                    peer.send(payload);
+                _metrics.broadcast(start);
+            }
+            case Frame.PRIVATE -> {
+                Peer chatPeer = _chatPeers.get(frame.getTarget());
+                if (chatPeer == null || !_privateMessages.route(null, 0, chatPeer, payload, start)) return;
+                if (_log != null)
+                    _log.append(MessageLog.PRIVATE_PREFIX + PeerRegistry.normalize(frame.getTarget()), payload);
+                _metrics.privateMessage(start);
+            }
+            case Frame.ROOM -> {
+                // Only the rooms with members on this node
+                Room room = _rooms.get(frame.getTarget());
+                if (room == null) return;
+                room.getHistory().append(payload);
+                if (_log != null)
+                    _log.append(RoomRegistry.normalize(room.getName()), payload);
+                roomcast(room, null, payload);
+                _metrics.broadcast(start);
+            }
+            default -> System.err.println(ERROR + "Unexpected frame " + frame.getOpcode() + " from the cluster");
+        }
+    }
+
+    /**
+     * Disconnects the user of a nickname that another node of the cluster gave away first.
+     *
+     * @param nickname the nickname
+     */
+    void evict(String nickname) {
+        Peer peer = _chatPeers.get(nickname);
+        if (peer != null)
+            peer.disconnect(Payload.of(ERROR + "Someone on another server got the nickname " + nickname
+                                       + " first, connect again with another one"));
+    }
+
+    /**
+     * Removes a chat user from the server.<br>
+     * <br>
+     * A peer that never got to claim a nickname is simply ignored.
+     *
+     * @param peer the peer to remove
+     */
+    public void remove(Peer peer) {
+        _admins.remove(peer);
+        _sessions.end(peer);
+        _privateMessages.drop(peer);
+        if (!_chatPeers.release(peer.getNickname(), peer)) return;
+        if (_cluster != null)
+            _cluster.release(peer.getNickname());
+
+        for (Room room : _rooms.leaveAll(peer))
+            roomcast(room, null, SYSTEM + peer.getNickname() + " has left " + room.getName());
+        System.out.printf("Client << %s >> has left the chat%n", peer.getNickname());
+        int size = _chatPeers.size();
+        System.out.printf("S E R V E R --> Total clients: %d%n", size);
+        if (size == 1) {
+            for (Peer alone : _chatPeers.peers())
+                alone.send("Now you are alone on the server");
+        } else if (size == 0 && _cluster == null && _config.isShutdownWhenEmpty() && !_stopping.get())
+            // Not on this thread, it may be one of those the stop waits for
+            Thread.ofPlatform().name("chat-stop").start(this::stop);
+    }
+
+    /**
+     * Renders the metrics for the scrape endpoint.
+     *
+     * @return the metrics in the Prometheus text format
+     */
+    private String scrapeMetrics() {
+        return _metrics.scrape(_chatPeers.peers(), _rooms.size(), _log);
+    }
+
+    // <<-GETTER->>
+    /**
+     * Returns the port the server listens on, the one picked by the system if it was given {@code 0}.
+     *
+     * @return the local port
+     */
+    public int getPort() {
+        return _server.getLocalPort();
+    }
+
+    public boolean isStopped() {
+        return _stopped.getCount() == 0;
+    }
+
+    public ServerConfig getConfig() {
+        return _config;
+    }
+
+    public Metrics getMetrics() {
+        return _metrics;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return _rateLimiter;
+    }
+
+    /**
+     * Returns the compression of the binary peers that ask for it.
+     *
+     * @return the compression, {@code null} if it is off
+     */
+    Compression getCompression() {
+        return _compression;
+    }
+
+    TimerWheel getTimerWheel() {
+        return _timerWheel;
+    }
+
+    public CommandRegistry getCommands() {
+        return _commands;
+    }
+
+    PeerRegistry getChatPeers() {
+        return _chatPeers;
+    }
+
+    RoomRegistry getRooms() {
+        return _rooms;
     }
 
     /**
@@ -212,8 +1299,8 @@ public class ChatServer {
      */
     public static void main(String[] args) {
         // Si el servidor no estuviera alojado en nuestra máquina habría que cambiar este 'if' (ip address, port number)
-        if (args.length != 1) {
-            System.err.println("Usage: java Client <ip address> <port number>");
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java ChatServer <port number> [thread|virtual|nio]");
             System.exit(1);
         }
 
@@ -229,8 +1316,48 @@ public class ChatServer {
             System.exit(1);
         }
 
+        // Checks for 'server mode'
+        ServerMode mode = ServerMode.THREAD;
+        if (args.length == 2) {
+            try {
+                mode = ServerMode.parse(args[1]);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Usage: <server mode> must be 'thread', 'virtual' or 'nio'");
+                System.exit(1);
+            }
+        }
+
+        // Checks for 'chatserver.*' system properties
+        ServerConfig config = null;
+        try {
+            config = ServerConfig.fromSystemProperties();
+        } catch (IllegalArgumentException e) {
+            System.err.printf("Usage: %s%n", e.getMessage());
+            System.exit(1);
+        }
+
         // Init ChatServer
-        new ChatServer(portNumber);
+        ChatServer server = new ChatServer(portNumber, mode, config);
+        // On Ctrl+C too the users get their notice and the log gets to disk
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "chat-shutdown"));
+        try {
+            server.start();
+            server.awaitTermination();
+        } catch (IOException e) {
+            System.err.println(ERROR + "The server can't be started: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // <<-ACCEPT LOOP->>
+    /**
+     * The accept loop of a server mode.
+     */
+    @FunctionalInterface
+    private interface AcceptLoop {
+        void run() throws IOException;
     }
 
 }
\ No newline at end of file
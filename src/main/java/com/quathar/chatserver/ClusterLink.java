@@ -0,0 +1,220 @@
+package com.quathar.chatserver;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * <h1>ClusterLink</h1>
+ * <br>
+ * The persistent connection between this node and another one of the cluster.<br>
+ * <br>
+ * Everything between two nodes goes through their single link as {@link Frame frames}:
+ * the messages of every user and the nickname claims alike.
+ * A writer thread takes whatever is queued and writes it in one go, so under load
+ * many frames share a write (and a TCP segment) instead of one connection or syscall per message.
+ * The messages are forwarded as they were encoded for the binary peers, no node encodes them again.<br>
+ * <br>
+ * A link is only used once both nodes have proven they know the secret of the cluster:
+ * each sends a random challenge with its name, and answers the other's with an HMAC of both names,
+ * both challenges and whether it dialed, so an answer can't be replayed nor relayed from another link.
+ * The link itself isn't encrypted, the nodes should talk over a network of their own.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+final class ClusterLink {
+
+    // <<-CONSTANTS->>
+    /**
+     * Most frames waiting for the writer, a node that falls this far behind is disconnected (and resynced later).
+     */
+    private static final int CAPACITY = 64 * 1024;
+    /**
+     * Most bytes written in a single batch.
+     */
+    private static final int BATCH_BYTES = 64 * 1024;
+    /**
+     * Longest wait for the other node during the handshake.
+     */
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    private static final int CHALLENGE_BYTES = 32;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final HexFormat HEX = HexFormat.of();
+
+    // <<-FIELDS->>
+    private final ClusterNode _node;
+    private final Socket _socket;
+    private final InputStream _in;
+    private final OutputStream _out;
+    private final BlockingQueue<Payload> _outbound;
+    /**
+     * Whether this node dialed the link (rather than accepted it).
+     */
+    private final boolean _dialed;
+    private volatile String _remoteNode;
+    private volatile boolean _closed;
+
+    // <<-CONSTRUCTOR->>
+    ClusterLink(ClusterNode node, Socket socket, boolean dialed) throws IOException {
+        _node     = node;
+        _socket   = socket;
+        _in       = new BufferedInputStream(socket.getInputStream(), BATCH_BYTES);
+        _out      = new BufferedOutputStream(socket.getOutputStream(), BATCH_BYTES);
+        _outbound = new ArrayBlockingQueue<>(CAPACITY);
+        _dialed   = dialed;
+        socket.setTcpNoDelay(true);
+    }
+
+    // <<-METHODS->>
+    /**
+     * Introduces both nodes to each other: each sends its name and a challenge first,
+     * then the answer to the other's challenge.
+     *
+     * @param localNode the name of this node
+     * @param secret the secret of the cluster
+     * @return the name of the other node
+     * @throws IOException if the other end isn't a node of the cluster, or doesn't know its secret
+     */
+    String handshake(String localNode, byte[] secret) throws IOException {
+        byte[] bytes = new byte[CHALLENGE_BYTES];
+        RANDOM.nextBytes(bytes);
+        String challenge = HEX.formatHex(bytes);
+        _socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        Frame.of(ClusterNode.HELLO, 0, challenge, localNode).writeTo(_out);
+        _out.flush();
+        Frame hello = Frame.read(_in);
+        if (hello == null || hello.getOpcode() != ClusterNode.HELLO || hello.getBody().isBlank()
+            || !Payload.isSingleLine(hello.getBody()) || hello.getTarget().length() != challenge.length())
+            throw new ProtocolException("Not a cluster node");
+        String remoteNode = hello.getBody();
+        String remoteChallenge = hello.getTarget();
+
+        Frame.of(ClusterNode.AUTH, 0, "", answer(secret, _dialed, localNode, remoteNode, challenge, remoteChallenge)).writeTo(_out);
+        _out.flush();
+        Frame auth = Frame.read(_in);
+        String expected = answer(secret, !_dialed, remoteNode, localNode, remoteChallenge, challenge);
+        if (auth == null || auth.getOpcode() != ClusterNode.AUTH
+            || !MessageDigest.isEqual(auth.getBody().getBytes(Payload.CHARSET), expected.getBytes(Payload.CHARSET)))
+            throw new ProtocolException("Node << " + remoteNode + " >> doesn't know the cluster secret");
+        _socket.setSoTimeout(0);
+        _remoteNode = remoteNode;
+        return remoteNode;
+    }
+
+    /**
+     * Answers a challenge: the HMAC of who answers, to whom, over which link.
+     *
+     * @param dialed whether the node answering dialed the link
+     * @param node the node answering
+     * @param otherNode the node that sent the challenge
+     * @param challenge the challenge of the node answering
+     * @param otherChallenge the challenge being answered
+     */
+    private static String answer(byte[] secret, boolean dialed, String node, String otherNode,
+                                 String challenge, String otherChallenge) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+            String signed = (dialed ? "dialed" : "accepted") + '\n' + node + '\n' + otherNode
+                            + '\n' + challenge + '\n' + otherChallenge;
+            return HEX.formatHex(mac.doFinal(signed.getBytes(Payload.CHARSET)));
+        } catch (GeneralSecurityException e) {
+            // Every JDK has HMAC-SHA256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Starts the writer and reads frames for the node until the link goes down.
+     * Runs on the thread that opened the link.
+     */
+    void run() {
+        Thread writer = Thread.ofPlatform().name("cluster-writer-" + _remoteNode).daemon().start(this::writeLoop);
+        try {
+            Frame frame;
+            while ((frame = Frame.read(_in)) != null)
+                _node.onFrame(this, frame);
+        } catch (IOException e) {
+            // The other node is gone
+        } finally {
+            close();
+            writer.interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        List<Payload> batch = new ArrayList<>();
+        try {
+            while (!_closed) {
+                batch.add(_outbound.take());
+                _outbound.drainTo(batch);
+                for (Payload frame : batch)
+                    frame.writeTo(_out);
+                _out.flush();
+                batch.clear();
+            }
+        } catch (InterruptedException | IOException e) {
+            // The link is going down
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Queues a frame for the other node.
+     *
+     * @param frame the encoded frame (e.g. {@link Payload#framed()})
+     */
+    void send(Payload frame) {
+        if (!_closed && !_outbound.offer(frame)) {
+            System.err.println("E R R O R: The cluster link to " + _remoteNode + " is too far behind");
+            close();
+        }
+    }
+
+    synchronized void close() {
+        if (_closed) return;
+        _closed = true;
+        try {
+            _socket.close();
+        } catch (IOException e) {
+            System.err.println("E R R O R: ClusterLink --> _socket.close()");
+        }
+        _node.linkDown(this);
+    }
+
+    // <<-GETTERS->>
+    String getRemoteNode() {
+        return _remoteNode;
+    }
+
+    boolean isDialed() {
+        return _dialed;
+    }
+
+    boolean isClosed() {
+        return _closed;
+    }
+
+    int getQueueDepth() {
+        return _outbound.size();
+    }
+
+}
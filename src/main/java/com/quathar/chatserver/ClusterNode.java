@@ -0,0 +1,480 @@
+package com.quathar.chatserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <h1>ClusterNode</h1>
+ * <br>
+ * This chat server as a node of a cluster: several servers linked over TCP, sharing one set of nicknames,
+ * so the users of every node chat as if they were on the same server.<br>
+ * <br>
+ * Every pair of nodes keeps a single persistent {@link ClusterLink}. A node dials the seeds it is given
+ * (and keeps dialing them while they are down) and accepts the nodes that dial it,
+ * if two nodes dial each other the link dialed by the node with the lowest name is kept.
+ * Only nodes that know the secret of the cluster are linked, and the cluster port is bound to loopback
+ * unless told otherwise.<br>
+ * <br>
+ * Nicknames: every node tells the others about the nicknames its users claim and release,
+ * and sends all of its own whenever a link comes up. A nickname taken anywhere can't be claimed.
+ * Claims are ordered by a logical clock, not by the time of day: every node counts its claims on from the highest
+ * it has heard of. If two nodes give away the same nickname at once (or while they were apart),
+ * the earliest claim wins (the lowest node name on a tie) and the other node disconnects its user.
+ * Each node reaches that decision on its own, no extra message is needed.<br>
+ * <br>
+ * Messages: broadcasts and room messages go to every node, which delivers them to its own users
+ * (room members are local to each node). Private messages only go to the node of the recipient.
+ * A node only takes the messages of the users another node holds the nickname of.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class ClusterNode {
+
+    // <<-CONSTANTS->>
+    /**
+     * Frame a node opens a link with, the body being its name and the target its challenge.
+     */
+    static final byte HELLO = 16;
+    /**
+     * A user of the sending node got a nickname: {@code from} is the nickname,
+     * {@code timestamp} when it was claimed (on the logical clock).
+     */
+    static final byte CLAIM = 17;
+    /**
+     * A user of the sending node gave a nickname up: {@code from} is the nickname.
+     */
+    static final byte RELEASE = 18;
+    /**
+     * The answer to the challenge of the other node, the body being an HMAC made with the secret of the cluster.
+     */
+    static final byte AUTH = 19;
+    /**
+     * Time between two attempts to dial a seed that is down.
+     */
+    private static final long RETRY_MILLIS = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+
+    // <<-FIELDS->>
+    private final ChatServer _server;
+    private final String _name;
+    private final int _port;
+    private final String _bindAddress;
+    private final byte[] _secret;
+    private final List<InetSocketAddress> _seeds;
+    /**
+     * The links that are up, by node name.
+     */
+    private final Map<String, ClusterLink> _links;
+    /**
+     * The nicknames claimed on this node and on the others, by normalized nickname.
+     */
+    private final Map<String, Claim> _localClaims;
+    private final Map<String, Claim> _remoteClaims;
+    /**
+     * The threads dialing the seeds.
+     */
+    private final List<Thread> _dialers;
+    /**
+     * The logical clock of the claims: above every claim this node has made or heard of.
+     */
+    private final AtomicLong _clock;
+    private ServerSocket _listener;
+    private volatile boolean _running;
+
+    // <<-CONSTRUCTOR->>
+    /**
+     * Constructs the node, nothing is linked until it is started.
+     *
+     * @param server the chat server of this node
+     * @param config the server settings
+     * @throws IllegalArgumentException if a seed isn't a valid {@code host:port}, or there is no secret
+     */
+    public ClusterNode(ChatServer server, ServerConfig config) {
+        if (config.getClusterSecret() == null || config.getClusterSecret().isBlank())
+            throw new IllegalArgumentException("A node of a cluster needs the secret of the cluster");
+        _server       = server;
+        _name         = config.getClusterNode();
+        _port         = config.getClusterPort();
+        _bindAddress  = config.getClusterBindAddress();
+        _secret       = config.getClusterSecret().getBytes(Payload.CHARSET);
+        _seeds        = parseSeeds(config.getClusterSeeds());
+        _links        = new ConcurrentHashMap<>();
+        _localClaims  = new ConcurrentHashMap<>();
+        _remoteClaims = new ConcurrentHashMap<>();
+        _dialers      = new ArrayList<>();
+        _clock        = new AtomicLong();
+        server.getCommands().register("/nodes", "/nodes", "Servers of the cluster", (peer, line, argument) -> Payload.of(describe()));
+    }
+
+    // <<-METHODS->>
+    private static List<InetSocketAddress> parseSeeds(String seeds) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String seed : seeds.split(",")) {
+            seed = seed.trim();
+            if (seed.isEmpty()) continue;
+            int colon = seed.lastIndexOf(':');
+            try {
+                if (colon == -1) throw new NumberFormatException();
+                addresses.add(InetSocketAddress.createUnresolved(seed.substring(0, colon), Integer.parseInt(seed.substring(colon + 1))));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Cluster seeds look like 'host:port', not '" + seed + "'");
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Starts listening for the other nodes and dialing the seeds.
+     *
+     * @throws IOException if the cluster port can't be bound
+     */
+    public void start() throws IOException {
+        _running = true;
+        if (_port > 0) {
+            ServerSocket listener = new ServerSocket();
+            listener.bind(new InetSocketAddress(_bindAddress, _port));
+            _listener = listener;
+            Thread.ofPlatform().name("cluster-listener").daemon().start(() -> accept(listener));
+        }
+        for (InetSocketAddress seed : _seeds)
+            _dialers.add(Thread.ofPlatform().name("cluster-dialer-" + seed.getHostString() + ":" + seed.getPort()).daemon().start(() -> dial(seed)));
+        System.out.printf("S E R V E R --> Cluster node << %s >>, port %s:%d, seeds %s%n", _name, _bindAddress, _port,
+                _seeds.stream().map(seed -> seed.getHostString() + ":" + seed.getPort()).toList());
+    }
+
+    private void accept(ServerSocket listener) {
+        try {
+            while (true) {
+                Socket socket = listener.accept();
+                Thread.ofPlatform().name("cluster-link").daemon().start(() -> {
+                    try {
+                        ClusterLink link = new ClusterLink(this, socket, false);
+                        link.handshake(_name, _secret);
+                        if (linkUp(link)) link.run();
+                    } catch (IOException e) {
+                        if (e instanceof ProtocolException)
+                            System.err.println("E R R O R: Refused a cluster link from " + socket.getRemoteSocketAddress()
+                                               + ": " + e.getMessage());
+                        close(socket);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            if (_running)
+                System.err.println("E R R O R: ClusterNode --> accept()");
+        }
+    }
+
+    /**
+     * Keeps a link up to a seed: dials it, and dials it again whenever the link goes down.
+     */
+    private void dial(InetSocketAddress seed) {
+        String node = null;
+        try {
+            while (_running) {
+                // Not while it is linked the other way round
+                if (node == null || !_links.containsKey(node)) {
+                    Socket socket = new Socket();
+                    try {
+                        socket.connect(new InetSocketAddress(seed.getHostString(), seed.getPort()), CONNECT_TIMEOUT_MILLIS);
+                        ClusterLink link = new ClusterLink(this, socket, true);
+                        node = link.handshake(_name, _secret);
+                        if (linkUp(link)) link.run();
+                    } catch (ProtocolException e) {
+                        System.err.println("E R R O R: Refused the cluster link to " + seed.getHostString() + ":" + seed.getPort()
+                                           + ": " + e.getMessage());
+                    } catch (IOException e) {
+                        // Down, or not there yet
+                    } finally {
+                        close(socket);
+                    }
+                }
+                Thread.sleep(RETRY_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            // The server is going down
+        }
+    }
+
+    /**
+     * Unlinks this node: stops listening and dialing, and closes every link.
+     */
+    public void stop() {
+        _running = false;
+        if (_listener != null) {
+            try {
+                _listener.close();
+            } catch (IOException e) {
+                System.err.println("E R R O R: ClusterNode --> stop()");
+            }
+        }
+        _dialers.forEach(Thread::interrupt);
+        for (ClusterLink link : _links.values())
+            link.close();
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Puts a link in use, unless there is already one with that node, and sends it every local nickname.<br>
+     * <br>
+     * The nicknames go before anything else, or the other node would drop the messages of users it doesn't know yet.
+     *
+     * @return {@code true} if the link is in use, {@code false} if it was closed
+     */
+    private boolean linkUp(ClusterLink link) {
+        String node = link.getRemoteNode();
+        if (!_running) {
+            // Linked while the node was stopping
+            link.close();
+            return false;
+        }
+        if (node.equals(_name)) {
+            System.err.println("E R R O R: Another node is called << " + node + " >> too");
+            link.close();
+            return false;
+        }
+
+        for (Claim claim : _localClaims.values())
+            link.send(claim.encode(CLAIM));
+        ClusterLink[] replaced = new ClusterLink[1];
+        ClusterLink current = _links.compute(node, (name, existing) -> {
+            if (existing == null || existing.isClosed()) return link;
+            // Both nodes dialed each other, both keep the same link
+            if (link.isDialed() == (_name.compareTo(node) < 0)) {
+                replaced[0] = existing;
+                return link;
+            }
+            return existing;
+        });
+        if (current != link) {
+            link.close();
+            return false;
+        }
+        if (replaced[0] != null)
+            replaced[0].close();
+
+        // Again for the claims made meanwhile, a claim is the same however many times it arrives
+        for (Claim claim : _localClaims.values())
+            link.send(claim.encode(CLAIM));
+        System.out.printf("S E R V E R --> Linked to node << %s >>%n", node);
+        return true;
+    }
+
+    /**
+     * Forgets a link that went down, and the nicknames of its node with it.
+     *
+     * @param link the link
+     */
+    void linkDown(ClusterLink link) {
+        String node = link.getRemoteNode();
+        if (node == null || !_links.remove(node, link)) return;
+
+        _remoteClaims.values().removeIf(claim -> claim._node.equals(node));
+        System.out.printf("S E R V E R --> Lost the link to node << %s >>%n", node);
+    }
+
+    /**
+     * Handles a frame from another node.
+     *
+     * @param link the link it came through
+     * @param frame the frame
+     */
+    void onFrame(ClusterLink link, Frame frame) {
+        String node = link.getRemoteNode();
+        switch (frame.getOpcode()) {
+            case CLAIM -> {
+                if (frame.getTimestamp() > 0 && !frame.getFrom().isBlank() && Payload.isSingleLine(frame.getFrom()))
+                    onClaim(new Claim(frame.getFrom(), node, frame.getTimestamp()));
+                else
+                    System.err.println("E R R O R: Node << " + node + " >> sent an invalid claim");
+            }
+            case RELEASE -> _remoteClaims.computeIfPresent(PeerRegistry.normalize(frame.getFrom()),
+                    (key, claim) -> claim._node.equals(node) ? null : claim);
+            case Frame.BROADCAST, Frame.PRIVATE, Frame.ROOM -> {
+                // A node speaks for its own users only
+                Claim claim = _remoteClaims.get(PeerRegistry.normalize(frame.getFrom()));
+                if (claim != null && claim._node.equals(node))
+                    _server.deliver(frame);
+                else
+                    System.err.println("E R R O R: Node << " + node + " >> sent a message of " + frame.getFrom()
+                                       + ", who isn't a user of it");
+            }
+            default -> System.err.println("E R R O R: Unexpected frame " + frame.getOpcode() + " from node << " + node + " >>");
+        }
+    }
+
+    /**
+     * Records a nickname claimed on another node, settling the conflict if this node gave it away too.<br>
+     * <br>
+     * The claim is recorded before the local one is looked up, and {@link #claim(String)} does the opposite,
+     * so when both happen at once at least one of them sees the other.
+     */
+    private void onClaim(Claim claim) {
+        _clock.accumulateAndGet(claim._at, Math::max);
+        String key = claim.key();
+        _remoteClaims.merge(key, claim, (known, newer) -> known._node.equals(newer._node) || newer.winsOver(known) ? newer : known);
+        Claim local = _localClaims.get(key);
+        if (local == null) return;
+
+        if (local.winsOver(claim))
+            // The other node gives its user up when it gets our claim
+            _remoteClaims.remove(key, claim);
+        else if (_localClaims.remove(key, local))
+            _server.evict(local._nickname);
+    }
+
+    /**
+     * Tells the other nodes a user of this node got a nickname.
+     *
+     * @param nickname the nickname, already claimed on this node
+     * @return {@code true} if it is the user's, {@code false} if another node gave it away first
+     *         (then the caller releases it)
+     */
+    boolean claim(String nickname) {
+        Claim claim = new Claim(nickname, _name, _clock.incrementAndGet());
+        String key = claim.key();
+        _localClaims.put(key, claim);
+        Claim remote = _remoteClaims.get(key);
+        if (remote != null && remote.winsOver(claim)) {
+            _localClaims.remove(key, claim);
+            return false;
+        }
+
+        Payload frame = claim.encode(CLAIM);
+        for (ClusterLink link : _links.values())
+            link.send(frame);
+        return true;
+    }
+
+    /**
+     * Tells the other nodes a user of this node gave a nickname up.
+     *
+     * @param nickname the nickname
+     */
+    void release(String nickname) {
+        Claim claim = new Claim(nickname, _name, 0);
+        _localClaims.remove(claim.key());
+        Payload frame = claim.encode(RELEASE);
+        for (ClusterLink link : _links.values())
+            link.send(frame);
+    }
+
+    /**
+     * Finds a user of another node.
+     *
+     * @param nickname the nickname, in any case
+     * @return the nickname as the user claimed it, or {@code null} if no other node has it
+     */
+    String locate(String nickname) {
+        Claim claim = _remoteClaims.get(PeerRegistry.normalize(nickname));
+        return claim == null ? null : claim._nickname;
+    }
+
+    /**
+     * Sends a message to every other node, for their users.
+     *
+     * @param message the message, forwarded as its binary frame
+     */
+    void broadcast(Payload message) {
+        if (_links.isEmpty()) return;
+
+        Payload frame = message.framed();
+        for (ClusterLink link : _links.values())
+            link.send(frame);
+    }
+
+    /**
+     * Sends a message to the node of a user.
+     *
+     * @param nickname the nickname of the user
+     * @param message the message, forwarded as its binary frame
+     * @return {@code false} if no other node has that user
+     */
+    boolean sendTo(String nickname, Payload message) {
+        Claim claim = _remoteClaims.get(PeerRegistry.normalize(nickname));
+        ClusterLink link = claim == null ? null : _links.get(claim._node);
+        if (link == null) return false;
+        link.send(message.framed());
+        return true;
+    }
+
+    /**
+     * Returns the users of the other nodes, for '/people'.
+     *
+     * @return every nickname followed by its node, e.g. {@code "nick (@node)"}
+     */
+    List<String> remoteUsers() {
+        List<String> users = new ArrayList<>();
+        for (Claim claim : _remoteClaims.values())
+            users.add(claim._nickname + " (@" + claim._node + ")");
+        return users;
+    }
+
+    /**
+     * Renders the nodes this one is linked to, the answer of '/nodes'.
+     *
+     * @return the nodes
+     */
+    private String describe() {
+        String ls = System.getProperty("line.separator");
+        StringBuilder sb = new StringBuilder("Nodes:").append(ls).append("> ").append(_name).append(" (this one)");
+        for (ClusterLink link : _links.values()) {
+            String node = link.getRemoteNode();
+            long users = _remoteClaims.values().stream().filter(claim -> claim._node.equals(node)).count();
+            sb.append(ls).append("> ").append(node).append(" (")
+              .append(users).append(" users, ")
+              .append(link.getQueueDepth()).append(" frames queued)");
+        }
+        return sb.toString();
+    }
+
+    // <<-CLAIM->>
+    /**
+     * A nickname in use on a node.
+     */
+    private static final class Claim {
+        private final String _nickname;
+        private final String _node;
+        /**
+         * When it was claimed, on the logical clock of the node that claimed it.
+         */
+        private final long _at;
+
+        private Claim(String nickname, String node, long at) {
+            _nickname = nickname;
+            _node     = node;
+            _at       = at;
+        }
+
+        private String key() {
+            return PeerRegistry.normalize(_nickname);
+        }
+
+        /**
+         * Settles two claims of the same nickname, every node reaches the same answer.
+         */
+        private boolean winsOver(Claim other) {
+            return _at != other._at ? _at < other._at : _node.compareTo(other._node) < 0;
+        }
+
+        private Payload encode(byte opcode) {
+            return Payload.raw(Frame.encode(opcode, 0, 0, _at, _nickname, "", ""));
+        }
+    }
+
+}
@@ -0,0 +1,222 @@
+package com.quathar.chatserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <h1>CommandRegistry</h1>
+ * <br>
+ * The commands of the chat server, by name, each with its handler and its line of '/help'.<br>
+ * <br>
+ * Lookups hash the command straight from the line the peer sent (the same hash as {@link String#hashCode()})
+ * into an open addressing table and compare it in place, no substring is taken and nothing is allocated.
+ * The table is copied on every registration, so commands can be added while peers are chatting
+ * and lookups never take a lock.<br>
+ * <br>
+ * The '/help' text is rendered and encoded along with the table, by the registration that changes it,
+ * so '/help' never renders anything and never shows a list older than the commands it runs.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class CommandRegistry {
+
+    // <<-CONSTANTS->>
+    /**
+     * The answer of {@link #execute(Peer, String)} for a command that doesn't exist.
+     */
+    public static final Payload UNKNOWN = Payload.of("That command doesn't exist, try '/help' :(((");
+    private static final String LS = System.getProperty("line.separator");
+    /**
+     * Width of the command column of '/help'.
+     */
+    private static final int USAGE_WIDTH = 15;
+
+    // <<-FIELDS->>
+    /**
+     * The commands by hash, at most half full. Replaced, never modified, once published.
+     */
+    private volatile Command[] _table;
+    /**
+     * The commands in the order they were registered, for '/help'.
+     */
+    private final List<Command> _commands;
+    private final String _helpFooter;
+    /**
+     * The answer of '/help', replaced with the table.
+     */
+    private volatile Payload _help;
+    /**
+     * Runs right before a rendering of '/help' is published, {@code null} but in the tests that register
+     * a command just then. Set before the registry is shared.
+     */
+    Runnable _beforeHelpPublished;
+
+    // <<-CONSTRUCTOR->>
+    /**
+     * Constructs an empty registry.
+     *
+     * @param helpFooter lines shown at the end of '/help' (e.g. what isn't a command), may be empty
+     */
+    public CommandRegistry(String helpFooter) {
+        _table      = new Command[16];
+        _commands   = new ArrayList<>();
+        _helpFooter = helpFooter;
+        _help       = renderHelp();
+    }
+
+    // <<-METHODS->>
+    /**
+     * Adds a command, or replaces the one with the same name.
+     *
+     * @param name the command, starting with '/' (e.g. {@code "/kick"})
+     * @param usage how it is typed, for '/help' (e.g. {@code "/kick nick"})
+     * @param description what it does, for '/help'
+     * @param handler what runs it
+     * @throws IllegalArgumentException if the name doesn't start with '/' or has spaces
+     */
+    public synchronized void register(String name, String usage, String description, Handler handler) {
+        if (!name.startsWith("/") || name.length() < 2 || name.contains(" "))
+            throw new IllegalArgumentException("Commands look like '/name', without spaces");
+
+        Command command = new Command(name, usage, description, handler);
+        _commands.removeIf(registered -> registered._name.equals(name));
+        _commands.add(command);
+
+        Command[] table = new Command[Math.max(_table.length, Integer.highestOneBit(_commands.size() * 4))];
+        for (Command registered : _commands) {
+            int slot = registered._name.hashCode() & (table.length - 1);
+            while (table[slot] != null)
+                slot = (slot + 1) & (table.length - 1);
+            table[slot] = registered;
+        }
+        Payload help = renderHelp();
+        if (_beforeHelpPublished != null)
+            _beforeHelpPublished.run();
+        // The list first, so that '/help' is never older than the commands that run
+        _help  = help;
+        _table = table;
+    }
+
+    /**
+     * Runs the command a line starts with.<br>
+     * <br>
+     * The handler gets the whole line and where its argument starts, the text after the command
+     * and the spaces that follow it ({@code line.length()} if there is none).
+     *
+     * @param peer the peer that sent the line
+     * @param line the line, starting with '/'
+     * @return the answer for the peer, {@code null} if the handler already answered
+     *         or {@link #UNKNOWN} if there is no such command
+     * @throws IOException if an I/O error occurs while talking to the peer
+     */
+    public Payload execute(Peer peer, String line) throws IOException {
+        int end = line.indexOf(' ');
+        if (end == -1) end = line.length();
+        Command command = find(line, end);
+        if (command == null) return UNKNOWN;
+
+        int argument = end;
+        while (argument < line.length() && line.charAt(argument) == ' ')
+            argument++;
+        return command._handler.handle(peer, line, argument);
+    }
+
+    private Command find(String line, int end) {
+        int hash = 0;
+        for (int i = 0; i < end; i++)
+            hash = 31 * hash + line.charAt(i);
+
+        Command[] table = _table;
+        for (int slot = hash & (table.length - 1); table[slot] != null; slot = (slot + 1) & (table.length - 1)) {
+            String name = table[slot]._name;
+            if (name.length() == end && line.startsWith(name))
+                return table[slot];
+        }
+        return null;
+    }
+
+    /**
+     * Returns the argument of a command line, without the spaces around it.
+     *
+     * @param line the command line
+     * @param argument where the argument starts, as given to the handler
+     * @return the argument, empty if there is none
+     */
+    public static String argument(String line, int argument) {
+        return argument == line.length() ? "" : line.substring(argument).trim();
+    }
+
+    /**
+     * Returns the answer of '/help', rendered for the commands registered.
+     *
+     * @return the list of commands
+     */
+    public Payload help() {
+        return _help;
+    }
+
+    /**
+     * Renders '/help', only ever called with the registry locked (or not shared yet).
+     */
+    private Payload renderHelp() {
+        StringBuilder sb = new StringBuilder("Commands:");
+        for (Command command : _commands) {
+            String usage = command._usage.length() < USAGE_WIDTH
+                    ? command._usage + " ".repeat(USAGE_WIDTH - command._usage.length())
+                    : command._usage + " ";
+            sb.append(LS).append(usage).append("-> ").append(command._description);
+        }
+        if (!_helpFooter.isEmpty())
+            sb.append(LS).append(_helpFooter);
+        return Payload.of(sb.toString());
+    }
+
+    /**
+     * Returns the names of the registered commands.
+     *
+     * @return the command names, in the order they were registered
+     */
+    public synchronized List<String> names() {
+        return _commands.stream().map(command -> command._name).toList();
+    }
+
+    // <<-HANDLER->>
+    /**
+     * What runs a command.
+     */
+    @FunctionalInterface
+    public interface Handler {
+
+        /**
+         * Runs the command.
+         *
+         * @param peer the peer that sent it
+         * @param line the whole command line
+         * @param argument where the argument starts in the line ({@code line.length()} if there is none),
+         *                 see {@link CommandRegistry#argument(String, int)}
+         * @return the answer for the peer, or {@code null} if the handler already answered
+         * @throws IOException if an I/O error occurs while talking to the peer
+         */
+        Payload handle(Peer peer, String line, int argument) throws IOException;
+
+    }
+
+    // <<-COMMAND->>
+    private static final class Command {
+        private final String _name;
+        private final String _usage;
+        private final String _description;
+        private final Handler _handler;
+
+        private Command(String name, String usage, String description, Handler handler) {
+            _name        = name;
+            _usage       = usage;
+            _description = description;
+            _handler     = handler;
+        }
+    }
+
+}
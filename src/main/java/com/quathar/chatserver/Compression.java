@@ -0,0 +1,139 @@
+package com.quathar.chatserver;
+
+import java.net.ProtocolException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <h1>Compression</h1>
+ * <br>
+ * Deflates the large frames of the binary protocol, for the peers that asked for it.<br>
+ * <br>
+ * A client asks by sending a {@link Frame#COMPRESSION} frame right after the preface. The server answers with one
+ * if it has compression on, and from then on both may send compressed frames (see {@link Frame#COMPRESSED}).
+ * Every frame is compressed on its own, there is no stream shared by the frames of a connection:
+ * a message is compressed once (see {@link Payload#framed(Compression)}) and the same bytes go to all its recipients,
+ * and to every peer that gets it later from the history. Frames below the threshold (most chat lines) go as they are,
+ * deflate saves a few dozen bytes on them for about the time it takes on a large one.<br>
+ * <br>
+ * Deflaters and inflaters hold native memory and take microseconds to create, a few of them are kept for reuse.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public final class Compression {
+
+    // <<-CONSTANTS->>
+    /**
+     * What a client asks for, the only algorithm there is.
+     */
+    public static final String DEFLATE = "deflate";
+    /**
+     * Deflaters (of every instance) and inflaters kept for reuse.
+     */
+    private static final int POOL_SIZE = 16;
+    private static final BlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    // <<-FIELDS->>
+    private final int _level;
+    private final int _threshold;
+    /**
+     * The metrics of the server, {@code null} for a client.
+     */
+    private final Metrics _metrics;
+    private final BlockingQueue<Deflater> _deflaters;
+
+    // <<-CONSTRUCTOR->>
+    /**
+     * Constructs the compression of a server or a client.
+     *
+     * @param level the deflate level, from {@code 1} (fastest) to {@code 9} (smallest)
+     * @param threshold the smallest frame compressed, in bytes
+     * @param metrics the metrics of the server, {@code null} for none
+     */
+    public Compression(int level, int threshold, Metrics metrics) {
+        _level     = level;
+        _threshold = threshold;
+        _metrics   = metrics;
+        _deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    }
+
+    // <<-METHODS->>
+    /**
+     * Compresses an encoded frame, if it is large enough.
+     *
+     * @param frame the frame, length included
+     * @return the compressed frame, or {@code null} if it is below the threshold or doesn't get any smaller
+     */
+    byte[] compress(byte[] frame) {
+        if (frame.length < _threshold) return null;
+
+        long start = System.nanoTime();
+        Deflater deflater = _deflaters.poll();
+        if (deflater == null)
+            deflater = new Deflater(_level, true);
+        byte[] compressed;
+        try {
+            compressed = Frame.compress(frame, deflater);
+        } finally {
+            deflater.reset();
+            if (!_deflaters.offer(deflater))
+                deflater.end();
+        }
+        if (_metrics != null)
+            _metrics.frameCompressed(start, frame.length, compressed != null ? compressed.length : frame.length);
+        return compressed;
+    }
+
+    /**
+     * Inflates the fields of a compressed frame.
+     *
+     * @param src the bytes holding them
+     * @param offset where they start
+     * @param length their compressed size
+     * @param size their size once inflated
+     * @return the inflated fields
+     * @throws ProtocolException if they don't inflate to exactly their size, or bytes follow them
+     */
+    static byte[] inflate(byte[] src, int offset, int length, int size) throws ProtocolException {
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null)
+            inflater = new Inflater(true);
+        try {
+            inflater.setInput(src, offset, length);
+            byte[] fields = new byte[size];
+            int inflated = 0;
+            while (inflated < size) {
+                int count = inflater.inflate(fields, inflated, size - inflated);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+                inflated += count;
+            }
+            // Not a byte more than it said, a small frame can't inflate to any size
+            boolean over = inflated == size && !inflater.finished() && inflater.inflate(new byte[1]) > 0;
+            // Nor a byte of input after the end of the deflated data
+            if (inflated < size || over || !inflater.finished() || inflater.getRemaining() > 0)
+                throw new ProtocolException("Bad compressed frame");
+            return fields;
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Bad compressed frame: " + e.getMessage());
+        } finally {
+            inflater.reset();
+            if (!INFLATERS.offer(inflater))
+                inflater.end();
+        }
+    }
+
+    // <<-GETTERS->>
+    public int getLevel() {
+        return _level;
+    }
+
+    public int getThreshold() {
+        return _threshold;
+    }
+
+}
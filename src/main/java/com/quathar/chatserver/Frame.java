@@ -0,0 +1,437 @@
+package com.quathar.chatserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * <h1>Frame</h1>
+ * <br>
+ * A message of the binary protocol, the compact alternative to the text lines.<br>
+ * <br>
+ * Wire format: {@code varint length | opcode | varint sequence | varint id | varint timestamp | from | target | body},
+ * the length counting everything after itself. Every string is a varint byte count and its UTF-8 bytes
+ * (an empty string is a single {@code 0}), so messages may hold any character, newlines included.
+ * The varints are unsigned LEB128: 7 bits per byte, the lowest first, the top bit set on all but the last.<br>
+ * <br>
+ * A client asks for the binary protocol by sending {@link #PREFACE} before anything else.
+ * A text client never sends a {@code NUL}, so the first byte tells them apart on the same port.
+ * The server answers with the same preface (after whatever text it had already sent)
+ * and only speaks in frames from then on.<br>
+ * <br>
+ * Clients fill in the sequence (their own count, echoed by the {@link #ACK}), the target and the body.
+ * The server fills in the id and the timestamp (milliseconds since the epoch) of the messages it routes.<br>
+ * <br>
+ * Once both ends agreed on it (see {@link Compression}), a frame may be compressed:
+ * {@code varint length | opcode with COMPRESSED set | varint size | deflated fields},
+ * the fields after the opcode deflated (raw, without a zlib header) and their size before.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public final class Frame {
+
+    // <<-CONSTANTS->>
+    /**
+     * The first bytes of a binary connection, in both directions.
+     */
+    public static final byte[] PREFACE = {0, 'B', 'I', 'N', ' ', '1', '\n'};
+    /**
+     * A message for everyone: the body (from a client), or from, body, id and timestamp (from the server).
+     */
+    public static final byte BROADCAST = 1;
+    /**
+     * A private message: the target is the nickname (from a client), the server fills in from.
+     */
+    public static final byte PRIVATE = 2;
+    /**
+     * A message for a room: the target is the room.
+     */
+    public static final byte ROOM = 3;
+    /**
+     * A command line, e.g. {@code /join #room} (from a client only).
+     */
+    public static final byte COMMAND = 4;
+    /**
+     * The server took a message: the sequence of the client and the id and timestamp it was given.
+     */
+    public static final byte ACK = 5;
+    /**
+     * A notice, a command answer or an error from the server, the body being the text.
+     */
+    public static final byte TEXT = 6;
+    /**
+     * The server asks for a nickname (the body being the prompt), the client answers with one.
+     */
+    public static final byte NICKNAME = 7;
+    /**
+     * The server asks a silent client whether it is still there (from the server only).
+     */
+    public static final byte PING = 8;
+    /**
+     * The answer of a client to a {@link #PING}, nothing else in it.
+     */
+    public static final byte PONG = 9;
+    /**
+     * The token of the session of the client (from the server, an empty one if the session was resumed
+     * on another connection), or the token of the session it resumes instead of choosing a nickname (from the client).
+     */
+    public static final byte SESSION = 10;
+    /**
+     * A private message the client sent got to the recipient, with its id and when (from the server only).
+     */
+    public static final byte DELIVERED = 11;
+    /**
+     * The client asks for compressed frames right after the preface, the body being {@link Compression#DEFLATE};
+     * the server answers with the same frame if it agrees.
+     */
+    public static final byte COMPRESSION = 12;
+    /**
+     * The bit of the opcode set on a compressed frame.
+     */
+    public static final int COMPRESSED = 0x80;
+    /**
+     * Largest frame (after the length) a peer is allowed to send.
+     */
+    public static final int MAX_LENGTH = 64 * 1024;
+
+    // <<-FIELDS->>
+    private final byte _opcode;
+    private final long _sequence;
+    private final long _id;
+    private final long _timestamp;
+    private final String _from;
+    private final String _target;
+    private final String _body;
+
+    // <<-CONSTRUCTOR->>
+    public Frame(byte opcode, long sequence, long id, long timestamp, String from, String target, String body) {
+        _opcode    = opcode;
+        _sequence  = sequence;
+        _id        = id;
+        _timestamp = timestamp;
+        _from      = from == null ? "" : from;
+        _target    = target == null ? "" : target;
+        _body      = body == null ? "" : body;
+    }
+
+    // <<-METHODS->>
+    /**
+     * Builds a frame a client sends.
+     *
+     * @param opcode the kind of frame
+     * @param sequence the number the client gives the message ({@code 0} for no acknowledgement)
+     * @param target the nickname or the room it goes to, if any
+     * @param body the message, command or nickname
+     * @return the frame
+     */
+    public static Frame of(byte opcode, long sequence, String target, String body) {
+        return new Frame(opcode, sequence, 0, 0, "", target, body);
+    }
+
+    /**
+     * Encodes the frame, length included.
+     *
+     * @return the encoded frame
+     */
+    public byte[] encode() {
+        return encode(_opcode, _sequence, _id, _timestamp, _from, _target, _body);
+    }
+
+    /**
+     * Encodes a frame, length included.
+     *
+     * @return the encoded frame
+     */
+    static byte[] encode(byte opcode, long sequence, long id, long timestamp, String from, String target, String body) {
+        byte[] fromBytes   = from.getBytes(StandardCharsets.UTF_8);
+        byte[] targetBytes = target.getBytes(StandardCharsets.UTF_8);
+        byte[] bodyBytes   = body.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + varintSize(sequence) + varintSize(id) + varintSize(timestamp)
+                   + varintSize(fromBytes.length) + fromBytes.length
+                   + varintSize(targetBytes.length) + targetBytes.length
+                   + varintSize(bodyBytes.length) + bodyBytes.length;
+
+        ByteBuffer frame = ByteBuffer.allocate(varintSize(length) + length);
+        putVarint(frame, length);
+        frame.put(opcode);
+        putVarint(frame, sequence);
+        putVarint(frame, id);
+        putVarint(frame, timestamp);
+        putString(frame, fromBytes);
+        putString(frame, targetBytes);
+        putString(frame, bodyBytes);
+        return frame.array();
+    }
+
+    /**
+     * Writes the frame to a stream.
+     *
+     * @param out the stream to write to
+     * @throws IOException if an I/O error occurs while writing
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(encode());
+    }
+
+    /**
+     * Decodes a frame, without its length.
+     *
+     * @param src the bytes of the frame
+     * @param offset where the frame starts
+     * @param length the size of the frame
+     * @return the frame
+     * @throws ProtocolException if the frame is malformed or its fields don't take exactly its size
+     */
+    public static Frame decode(byte[] src, int offset, int length) throws ProtocolException {
+        Cursor cursor = new Cursor(src, offset, offset + length);
+        byte opcode = cursor.next();
+        if ((opcode & COMPRESSED) != 0) {
+            long size = cursor.varint();
+            if (size < 1 || size > MAX_LENGTH)
+                throw new ProtocolException("Compressed frame of " + size + " bytes");
+            byte[] fields = Compression.inflate(src, cursor._position, cursor._end - cursor._position, (int) size);
+            cursor = new Cursor(fields, 0, fields.length);
+            opcode = (byte) (opcode & ~COMPRESSED);
+        }
+        Frame frame = new Frame(opcode,
+                cursor.varint(), cursor.varint(), cursor.varint(),
+                cursor.string(), cursor.string(), cursor.string());
+        if (cursor._position != cursor._end)
+            throw new ProtocolException("Bytes left after the frame");
+        return frame;
+    }
+
+    /**
+     * Compresses an encoded frame.
+     *
+     * @param frame the frame, length included
+     * @param deflater the deflater to use, new or reset
+     * @return the compressed frame, length included, or {@code null} if it wouldn't be any smaller
+     */
+    static byte[] compress(byte[] frame, Deflater deflater) {
+        // The opcode follows the length, whatever its size
+        int opcode = 0;
+        while ((frame[opcode] & 0x80) != 0)
+            opcode++;
+        opcode++;
+        int fields = opcode + 1;
+        int size = frame.length - fields;
+        deflater.setInput(frame, fields, size);
+        deflater.finish();
+        // Deflated into no more room than the frame had, it is bound to be larger otherwise
+        byte[] deflated = new byte[frame.length];
+        int deflatedLength = 0;
+        while (!deflater.finished() && deflatedLength < deflated.length)
+            deflatedLength += deflater.deflate(deflated, deflatedLength, deflated.length - deflatedLength);
+        if (!deflater.finished()) return null;
+
+        int length = 1 + varintSize(size) + deflatedLength;
+        if (varintSize(length) + length >= frame.length) return null;
+        ByteBuffer compressed = ByteBuffer.allocate(varintSize(length) + length);
+        putVarint(compressed, length);
+        compressed.put((byte) (frame[opcode] | COMPRESSED));
+        putVarint(compressed, size);
+        compressed.put(deflated, 0, deflatedLength);
+        return compressed.array();
+    }
+
+    /**
+     * Reads the next frame from a stream, waiting for all of it.
+     *
+     * @param in the stream to read from
+     * @return the frame, or {@code null} if the stream ended between frames
+     * @throws IOException if an I/O error occurs or the frame is malformed
+     */
+    public static Frame read(InputStream in) throws IOException {
+        long length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                if (shift == 0) return null;
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            if (shift > 28) throw new ProtocolException("Frame length too long");
+            length |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+        }
+        if (length < 1 || length > MAX_LENGTH)
+            throw new ProtocolException("Frame of " + length + " bytes");
+        byte[] frame = in.readNBytes((int) length);
+        if (frame.length < length)
+            throw new EOFException("Connection closed in the middle of a frame");
+        return decode(frame, 0, frame.length);
+    }
+
+    /**
+     * Checks if some bytes are the preface of the binary protocol.
+     *
+     * @param src the bytes
+     * @return {@code true} if they are the preface
+     */
+    public static boolean isPreface(byte[] src) {
+        return Arrays.equals(src, PREFACE);
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    static void putVarint(ByteBuffer dst, long value) {
+        while ((value & ~0x7FL) != 0) {
+            dst.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    private static void putString(ByteBuffer dst, byte[] bytes) {
+        putVarint(dst, bytes.length);
+        dst.put(bytes);
+    }
+
+    /**
+     * Renders the frame as the line a text client would get for it.
+     *
+     * @return the line, {@code null} for an acknowledgement, a heartbeat, a session token or the compression handshake
+     */
+    public String toLine() {
+        return switch (_opcode) {
+            case BROADCAST -> _from + ": " + _body;
+            case PRIVATE   -> "[PM] " + _from + ": " + _body;
+            case ROOM      -> "[" + _target + "] " + _from + ": " + _body;
+            case ACK, PING, PONG, SESSION, DELIVERED, COMPRESSION -> null;
+            default        -> _body;
+        };
+    }
+
+    // <<-GETTERS->>
+    public byte getOpcode() {
+        return _opcode;
+    }
+
+    public long getSequence() {
+        return _sequence;
+    }
+
+    public long getId() {
+        return _id;
+    }
+
+    public long getTimestamp() {
+        return _timestamp;
+    }
+
+    public String getFrom() {
+        return _from;
+    }
+
+    public String getTarget() {
+        return _target;
+    }
+
+    public String getBody() {
+        return _body;
+    }
+
+    // <<-DECODING->>
+    /**
+     * Gathers frames from a non-blocking channel, whatever pieces they arrive in.<br>
+     * <br>
+     * The bytes are copied into a buffer that is kept (and grown) from frame to frame.
+     */
+    static final class Decoder {
+        private byte[] _frame = new byte[128];
+        private int _length;
+        private int _lengthShift;
+        private boolean _lengthRead;
+        private int _filled;
+
+        /**
+         * Takes as many bytes as the current frame needs.
+         *
+         * @param src the bytes read from the channel
+         * @return the frame once it is complete, {@code null} if more bytes are needed
+         * @throws ProtocolException if the frame is malformed or too large
+         */
+        Frame decode(ByteBuffer src) throws ProtocolException {
+            while (!_lengthRead) {
+                if (!src.hasRemaining()) return null;
+                byte b = src.get();
+                if (_lengthShift > 28) throw new ProtocolException("Frame length too long");
+                // As a long, so that the high bits of a fifth byte can't wrap it around into a valid length
+                long length = _length | (long) (b & 0x7F) << _lengthShift;
+                _lengthShift += 7;
+                if (length > MAX_LENGTH || (b & 0x80) == 0 && length < 1)
+                    throw new ProtocolException("Frame of " + length + ((b & 0x80) == 0 ? " bytes" : " bytes or more"));
+                _length = (int) length;
+                if ((b & 0x80) == 0) {
+                    if (_length > _frame.length)
+                        _frame = new byte[Math.max(_length, Math.min(_frame.length * 2, MAX_LENGTH))];
+                    _lengthRead = true;
+                }
+            }
+
+            int count = Math.min(src.remaining(), _length - _filled);
+            src.get(_frame, _filled, count);
+            _filled += count;
+            if (_filled < _length) return null;
+
+            Frame frame = Frame.decode(_frame, 0, _length);
+            _length      = 0;
+            _lengthShift = 0;
+            _lengthRead  = false;
+            _filled      = 0;
+            return frame;
+        }
+    }
+
+    /**
+     * Reads the fields of a frame in place, the strings being the only objects it creates.
+     */
+    private static final class Cursor {
+        private final byte[] _src;
+        private final int _end;
+        private int _position;
+
+        private Cursor(byte[] src, int offset, int end) {
+            _src      = src;
+            _position = offset;
+            _end      = end;
+        }
+
+        private byte next() throws ProtocolException {
+            if (_position == _end) throw new ProtocolException("Truncated frame");
+            return _src[_position++];
+        }
+
+        private long varint() throws ProtocolException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = next();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new ProtocolException("Varint too long");
+        }
+
+        private String string() throws ProtocolException {
+            long length = varint();
+            if (length > _end - _position) throw new ProtocolException("Truncated frame");
+            if (length == 0) return "";
+            String value = new String(_src, _position, (int) length, StandardCharsets.UTF_8);
+            _position += (int) length;
+            return value;
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.quathar.chatserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>HandshakeExecutor</h1>
+ * <br>
+ * Runs the handshakes of new connections (TLS or nickname) on a bounded number of threads.<br>
+ * <br>
+ * Connections wait in a bounded queue for a thread, if it is full they are closed right away.
+ * A handshake that doesn't end in time has its connection closed, which makes it fail:
+ * clients that connect and never say anything can't hold threads forever.
+ * Idle threads go away after a while, a quiet server keeps none.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+final class HandshakeExecutor {
+
+    // <<-CONSTANTS->>
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    // <<-FIELDS->>
+    private final ThreadPoolExecutor _threads;
+    private final ScheduledThreadPoolExecutor _timeouts;
+    private final long _timeoutMillis;
+    /**
+     * Counts the handshakes that failed or timed out.
+     */
+    private final Runnable _onFailure;
+    /**
+     * The connections queued or in their handshake, closed if the executor is shut down.
+     */
+    private final Set<Closeable> _pending;
+
+    // <<-CONSTRUCTOR->>
+    /**
+     * Constructs an executor, its threads are started as connections come.
+     *
+     * @param name the prefix of the names of its threads
+     * @param threads most handshakes at once
+     * @param backlog most connections waiting for a thread
+     * @param timeoutMillis how long a handshake may take
+     * @param factory creates the threads (platform or virtual)
+     * @param onFailure runs for every handshake that fails or times out
+     */
+    HandshakeExecutor(String name, int threads, int backlog, long timeoutMillis, ThreadFactory factory, Runnable onFailure) {
+        _threads       = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                                new ArrayBlockingQueue<>(backlog), factory);
+        _threads.allowCoreThreadTimeOut(true);
+        _timeouts      = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform().name(name + "timeouts").daemon().factory());
+        _timeouts.setRemoveOnCancelPolicy(true);
+        _timeoutMillis = timeoutMillis;
+        _onFailure     = onFailure;
+        _pending       = ConcurrentHashMap.newKeySet();
+    }
+
+    // <<-METHODS->>
+    /**
+     * Runs the handshake of a connection as soon as there is a thread for it.
+     *
+     * @param connection the connection, closed if the handshake can't run, fails or is late
+     * @param handshake the handshake
+     * @return {@code false} if there was no room for it, the connection is already closed then
+     */
+    boolean execute(Closeable connection, Handshake handshake) {
+        _pending.add(connection);
+        try {
+            _threads.execute(() -> run(connection, handshake));
+            return true;
+        } catch (RejectedExecutionException e) {
+            _pending.remove(connection);
+            close(connection);
+            return false;
+        }
+    }
+
+    private void run(Closeable connection, Handshake handshake) {
+        ScheduledFuture<?> timeout = _timeouts.schedule(() -> close(connection), _timeoutMillis, TimeUnit.MILLISECONDS);
+        try {
+            Runnable next = handshake.run();
+            // Through: from now on it's up to whoever serves it to close it
+            _pending.remove(connection);
+            if (!timeout.cancel(false))
+                // The connection was closed meanwhile, the next step finds it so and cleans up
+                _onFailure.run();
+            next.run();
+        } catch (IOException e) {
+            timeout.cancel(false);
+            _onFailure.run();
+            close(connection);
+        } finally {
+            _pending.remove(connection);
+        }
+    }
+
+    private static void close(Closeable connection) {
+        try {
+            connection.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Stops the threads and closes the connections that didn't finish their handshake.
+     */
+    void shutdownNow() {
+        _threads.shutdownNow();
+        _timeouts.shutdownNow();
+        for (Closeable connection : _pending)
+            close(connection);
+    }
+
+    // <<-HANDSHAKE->>
+    /**
+     * The handshake of a connection.
+     */
+    @FunctionalInterface
+    interface Handshake {
+
+        /**
+         * Runs the handshake on a handshake thread.
+         *
+         * @return what to do once it is done (e.g. start serving the connection), on the same thread
+         * @throws IOException if the handshake fails or the connection is closed
+         */
+        Runnable run() throws IOException;
+
+    }
+
+}
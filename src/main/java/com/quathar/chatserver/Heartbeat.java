@@ -0,0 +1,246 @@
+package com.quathar.chatserver;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>Heartbeat</h1>
+ * <br>
+ * Watches a peer from the {@link TimerWheel} of the server and reaps it once it looks dead.<br>
+ * <br>
+ * A client that vanishes without closing its connection (a laptop put to sleep, a NAT that forgot it)
+ * would otherwise keep its nickname, its reader and a place in every broadcast for ever. So:
+ * <ul>
+ *     <li>a binary peer that has been silent for the heartbeat interval gets a {@link Frame#PING},
+ *     which its client answers with a {@link Frame#PONG};</li>
+ *     <li>a peer silent for longer than its read timeout, pongs included, is closed
+ *     (text peers can't be pinged, their timeout is off by default);</li>
+ *     <li>a peer that doesn't read at all, a write to it unfinished for longer than the write timeout, is closed;</li>
+ *     <li>a peer of an event loop that doesn't choose its nickname in time is closed.</li>
+ * </ul>
+ * The peer only notes when it reads and writes (a volatile store), there is no thread nor timer of its own:
+ * the wheel runs a check when the next of these can be due, and the check schedules the one after.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+final class Heartbeat implements Runnable {
+
+    // <<-CONSTANTS->>
+    /**
+     * Shortest silence recorded in the idle histogram, chatting peers are silent for less all the time.
+     */
+    private static final long MIN_IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // <<-FIELDS->>
+    private final TimerWheel _wheel;
+    private final Metrics _metrics;
+    private final Runnable _ping;
+    private final Runnable _reap;
+    private final long _intervalNanos;
+    private final long _readTimeoutNanos;
+    private final long _textReadTimeoutNanos;
+    private final long _writeTimeoutNanos;
+    private final long _handshakeTimeoutNanos;
+    /**
+     * When the peer must have its nickname, {@code 0} once it has one or if nobody is waiting for it here.
+     */
+    private volatile long _handshakeDeadline;
+    private volatile long _lastRead;
+    /**
+     * When the write in progress started, {@code 0} if there is none.
+     */
+    private volatile long _writingSince;
+    private volatile boolean _binary;
+    private volatile boolean _stopped;
+    private volatile TimerWheel.Timeout _timeout;
+    /**
+     * When the last ping was sent, wheel thread only.
+     */
+    private long _lastPing;
+
+    // <<-CONSTRUCTOR->>
+    /**
+     * Constructs the heartbeat of a peer, nothing is watched until it is started.
+     *
+     * @param chatServer the chat server, its settings and its timer wheel
+     * @param ping sends a ping to the peer, it must never block
+     * @param reap closes the peer, it must never block
+     */
+    Heartbeat(ChatServer chatServer, Runnable ping, Runnable reap) {
+        this(chatServer.getConfig(), chatServer.getTimerWheel(), chatServer.getMetrics(), ping, reap);
+    }
+
+    /**
+     * Constructs the heartbeat of a peer on a timer wheel, nothing is watched until it is started.
+     *
+     * @param config the server settings
+     * @param wheel the wheel that runs the checks, its clock is the one the peer is timed by
+     * @param metrics the metrics of the server
+     * @param ping sends a ping to the peer, it must never block
+     * @param reap closes the peer, it must never block
+     */
+    Heartbeat(ServerConfig config, TimerWheel wheel, Metrics metrics, Runnable ping, Runnable reap) {
+        _wheel                 = wheel;
+        _metrics               = metrics;
+        _ping                  = ping;
+        _reap                  = reap;
+        _intervalNanos         = TimeUnit.MILLISECONDS.toNanos(config.getHeartbeatIntervalMillis());
+        _readTimeoutNanos      = TimeUnit.MILLISECONDS.toNanos(config.getIdleReadTimeoutMillis());
+        _textReadTimeoutNanos  = TimeUnit.MILLISECONDS.toNanos(config.getIdleTextReadTimeoutMillis());
+        _writeTimeoutNanos     = TimeUnit.MILLISECONDS.toNanos(config.getIdleWriteTimeoutMillis());
+        _handshakeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getHandshakeTimeoutMillis());
+        _lastRead              = _wheel.now();
+    }
+
+    // <<-METHODS->>
+    /**
+     * Starts watching the peer.
+     *
+     * @param handshake {@code true} if the peer has yet to choose its nickname and nobody else times it out
+     */
+    void start(boolean handshake) {
+        if (handshake)
+            _handshakeDeadline = _wheel.now() + _handshakeTimeoutNanos;
+        else if (_intervalNanos == 0 && _readTimeoutNanos == 0 && _textReadTimeoutNanos == 0 && _writeTimeoutNanos == 0)
+            return;
+        _timeout = _wheel.schedule(this, 0);
+    }
+
+    /**
+     * Stops watching the peer, once it has left.
+     */
+    void stop() {
+        _stopped = true;
+        TimerWheel.Timeout timeout = _timeout;
+        if (timeout != null)
+            timeout.cancel();
+    }
+
+    /**
+     * Notes that the peer has its nickname.
+     */
+    void joined() {
+        _handshakeDeadline = 0;
+    }
+
+    /**
+     * Notes that the peer speaks frames, so it can be pinged.
+     */
+    void binary() {
+        _binary = true;
+    }
+
+    /**
+     * Notes that something was read from the peer.
+     */
+    void read() {
+        long now = _wheel.now();
+        long idle = now - _lastRead;
+        if (idle >= MIN_IDLE_NANOS)
+            _metrics.idle(idle);
+        _lastRead = now;
+    }
+
+    /**
+     * Notes that a write to the peer started, unless one is already in progress.
+     */
+    void writing() {
+        if (_writingSince == 0)
+            _writingSince = _wheel.now();
+    }
+
+    /**
+     * Notes that everything was written to the peer.
+     */
+    void written() {
+        _writingSince = 0;
+    }
+
+    private void reap(Reason reason, long idle) {
+        _stopped = true;
+        if (reason == Reason.HANDSHAKE)
+            _metrics.handshakeFailed();
+        else _metrics.reaped(reason, idle);
+        _reap.run();
+    }
+
+    // <<-OVERRIDE->>
+    /**
+     * Checks the peer and schedules the next check, on the wheel thread.
+     */
+    @Override
+    public void run() {
+        if (_stopped) return;
+
+        long now = _wheel.now();
+        long delay = Long.MAX_VALUE;
+        long handshakeDeadline = _handshakeDeadline;
+        if (handshakeDeadline != 0) {
+            if (now - handshakeDeadline >= 0) {
+                reap(Reason.HANDSHAKE, now - _lastRead);
+                return;
+            }
+            delay = handshakeDeadline - now;
+        }
+
+        if (_writeTimeoutNanos > 0) {
+            long writingSince = _writingSince;
+            if (writingSince != 0 && now - writingSince >= _writeTimeoutNanos) {
+                reap(Reason.WRITE, now - writingSince);
+                return;
+            }
+            // A write that starts meanwhile is caught within one and a half timeouts
+            delay = Math.min(delay, writingSince != 0 ? writingSince + _writeTimeoutNanos - now : _writeTimeoutNanos / 2);
+        }
+
+        if (handshakeDeadline == 0) {
+            long lastRead = _lastRead;
+            long idle = now - lastRead;
+            long readTimeout = _binary ? _readTimeoutNanos : _textReadTimeoutNanos;
+            if (readTimeout > 0) {
+                if (idle >= readTimeout) {
+                    reap(Reason.READ, idle);
+                    return;
+                }
+                delay = Math.min(delay, readTimeout - idle);
+            }
+            if (_binary && _intervalNanos > 0) {
+                long quiet = _lastPing != 0 && _lastPing - lastRead > 0 ? now - _lastPing : idle;
+                if (quiet >= _intervalNanos) {
+                    _ping.run();
+                    _metrics.ping();
+                    _lastPing = now;
+                    quiet     = 0;
+                }
+                delay = Math.min(delay, _intervalNanos - quiet);
+            }
+        }
+
+        if (delay == Long.MAX_VALUE) return;
+        _timeout = _wheel.schedule(this, delay);
+        if (_stopped)
+            // The peer left meanwhile, stop() may have cancelled the previous timeout
+            _timeout.cancel();
+    }
+
+    // <<-REASON->>
+    /**
+     * Why a peer was reaped.
+     */
+    enum Reason {
+        /**
+         * It was silent for too long.
+         */
+        READ,
+        /**
+         * It didn't read what it was sent for too long.
+         */
+        WRITE,
+        /**
+         * It didn't choose its nickname in time.
+         */
+        HANDSHAKE
+    }
+
+}
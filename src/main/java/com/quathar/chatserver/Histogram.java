@@ -0,0 +1,118 @@
+package com.quathar.chatserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <h1>Histogram</h1>
+ * <br>
+ * A lock-free, allocation-free histogram of durations (or any non negative value), in the style of HDR histograms.<br>
+ * <br>
+ * Values are counted in log-linear buckets: every power of two is split into 32 buckets,
+ * so any reported value is within about 3% of the real one, from nanoseconds to hours,
+ * with a fixed array of counters. Recording is an index computation and an atomic increment.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class Histogram {
+
+    // <<-CONSTANTS->>
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = SUB_COUNT + (63 - SUB_BITS) * SUB_COUNT;
+
+    // <<-FIELDS->>
+    private final AtomicLongArray _counts;
+    private final LongAdder _count;
+    private final LongAdder _sum;
+    private final LongAccumulator _max;
+
+    // <<-CONSTRUCTOR->>
+    public Histogram() {
+        _counts = new AtomicLongArray(BUCKETS);
+        _count  = new LongAdder();
+        _sum    = new LongAdder();
+        _max    = new LongAccumulator(Math::max, 0);
+    }
+
+    // <<-METHODS->>
+    private static int bucket(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) - SUB_COUNT;
+        return SUB_COUNT + (exponent - SUB_BITS) * SUB_COUNT + sub;
+    }
+
+    /**
+     * Returns the highest value that falls into a bucket.
+     */
+    private static long highestValue(int bucket) {
+        if (bucket < SUB_COUNT) return bucket;
+        int exponent = (bucket - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+        long sub = (bucket - SUB_COUNT) % SUB_COUNT;
+        long lowest = (SUB_COUNT + sub) << (exponent - SUB_BITS);
+        return lowest + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Records a value, negative values count as {@code 0}.
+     *
+     * @param value the value
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        _counts.incrementAndGet(bucket(value));
+        _count.increment();
+        _sum.add(value);
+        _max.accumulate(value);
+    }
+
+    /**
+     * Records the time elapsed since a moment.
+     *
+     * @param startNanos the moment, from {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns a value at or above a share of the recorded values.
+     *
+     * @param quantile the share, between {@code 0} and {@code 1} (e.g. {@code 0.99})
+     * @return the value (within the precision of the histogram), {@code 0} if nothing was recorded
+     */
+    public long quantile(double quantile) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            total += counts[i] = _counts.get(i);
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highestValue(i), getMax());
+        }
+        return getMax();
+    }
+
+    // <<-GETTERS->>
+    public long getCount() {
+        return _count.sum();
+    }
+
+    public long getSum() {
+        return _sum.sum();
+    }
+
+    public long getMax() {
+        return _max.get();
+    }
+
+}
@@ -0,0 +1,296 @@
+package com.quathar.chatserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <h1>History</h1>
+ * <br>
+ * The last messages sent to the chat (or to a room), kept in a bounded ring buffer.<br>
+ * <br>
+ * Both the number of messages and their size in bytes are capped, the oldest messages
+ * are evicted first. The bytes also come out of a budget shared by every history of the server:
+ * once it is spent, a history makes room by evicting its own oldest messages, never those of another one.
+ * The messages are the same {@link Payload} the recipients got, the ring only keeps a reference
+ * and a timestamp per slot. It starts small and doubles as it fills up, so a quiet room costs a few slots.
+ * Reading is done through a {@link Window}, a few messages at a time,
+ * so the lock is never held for longer than a small batch.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class History {
+
+    // <<-CONSTANTS->>
+    private static final int INITIAL_SLOTS = 16;
+
+    // <<-FIELDS->>
+    private final String _name;
+    private final int _maxMessages;
+    private final long _maxBytes;
+    /**
+     * The bytes kept by every history sharing the budget, and the most they may keep.
+     */
+    private final AtomicLong _totalBytes;
+    private final long _totalMaxBytes;
+    /**
+     * A lock instead of {@code synchronized}, it doesn't pin the carrier of a virtual thread.
+     */
+    private final ReentrantLock _lock;
+    /**
+     * Sequence number of the oldest message kept.
+     */
+    private long _first;
+    /**
+     * Sequence number the next message will get.
+     */
+    private long _next;
+    private long _bytes;
+    private Payload[] _messages;
+    private long[] _timestamps;
+    /**
+     * Timestamp of the newest message, the next one never gets an earlier one.
+     */
+    private long _lastTimestamp;
+
+    // <<-CONSTRUCTOR->>
+    /**
+     * Constructs a new history.
+     *
+     * @param name what the history belongs to (e.g. a room name), shown to the users
+     * @param maxMessages the most messages kept
+     * @param maxBytes the most bytes kept, counting the encoded messages
+     * @param totalBytes the bytes kept by every history sharing the budget
+     * @param totalMaxBytes the most bytes all those histories keep together
+     */
+    public History(String name, int maxMessages, long maxBytes, AtomicLong totalBytes, long totalMaxBytes) {
+        _name          = name;
+        _maxMessages   = maxMessages;
+        _maxBytes      = maxBytes;
+        _totalBytes    = totalBytes;
+        _totalMaxBytes = totalMaxBytes;
+        _lock          = new ReentrantLock();
+        _messages      = new Payload[Math.min(maxMessages, INITIAL_SLOTS)];
+        _timestamps    = new long[_messages.length];
+    }
+
+    // <<-METHODS->>
+    private int slot(long seq) {
+        return (int) (seq % _messages.length);
+    }
+
+    /**
+     * Doubles the ring, up to the most messages kept, moving every message to its new slot.
+     */
+    private void grow() {
+        Payload[] messages = new Payload[(int) Math.min((long) _messages.length * 2, _maxMessages)];
+        long[] timestamps = new long[messages.length];
+        for (long seq = _first; seq < _next; seq++) {
+            messages[(int) (seq % messages.length)]   = _messages[slot(seq)];
+            timestamps[(int) (seq % messages.length)] = _timestamps[slot(seq)];
+        }
+        _messages   = messages;
+        _timestamps = timestamps;
+    }
+
+    private void evictOldest() {
+        int oldest = slot(_first++);
+        _bytes -= _messages[oldest].length();
+        _totalBytes.addAndGet(-_messages[oldest].length());
+        _messages[oldest] = null;
+    }
+
+    /**
+     * Keeps a message, evicting the oldest ones if the history is full.<br>
+     * <br>
+     * A message bigger than the whole byte cap isn't kept, nor one the shared budget has no room for
+     * once this history has nothing left to give up.
+     *
+     * @param msg the message
+     */
+    public void append(Payload msg) {
+        if (_maxMessages == 0 || msg.length() > _maxBytes || msg.length() > _totalMaxBytes) return;
+
+        _lock.lock();
+        try {
+            while (true) {
+                if (_next - _first < _maxMessages && _bytes + msg.length() <= _maxBytes) {
+                    if (_totalBytes.addAndGet(msg.length()) <= _totalMaxBytes) break;
+                    _totalBytes.addAndGet(-msg.length());
+                }
+                if (_next == _first) return;
+                evictOldest();
+            }
+            if (_next - _first == _messages.length)
+                grow();
+            // The clock may go back, the search by time needs the timestamps in order
+            _lastTimestamp = Math.max(System.currentTimeMillis(), _lastTimestamp);
+            int slot = slot(_next++);
+            _messages[slot]   = msg;
+            _timestamps[slot] = _lastTimestamp;
+            _bytes += msg.length();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Throws away every message kept, giving their bytes back to the shared budget (e.g. its room is torn down).
+     */
+    public void clear() {
+        _lock.lock();
+        try {
+            while (_first < _next)
+                evictOldest();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Starts a replay of the last messages.
+     *
+     * @param count how many messages
+     * @return the replay, it only covers the messages kept right now
+     */
+    public Window last(int count) {
+        _lock.lock();
+        try {
+            return new Window(this, Math.max(_first, _next - Math.max(count, 0)), _next);
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Starts a replay of the messages sent since a moment.
+     *
+     * @param epochMillis the moment, in milliseconds since the epoch
+     * @return the replay, it only covers the messages kept right now
+     */
+    public Window since(long epochMillis) {
+        _lock.lock();
+        try {
+            // The timestamps only go forward, the first match is found by binary search
+            long low = _first;
+            long high = _next;
+            while (low < high) {
+                long mid = (low + high) >>> 1;
+                if (_timestamps[slot(mid)] < epochMillis) low = mid + 1;
+                else high = mid;
+            }
+            return new Window(this, low, _next);
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Copies the next messages of a replay into a batch.
+     * Messages evicted since the replay started are skipped.
+     *
+     * @return the number of messages copied
+     */
+    private int read(Window replay, Payload[] batch, int offset, int length) {
+        _lock.lock();
+        try {
+            if (replay._next < _first)
+                replay._next = _first;
+            int count = (int) Math.min(length, replay._end - replay._next);
+            for (int i = 0; i < count; i++)
+                batch[offset + i] = _messages[slot(replay._next++)];
+            return count;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    // <<-GETTERS->>
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * Returns the number of messages kept.
+     *
+     * @return the history size
+     */
+    public int size() {
+        _lock.lock();
+        try {
+            return (int) (_next - _first);
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the size of the messages kept.
+     *
+     * @return the kept bytes
+     */
+    public long getBytes() {
+        _lock.lock();
+        try {
+            return _bytes;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    // <<-WINDOW->>
+    /**
+     * A replay of a range of the history.<br>
+     * <br>
+     * It starts with a header line and ends with a footer line.
+     */
+    public static final class Window implements Replay {
+
+        private final History _history;
+        private final long _start;
+        private final long _end;
+        private long _next;
+        private boolean _headerSent;
+        private boolean _footerSent;
+
+        private Window(History history, long start, long end) {
+            _history = history;
+            _start   = start;
+            _end     = end;
+            _next    = start;
+        }
+
+        @Override
+        public int next(Payload[] batch, int length) {
+            int count = 0;
+            if (!_headerSent && count < length) {
+                batch[count++] = Payload.of(String.format("S Y S T E M: Last %d messages in %s:", size(), _history.getName()));
+                _headerSent = true;
+            }
+            if (count < length)
+                count += _history.read(this, batch, count, length - count);
+            if (_next == _end && !_footerSent && count < length) {
+                batch[count++] = Payload.of("S Y S T E M: End of the history of " + _history.getName());
+                _footerSent = true;
+            }
+            return count;
+        }
+
+        /**
+         * Returns the number of messages in the range, some may be evicted before they are read.
+         *
+         * @return the replay size
+         */
+        public int size() {
+            return (int) (_end - _start);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return _end == _start;
+        }
+
+    }
+
+}
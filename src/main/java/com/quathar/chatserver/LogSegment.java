@@ -0,0 +1,458 @@
+package com.quathar.chatserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * <h1>LogSegment</h1>
+ * <br>
+ * One file of the {@link MessageLog}, plus its sparse index.<br>
+ * <br>
+ * Record layout (big-endian):
+ * <pre>
+ * int   length    bytes after this field
+ * int   crc       CRC32C of the bytes after this field
+ * long  timestamp epoch millis, never goes back within the log
+ * short channel   length of the channel name
+ * byte[]          channel name (UTF-8)
+ * byte[]          the encoded {@link Payload}, terminator included
+ * </pre>
+ * Only the log writer thread appends. Readers see the file through a read-only
+ * memory mapping, up to the last committed (fsynced) byte, so the records never go through the heap.
+ * The index keeps one (timestamp, position) entry every few KiB, it is written
+ * next to the segment when the segment is sealed (and by a clean shutdown)
+ * so a restart doesn't have to scan it. It is only trusted if the segment still has the size it records.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+class LogSegment {
+
+    // <<-CONSTANTS->>
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".idx";
+    /**
+     * Bytes of a record before its channel name.
+     */
+    static final int HEADER = 4 + 4 + 8 + 2;
+    private static final int INDEX_MAGIC = 0x43484958;
+
+    // <<-FIELDS->>
+    private final Path _file;
+    private final Path _indexFile;
+    private final long _baseSequence;
+    private final FileChannel _channel;
+    /**
+     * Bytes readers may see, everything before is on disk.
+     */
+    private volatile long _size;
+    /**
+     * Bytes written by the log writer, committed or not.
+     */
+    private long _writePosition;
+    private volatile long _records;
+    /**
+     * Records and timestamp of the newest one up to {@code _size}, what a failed write goes back to.
+     */
+    private long _committedRecords;
+    private long _committedLastTimestamp = -1;
+    private volatile long _firstTimestamp = -1;
+    private volatile long _lastTimestamp = -1;
+    private volatile boolean _sealed;
+    /**
+     * The arrays are replaced before the size grows, a reader that got the size first sees them big enough.
+     */
+    private volatile long[] _indexTimes;
+    private volatile int[] _indexPositions;
+    private volatile int _indexSize;
+    private long _nextIndexPosition;
+    private volatile MappedByteBuffer _mapped;
+
+    // <<-CONSTRUCTOR->>
+    private LogSegment(Path directory, long baseSequence, FileChannel channel) {
+        _file           = directory.resolve(fileName(baseSequence, LOG_SUFFIX));
+        _indexFile      = directory.resolve(fileName(baseSequence, INDEX_SUFFIX));
+        _baseSequence   = baseSequence;
+        _channel        = channel;
+        _indexTimes     = new long[64];
+        _indexPositions = new int[64];
+    }
+
+    // <<-METHODS->>
+    private static String fileName(long baseSequence, String suffix) {
+        return String.format("%020d%s", baseSequence, suffix);
+    }
+
+    /**
+     * Reads the base sequence of a segment from its file name.
+     *
+     * @param file the segment file
+     * @return the base sequence, or {@code -1} if it isn't a segment file
+     */
+    static long baseSequence(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.endsWith(LOG_SUFFIX)) return -1;
+        try {
+            return Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Creates a new, empty segment.
+     *
+     * @param directory the log directory
+     * @param baseSequence the sequence number of its first record
+     * @return the segment
+     * @throws IOException if the file can't be created
+     */
+    static LogSegment create(Path directory, long baseSequence) throws IOException {
+        FileChannel channel = FileChannel.open(
+                directory.resolve(fileName(baseSequence, LOG_SUFFIX)),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new LogSegment(directory, baseSequence, channel);
+    }
+
+    /**
+     * Opens an existing segment.<br>
+     * <br>
+     * The segment loads its index file when there is a valid one, otherwise the records are scanned;
+     * the last segment is then cut at the first torn or corrupt record (i.e. after a crash).
+     *
+     * @param file the segment file
+     * @param last {@code true} if it is the newest segment, the one that will take the next records
+     * @param indexInterval bytes between two entries of the sparse index
+     * @return the segment
+     * @throws IOException if the files can't be read
+     */
+    static LogSegment open(Path file, boolean last, int indexInterval) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        LogSegment segment = new LogSegment(file.getParent(), baseSequence(file), channel);
+        if (!segment.loadIndex(indexInterval))
+            segment.recover(indexInterval, last);
+        // New records go after the recovered ones
+        channel.position(segment._writePosition);
+        if (!last)
+            segment._sealed = true;
+        return segment;
+    }
+
+    private boolean loadIndex(int indexInterval) {
+        if (!Files.exists(_indexFile)) return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(_indexFile)))) {
+            if (in.readInt() != INDEX_MAGIC) return false;
+            long size = in.readLong();
+            if (size != _channel.size()) return false;
+            long records        = in.readLong();
+            long firstTimestamp = in.readLong();
+            long lastTimestamp  = in.readLong();
+            int entries = in.readInt();
+            long[] times = new long[Math.max(entries, 1)];
+            int[] positions = new int[times.length];
+            for (int i = 0; i < entries; i++) {
+                times[i]     = in.readLong();
+                positions[i] = in.readInt();
+            }
+            _indexTimes     = times;
+            _indexPositions = positions;
+            _indexSize      = entries;
+            _nextIndexPosition = entries == 0 ? 0 : (long) positions[entries - 1] + indexInterval;
+            _records        = records;
+            _firstTimestamp = firstTimestamp;
+            _lastTimestamp  = lastTimestamp;
+            _writePosition  = size;
+            _size           = size;
+            _committedRecords       = records;
+            _committedLastTimestamp = lastTimestamp;
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void recover(int indexInterval, boolean truncate) throws IOException {
+        long fileSize = _channel.size();
+        ByteBuffer view = fileSize == 0 ? ByteBuffer.allocate(0) : _channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        CRC32C crc = new CRC32C();
+        int position = 0;
+        while (position + HEADER <= fileSize) {
+            int length = view.getInt(position);
+            if (length < HEADER - 4 || position + 4L + length > fileSize) break;
+            if (truncate) {
+                crc.reset();
+                crc.update(view.slice(position + 8, length - 4));
+                if ((int) crc.getValue() != view.getInt(position + 4)) break;
+            }
+            long timestamp = view.getLong(position + 8);
+            indexed(timestamp, position, indexInterval);
+            _records++;
+            position += 4 + length;
+        }
+        if (truncate && position < fileSize) {
+            System.err.printf("E R R O R: LogSegment --> %s cut at %d of %d bytes%n", _file.getFileName(), position, fileSize);
+            _channel.truncate(position);
+        }
+        _writePosition = position;
+        _size          = position;
+        _committedRecords       = _records;
+        _committedLastTimestamp = _lastTimestamp;
+    }
+
+    /**
+     * Accounts a record that is about to be written at a position, adding an index entry if it is due.
+     * Log writer thread only.
+     */
+    private void indexed(long timestamp, long position, int indexInterval) {
+        if (_firstTimestamp == -1)
+            _firstTimestamp = timestamp;
+        _lastTimestamp = timestamp;
+        if (position < _nextIndexPosition) return;
+
+        int size = _indexSize;
+        if (size == _indexTimes.length) {
+            _indexTimes     = Arrays.copyOf(_indexTimes, size * 2);
+            _indexPositions = Arrays.copyOf(_indexPositions, size * 2);
+        }
+        _indexTimes[size]     = timestamp;
+        _indexPositions[size] = (int) position;
+        _indexSize            = size + 1;
+        _nextIndexPosition    = position + indexInterval;
+    }
+
+    /**
+     * Encodes a record into the writer's buffer, which must have room for it. Log writer thread only.
+     *
+     * @param buffer the buffer of records not written yet
+     * @param timestamp the time of the record
+     * @param channel the encoded channel name
+     * @param payload the message
+     * @param indexInterval bytes between two entries of the sparse index
+     * @param crc the writer's checksum
+     */
+    void append(ByteBuffer buffer, long timestamp, byte[] channel, Payload payload, int indexInterval, CRC32C crc) {
+        int start  = buffer.position();
+        int length = recordSize(channel, payload) - 4;
+        indexed(timestamp, _writePosition, indexInterval);
+        buffer.putInt(length)
+              .putInt(0)
+              .putLong(timestamp)
+              .putShort((short) channel.length)
+              .put(channel);
+        payload.copyTo(buffer);
+        crc.reset();
+        crc.update(buffer.slice(start + 8, length - 4));
+        buffer.putInt(start + 4, (int) crc.getValue());
+        _writePosition += length + 4;
+        _records++;
+    }
+
+    static int recordSize(byte[] channel, Payload payload) {
+        return HEADER + channel.length + payload.length();
+    }
+
+    /**
+     * Writes the buffered records to the file. Log writer thread only.
+     *
+     * @param buffer the records, flipped
+     * @throws IOException if the write fails
+     */
+    void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            _channel.write(buffer);
+    }
+
+    /**
+     * Forces the written records to disk and makes them visible to readers. Log writer thread only.
+     *
+     * @throws IOException if the sync fails
+     */
+    void commit() throws IOException {
+        if (_size == _writePosition) return;
+        _channel.force(false);
+        _committedRecords       = _records;
+        _committedLastTimestamp = _lastTimestamp;
+        _size = _writePosition;
+    }
+
+    /**
+     * Throws away whatever was written since the last commit, a write or a sync of it failed
+     * and the file may end with a torn record. Log writer thread only.
+     *
+     * @param indexInterval bytes between two entries of the sparse index
+     * @throws IOException if the file can't be cut
+     */
+    void rollback(int indexInterval) throws IOException {
+        long size = _size;
+        _channel.truncate(size);
+        _channel.position(size);
+        _writePosition = size;
+        _records       = _committedRecords;
+        _lastTimestamp = _committedLastTimestamp;
+        if (_records == 0)
+            _firstTimestamp = -1;
+        int entries = indexEntries((int) size);
+        _indexSize         = entries;
+        _nextIndexPosition = entries == 0 ? 0 : (long) _indexPositions[entries - 1] + indexInterval;
+    }
+
+    /**
+     * Commits the segment for the last time and writes its index file.
+     *
+     * @throws IOException if the files can't be written
+     */
+    void seal() throws IOException {
+        commit();
+        _sealed = true;
+        writeIndex();
+    }
+
+    /**
+     * Writes the index file of the committed records.
+     *
+     * @throws IOException if the file can't be written
+     */
+    void writeIndex() throws IOException {
+        Path tmp = _indexFile.resolveSibling(_indexFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeLong(_size);
+            out.writeLong(_records);
+            out.writeLong(_firstTimestamp);
+            out.writeLong(_lastTimestamp);
+            out.writeInt(_indexSize);
+            for (int i = 0; i < _indexSize; i++) {
+                out.writeLong(_indexTimes[i]);
+                out.writeInt(_indexPositions[i]);
+            }
+        }
+        Files.move(tmp, _indexFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Returns a read-only view of the committed records.<br>
+     * <br>
+     * The mapping is shared and only redone when the segment has grown since,
+     * a sealed segment is mapped once.
+     *
+     * @return the records, from position {@code 0} to the limit
+     * @throws IOException if the file can't be mapped
+     */
+    ByteBuffer view() throws IOException {
+        long size = _size;
+        MappedByteBuffer mapped = _mapped;
+        if (mapped == null || mapped.capacity() < size) {
+            if (size == 0) return ByteBuffer.allocate(0);
+            mapped  = _channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            _mapped = mapped;
+        }
+        return mapped.duplicate().limit((int) size);
+    }
+
+    /**
+     * Finds where to start reading for the records written since a moment.
+     *
+     * @param epochMillis the moment
+     * @param limit the committed size the reader sees
+     * @return a record position at or before the first record since the moment
+     */
+    int seek(long epochMillis, int limit) {
+        int size = _indexSize;
+        long[] times = _indexTimes;
+        int[] positions = _indexPositions;
+        // Last entry before the moment
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < epochMillis && positions[mid] < limit) {
+                found = mid;
+                low   = mid + 1;
+            } else high = mid - 1;
+        }
+        return found == -1 ? 0 : positions[found];
+    }
+
+    /**
+     * Returns the number of index entries that point before a limit.
+     *
+     * @param limit the committed size the reader sees
+     * @return the usable index entries
+     */
+    int indexEntries(int limit) {
+        int size = _indexSize;
+        int[] positions = _indexPositions;
+        while (size > 0 && positions[size - 1] >= limit)
+            size--;
+        return size;
+    }
+
+    /**
+     * Returns the record position of an index entry.
+     *
+     * @param entry the entry, below {@link #indexEntries(int)}
+     * @return the position of the record
+     */
+    int indexPosition(int entry) {
+        return _indexPositions[entry];
+    }
+
+    /**
+     * Closes the file and deletes the segment.
+     *
+     * @throws IOException if the files can't be deleted
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(_file);
+        Files.deleteIfExists(_indexFile);
+    }
+
+    void close() throws IOException {
+        _channel.close();
+    }
+
+    // <<-GETTERS->>
+    long getBaseSequence() {
+        return _baseSequence;
+    }
+
+    long getRecords() {
+        return _records;
+    }
+
+    long getSize() {
+        return _size;
+    }
+
+    long getWritePosition() {
+        return _writePosition;
+    }
+
+    long getFirstTimestamp() {
+        return _firstTimestamp;
+    }
+
+    long getLastTimestamp() {
+        return _lastTimestamp;
+    }
+
+    boolean isSealed() {
+        return _sealed;
+    }
+
+}
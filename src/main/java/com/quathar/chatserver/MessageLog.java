@@ -0,0 +1,490 @@
+package com.quathar.chatserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * <h1>MessageLog</h1>
+ * <br>
+ * The durable, append-only log of the messages accepted by the chat server.<br>
+ * <br>
+ * Messages are appended to a queue and go on, a single writer thread puts them into
+ * {@link LogSegment segments} of a few MiB and syncs them to disk once per batch
+ * (group commit), at most once every sync interval. Nobody waits for the disk:
+ * a message is durable one sync interval after it was accepted.<br>
+ * <br>
+ * Reads are {@link Cursor cursors} over the memory-mapped segments, only the batch being
+ * replayed is copied onto the heap. Old segments are deleted by age and by total size.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class MessageLog implements AutoCloseable {
+
+    // <<-CONSTANTS->>
+    /**
+     * Channel of the messages sent to everyone.
+     */
+    public static final String CHAT = "";
+    /**
+     * Prefix of the channel of the private messages, followed by the recipient.
+     */
+    public static final String PRIVATE_PREFIX = "@";
+    private static final String ERROR = "E R R O R: ";
+    /**
+     * Most messages waiting for the writer, more are left out of the log.
+     */
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    private static final long RETENTION_CHECK_MILLIS = 60_000;
+
+    // <<-FIELDS->>
+    private final Path _directory;
+    private final int _segmentBytes;
+    private final int _indexInterval;
+    private final long _syncIntervalNanos;
+    private final long _retentionMillis;
+    private final long _retentionBytes;
+    private final BlockingQueue<Entry> _queue;
+    private final LongAdder _dropped;
+    /**
+     * Oldest first, the last one takes the new records. Readers take a snapshot.
+     */
+    private final CopyOnWriteArrayList<LogSegment> _segments;
+    private final Thread _writer;
+    private volatile boolean _running;
+    // Only touched by the writer thread
+    private final ByteBuffer _buffer;
+    private final CRC32C _crc;
+    private long _lastTimestamp;
+    /**
+     * A write failed, the active segment goes back to its last commit before anything else is written.
+     */
+    private boolean _torn;
+
+    // <<-CONSTRUCTOR->>
+    private MessageLog(ServerConfig config) {
+        _directory         = config.getLogDirectory();
+        _segmentBytes      = config.getLogSegmentBytes();
+        _indexInterval     = config.getLogIndexIntervalBytes();
+        _syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getLogSyncIntervalMillis());
+        _retentionMillis   = TimeUnit.HOURS.toMillis(config.getLogRetentionHours());
+        _retentionBytes    = config.getLogRetentionBytes();
+        _queue             = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        _dropped           = new LongAdder();
+        _segments          = new CopyOnWriteArrayList<>();
+        _writer            = Thread.ofPlatform().name("chat-log-writer").daemon().unstarted(this::writeLoop);
+        _buffer            = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        _crc               = new CRC32C();
+    }
+
+    // <<-METHODS->>
+    /**
+     * Opens the log in the configured directory (creating it if needed) and starts its writer.<br>
+     * <br>
+     * Sealed segments load their index files, only the newest segment is scanned
+     * and cut at its first torn record.
+     *
+     * @param config the server settings
+     * @return the log
+     * @throws IOException if the directory or the segments can't be read
+     */
+    public static MessageLog open(ServerConfig config) throws IOException {
+        long start = System.nanoTime();
+        MessageLog log = new MessageLog(config);
+        Files.createDirectories(log._directory);
+
+        List<Path> files;
+        try (Stream<Path> list = Files.list(log._directory)) {
+            files = list.filter(file -> LogSegment.baseSequence(file) >= 0)
+                        .sorted(Comparator.comparingLong(LogSegment::baseSequence))
+                        .toList();
+        }
+        for (int i = 0; i < files.size(); i++)
+            log._segments.add(LogSegment.open(files.get(i), i == files.size() - 1, log._indexInterval));
+        if (log._segments.isEmpty())
+            log._segments.add(LogSegment.create(log._directory, 0));
+        log._lastTimestamp = log.active().getLastTimestamp();
+        log.enforceRetention();
+
+        long records = 0;
+        for (LogSegment segment : log._segments)
+            records += segment.getRecords();
+        System.out.printf("S E R V E R --> Message log: %d records in %d segments, opened in %d ms%n",
+                records, log._segments.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        log._running = true;
+        log._writer.start();
+        return log;
+    }
+
+    /**
+     * Appends a message to the log, without waiting for it to be written.
+     *
+     * @param channel where the message was sent ({@link #CHAT}, a room key or a private channel)
+     * @param msg the message
+     */
+    public void append(String channel, Payload msg) {
+        if (!_queue.offer(new Entry(channel, msg)))
+            _dropped.increment();
+    }
+
+    private LogSegment active() {
+        return _segments.get(_segments.size() - 1);
+    }
+
+    /**
+     * Writes the queued messages a batch at a time, syncing once per batch.
+     */
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        long lastSync = System.nanoTime();
+        long lastRetention = System.currentTimeMillis();
+        while (_running || !_queue.isEmpty()) {
+            try {
+                Entry first = _queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    // Whatever arrives until the next sync is due goes in the same commit
+                    long wait = lastSync + _syncIntervalNanos - System.nanoTime();
+                    if (wait > 0 && _running)
+                        LockSupport.parkNanos(wait);
+                    batch.add(first);
+                    _queue.drainTo(batch);
+                    if (_torn) {
+                        active().rollback(_indexInterval);
+                        _torn = false;
+                    }
+                    for (Entry entry : batch)
+                        write(entry);
+                    flushBuffer();
+                    active().commit();
+                    lastSync = System.nanoTime();
+                }
+                if (System.currentTimeMillis() - lastRetention >= RETENTION_CHECK_MILLIS) {
+                    enforceRetention();
+                    lastRetention = System.currentTimeMillis();
+                }
+            } catch (IOException e) {
+                System.err.println(ERROR + "MessageLog --> writeLoop()");
+                _dropped.add(batch.size());
+                _buffer.clear();
+                // The file may end with a torn record, whatever came after the last commit goes
+                _torn = true;
+                try {
+                    active().rollback(_indexInterval);
+                    _torn = false;
+                } catch (IOException rollback) {
+                    System.err.println(ERROR + "MessageLog --> rollback()");
+                }
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        byte[] channel = entry._channel.getBytes(Payload.CHARSET);
+        if (channel.length > 0xFFFF) {
+            _dropped.increment();
+            return;
+        }
+        int size = LogSegment.recordSize(channel, entry._payload);
+        LogSegment active = active();
+        if (active.getRecords() > 0 && active.getWritePosition() + size > _segmentBytes) {
+            flushBuffer();
+            active = roll();
+        }
+
+        _lastTimestamp = Math.max(System.currentTimeMillis(), _lastTimestamp);
+        if (size > _buffer.remaining())
+            flushBuffer();
+        if (size > _buffer.capacity()) {
+            ByteBuffer record = ByteBuffer.allocate(size);
+            active.append(record, _lastTimestamp, channel, entry._payload, _indexInterval, _crc);
+            active.write(record.flip());
+        } else active.append(_buffer, _lastTimestamp, channel, entry._payload, _indexInterval, _crc);
+    }
+
+    private void flushBuffer() throws IOException {
+        _buffer.flip();
+        try {
+            active().write(_buffer);
+        } finally {
+            _buffer.clear();
+        }
+    }
+
+    private LogSegment roll() throws IOException {
+        LogSegment sealed = active();
+        sealed.seal();
+        LogSegment next = LogSegment.create(_directory, sealed.getBaseSequence() + sealed.getRecords());
+        _segments.add(next);
+        enforceRetention();
+        return next;
+    }
+
+    /**
+     * Deletes the oldest segments while they are too old or the log is too big, never the newest one.
+     */
+    private void enforceRetention() {
+        long now = System.currentTimeMillis();
+        long total = 0;
+        for (LogSegment segment : _segments)
+            total += segment.getSize();
+        while (_segments.size() > 1) {
+            LogSegment oldest = _segments.get(0);
+            boolean expired   = _retentionMillis > 0 && oldest.getLastTimestamp() < now - _retentionMillis;
+            boolean oversized = _retentionBytes > 0 && total > _retentionBytes;
+            if (!expired && !oversized) break;
+
+            _segments.remove(0);
+            total -= oldest.getSize();
+            try {
+                // Cursors that already mapped it keep reading, the mapping outlives the file
+                oldest.delete();
+            } catch (IOException e) {
+                System.err.println(ERROR + "MessageLog --> enforceRetention()");
+            }
+        }
+    }
+
+    /**
+     * Starts a replay of the last messages of a channel.<br>
+     * <br>
+     * The matching records are counted backwards from the end, a range of the sparse index
+     * at a time (doubling the range every step), until there are enough of them.
+     * It only goes over roughly the records it replays, not the whole segment.
+     *
+     * @param channel the channel
+     * @param name the channel as shown to the users
+     * @param count how many messages
+     * @return the replay
+     */
+    public Cursor last(String channel, String name, int count) {
+        List<LogSegment> segments = List.copyOf(_segments);
+        byte[] key = channel.getBytes(Payload.CHARSET);
+        long total = 0;
+        int start = 0;
+        int position = 0;
+        for (int i = segments.size() - 1; i >= 0 && total < count; i--) {
+            LogSegment segment = segments.get(i);
+            ByteBuffer view;
+            try {
+                view = segment.view();
+            } catch (IOException e) {
+                continue;
+            }
+            start = i;
+            int entry = segment.indexEntries(view.limit());
+            int end = view.limit();
+            for (int step = 1; total < count; step *= 2) {
+                entry    = Math.max(entry - step, 0);
+                position = entry == 0 ? 0 : segment.indexPosition(entry);
+                total   += count(view, position, end, key);
+                if (position == 0) break;
+                end = position;
+            }
+        }
+        long replayed = Math.min(total, Math.max(count, 0));
+        return new Cursor(
+                segments.subList(start, segments.size()), position, key, Long.MIN_VALUE, total - replayed, replayed,
+                String.format("S Y S T E M: Last %d logged messages in %s:", replayed, name), name);
+    }
+
+    /**
+     * Starts a replay of the messages of a channel since a moment.
+     *
+     * @param channel the channel
+     * @param name the channel as shown to the users
+     * @param epochMillis the moment, in milliseconds since the epoch
+     * @return the replay
+     */
+    public Cursor since(String channel, String name, long epochMillis) {
+        List<LogSegment> segments = List.copyOf(_segments);
+        int start = 0;
+        while (start < segments.size() && segments.get(start).getLastTimestamp() < epochMillis)
+            start++;
+        return new Cursor(
+                segments.subList(start, segments.size()), -1, channel.getBytes(Payload.CHARSET), epochMillis, 0,
+                start == segments.size() ? 0 : Long.MAX_VALUE,
+                "S Y S T E M: Logged messages in " + name + ":", name);
+    }
+
+    private static long count(ByteBuffer view, int from, int to, byte[] channel) {
+        long count = 0;
+        for (int position = from; position + LogSegment.HEADER <= to; position += 4 + view.getInt(position))
+            if (matches(view, position, channel))
+                count++;
+        return count;
+    }
+
+    private static boolean matches(ByteBuffer view, int position, byte[] channel) {
+        if ((view.getShort(position + 16) & 0xFFFF) != channel.length) return false;
+        for (int i = 0; i < channel.length; i++)
+            if (view.get(position + LogSegment.HEADER + i) != channel[i]) return false;
+        return true;
+    }
+
+    /**
+     * Stops the writer once everything queued is on disk and closes the segments.
+     */
+    @Override
+    public void close() {
+        _running = false;
+        try {
+            _writer.join();
+            // Saves the next start a scan of the newest segment
+            active().writeIndex();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println(ERROR + "MessageLog --> close()");
+        }
+        for (LogSegment segment : _segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                System.err.println(ERROR + "MessageLog --> close()");
+            }
+        }
+    }
+
+    // <<-GETTERS->>
+    /**
+     * Returns the number of messages waiting for the writer.
+     *
+     * @return the pending messages
+     */
+    public int getPending() {
+        return _queue.size();
+    }
+
+    /**
+     * Returns the number of messages left out of the log (queue full or write error).
+     *
+     * @return the dropped messages
+     */
+    public long getDropped() {
+        return _dropped.sum();
+    }
+
+    // <<-ENTRY->>
+    private static final class Entry {
+        private final String _channel;
+        private final Payload _payload;
+
+        private Entry(String channel, Payload payload) {
+            _channel = channel;
+            _payload = payload;
+        }
+    }
+
+    // <<-CURSOR->>
+    /**
+     * A replay of the messages of a channel, read from the mapped segments a batch at a time.<br>
+     * <br>
+     * It starts with a header line and ends with a footer line.
+     * Segments deleted by retention before the cursor got to them are skipped.
+     */
+    public static final class Cursor implements Replay {
+
+        private final List<LogSegment> _segments;
+        private final byte[] _channel;
+        private final long _since;
+        private final String _header;
+        private final String _name;
+        private long _skip;
+        private long _remaining;
+        private int _segment;
+        private int _position;
+        private boolean _headerSent;
+        private boolean _done;
+
+        private Cursor(List<LogSegment> segments, int position, byte[] channel, long since, long skip, long remaining, String header, String name) {
+            _segments  = segments;
+            _channel   = channel;
+            _since     = since;
+            _skip      = skip;
+            _remaining = remaining;
+            _header    = header;
+            _name      = name;
+            _position  = position;
+        }
+
+        @Override
+        public int next(Payload[] batch, int length) {
+            int count = 0;
+            if (!_headerSent && count < length) {
+                batch[count++] = Payload.of(_header);
+                _headerSent = true;
+            }
+            while (count < length && !_done) {
+                if (_segment == _segments.size() || _remaining == 0) {
+                    batch[count++] = Payload.of("S Y S T E M: End of the history of " + _name);
+                    _done = true;
+                    break;
+                }
+
+                LogSegment segment = _segments.get(_segment);
+                ByteBuffer view;
+                try {
+                    view = segment.view();
+                } catch (IOException e) {
+                    nextSegment();
+                    continue;
+                }
+                if (_position == -1)
+                    _position = _since == Long.MIN_VALUE ? 0 : segment.seek(_since, view.limit());
+                count = read(view, batch, count, length);
+                if (_position + LogSegment.HEADER > view.limit())
+                    nextSegment();
+            }
+            return count;
+        }
+
+        private int read(ByteBuffer view, Payload[] batch, int count, int length) {
+            int limit = view.limit();
+            while (count < length && _remaining > 0 && _position + LogSegment.HEADER <= limit) {
+                int recordLength = view.getInt(_position);
+                if (view.getLong(_position + 8) >= _since && matches(view, _position, _channel)) {
+                    if (_skip > 0) _skip--;
+                    else {
+                        int offset = _position + LogSegment.HEADER + _channel.length;
+                        batch[count++] = Payload.decode(view, offset, _position + 4 + recordLength - offset);
+                        _remaining--;
+                    }
+                }
+                _position += 4 + recordLength;
+            }
+            return count;
+        }
+
+        private void nextSegment() {
+            _segment++;
+            _position = -1;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return _remaining == 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.quathar.chatserver;
+
+import javafx.application.Platform;
+import javafx.collections.ObservableList;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ScrollBar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <h1>MessageView</h1>
+ * <br>
+ * The messages of the {@link ChatClient}: a list that only lays out the rows on screen,
+ * holding the last lines up to its scrollback.<br>
+ * <br>
+ * Lines come from any thread and wait in a queue. The FX thread takes them all at once: there is at most
+ * one {@link Platform#runLater(Runnable)} waiting at a time, so whatever arrives while a frame is rendered
+ * goes in with the next one, however many messages a second the server sends.
+ * The queue holds a scrollback at most too, the oldest lines are dropped if the FX thread falls behind.<br>
+ * <br>
+ * The list follows the new lines unless the user scrolled up to read older ones.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+final class MessageView {
+
+    // <<-FIELDS->>
+    private final ListView<String> _list;
+    private final int _scrollback;
+    private final Queue<String> _pending;
+    private final AtomicInteger _pendingCount;
+    /**
+     * Whether a batch is already waiting for the FX thread.
+     */
+    private final AtomicBoolean _scheduled;
+    /**
+     * The vertical scroll bar of the list, found once it is shown.
+     */
+    private ScrollBar _scrollBar;
+
+    // <<-CONSTRUCTOR->>
+    /**
+     * Constructs an empty view.
+     *
+     * @param scrollback the most lines kept
+     */
+    MessageView(int scrollback) {
+        _list         = new ListView<>();
+        _scrollback   = scrollback;
+        _pending      = new ConcurrentLinkedQueue<>();
+        _pendingCount = new AtomicInteger();
+        _scheduled    = new AtomicBoolean();
+        _list.setFocusTraversable(false);
+    }
+
+    // <<-METHODS->>
+    /**
+     * Adds a line, from any thread.
+     *
+     * @param line the line
+     */
+    void append(String line) {
+        _pending.add(line);
+        if (_pendingCount.incrementAndGet() > _scrollback && _pending.poll() != null)
+            // It would be scrolled out in the same batch
+            _pendingCount.decrementAndGet();
+        if (_scheduled.compareAndSet(false, true))
+            Platform.runLater(this::flush);
+    }
+
+    /**
+     * Moves the lines waiting into the list, on the FX thread.
+     */
+    private void flush() {
+        // Before draining, a line added meanwhile schedules the next batch
+        _scheduled.set(false);
+        List<String> batch = new ArrayList<>();
+        String line;
+        while ((line = _pending.poll()) != null) {
+            _pendingCount.decrementAndGet();
+            batch.add(line);
+        }
+        if (batch.isEmpty()) return;
+        if (batch.size() > _scrollback)
+            batch = batch.subList(batch.size() - _scrollback, batch.size());
+
+        boolean following = isFollowing();
+        ObservableList<String> items = _list.getItems();
+        int excess = items.size() + batch.size() - _scrollback;
+        if (excess > 0)
+            items.remove(0, excess);
+        items.addAll(batch);
+        if (following)
+            _list.scrollTo(items.size() - 1);
+    }
+
+    /**
+     * Tells whether the user is at the bottom of the list (or there is nothing to scroll yet).
+     */
+    private boolean isFollowing() {
+        if (_scrollBar == null) {
+            for (Node node : _list.lookupAll(".scroll-bar"))
+                if (node instanceof ScrollBar bar && bar.getOrientation() == Orientation.VERTICAL)
+                    _scrollBar = bar;
+            if (_scrollBar == null) return true;
+        }
+        return !_scrollBar.isVisible() || _scrollBar.getValue() >= _scrollBar.getMax();
+    }
+
+    // <<-GETTERS->>
+    ListView<String> getNode() {
+        return _list;
+    }
+
+}
@@ -0,0 +1,645 @@
+package com.quathar.chatserver;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <h1>Metrics</h1>
+ * <br>
+ * The counters and latency histograms of the chat server.<br>
+ * <br>
+ * Recording is meant for the message path: striped {@link LongAdder} counters and
+ * {@link Histogram histograms}, no locks and no allocation.
+ * The gauges (peers, queue depths) are read from the peers only when a report is rendered,
+ * either for the '/stats' command or for the scrape endpoint.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class Metrics {
+
+    // <<-CONSTANTS->>
+    /**
+     * Seconds the rates of '/stats' are averaged over.
+     */
+    private static final int RATE_WINDOW = 10;
+
+    // <<-FIELDS->>
+    private final long _startNanos;
+    private final LongAdder _connections;
+    private final LongAdder _messagesIn;
+    private final LongAdder _messagesOut;
+    private final LongAdder _bytesIn;
+    private final LongAdder _bytesOut;
+    private final LongAdder _broadcasts;
+    private final LongAdder _privateMessages;
+    /**
+     * Messages over the rate limits, by what was done with them.
+     */
+    private final LongAdder[] _rateLimited;
+    private final Histogram _broadcastFanout;
+    private final Histogram _privateMessageRouting;
+    /**
+     * Time from routing a private message to handing it to its recipient, the wait in its inbox included.
+     */
+    private final Histogram _deliveryLatency;
+    /**
+     * Private messages in the inboxes right now, and their bytes.
+     */
+    private final LongAdder _inboxMessages;
+    private final LongAdder _inboxBytes;
+    /**
+     * Private messages that waited in an inbox, that didn't fit in one, and that were in one when their recipient left.
+     */
+    private final LongAdder _inboxLate;
+    private final LongAdder _inboxRefused;
+    private final LongAdder _inboxLost;
+    /**
+     * Time to compress a frame, and the bytes of the frames compressed before and after,
+     * once per message whatever its recipients.
+     */
+    private final Histogram _compression;
+    private final LongAdder _compressedRaw;
+    private final LongAdder _compressedWire;
+    /**
+     * Time from a broadcast to its indexing, time spent answering a '/search' (not waiting for the peer),
+     * and the broadcasts left out of the index because the indexer was a whole queue behind.
+     */
+    private final Histogram _searchLag;
+    private final Histogram _searchQuery;
+    private final LongAdder _searchDropped;
+    private final Histogram _handshake;
+    /**
+     * Nickname handshakes that failed or timed out, and connections closed because every handshake thread was busy.
+     */
+    private final LongAdder _handshakeFailed;
+    private final LongAdder _handshakeRefused;
+    /**
+     * Time from accepting a TLS connection to the end of its handshake, waiting for a handshake thread included.
+     */
+    private final Histogram _tlsHandshake;
+    private final LongAdder _tlsResumed;
+    private final LongAdder _tlsFailed;
+    /**
+     * TLS connections closed because every handshake thread was busy and their queue full.
+     */
+    private final LongAdder _tlsRefused;
+    /**
+     * Silences of the peers (a second or longer), the last one of a peer reaped for it included.
+     */
+    private final Histogram _idle;
+    private final LongAdder _pings;
+    /**
+     * Peers taken for dead, by what gave them away (nicknames not chosen in time count as failed handshakes).
+     */
+    private final LongAdder[] _reaped;
+    /**
+     * Sessions given back to a peer that connected again, and sessions over before it did.
+     */
+    private final LongAdder _sessionsResumed;
+    private final LongAdder _sessionsExpired;
+    /**
+     * Totals of messages in and out, one sample a second, for the rates.
+     * One slot more than the window, the sampler never writes the slot being read.
+     */
+    private final long[] _inSamples;
+    private final long[] _outSamples;
+    private volatile int _samples;
+    private Thread _sampler;
+
+    // <<-CONSTRUCTOR->>
+    public Metrics() {
+        _startNanos            = System.nanoTime();
+        _connections           = new LongAdder();
+        _messagesIn            = new LongAdder();
+        _messagesOut           = new LongAdder();
+        _bytesIn               = new LongAdder();
+        _bytesOut              = new LongAdder();
+        _broadcasts            = new LongAdder();
+        _privateMessages       = new LongAdder();
+        _rateLimited           = new LongAdder[RateLimitPolicy.values().length];
+        for (int i = 0; i < _rateLimited.length; i++)
+            _rateLimited[i] = new LongAdder();
+        _broadcastFanout       = new Histogram();
+        _privateMessageRouting = new Histogram();
+        _deliveryLatency       = new Histogram();
+        _inboxMessages         = new LongAdder();
+        _inboxBytes            = new LongAdder();
+        _inboxLate             = new LongAdder();
+        _inboxRefused          = new LongAdder();
+        _inboxLost             = new LongAdder();
+        _compression           = new Histogram();
+        _compressedRaw         = new LongAdder();
+        _compressedWire        = new LongAdder();
+        _searchLag             = new Histogram();
+        _searchQuery           = new Histogram();
+        _searchDropped         = new LongAdder();
+        _handshake             = new Histogram();
+        _handshakeFailed       = new LongAdder();
+        _handshakeRefused      = new LongAdder();
+        _tlsHandshake          = new Histogram();
+        _tlsResumed            = new LongAdder();
+        _tlsFailed             = new LongAdder();
+        _tlsRefused            = new LongAdder();
+        _idle                  = new Histogram();
+        _pings                 = new LongAdder();
+        _reaped                = new LongAdder[Heartbeat.Reason.values().length];
+        for (int i = 0; i < _reaped.length; i++)
+            _reaped[i] = new LongAdder();
+        _sessionsResumed       = new LongAdder();
+        _sessionsExpired       = new LongAdder();
+        _inSamples             = new long[RATE_WINDOW + 2];
+        _outSamples            = new long[RATE_WINDOW + 2];
+    }
+
+    // <<-METHODS->>
+    /**
+     * Starts the thread that samples the message counters every second, for the rates.
+     */
+    public void start() {
+        _sampler = Thread.ofPlatform().name("chat-metrics").daemon().start(() -> {
+            try {
+                while (true) {
+                    int samples = _samples;
+                    _inSamples[samples % _inSamples.length]   = _messagesIn.sum();
+                    _outSamples[samples % _outSamples.length] = _messagesOut.sum();
+                    _samples = samples + 1;
+                    Thread.sleep(1000);
+                }
+            } catch (InterruptedException e) {
+                // The server is going down
+            }
+        });
+    }
+
+    /**
+     * Stops the sampling thread, the counters stay as they are.
+     */
+    public void stop() {
+        if (_sampler != null)
+            _sampler.interrupt();
+    }
+
+    private double rate(long[] samples) {
+        int count = _samples;
+        if (count < 2) return 0;
+        int window = Math.min(count - 1, RATE_WINDOW);
+        long newest = samples[(count - 1) % samples.length];
+        long oldest = samples[(count - 1 - window) % samples.length];
+        return (double) (newest - oldest) / window;
+    }
+
+    public void connectionAccepted() {
+        _connections.increment();
+    }
+
+    public void messageIn() {
+        _messagesIn.increment();
+    }
+
+    public void messageOut() {
+        _messagesOut.increment();
+    }
+
+    public void bytesIn(long bytes) {
+        _bytesIn.add(bytes);
+    }
+
+    public void bytesOut(long bytes) {
+        _bytesOut.add(bytes);
+    }
+
+    /**
+     * Records a message sent to everyone (or to a room).
+     *
+     * @param startNanos when the fan-out started, from {@link System#nanoTime()}
+     */
+    public void broadcast(long startNanos) {
+        _broadcasts.increment();
+        _broadcastFanout.recordSince(startNanos);
+    }
+
+    /**
+     * Records a private message.
+     *
+     * @param startNanos when the routing started, from {@link System#nanoTime()}
+     */
+    public void privateMessage(long startNanos) {
+        _privateMessages.increment();
+        _privateMessageRouting.recordSince(startNanos);
+    }
+
+    /**
+     * Records a private message handed to its recipient.
+     *
+     * @param startNanos when its routing started, from {@link System#nanoTime()}
+     * @param late whether it waited in the inbox of the recipient
+     */
+    public void privateMessageDelivered(long startNanos, boolean late) {
+        _deliveryLatency.recordSince(startNanos);
+        if (late) _inboxLate.increment();
+    }
+
+    /**
+     * Records a change in the messages held in the inboxes.
+     *
+     * @param messages the messages put in (positive) or taken out (negative)
+     * @param bytes their bytes, with the same sign
+     */
+    public void inbox(int messages, long bytes) {
+        _inboxMessages.add(messages);
+        _inboxBytes.add(bytes);
+    }
+
+    public void privateMessageRefused() {
+        _inboxRefused.increment();
+    }
+
+    public void privateMessagesLost(int messages) {
+        _inboxLost.add(messages);
+    }
+
+    /**
+     * Records a frame compressed, once for all its recipients.
+     *
+     * @param startNanos when its compression started, from {@link System#nanoTime()}
+     * @param raw its size before
+     * @param compressed its size after, the same if compressing it didn't make it smaller
+     */
+    public void frameCompressed(long startNanos, int raw, int compressed) {
+        _compression.recordSince(startNanos);
+        _compressedRaw.add(raw);
+        _compressedWire.add(compressed);
+    }
+
+    /**
+     * Records a message added to the search index.
+     *
+     * @param queuedNanos when it was queued for the indexer, from {@link System#nanoTime()}
+     */
+    public void searchIndexed(long queuedNanos) {
+        _searchLag.recordSince(queuedNanos);
+    }
+
+    public void searchDropped() {
+        _searchDropped.increment();
+    }
+
+    /**
+     * Records a '/search' answered.
+     *
+     * @param nanos the time spent looking for its messages
+     */
+    public void searchQuery(long nanos) {
+        _searchQuery.record(nanos);
+    }
+
+    /**
+     * Records a message over the rate limits.
+     *
+     * @param policy what was done with it
+     */
+    public void rateLimited(RateLimitPolicy policy) {
+        _rateLimited[policy.ordinal()].increment();
+    }
+
+    /**
+     * Records a peer that got its nickname.
+     *
+     * @param startNanos when the peer connected, from {@link System#nanoTime()}
+     */
+    public void handshake(long startNanos) {
+        _handshake.recordSince(startNanos);
+    }
+
+    public void handshakeFailed() {
+        _handshakeFailed.increment();
+    }
+
+    public void handshakeRefused() {
+        _handshakeRefused.increment();
+    }
+
+    /**
+     * Records a TLS handshake that went through.
+     *
+     * @param startNanos when the connection was accepted, from {@link System#nanoTime()}
+     * @param resumed whether the client resumed a session
+     */
+    public void tlsHandshake(long startNanos, boolean resumed) {
+        _tlsHandshake.recordSince(startNanos);
+        if (resumed) _tlsResumed.increment();
+    }
+
+    public void tlsFailed() {
+        _tlsFailed.increment();
+    }
+
+    public void tlsRefused() {
+        _tlsRefused.increment();
+    }
+
+    /**
+     * Records how long a peer was silent.
+     *
+     * @param nanos the silence
+     */
+    public void idle(long nanos) {
+        _idle.record(nanos);
+    }
+
+    public void ping() {
+        _pings.increment();
+    }
+
+    /**
+     * Records a peer taken for dead.
+     *
+     * @param reason what gave it away
+     * @param idleNanos how long it had been silent, or its write unfinished
+     */
+    void reaped(Heartbeat.Reason reason, long idleNanos) {
+        _reaped[reason.ordinal()].increment();
+        if (reason == Heartbeat.Reason.READ)
+            _idle.record(idleNanos);
+    }
+
+    public void sessionResumed() {
+        _sessionsResumed.increment();
+    }
+
+    public void sessionExpired() {
+        _sessionsExpired.increment();
+    }
+
+    /**
+     * Wraps a socket stream, counting the bytes read.
+     *
+     * @param in the stream
+     * @return the counting stream
+     */
+    public InputStream countIn(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) _bytesIn.increment();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) _bytesIn.add(read);
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Wraps a socket stream, counting the bytes written.
+     *
+     * @param out the stream
+     * @return the counting stream
+     */
+    public OutputStream countOut(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                _bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                _bytesOut.add(len);
+            }
+        };
+    }
+
+    /**
+     * Renders a report for people, the answer of '/stats'.
+     *
+     * @param peers the connected peers
+     * @param rooms the number of rooms
+     * @param log the message log, or {@code null} if it is off
+     * @return the report
+     */
+    public String report(Collection<Peer> peers, int rooms, MessageLog log) {
+        String ls = System.getProperty("line.separator");
+        QueueStats queues = new QueueStats(peers);
+        Duration uptime = Duration.ofNanos(System.nanoTime() - _startNanos);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Server stats:").append(ls)
+          .append(String.format("> Uptime:          %d:%02d:%02d", uptime.toHours(), uptime.toMinutesPart(), uptime.toSecondsPart())).append(ls)
+          .append(String.format("> People:          %d connected, %d rooms, %d connections since start", queues._peers, rooms, _connections.sum())).append(ls)
+          .append(String.format("> Messages in:     %d (%.1f/s)", _messagesIn.sum(), rate(_inSamples))).append(ls)
+          .append(String.format("> Messages out:    %d (%.1f/s)", _messagesOut.sum(), rate(_outSamples))).append(ls)
+          .append(String.format("> Bytes:           %d in, %d out", _bytesIn.sum(), _bytesOut.sum())).append(ls)
+          .append(latency("> Broadcast (us):  ", _broadcastFanout, TimeUnit.MICROSECONDS)).append(ls)
+          .append(latency("> PM (us):         ", _privateMessageRouting, TimeUnit.MICROSECONDS)).append(ls)
+          .append(latency("> PM ack (ms):     ", _deliveryLatency, TimeUnit.MILLISECONDS)).append(ls)
+          .append(latency("> Handshake (ms):  ", _handshake, TimeUnit.MILLISECONDS)).append(ls)
+          .append(String.format("> Queues:          max %d (%s), total %d, dropped %d",
+                  queues._maxDepth, queues._deepest, queues._totalDepth, queues._dropped)).append(ls)
+          .append(String.format("> Rate limited:    %d delayed, %d dropped, %d disconnected",
+                  rateLimitedCount(RateLimitPolicy.DELAY), rateLimitedCount(RateLimitPolicy.DROP), rateLimitedCount(RateLimitPolicy.DISCONNECT))).append(ls)
+          .append(String.format("> Process:         %.1f s of CPU, heap %d of %d MiB, %d threads",
+                  processCpuNanos() / 1e9, heap().getUsed() >> 20, heap().getCommitted() >> 20, liveThreads()));
+        if (_handshakeFailed.sum() + _handshakeRefused.sum() > 0)
+            sb.append(ls).append(String.format("> Handshakes:      %d failed or timed out, %d refused",
+                      _handshakeFailed.sum(), _handshakeRefused.sum()));
+        if (_tlsHandshake.getCount() + _tlsFailed.sum() + _tlsRefused.sum() > 0)
+            sb.append(ls).append(latency("> TLS (ms):        ", _tlsHandshake, TimeUnit.MILLISECONDS))
+              .append(ls).append(String.format("> TLS sessions:    %d resumed, %d failed, %d refused",
+                      _tlsResumed.sum(), _tlsFailed.sum(), _tlsRefused.sum()));
+        if (_idle.getCount() + _pings.sum() > 0)
+            sb.append(ls).append(latency("> Idle (s):        ", _idle, TimeUnit.SECONDS))
+              .append(ls).append(String.format("> Heartbeats:      %d pings, %d reaped silent, %d reaped not reading",
+                      _pings.sum(), _reaped[Heartbeat.Reason.READ.ordinal()].sum(), _reaped[Heartbeat.Reason.WRITE.ordinal()].sum()));
+        if (_inboxLate.sum() + _inboxRefused.sum() + _inboxLost.sum() + _inboxMessages.sum() > 0)
+            sb.append(ls).append(String.format("> PM inboxes:      %d held (%d bytes), %d delivered late, %d refused, %d lost",
+                      _inboxMessages.sum(), _inboxBytes.sum(), _inboxLate.sum(),
+                      _inboxRefused.sum(), _inboxLost.sum()));
+        if (_compression.getCount() > 0) {
+            long raw = _compressedRaw.sum();
+            long saved = raw - _compressedWire.sum();
+            sb.append(ls).append(latency("> Deflate (us):    ", _compression, TimeUnit.MICROSECONDS))
+              .append(ls).append(String.format("> Compressed:      %d of %d bytes saved (%.1f%%)",
+                      saved, raw, raw > 0 ? 100.0 * saved / raw : 0));
+        }
+        if (_searchLag.getCount() + _searchDropped.sum() > 0)
+            sb.append(ls).append(latency("> Index lag (ms):  ", _searchLag, TimeUnit.MILLISECONDS))
+              .append(ls).append(String.format("> Search index:    %d indexed, %d left out", _searchLag.getCount(), _searchDropped.sum()));
+        if (_searchQuery.getCount() > 0)
+            sb.append(ls).append(latency("> Search (us):     ", _searchQuery, TimeUnit.MICROSECONDS));
+        if (_sessionsResumed.sum() + _sessionsExpired.sum() > 0)
+            sb.append(ls).append(String.format("> Sessions:        %d resumed, %d over", _sessionsResumed.sum(), _sessionsExpired.sum()));
+        if (log != null)
+            sb.append(ls).append(String.format("> Log:             %d pending, %d dropped", log.getPending(), log.getDropped()));
+        return sb.toString();
+    }
+
+    private long rateLimitedCount(RateLimitPolicy policy) {
+        return _rateLimited[policy.ordinal()].sum();
+    }
+
+    private static String latency(String label, Histogram histogram, TimeUnit unit) {
+        return String.format("%sp50 %d, p90 %d, p99 %d, max %d (%d samples)",
+                label,
+                unit.convert(histogram.quantile(0.5), TimeUnit.NANOSECONDS),
+                unit.convert(histogram.quantile(0.9), TimeUnit.NANOSECONDS),
+                unit.convert(histogram.quantile(0.99), TimeUnit.NANOSECONDS),
+                unit.convert(histogram.getMax(), TimeUnit.NANOSECONDS),
+                histogram.getCount());
+    }
+
+    /**
+     * Renders the metrics in the Prometheus text format, for the scrape endpoint.
+     *
+     * @param peers the connected peers
+     * @param rooms the number of rooms
+     * @param log the message log, or {@code null} if it is off
+     * @return the metrics
+     */
+    public String scrape(Collection<Peer> peers, int rooms, MessageLog log) {
+        QueueStats queues = new QueueStats(peers);
+        StringBuilder sb = new StringBuilder();
+        gauge(sb, "chatserver_peers", "Connected peers", queues._peers);
+        gauge(sb, "chatserver_rooms", "Open rooms", rooms);
+        counter(sb, "chatserver_connections_total", "Connections accepted", _connections.sum());
+        counter(sb, "chatserver_messages_in_total", "Lines received from peers", _messagesIn.sum());
+        counter(sb, "chatserver_messages_out_total", "Lines written to peers", _messagesOut.sum());
+        counter(sb, "chatserver_bytes_in_total", "Bytes read from peers", _bytesIn.sum());
+        counter(sb, "chatserver_bytes_out_total", "Bytes written to peers", _bytesOut.sum());
+        counter(sb, "chatserver_broadcasts_total", "Messages sent to everyone or to a room", _broadcasts.sum());
+        counter(sb, "chatserver_private_messages_total", "Private messages", _privateMessages.sum());
+        summary(sb, "chatserver_broadcast_fanout_seconds", "Time to queue a broadcast for every recipient", _broadcastFanout);
+        summary(sb, "chatserver_private_message_routing_seconds", "Time to route a private message", _privateMessageRouting);
+        summary(sb, "chatserver_private_message_delivery_seconds", "Time to hand a private message to its recipient", _deliveryLatency);
+        gauge(sb, "chatserver_inbox_messages", "Private messages waiting for their recipient", _inboxMessages.sum());
+        gauge(sb, "chatserver_inbox_bytes", "Bytes of the private messages waiting for their recipient", _inboxBytes.sum());
+        counter(sb, "chatserver_private_messages_late_total", "Private messages that waited for their recipient", _inboxLate.sum());
+        counter(sb, "chatserver_private_messages_refused_total", "Private messages refused, the inbox was full", _inboxRefused.sum());
+        counter(sb, "chatserver_private_messages_lost_total", "Private messages waiting when their recipient left", _inboxLost.sum());
+        summary(sb, "chatserver_compression_seconds", "Time to compress a large frame, once for all its recipients", _compression);
+        counter(sb, "chatserver_compression_raw_bytes_total", "Bytes of the frames compressed, before", _compressedRaw.sum());
+        counter(sb, "chatserver_compression_wire_bytes_total", "Bytes of the frames compressed, after", _compressedWire.sum());
+        summary(sb, "chatserver_search_index_lag_seconds", "Time from a broadcast to its indexing for '/search'", _searchLag);
+        counter(sb, "chatserver_search_index_dropped_total", "Broadcasts left out of the search index, the indexer was behind", _searchDropped.sum());
+        summary(sb, "chatserver_search_seconds", "Time spent looking for the messages of a '/search'", _searchQuery);
+        summary(sb, "chatserver_handshake_seconds", "Time from connection to nickname", _handshake);
+        counter(sb, "chatserver_handshake_failed_total", "Nickname handshakes that failed or timed out", _handshakeFailed.sum());
+        counter(sb, "chatserver_handshake_refused_total", "Connections closed with every handshake thread busy", _handshakeRefused.sum());
+        summary(sb, "chatserver_tls_handshake_seconds", "Time from TLS connection to the end of its handshake", _tlsHandshake);
+        counter(sb, "chatserver_tls_resumed_total", "TLS handshakes that resumed a session", _tlsResumed.sum());
+        counter(sb, "chatserver_tls_failed_total", "TLS handshakes that failed or timed out", _tlsFailed.sum());
+        counter(sb, "chatserver_tls_refused_total", "TLS connections closed with every handshake thread busy", _tlsRefused.sum());
+        summary(sb, "chatserver_idle_seconds", "Silences of the peers, a second or longer", _idle);
+        counter(sb, "chatserver_pings_total", "Pings sent to silent peers", _pings.sum());
+        metric(sb, "chatserver_reaped_total", "Peers closed as dead, by what gave them away", "counter");
+        for (Heartbeat.Reason reason : new Heartbeat.Reason[]{Heartbeat.Reason.READ, Heartbeat.Reason.WRITE})
+            sb.append("chatserver_reaped_total{reason=\"").append(reason.name().toLowerCase(Locale.ROOT)).append("\"} ")
+              .append(_reaped[reason.ordinal()].sum()).append('\n');
+        counter(sb, "chatserver_sessions_resumed_total", "Sessions resumed by a peer that connected again", _sessionsResumed.sum());
+        counter(sb, "chatserver_sessions_expired_total", "Sessions over before their peer connected again", _sessionsExpired.sum());
+        gauge(sb, "chatserver_queue_depth_max", "Deepest outbound queue", queues._maxDepth);
+        gauge(sb, "chatserver_queue_depth_total", "Messages in every outbound queue", queues._totalDepth);
+        gauge(sb, "chatserver_dropped_messages", "Messages dropped for the connected peers", queues._dropped);
+        metric(sb, "chatserver_rate_limited_total", "Messages over the rate limits, by action", "counter");
+        for (RateLimitPolicy policy : RateLimitPolicy.values())
+            sb.append("chatserver_rate_limited_total{action=\"").append(policy.name().toLowerCase(Locale.ROOT)).append("\"} ")
+              .append(rateLimitedCount(policy)).append('\n');
+        MemoryUsage heap = heap();
+        metric(sb, "process_cpu_seconds_total", "CPU time used by the server process", "counter")
+          .append("process_cpu_seconds_total ").append(processCpuNanos() / 1e9).append('\n');
+        gauge(sb, "jvm_memory_heap_used_bytes", "Heap in use", heap.getUsed());
+        gauge(sb, "jvm_memory_heap_committed_bytes", "Heap reserved by the JVM", heap.getCommitted());
+        gauge(sb, "jvm_threads_live", "Live threads (platform)", liveThreads());
+        if (log != null) {
+            gauge(sb, "chatserver_log_pending", "Messages waiting for the log writer", log.getPending());
+            gauge(sb, "chatserver_log_dropped", "Messages left out of the log", log.getDropped());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the CPU time used by the whole process so far.
+     *
+     * @return the CPU time in nanoseconds, or {@code -1} if the JVM doesn't tell
+     */
+    private static long processCpuNanos() {
+        return ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os
+               ? os.getProcessCpuTime()
+               : -1;
+    }
+
+    private static MemoryUsage heap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    }
+
+    private static int liveThreads() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        metric(sb, name, help, "gauge").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        metric(sb, name, help, "counter").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, String help, Histogram histogram) {
+        metric(sb, name, help, "summary");
+        for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999})
+            sb.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+              .append(histogram.quantile(quantile) / 1e9).append('\n');
+        sb.append(name).append("_sum ").append(histogram.getSum() / 1e9).append('\n')
+          .append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+    private static StringBuilder metric(StringBuilder sb, String name, String help, String type) {
+        return sb.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                 .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    // <<-QUEUE STATS->>
+    /**
+     * The outbound queues of the connected peers, read once per report.
+     */
+    private static final class QueueStats {
+        private int _peers;
+        private int _maxDepth;
+        private String _deepest = "-";
+        private long _totalDepth;
+        private long _dropped;
+
+        private QueueStats(Collection<Peer> peers) {
+            for (Peer peer : peers) {
+                int depth = peer.getQueueDepth();
+                _peers++;
+                _totalDepth += depth;
+                _dropped    += peer.getDroppedMessages();
+                if (depth > _maxDepth) {
+                    _maxDepth = depth;
+                    _deepest  = peer.getNickname();
+                }
+            }
+        }
+    }
+
+}
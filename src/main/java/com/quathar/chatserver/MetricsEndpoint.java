@@ -0,0 +1,76 @@
+package com.quathar.chatserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.function.Supplier;
+
+/**
+ * <h1>MetricsEndpoint</h1>
+ * <br>
+ * A plain-text scrape endpoint for the server metrics ({@code GET /metrics}, Prometheus text format).<br>
+ * <br>
+ * It only listens on the loopback address, it is meant for a local agent, not for the users.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class MetricsEndpoint {
+
+    // <<-CONSTANTS->>
+    private static final String ERROR = "E R R O R: ";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // <<-FIELDS->>
+    private final HttpServer _server;
+    private final Supplier<String> _scrape;
+
+    // <<-CONSTRUCTOR->>
+    /**
+     * Starts the endpoint.
+     *
+     * @param port the local port to listen on
+     * @param scrape renders the metrics
+     * @throws IOException if the port can't be bound
+     */
+    public MetricsEndpoint(int port, Supplier<String> scrape) throws IOException {
+        _scrape = scrape;
+        _server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        _server.createContext("/metrics", this::handle);
+        _server.setExecutor(null);
+        _server.start();
+        System.out.printf("S E R V E R --> Metrics on http://%s:%d/metrics%n",
+                InetAddress.getLoopbackAddress().getHostAddress(), _server.getAddress().getPort());
+    }
+
+    // <<-METHODS->>
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = _scrape.get().getBytes(Payload.CHARSET);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (RuntimeException e) {
+            System.err.println(ERROR + "MetricsEndpoint --> handle()");
+        }
+    }
+
+    /**
+     * Stops the endpoint.
+     */
+    public void stop() {
+        _server.stop(0);
+    }
+
+}
@@ -0,0 +1,247 @@
+package com.quathar.chatserver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <h1>OutboundQueue</h1>
+ * <br>
+ * The bounded queue of messages waiting to be written to a peer.<br>
+ * <br>
+ * Senders only put messages here and go on, the peer's writer takes them out,
+ * so a peer that doesn't read can't hold up the ones that do.
+ * What happens when the queue is full depends on its {@link OverflowPolicy}.<br>
+ * <br>
+ * History replays are pulled in by the writer as it drains the queue,
+ * never more than half of the queue at once, so a long replay doesn't overflow it
+ * and the live messages still have room.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class OutboundQueue {
+
+    // <<-CONSTANTS->>
+    /**
+     * Most history lines read from a replay at once.
+     */
+    private static final int REPLAY_BATCH = 64;
+
+    // <<-FIELDS->>
+    private final BlockingQueue<Payload> _queue;
+    private final int _capacity;
+    private final OverflowPolicy _policy;
+    private final long _blockTimeoutMillis;
+    private final LongAdder _dropped;
+    private final AtomicLong _bytes;
+    private final ConcurrentLinkedQueue<Replay> _replays;
+    /**
+     * Held by whoever is reading the replays, they aren't thread-safe.
+     */
+    private final AtomicBoolean _replaying;
+    private final Payload[] _replayBatch;
+    /**
+     * Runs right before a refill lets go of {@code _replaying}, {@code null} but in the tests that queue a replay
+     * just then. Set before the queue is shared.
+     */
+    Runnable _beforeRelease;
+
+    // <<-CONSTRUCTOR->>
+    /**
+     * Constructs a new outbound queue.
+     *
+     * @param capacity the most messages the queue holds
+     * @param policy what to do when the queue is full
+     * @param blockTimeoutMillis how long a sender waits for room with {@link OverflowPolicy#BLOCK}
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy, long blockTimeoutMillis) {
+        _queue              = new ArrayBlockingQueue<>(capacity);
+        _capacity           = capacity;
+        _policy             = policy;
+        _blockTimeoutMillis = blockTimeoutMillis;
+        _dropped            = new LongAdder();
+        _bytes              = new AtomicLong();
+        _replays            = new ConcurrentLinkedQueue<>();
+        _replaying          = new AtomicBoolean();
+        _replayBatch        = new Payload[REPLAY_BATCH];
+    }
+
+    // <<-METHODS->>
+    /**
+     * Queues a message following the overflow policy.
+     *
+     * @param msg the encoded message to queue
+     * @return {@code false} if the peer must be disconnected, {@code true} otherwise
+     *         (even if the message was dropped)
+     */
+    public boolean offer(Payload msg) {
+        // Counted before it is queued, so the writer never takes away bytes that weren't added
+        _bytes.addAndGet(msg.length());
+        if (_queue.offer(msg)) return true;
+
+        switch (_policy) {
+            case DROP_OLDEST -> {
+                while (!_queue.offer(msg))
+                    if (taken(_queue.poll()) != null)
+                        _dropped.increment();
+            }
+            case DISCONNECT -> {
+                dropped(msg);
+                return false;
+            }
+            case BLOCK -> {
+                try {
+                    if (!_queue.offer(msg, _blockTimeoutMillis, TimeUnit.MILLISECONDS))
+                        dropped(msg);
+                } catch (InterruptedException e) {
+                    dropped(msg);
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        return true;
+    }
+
+    private void dropped(Payload msg) {
+        _bytes.addAndGet(-msg.length());
+        _dropped.increment();
+    }
+
+    private Payload taken(Payload msg) {
+        if (msg != null)
+            _bytes.addAndGet(-msg.length());
+        return msg;
+    }
+
+    /**
+     * Queues a history replay, after any other replay not over yet.
+     *
+     * @param replay the replay
+     */
+    public void replay(Replay replay) {
+        _replays.add(replay);
+        refill();
+    }
+
+    /**
+     * Moves lines of the pending replays into the queue while it is less than half full.<br>
+     * <br>
+     * A replay queued while another thread is moving lines is left to that thread,
+     * so it looks at the replays again once it lets go of them: the writer may be waiting on an empty queue.
+     */
+    private void refill() {
+        while (!_replays.isEmpty() && _replaying.compareAndSet(false, true)) {
+            boolean full;
+            try {
+                full = moveReplays();
+            } finally {
+                if (_beforeRelease != null)
+                    _beforeRelease.run();
+                _replaying.set(false);
+            }
+            // The writer refills it again as it takes what is there
+            if (full) return;
+        }
+    }
+
+    /**
+     * Moves lines of the pending replays into the queue, {@code _replaying} must be held.
+     *
+     * @return {@code true} if it stopped because the queue is half full, {@code false} if the replays are over
+     */
+    private boolean moveReplays() {
+        Replay replay;
+        while ((replay = _replays.peek()) != null) {
+            int room = Math.max(_capacity / 2, 1) - _queue.size();
+            if (room <= 0) return true;
+            int count = replay.next(_replayBatch, Math.min(room, REPLAY_BATCH));
+            if (count == 0) _replays.poll();
+            for (int i = 0; i < count; i++) {
+                Payload msg = _replayBatch[i];
+                _replayBatch[i] = null;
+                _bytes.addAndGet(msg.length());
+                if (!_queue.offer(msg))
+                    dropped(msg);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes the next message, waiting for one if the queue is empty.
+     *
+     * @return the next message
+     * @throws InterruptedException if the writer is interrupted while waiting
+     */
+    public Payload take() throws InterruptedException {
+        refill();
+        return taken(_queue.take());
+    }
+
+    /**
+     * Takes the next message if there is one.
+     *
+     * @return the next message, or {@code null} if the queue is empty
+     */
+    public Payload poll() {
+        refill();
+        return taken(_queue.poll());
+    }
+
+    /**
+     * Takes the next message, waiting up to a timeout if the queue is empty.
+     *
+     * @param timeout how long to wait, nothing is waited if it isn't positive
+     * @param unit the unit of the timeout
+     * @return the next message, or {@code null} if none arrived in time
+     * @throws InterruptedException if the writer is interrupted while waiting
+     */
+    public Payload poll(long timeout, TimeUnit unit) throws InterruptedException {
+        refill();
+        return taken(_queue.poll(timeout, unit));
+    }
+
+    /**
+     * Throws away every queued message.
+     */
+    public void clear() {
+        _replays.clear();
+        // Polling one by one keeps the queued bytes right
+        while (poll() != null);
+    }
+
+    // <<-GETTERS->>
+    /**
+     * Returns the number of messages waiting to be written.
+     *
+     * @return the queue depth
+     */
+    public int getDepth() {
+        return _queue.size();
+    }
+
+    /**
+     * Returns the size of the messages waiting to be written.
+     *
+     * @return the queued bytes
+     */
+    public long getBytes() {
+        return _bytes.get();
+    }
+
+    /**
+     * Returns the number of messages this queue has thrown away.
+     *
+     * @return the dropped messages
+     */
+    public long getDropped() {
+        return _dropped.sum();
+    }
+
+}
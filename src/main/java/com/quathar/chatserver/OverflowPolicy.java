@@ -0,0 +1,41 @@
+package com.quathar.chatserver;
+
+import java.util.Locale;
+
+/**
+ * <h1>OverflowPolicy</h1>
+ * <br>
+ * What a peer's {@link OutboundQueue} does when it is full and another message arrives.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Throws away the oldest queued message to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * Disconnects the peer, it isn't keeping up with the chat.
+     */
+    DISCONNECT,
+    /**
+     * Makes the sender wait for room up to a timeout, then drops the new message.
+     */
+    BLOCK;
+
+    /**
+     * Parses an overflow policy ignoring case (in any default locale), {@code drop-oldest} and {@code drop_oldest}
+     * are the same.
+     *
+     * @param policy the policy name
+     * @return the matching overflow policy
+     * @throws IllegalArgumentException if there is no policy with that name
+     */
+    public static OverflowPolicy parse(String policy) {
+        return valueOf(policy.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+    }
+
+}
@@ -0,0 +1,393 @@
+package com.quathar.chatserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <h1>Payload</h1>
+ * <br>
+ * A line of the chat protocol, encoded once and shared by every peer it is sent to.<br>
+ * <br>
+ * Wire format: UTF-8 text, every line ends with a single {@code '\n'} (no {@code '\r'}).
+ * The line of a chat message may hold several lines of the body (a binary peer may send one),
+ * every one of them after the sender, see {@link #message}.
+ * The bytes are never modified after they are built, so any number of writers
+ * can read them at the same time without copies or locks, and the garbage collector
+ * frees them once the last outbound queue lets them go.<br>
+ * <br>
+ * The chat messages also keep their parts (sender, target, body, id and timestamp)
+ * for the peers that speak the binary protocol: their {@link Frame} is encoded
+ * the first time one of them needs it and shared just the same, and so is its compressed frame
+ * for the peers that asked for compression.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public final class Payload {
+
+    // <<-CONSTANTS->>
+    /**
+     * The charset of the wire protocol.
+     */
+    public static final Charset CHARSET = StandardCharsets.UTF_8;
+    /**
+     * The line terminator of the wire protocol.
+     */
+    public static final byte LINE_END = '\n';
+    /**
+     * What a control character of a line becomes.
+     */
+    private static final char REPLACEMENT = '\uFFFD';
+
+    // <<-FIELDS->>
+    private final String _text;
+    private final byte[] _bytes;
+    private final byte _opcode;
+    private final long _sequence;
+    private final long _id;
+    private final long _timestamp;
+    private final String _from;
+    private final String _target;
+    private final String _body;
+    /**
+     * The binary frame, encoded the first time a binary peer gets the message.
+     * Two peers may race to build it, both get the same bytes.
+     */
+    private volatile Payload _frame;
+    /**
+     * The compressed frame, or the frame itself if compressing it didn't make it smaller,
+     * built the first time a peer that asked for compression gets the message.
+     */
+    private volatile Payload _compressed;
+
+    // <<-CONSTRUCTOR->>
+    private Payload(String text, byte[] bytes) {
+        this(text, bytes, Frame.TEXT, 0, 0, 0, "", "", text);
+    }
+
+    private Payload(String text, byte[] bytes, byte opcode, long sequence, long id, long timestamp,
+                    String from, String target, String body) {
+        _text      = text;
+        _bytes     = bytes;
+        _opcode    = opcode;
+        _sequence  = sequence;
+        _id        = id;
+        _timestamp = timestamp;
+        _from      = from;
+        _target    = target;
+        _body      = body;
+    }
+
+    // <<-METHODS->>
+    /**
+     * Encodes a line.
+     *
+     * @param text the line, without terminator
+     * @return the encoded line
+     */
+    public static Payload of(String text) {
+        return new Payload(text, encode(text));
+    }
+
+    private static byte[] encode(String text) {
+        byte[] encoded = text.getBytes(CHARSET);
+        byte[] bytes   = new byte[encoded.length + 1];
+        System.arraycopy(encoded, 0, bytes, 0, encoded.length);
+        bytes[encoded.length] = LINE_END;
+        return bytes;
+    }
+
+    /**
+     * Encodes a chat message, a line for the text peers and a frame for the binary ones.<br>
+     * <br>
+     * The body goes in the frame as it is. In the line, every line break of the body starts a new line
+     * with the same prefix as the first one (e.g. {@code "nick: "}), so a line of the body can't pass
+     * for a line of the server or of another user, and any other control character is replaced.
+     *
+     * @param opcode {@link Frame#BROADCAST}, {@link Frame#PRIVATE} or {@link Frame#ROOM}
+     * @param id the id the server gives the message
+     * @param timestamp when the server got it, in milliseconds since the epoch
+     * @param from the nickname of the sender
+     * @param target the room (or the nickname) it goes to, empty for everyone
+     * @param body what the sender wrote
+     * @param text the whole line for the text peers (e.g. {@code "[PM] nick: body"}), ending with the body
+     * @return the encoded message
+     */
+    public static Payload message(byte opcode, long id, long timestamp, String from, String target, String body, String text) {
+        String line = lines(text, text.endsWith(body) ? text.length() - body.length() : text.length());
+        return new Payload(line, encode(line), opcode, 0, id, timestamp, from, target, body);
+    }
+
+    /**
+     * Splits the body of a line at its line breaks ({@code "\r\n"}, {@code '\n'}, {@code '\r'} or a Unicode one),
+     * repeating the prefix before every line of it.
+     *
+     * @param text the line, a prefix then the body
+     * @param bodyStart where the body starts
+     * @return the line as it is if it has no control characters, its lines otherwise
+     */
+    static String lines(String text, int bodyStart) {
+        int i = firstControl(text);
+        if (i == text.length()) return text;
+
+        String prefix = text.substring(0, bodyStart);
+        StringBuilder sb = new StringBuilder(text.length() + 16).append(text, 0, i);
+        for (; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!isControl(c))
+                sb.append(c);
+            else if (i < bodyStart || !isLineBreak(c))
+                sb.append(REPLACEMENT);
+            else {
+                if (c == '\r' && i + 1 < text.length() && text.charAt(i + 1) == '\n') i++;
+                sb.append('\n').append(prefix);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Checks if a text is fit for a single line: no line breaks nor other control characters (tabs are fine).
+     *
+     * @param text the text
+     * @return {@code true} if it has none
+     */
+    static boolean isSingleLine(String text) {
+        return firstControl(text) == text.length();
+    }
+
+    private static int firstControl(String text) {
+        int i = 0;
+        while (i < text.length() && !isControl(text.charAt(i)))
+            i++;
+        return i;
+    }
+
+    private static boolean isControl(char c) {
+        return c != '\t' && Character.isISOControl(c) || isLineBreak(c);
+    }
+
+    private static boolean isLineBreak(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * Encodes a nickname prompt, a frame of its own for the binary peers.
+     *
+     * @param text the prompt
+     * @return the encoded prompt
+     */
+    public static Payload prompt(String text) {
+        return new Payload(text, encode(text), Frame.NICKNAME, 0, 0, 0, "", "", text);
+    }
+
+    /**
+     * Encodes the acknowledgement of a message, only binary peers get one.
+     *
+     * @param sequence the number the client gave the message
+     * @param message the message as the server routed it
+     * @return the encoded acknowledgement
+     */
+    public static Payload ack(long sequence, Payload message) {
+        return new Payload("", new byte[0], Frame.ACK, sequence, message._id, message._timestamp, "", "", "");
+    }
+
+    /**
+     * Encodes the notice that a private message got to its recipient, only binary peers get one.
+     *
+     * @param message the private message
+     * @return the encoded notice
+     */
+    static Payload delivered(Payload message) {
+        return new Payload("", new byte[0], Frame.DELIVERED, 0, message._id, System.currentTimeMillis(), "", message._target, "");
+    }
+
+    /**
+     * Encodes a ping, only binary peers get one.
+     *
+     * @return the encoded ping
+     */
+    static Payload ping() {
+        return new Payload("", new byte[0], Frame.PING, 0, 0, 0, "", "", "");
+    }
+
+    /**
+     * Encodes the token of a session, only binary peers get one.
+     *
+     * @param token the token
+     * @return the encoded token
+     */
+    static Payload session(String token) {
+        return new Payload("", new byte[0], Frame.SESSION, 0, 0, 0, "", "", token);
+    }
+
+    /**
+     * Encodes the answer to a client that asked for compression, only binary peers get one.
+     *
+     * @return the encoded answer
+     */
+    static Payload compression() {
+        return new Payload("", new byte[0], Frame.COMPRESSION, 0, 0, 0, "", "", Compression.DEFLATE);
+    }
+
+    /**
+     * Wraps bytes that go out exactly as they are, to a text or a binary peer (e.g. {@link Frame#PREFACE}).
+     *
+     * @param bytes the bytes
+     * @return the payload
+     */
+    static Payload raw(byte[] bytes) {
+        return new Payload("", bytes, (byte) 0, 0, 0, 0, "", "", "");
+    }
+
+    /**
+     * Returns the message as a binary frame, encoded once and then shared.
+     *
+     * @return the frame, itself a payload ready to be written
+     */
+    public Payload framed() {
+        if (_opcode == 0) return this;
+        Payload frame = _frame;
+        if (frame == null)
+            _frame = frame = raw(Frame.encode(_opcode, _sequence, _id, _timestamp, _from, _target, _body));
+        return frame;
+    }
+
+    /**
+     * Returns the message as a binary frame, compressed if it is large enough,
+     * encoded and compressed once and then shared.<br>
+     * <br>
+     * The server has a single {@link Compression}, the compressed frame is the same for all its peers.
+     *
+     * @param compression the compression of the peer, {@code null} if it didn't ask for it
+     * @return the frame, itself a payload ready to be written
+     */
+    Payload framed(Compression compression) {
+        Payload frame = framed();
+        if (compression == null || frame == this || frame.length() < compression.getThreshold()) return frame;
+        Payload compressed = _compressed;
+        if (compressed == null) {
+            byte[] bytes = compression.compress(frame._bytes);
+            _compressed = compressed = bytes != null ? raw(bytes) : frame;
+        }
+        return compressed;
+    }
+
+    /**
+     * Rebuilds a line from its encoded bytes, terminator included (e.g. read back from a log).
+     *
+     * @param src the buffer holding the encoded line
+     * @param offset where the line starts in the buffer
+     * @param length the size of the encoded line, terminator included
+     * @return the line
+     */
+    public static Payload decode(ByteBuffer src, int offset, int length) {
+        byte[] bytes = new byte[length];
+        src.get(offset, bytes);
+        return new Payload(new String(bytes, 0, length - 1, CHARSET), bytes);
+    }
+
+    /**
+     * Writes the whole encoded line to a stream.
+     *
+     * @param out the stream to write to
+     * @throws IOException if an I/O error occurs while writing
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(_bytes);
+    }
+
+    /**
+     * Copies as much of the encoded line as fits into a buffer.
+     *
+     * @param dst the buffer to copy into
+     * @param offset the first byte of the line to copy
+     * @return the number of bytes copied
+     */
+    public int copyTo(ByteBuffer dst, int offset) {
+        int length = Math.min(dst.remaining(), _bytes.length - offset);
+        dst.put(_bytes, offset, length);
+        return length;
+    }
+
+    /**
+     * Copies the encoded line, terminator included, into a buffer that has room for all of it.
+     *
+     * @param dst the buffer to copy into
+     */
+    public void copyTo(ByteBuffer dst) {
+        dst.put(_bytes);
+    }
+
+    // <<-GETTERS->>
+    /**
+     * Returns the line, without terminator.
+     *
+     * @return the line
+     */
+    public String getText() {
+        return _text;
+    }
+
+    /**
+     * Returns what kind of message it is, as a frame.
+     *
+     * @return the opcode, {@code 0} for raw bytes
+     */
+    public byte getOpcode() {
+        return _opcode;
+    }
+
+    /**
+     * Returns the id the server gave the message.
+     *
+     * @return the id, {@code 0} if it isn't a chat message
+     */
+    public long getId() {
+        return _id;
+    }
+
+    /**
+     * Returns when the server got the message.
+     *
+     * @return the milliseconds since the epoch, {@code 0} if it isn't a chat message
+     */
+    public long getTimestamp() {
+        return _timestamp;
+    }
+
+    /**
+     * Returns the nickname of the sender.
+     *
+     * @return the sender, empty if it isn't a chat message
+     */
+    public String getFrom() {
+        return _from;
+    }
+
+    /**
+     * Returns what the sender wrote, without nickname nor target.<br>
+     * <br>
+     * For a line or a nickname frame it is the whole text, for a session or compression frame the token or the algorithm,
+     * and empty for the other frames.
+     *
+     * @return the body
+     */
+    public String getBody() {
+        return _body;
+    }
+
+    /**
+     * Returns the size of the encoded line, terminator included.
+     *
+     * @return the encoded size in bytes
+     */
+    public int length() {
+        return _bytes.length;
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.quathar.chatserver;
+
+import java.io.IOException;
+
+/**
+ * <h1>Peer</h1>
+ * <br>
+ * A user connected to the chat server, no matter how its connection is served
+ * (a dedicated thread or a selector event loop).
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public interface Peer {
+
+    /**
+     * Returns the nickname this peer is known by in the chat server.
+     *
+     * @return the nickname of the peer
+     */
+    String getNickname();
+
+    /**
+     * Sends an already encoded message to this peer.
+     *
+     * @param msg the message to send
+     */
+    void send(Payload msg);
+
+    /**
+     * Sends a message to this peer.
+     *
+     * @param msg the message to send
+     */
+    default void send(String msg) {
+        send(Payload.of(msg));
+    }
+
+    /**
+     * Sends an already encoded message to this peer, unless it can't take messages right now
+     * (e.g. it is changing its nickname), instead of losing it.
+     *
+     * @param msg the message to send
+     * @return {@code false} if it wasn't sent
+     */
+    default boolean deliver(Payload msg) {
+        send(msg);
+        return true;
+    }
+
+    /**
+     * Replays a piece of history to this peer, a batch at a time as its writer catches up.
+     *
+     * @param replay the replay
+     */
+    void replay(Replay replay);
+
+    /**
+     * Sends a last message to this peer and disconnects it once it is written,
+     * whatever else was queued for it goes out first.
+     *
+     * @param farewell the last message
+     */
+    void disconnect(Payload farewell);
+
+    /**
+     * Starts the nickname change dialog with this peer.
+     *
+     * @throws IOException if an I/O error occurs while talking to the peer
+     */
+    void changeNickname() throws IOException;
+
+    /**
+     * Returns the number of messages waiting to be written to this peer.
+     *
+     * @return the outbound queue depth
+     */
+    int getQueueDepth();
+
+    /**
+     * Returns the number of messages for this peer that were thrown away because it didn't keep up.
+     *
+     * @return the dropped messages
+     */
+    long getDroppedMessages();
+
+}
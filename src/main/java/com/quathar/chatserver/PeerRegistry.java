@@ -0,0 +1,147 @@
+package com.quathar.chatserver;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <h1>PeerRegistry</h1>
+ * <br>
+ * The peers connected to the chat server, indexed by nickname.<br>
+ * <br>
+ * Nicknames are case-insensitive: the map is keyed by the case-folded nickname,
+ * so lookups are a single hash probe instead of a scan with {@code equalsIgnoreCase}.
+ * Every change (claim, rename, release) is one atomic operation on the map,
+ * there is no lock to take and readers can iterate while peers come and go.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class PeerRegistry {
+
+    // <<-FIELDS->>
+    private final ConcurrentMap<String, Peer> _peers;
+    private final Collection<Peer> _view;
+
+    // <<-CONSTRUCTOR->>
+    public PeerRegistry() {
+        _peers = new ConcurrentHashMap<>();
+        _view  = Collections.unmodifiableCollection(_peers.values());
+    }
+
+    // <<-METHODS->>
+    /**
+     * Returns the key a nickname is stored under.
+     *
+     * @param nickname the nickname
+     * @return the case-folded nickname
+     */
+    static String normalize(String nickname) {
+        return nickname.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Claims a nickname for a peer if nobody else holds it.
+     *
+     * @param nickname the nickname to claim
+     * @param peer the peer claiming it
+     * @return {@code true} if the nickname is now the peer's, {@code false} if it was taken
+     */
+    public boolean claim(String nickname, Peer peer) {
+        return _peers.putIfAbsent(normalize(nickname), peer) == null;
+    }
+
+    /**
+     * Moves a peer from one nickname to another.<br>
+     * <br>
+     * The new nickname is claimed before the old one is released,
+     * so for a moment the peer can be found by both but never by none.
+     *
+     * @param oldNickname the nickname the peer holds
+     * @param newNickname the nickname the peer wants
+     * @param peer the peer being renamed
+     * @return {@code true} if the peer now holds the new nickname, {@code false} if it was taken
+     */
+    public boolean rename(String oldNickname, String newNickname, Peer peer) {
+        String oldKey = normalize(oldNickname);
+        String newKey = normalize(newNickname);
+        if (oldKey.equals(newKey))
+            return _peers.get(oldKey) == peer;
+        if (_peers.putIfAbsent(newKey, peer) != null)
+            return false;
+        _peers.remove(oldKey, peer);
+        return true;
+    }
+
+    /**
+     * Gives the nickname of a peer to another one that takes its place
+     * (e.g. the {@link Session} of a peer whose connection dropped).
+     *
+     * @param nickname the nickname
+     * @param previous the peer holding it
+     * @param peer the peer taking its place
+     * @return {@code true} if the nickname is now the new peer's, {@code false} if the previous one didn't hold it
+     */
+    public boolean replace(String nickname, Peer previous, Peer peer) {
+        return _peers.replace(normalize(nickname), previous, peer);
+    }
+
+    /**
+     * Releases the nickname held by a peer.<br>
+     * <br>
+     * Nothing happens if the nickname belongs to somebody else
+     * (i.e. the peer left before its claim succeeded).
+     *
+     * @param nickname the nickname to release
+     * @param peer the peer holding it
+     * @return {@code true} if the nickname was released, {@code false} otherwise
+     */
+    public boolean release(String nickname, Peer peer) {
+        return nickname != null && _peers.remove(normalize(nickname), peer);
+    }
+
+    /**
+     * Finds the peer holding a nickname.
+     *
+     * @param nickname the nickname, in any case
+     * @return the peer, or {@code null} if nobody holds it
+     */
+    public Peer get(String nickname) {
+        return _peers.get(normalize(nickname));
+    }
+
+    /**
+     * Checks if a nickname is held by some peer.
+     *
+     * @param nickname the nickname, in any case
+     * @return {@code true} if the nickname is taken, {@code false} otherwise
+     */
+    public boolean contains(String nickname) {
+        return _peers.containsKey(normalize(nickname));
+    }
+
+    /**
+     * Returns the number of registered peers.
+     *
+     * @return the number of peers
+     */
+    public int size() {
+        return _peers.size();
+    }
+
+    /**
+     * Returns a read-only live view of the registered peers.<br>
+     * <br>
+     * It costs nothing to get and it is safe to iterate while peers join and leave
+     * (it may or may not reflect the changes made during the iteration).
+     *
+     * @return the registered peers
+     */
+    public Collection<Peer> peers() {
+        return _view;
+    }
+
+}
@@ -0,0 +1,276 @@
+package com.quathar.chatserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <h1>PrivateMessageRouter</h1>
+ * <br>
+ * Hands private messages to their recipients, and holds them for the ones that can't take them right now.<br>
+ * <br>
+ * A peer changing its nickname, or a session whose peer is away, doesn't take messages. Instead of losing
+ * the private messages sent to it meanwhile, they wait in an inbox of its own and go to it all at once, in order,
+ * as soon as it takes messages again. Inboxes are bounded in messages and bytes, and all of them together in bytes:
+ * a message that doesn't fit is refused and its sender told so. A binary sender that numbered its message
+ * gets its {@link Frame#ACK} once it is accepted, then a {@link Frame#DELIVERED} once it is handed to the recipient,
+ * right away or from the inbox.<br>
+ * <br>
+ * A message only goes straight to its recipient while the inbox of the recipient is empty (checked under the lock
+ * of the inbox), so it never overtakes those waiting. Empty inboxes are forgotten.
+ * Messages are handed over under that lock, and a full outbound queue may make that wait (the {@code block} policy):
+ * it is a {@link ReentrantLock}, so a virtual thread waiting there leaves its carrier to the others.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+final class PrivateMessageRouter {
+
+    // <<-CONSTANTS->>
+    private static final String ERROR = "E R R O R: ";
+
+    // <<-FIELDS->>
+    private final Metrics _metrics;
+    private final int _inboxMessages;
+    private final long _inboxBytes;
+    private final long _totalInboxBytes;
+    private final ConcurrentMap<Peer, Inbox> _inboxes;
+    /**
+     * Bytes held in every inbox, for the global cap.
+     */
+    private final AtomicLong _totalBytes;
+
+    // <<-CONSTRUCTOR->>
+    /**
+     * Constructs a router with no inbox.
+     *
+     * @param config the settings of the server, the caps of the inboxes
+     * @param metrics the metrics of the server
+     */
+    PrivateMessageRouter(ServerConfig config, Metrics metrics) {
+        _metrics         = metrics;
+        _inboxMessages   = config.getPmInboxMessages();
+        _inboxBytes      = config.getPmInboxBytes();
+        _totalInboxBytes = config.getPmTotalInboxBytes();
+        _inboxes         = new ConcurrentHashMap<>();
+        _totalBytes      = new AtomicLong();
+    }
+
+    // <<-METHODS->>
+    /**
+     * Hands a private message to its recipient, or holds it in the inbox of the recipient.
+     *
+     * @param sender the peer that sent it, {@code null} if it came from another node of the cluster
+     * @param sequence the number the sender gave the message, {@code 0} for no acknowledgements
+     * @param recipient the peer it goes to
+     * @param message the message
+     * @param startNanos when its routing started, from {@link System#nanoTime()}
+     * @return {@code false} if it was refused, the inbox of the recipient is full
+     */
+    boolean route(Peer sender, long sequence, Peer recipient, Payload message, long startNanos) {
+        boolean ack = sequence != 0 && sender != null;
+        while (true) {
+            Inbox inbox = _inboxes.get(recipient);
+            if (inbox == null) {
+                if (recipient.deliver(message)) {
+                    if (ack) sender.send(Payload.ack(sequence, message));
+                    delivered(sender, ack, message, startNanos, false);
+                    return true;
+                }
+                inbox = _inboxes.computeIfAbsent(recipient, peer -> new Inbox());
+            }
+            boolean sent;
+            inbox._lock.lock();
+            try {
+                // Emptied and forgotten meanwhile, the recipient may take messages again
+                if (inbox._closed) continue;
+                sent = inbox._held.isEmpty() && recipient.deliver(message);
+                if (sent)
+                    forget(recipient, inbox);
+                else if (!fits(inbox, message)) {
+                    _metrics.privateMessageRefused();
+                    if (sender != null)
+                        sender.send(ERROR + recipient.getNickname() + " can't take more messages right now, try again later");
+                    return false;
+                }
+                // Before it can be flushed, the acknowledgement comes first
+                if (ack) sender.send(Payload.ack(sequence, message));
+                if (!sent) hold(inbox, new Held(sender, ack, message, startNanos));
+            } finally {
+                inbox._lock.unlock();
+            }
+            if (sent)
+                delivered(sender, ack, message, startNanos, false);
+            return true;
+        }
+    }
+
+    /**
+     * Takes room for a message in an inbox, under its lock.
+     *
+     * @return {@code false} if the inbox (or all of them together) can't hold it
+     */
+    private boolean fits(Inbox inbox, Payload message) {
+        int bytes = message.length();
+        if (inbox._held.size() >= _inboxMessages || inbox._bytes + bytes > _inboxBytes) return false;
+        if (_totalBytes.addAndGet(bytes) > _totalInboxBytes) {
+            _totalBytes.addAndGet(-bytes);
+            return false;
+        }
+        return true;
+    }
+
+    private void hold(Inbox inbox, Held held) {
+        int bytes = held._message.length();
+        inbox._held.add(held);
+        inbox._bytes += bytes;
+        _metrics.inbox(1, bytes);
+    }
+
+    private void delivered(Peer sender, boolean ack, Payload message, long startNanos, boolean late) {
+        _metrics.privateMessageDelivered(startNanos, late);
+        if (ack)
+            sender.send(Payload.delivered(message));
+    }
+
+    /**
+     * Forgets an empty inbox, under its lock.
+     */
+    private void forget(Peer peer, Inbox inbox) {
+        inbox._closed = true;
+        _inboxes.remove(peer, inbox);
+    }
+
+    /**
+     * Hands a peer that takes messages again (it joined, changed its nickname or came back)
+     * what was held for it, in one go.
+     *
+     * @param peer the peer
+     */
+    void flush(Peer peer) {
+        Inbox inbox = _inboxes.get(peer);
+        if (inbox == null) return;
+
+        List<Held> sent = new ArrayList<>();
+        inbox._lock.lock();
+        try {
+            Held held;
+            while ((held = inbox._held.peek()) != null && peer.deliver(held._message)) {
+                inbox._held.poll();
+                sent.add(held);
+            }
+            release(inbox, sent.size(), sent);
+            if (inbox._held.isEmpty())
+                forget(peer, inbox);
+        } finally {
+            inbox._lock.unlock();
+        }
+        for (Held held : sent)
+            delivered(held._sender, held._ack, held._message, held._startNanos, true);
+    }
+
+    /**
+     * Gives the inbox of a peer to the one that takes its place (its session, or the peer that comes back).
+     *
+     * @param previous the peer that had the place
+     * @param peer the peer that has it now
+     */
+    void move(Peer previous, Peer peer) {
+        Inbox inbox = _inboxes.remove(previous);
+        if (inbox == null) return;
+
+        Inbox existing = _inboxes.putIfAbsent(peer, inbox);
+        if (existing == null) return;
+        // The new one got an inbox of its own meanwhile, the older messages go first
+        inbox._lock.lock();
+        existing._lock.lock();
+        try {
+            inbox._held.addAll(existing._held);
+            existing._held.clear();
+            existing._held.addAll(inbox._held);
+            existing._bytes += inbox._bytes;
+            inbox._held.clear();
+            inbox._bytes  = 0;
+            inbox._closed = true;
+        } finally {
+            existing._lock.unlock();
+            inbox._lock.unlock();
+        }
+    }
+
+    /**
+     * Throws away the inbox of a peer that left for good.
+     *
+     * @param peer the peer
+     */
+    void drop(Peer peer) {
+        Inbox inbox = _inboxes.remove(peer);
+        if (inbox == null) return;
+
+        int lost;
+        inbox._lock.lock();
+        try {
+            lost = inbox._held.size();
+            release(inbox, lost, inbox._held);
+            inbox._held.clear();
+            inbox._closed = true;
+        } finally {
+            inbox._lock.unlock();
+        }
+        if (lost > 0)
+            _metrics.privateMessagesLost(lost);
+    }
+
+    /**
+     * Gives back the bytes of messages taken out of an inbox, under its lock.
+     */
+    private void release(Inbox inbox, int messages, Iterable<Held> taken) {
+        if (messages == 0) return;
+        long bytes = 0;
+        for (Held held : taken)
+            bytes += held._message.length();
+        inbox._bytes -= bytes;
+        _totalBytes.addAndGet(-bytes);
+        _metrics.inbox(-messages, -bytes);
+    }
+
+    // <<-INBOX->>
+    /**
+     * The private messages held for a peer, oldest first, guarded by its lock.
+     */
+    private static final class Inbox {
+        private final ReentrantLock _lock = new ReentrantLock();
+        private final ArrayDeque<Held> _held = new ArrayDeque<>();
+        private long _bytes;
+        /**
+         * Whether it was forgotten, nothing is held here anymore.
+         */
+        private boolean _closed;
+    }
+
+    /**
+     * A private message waiting in an inbox.
+     */
+    private static final class Held {
+        /**
+         * Who sent it, {@code null} if it came from another node.
+         */
+        private final Peer _sender;
+        private final boolean _ack;
+        private final Payload _message;
+        private final long _startNanos;
+
+        private Held(Peer sender, boolean ack, Payload message, long startNanos) {
+            _sender     = sender;
+            _ack        = ack;
+            _message    = message;
+            _startNanos = startNanos;
+        }
+    }
+
+}
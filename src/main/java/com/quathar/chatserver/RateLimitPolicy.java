@@ -0,0 +1,41 @@
+package com.quathar.chatserver;
+
+import java.util.Locale;
+
+/**
+ * <h1>RateLimitPolicy</h1>
+ * <br>
+ * What the {@link RateLimiter} does with a peer that sends faster than its limits.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public enum RateLimitPolicy {
+
+    /**
+     * Handles the message but stops reading from the peer until it is back within its limits,
+     * the socket buffers fill up and the client has to wait (TCP backpressure).
+     */
+    DELAY,
+    /**
+     * Throws the message away and tells the peer.
+     */
+    DROP,
+    /**
+     * Disconnects the peer.
+     */
+    DISCONNECT;
+
+    /**
+     * Parses a rate limit policy ignoring case, in any default locale.
+     *
+     * @param policy the policy name
+     * @return the matching rate limit policy
+     * @throws IllegalArgumentException if there is no policy with that name
+     */
+    public static RateLimitPolicy parse(String policy) {
+        return valueOf(policy.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+    }
+
+}
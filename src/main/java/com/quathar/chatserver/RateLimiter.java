@@ -0,0 +1,263 @@
+package com.quathar.chatserver;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>RateLimiter</h1>
+ * <br>
+ * The limits on what peers send: messages and bytes per second for each peer ({@link Quota})
+ * and for the whole server, every one a {@link TokenBucket}.<br>
+ * <br>
+ * The readers of the peers ask it for every message they read, before handing it to the server.
+ * A peer within its limits costs a volatile read and a few compare-and-sets, a limit of {@code 0} isn't checked.
+ * The limits can be changed while the server runs (the '/limit' command), they are swapped as a whole.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class RateLimiter {
+
+    // <<-CONSTANTS->>
+    /**
+     * {@link #admit(Peer, Quota, int)}: the message is dropped, don't handle it.
+     */
+    public static final long SKIP = -1;
+    /**
+     * {@link #admit(Peer, Quota, int)}: the peer is disconnected.
+     */
+    public static final long CLOSE = -2;
+    private static final String SYSTEM = "S Y S T E M: ";
+    private static final Payload DROPPED = Payload.of(SYSTEM + "You are sending too fast, your messages are being dropped");
+    /**
+     * Shortest time between two notices to the same peer that its messages are dropped.
+     */
+    private static final long NOTICE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // <<-FIELDS->>
+    private volatile Limits _limits;
+    private final TokenBucket _messages;
+    private final TokenBucket _bytes;
+    private final Metrics _metrics;
+
+    // <<-CONSTRUCTOR->>
+    /**
+     * Constructs a rate limiter with the limits of the settings.
+     *
+     * @param config the server settings
+     * @param metrics where the limited messages are counted
+     */
+    public RateLimiter(ServerConfig config, Metrics metrics) {
+        _limits   = new Limits(config.getRateMessagesPerSecond(), config.getRateBytesPerSecond(),
+                               config.getRateGlobalMessagesPerSecond(), config.getRateGlobalBytesPerSecond(),
+                               config.getRateBurstMillis(), config.getRateLimitPolicy());
+        _messages = new TokenBucket();
+        _bytes    = new TokenBucket();
+        _metrics  = metrics;
+    }
+
+    // <<-METHODS->>
+    /**
+     * Creates the buckets of a new peer.
+     *
+     * @return the quota of the peer
+     */
+    public Quota newQuota() {
+        return new Quota();
+    }
+
+    /**
+     * Checks a message a peer sent against its limits and those of the server.<br>
+     * <br>
+     * Unless the policy is {@link RateLimitPolicy#DELAY}, a refused message takes no tokens from any bucket,
+     * and a message refused only by the limits of the server is dropped: other peers sending too fast
+     * is no reason to disconnect this one. A dropping peer is told, at most once a second.
+     *
+     * @param peer the peer that sent the message
+     * @param quota the buckets of the peer
+     * @param bytes the size of the message on the wire
+     * @return {@code 0} to handle the message, the nanoseconds the reader must stop reading after handling it,
+     *         {@link #SKIP} to throw it away or {@link #CLOSE} to disconnect the peer
+     */
+    public long admit(Peer peer, Quota quota, int bytes) {
+        Limits limits = _limits;
+        if (limits._unlimited) return 0;
+
+        long now = System.nanoTime();
+        if (limits._policy == RateLimitPolicy.DELAY) {
+            long wait = Math.max(
+                    Math.max(take(quota._messages, 1, limits._messagesPerSecond, limits._nanosPerMessage, limits, true, now),
+                             take(quota._bytes, bytes, limits._bytesPerSecond, limits._nanosPerByte, limits, true, now)),
+                    Math.max(take(_messages, 1, limits._globalMessagesPerSecond, limits._nanosPerGlobalMessage, limits, true, now),
+                             take(_bytes, bytes, limits._globalBytesPerSecond, limits._nanosPerGlobalByte, limits, true, now)));
+            if (wait > 0) _metrics.rateLimited(RateLimitPolicy.DELAY);
+            return wait;
+        }
+
+        // Every bucket that gave its tokens gets them back when a later one refuses
+        if (take(quota._messages, 1, limits._messagesPerSecond, limits._nanosPerMessage, limits, false, now) > 0)
+            return refuse(peer, quota, limits._policy, now);
+        if (take(quota._bytes, bytes, limits._bytesPerSecond, limits._nanosPerByte, limits, false, now) > 0) {
+            giveBack(quota._messages, 1, limits._messagesPerSecond, limits._nanosPerMessage, limits);
+            return refuse(peer, quota, limits._policy, now);
+        }
+        if (take(_messages, 1, limits._globalMessagesPerSecond, limits._nanosPerGlobalMessage, limits, false, now) > 0) {
+            giveBack(quota._bytes, bytes, limits._bytesPerSecond, limits._nanosPerByte, limits);
+            giveBack(quota._messages, 1, limits._messagesPerSecond, limits._nanosPerMessage, limits);
+            return refuse(peer, quota, RateLimitPolicy.DROP, now);
+        }
+        if (take(_bytes, bytes, limits._globalBytesPerSecond, limits._nanosPerGlobalByte, limits, false, now) > 0) {
+            giveBack(_messages, 1, limits._globalMessagesPerSecond, limits._nanosPerGlobalMessage, limits);
+            giveBack(quota._bytes, bytes, limits._bytesPerSecond, limits._nanosPerByte, limits);
+            giveBack(quota._messages, 1, limits._messagesPerSecond, limits._nanosPerMessage, limits);
+            return refuse(peer, quota, RateLimitPolicy.DROP, now);
+        }
+        return 0;
+    }
+
+    /**
+     * Takes tokens from a bucket whose limit is on.
+     *
+     * @return {@code 0} if there were tokens enough or the limit is off, otherwise the nanoseconds until there would have been
+     */
+    private static long take(TokenBucket bucket, long tokens, long perSecond, double nanosPerToken,
+                             Limits limits, boolean borrow, long now) {
+        return perSecond > 0 ? bucket.take(tokens, nanosPerToken, limits._burstNanos, borrow, now) : 0;
+    }
+
+    private static void giveBack(TokenBucket bucket, long tokens, long perSecond, double nanosPerToken, Limits limits) {
+        if (perSecond > 0) bucket.giveBack(tokens, nanosPerToken, limits._burstNanos);
+    }
+
+    /**
+     * Does with a refused message what the policy says.
+     *
+     * @param policy {@link RateLimitPolicy#DROP} or {@link RateLimitPolicy#DISCONNECT}
+     * @return {@link #SKIP} or {@link #CLOSE}
+     */
+    private long refuse(Peer peer, Quota quota, RateLimitPolicy policy, long now) {
+        _metrics.rateLimited(policy);
+        if (policy == RateLimitPolicy.DISCONNECT) {
+            System.out.printf("S E R V E R --> << %s >> was disconnected for flooding%n", peer.getNickname());
+            return CLOSE;
+        }
+        if (now - quota._noticeAt >= NOTICE_INTERVAL_NANOS) {
+            quota._noticeAt = now;
+            peer.send(DROPPED);
+        }
+        return SKIP;
+    }
+
+    /**
+     * Changes one of the limits.
+     *
+     * @param setting {@code messages}, {@code bytes}, {@code global-messages}, {@code global-bytes},
+     *                {@code burst} (milliseconds) or {@code action} ({@code delay}, {@code drop} or {@code disconnect})
+     * @param value the new value, {@code 0} turns a limit off
+     * @throws IllegalArgumentException if there is no such setting or the value is wrong
+     */
+    public synchronized void set(String setting, String value) {
+        Limits limits = _limits;
+        long messages       = limits._messagesPerSecond;
+        long bytes          = limits._bytesPerSecond;
+        long globalMessages = limits._globalMessagesPerSecond;
+        long globalBytes    = limits._globalBytesPerSecond;
+        long burstMillis    = TimeUnit.NANOSECONDS.toMillis(limits._burstNanos);
+        RateLimitPolicy policy = limits._policy;
+        switch (setting) {
+            case "messages"        -> messages       = parse(value);
+            case "bytes"           -> bytes          = parse(value);
+            case "global-messages" -> globalMessages = parse(value);
+            case "global-bytes"    -> globalBytes    = parse(value);
+            case "burst"           -> burstMillis    = parse(value);
+            case "action"          -> policy         = RateLimitPolicy.parse(value);
+            default -> throw new IllegalArgumentException("There is no limit called '" + setting + "'");
+        }
+        _limits = new Limits(messages, bytes, globalMessages, globalBytes, burstMillis, policy);
+    }
+
+    private static long parse(String value) {
+        try {
+            long parsed = Long.parseLong(value.trim());
+            if (parsed >= 0) return parsed;
+        } catch (NumberFormatException e) {
+            // Same answer as a negative number
+        }
+        throw new IllegalArgumentException("'" + value + "' isn't a number of 0 or more");
+    }
+
+    /**
+     * Renders the limits in force, for the '/limit' command.
+     *
+     * @return the limits
+     */
+    public String describe() {
+        Limits limits = _limits;
+        String ls = System.getProperty("line.separator");
+        return "Rate limits:" + ls
+               + "> messages:        " + perSecond(limits._messagesPerSecond) + " per peer" + ls
+               + "> bytes:           " + perSecond(limits._bytesPerSecond) + " per peer" + ls
+               + "> global-messages: " + perSecond(limits._globalMessagesPerSecond) + ls
+               + "> global-bytes:    " + perSecond(limits._globalBytesPerSecond) + ls
+               + "> burst:           " + TimeUnit.NANOSECONDS.toMillis(limits._burstNanos) + " ms" + ls
+               + "> action:          " + limits._policy.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static String perSecond(long limit) {
+        return limit == 0 ? "no limit" : limit + "/s";
+    }
+
+    // <<-QUOTA->>
+    /**
+     * The buckets of a single peer.
+     */
+    public static final class Quota {
+        private final TokenBucket _messages = new TokenBucket();
+        private final TokenBucket _bytes    = new TokenBucket();
+        /**
+         * When the peer was last told its messages are dropped.
+         */
+        private long _noticeAt = System.nanoTime() - NOTICE_INTERVAL_NANOS;
+
+        private Quota() {}
+    }
+
+    // <<-LIMITS->>
+    /**
+     * The limits in force, never modified.
+     */
+    private static final class Limits {
+        private final long _messagesPerSecond;
+        private final long _bytesPerSecond;
+        private final long _globalMessagesPerSecond;
+        private final long _globalBytesPerSecond;
+        /**
+         * What a token of each bucket is worth, worked out once instead of dividing on every message.
+         */
+        private final double _nanosPerMessage;
+        private final double _nanosPerByte;
+        private final double _nanosPerGlobalMessage;
+        private final double _nanosPerGlobalByte;
+        private final long _burstNanos;
+        private final RateLimitPolicy _policy;
+        private final boolean _unlimited;
+
+        private Limits(long messagesPerSecond, long bytesPerSecond, long globalMessagesPerSecond,
+                       long globalBytesPerSecond, long burstMillis, RateLimitPolicy policy) {
+            _messagesPerSecond       = messagesPerSecond;
+            _bytesPerSecond          = bytesPerSecond;
+            _globalMessagesPerSecond = globalMessagesPerSecond;
+            _globalBytesPerSecond    = globalBytesPerSecond;
+            _nanosPerMessage         = 1e9 / messagesPerSecond;
+            _nanosPerByte            = 1e9 / bytesPerSecond;
+            _nanosPerGlobalMessage   = 1e9 / globalMessagesPerSecond;
+            _nanosPerGlobalByte      = 1e9 / globalBytesPerSecond;
+            _burstNanos              = TimeUnit.MILLISECONDS.toNanos(Math.max(burstMillis, 1));
+            _policy                  = policy;
+            _unlimited               = messagesPerSecond == 0 && bytesPerSecond == 0
+                                       && globalMessagesPerSecond == 0 && globalBytesPerSecond == 0;
+        }
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.quathar.chatserver;
+
+/**
+ * <h1>Replay</h1>
+ * <br>
+ * Past messages handed to a peer a batch at a time, as its writer catches up
+ * (see {@link OutboundQueue#replay(Replay)}).<br>
+ * <br>
+ * A replay isn't thread-safe, only one writer at a time must read it.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public interface Replay {
+
+    /**
+     * Copies the next lines of the replay into a batch.
+     *
+     * @param batch the array to fill
+     * @param length the most lines to copy
+     * @return the number of lines copied, {@code 0} once the replay is over
+     */
+    int next(Payload[] batch, int length);
+
+    /**
+     * Checks if there is nothing to replay.
+     *
+     * @return {@code true} if the replay is known to be empty, {@code false} otherwise
+     */
+    boolean isEmpty();
+
+}
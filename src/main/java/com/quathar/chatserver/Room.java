@@ -0,0 +1,92 @@
+package com.quathar.chatserver;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <h1>Room</h1>
+ * <br>
+ * A chat channel (e.g. {@code #general}) and the peers that are in it.<br>
+ * <br>
+ * Posting to a room only walks its own members, not every peer in the server.
+ * Rooms are created and torn down by the {@link RoomRegistry}.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class Room {
+
+    // <<-FIELDS->>
+    private final String _name;
+    private final Set<Peer> _members;
+    private final Collection<Peer> _view;
+    private final History _history;
+
+    // <<-CONSTRUCTOR->>
+    Room(String name, History history) {
+        _name    = name;
+        _members = ConcurrentHashMap.newKeySet();
+        _view    = Collections.unmodifiableSet(_members);
+        _history = history;
+    }
+
+    // <<-METHODS->>
+    boolean add(Peer peer) {
+        return _members.add(peer);
+    }
+
+    boolean remove(Peer peer) {
+        return _members.remove(peer);
+    }
+
+    /**
+     * Checks if a peer is in this room.
+     *
+     * @param peer the peer to check
+     * @return {@code true} if the peer is a member, {@code false} otherwise
+     */
+    public boolean isMember(Peer peer) {
+        return _members.contains(peer);
+    }
+
+    // <<-GETTERS->>
+    /**
+     * Returns the name of the room as it was created (e.g. {@code #General}).
+     *
+     * @return the room name
+     */
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * Returns a read-only live view of the members of the room.
+     *
+     * @return the members
+     */
+    public Collection<Peer> getMembers() {
+        return _view;
+    }
+
+    /**
+     * Returns the last messages posted to the room, it goes away with the room.
+     *
+     * @return the room history
+     */
+    public History getHistory() {
+        return _history;
+    }
+
+    /**
+     * Returns the number of members.
+     *
+     * @return the room size
+     */
+    public int size() {
+        return _members.size();
+    }
+
+}
@@ -0,0 +1,210 @@
+package com.quathar.chatserver;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <h1>RoomRegistry</h1>
+ * <br>
+ * The rooms of the chat server, indexed by their case-folded name.<br>
+ * <br>
+ * A room is created by the first peer that joins it and torn down when the last one leaves.
+ * Both happen inside a single atomic {@code compute} on the map, so a join racing
+ * with the last leave either keeps the room alive or creates it again, it is never lost.
+ * Every peer also has an index of its rooms so leaving the server doesn't scan all of them.<br>
+ * <br>
+ * The number of rooms is capped, and the histories of all of them share a budget of bytes
+ * with the history of the chat: a room gives its bytes back when it is torn down.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class RoomRegistry {
+
+    // <<-CONSTANTS->>
+    /**
+     * Every room name starts with this prefix.
+     */
+    public static final String ROOM_PREFIX = "#";
+
+    // <<-FIELDS->>
+    private final ConcurrentMap<String, Room> _rooms;
+    private final ConcurrentMap<Peer, Set<String>> _roomsByPeer;
+    private final Collection<Room> _view;
+    private final ServerConfig _config;
+    private final AtomicLong _historyBytes;
+    /**
+     * Rooms open, counted as they are created and torn down so the cap is never overshot.
+     */
+    private final AtomicInteger _open;
+
+    // <<-CONSTRUCTOR->>
+    /**
+     * Constructs the rooms of a chat server.
+     *
+     * @param config the settings, the cap on rooms and those of their histories
+     * @param historyBytes the bytes kept by the histories of the server, the rooms share them
+     */
+    public RoomRegistry(ServerConfig config, AtomicLong historyBytes) {
+        _config       = config;
+        _historyBytes = historyBytes;
+        _rooms        = new ConcurrentHashMap<>();
+        _roomsByPeer  = new ConcurrentHashMap<>();
+        _view         = Collections.unmodifiableCollection(_rooms.values());
+        _open         = new AtomicInteger();
+    }
+
+    // <<-METHODS->>
+    /**
+     * Checks if a name is a valid room name: the prefix followed by at least one character, no spaces.
+     *
+     * @param name the name to check
+     * @return {@code true} if it is a valid room name, {@code false} otherwise
+     */
+    public static boolean isValidName(String name) {
+        return name != null
+                && name.startsWith(ROOM_PREFIX)
+                && name.length() > ROOM_PREFIX.length()
+                && !name.contains(" ");
+    }
+
+    /**
+     * Returns the key a room name is stored under.
+     *
+     * @param name the room name
+     * @return the case-folded name
+     */
+    static String normalize(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Puts a peer in a room, creating the room if it doesn't exist.
+     *
+     * @param name the room name
+     * @param peer the peer joining
+     * @return the room, {@code null} if it doesn't exist and there are too many rooms to create it
+     */
+    public Room join(String name, Peer peer) {
+        String key = normalize(name);
+        Room room = _rooms.compute(key, (k, existing) -> {
+            if (existing == null) {
+                int max = _config.getRoomsMax();
+                if (_open.incrementAndGet() > max && max > 0) {
+                    _open.decrementAndGet();
+                    return null;
+                }
+                existing = new Room(name, _config.newHistory(name, _historyBytes));
+            }
+            existing.add(peer);
+            return existing;
+        });
+        if (room != null)
+            _roomsByPeer.computeIfAbsent(peer, p -> ConcurrentHashMap.newKeySet()).add(key);
+        return room;
+    }
+
+    /**
+     * Takes a peer out of a room, tearing the room down if it is left empty.
+     *
+     * @param name the room name
+     * @param peer the peer leaving
+     * @return {@code true} if the peer was in the room, {@code false} otherwise
+     */
+    public boolean leave(String name, Peer peer) {
+        String key = normalize(name);
+        Set<String> keys = _roomsByPeer.get(peer);
+        if (keys != null)
+            keys.remove(key);
+        return leaveRoom(key, peer);
+    }
+
+    /**
+     * Takes a peer out of every room it is in.
+     *
+     * @param peer the peer leaving
+     * @return the rooms the peer was in
+     */
+    public List<Room> leaveAll(Peer peer) {
+        Set<String> keys = _roomsByPeer.remove(peer);
+        if (keys == null) return List.of();
+
+        List<Room> left = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            Room room = _rooms.get(key);
+            if (leaveRoom(key, peer))
+                left.add(room);
+        }
+        return left;
+    }
+
+    /**
+     * Puts a peer in every room of another one, in its place
+     * (e.g. the {@link Session} of a peer whose connection dropped).
+     *
+     * @param previous the peer leaving its rooms
+     * @param peer the peer taking its place
+     */
+    public void replace(Peer previous, Peer peer) {
+        Set<String> keys = _roomsByPeer.remove(previous);
+        if (keys == null) return;
+
+        _roomsByPeer.put(peer, keys);
+        for (String key : keys)
+            _rooms.computeIfPresent(key, (k, room) -> {
+                if (room.remove(previous))
+                    room.add(peer);
+                return room;
+            });
+    }
+
+    private boolean leaveRoom(String key, Peer peer) {
+        boolean[] removed = new boolean[1];
+        _rooms.computeIfPresent(key, (k, room) -> {
+            removed[0] = room.remove(peer);
+            if (room.size() > 0) return room;
+            room.getHistory().clear();
+            _open.decrementAndGet();
+            return null;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Finds a room by name.
+     *
+     * @param name the room name, in any case
+     * @return the room, or {@code null} if it doesn't exist
+     */
+    public Room get(String name) {
+        return _rooms.get(normalize(name));
+    }
+
+    /**
+     * Returns the number of rooms.
+     *
+     * @return the number of rooms
+     */
+    public int size() {
+        return _rooms.size();
+    }
+
+    /**
+     * Returns a read-only live view of the existing rooms.
+     *
+     * @return the rooms
+     */
+    public Collection<Room> rooms() {
+        return _view;
+    }
+
+}
@@ -0,0 +1,677 @@
+package com.quathar.chatserver;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <h1>SearchIndex</h1>
+ * <br>
+ * An inverted index of the messages sent to everyone, for '/search'.<br>
+ * <br>
+ * The chat server hands it every broadcast as it accepts it and goes on: the messages wait in a bounded queue
+ * and a single indexer thread adds them a batch at a time. If the indexer falls a whole queue behind,
+ * the newer messages are left out of the index rather than holding up the chat.<br>
+ * <br>
+ * The index is made of segments of {@value #SEGMENT_MESSAGES} messages. A segment keeps the lines of its messages
+ * (UTF-8, in a single array) and, for every term, the messages it is in: their numbers in the segment, as varint gaps.
+ * Once a segment is full it is sealed: its terms sorted (for prefix queries) and copied into a single array,
+ * and so are their postings. The sender of a message is a term of its own, {@code @} and its nickname.
+ * The oldest segment goes once the newer ones hold the most messages kept.<br>
+ * <br>
+ * A query is answered a segment at a time, newest first, as the writer of the peer that asked catches up.
+ * The indexer holds the write lock while it adds a batch, a query the read lock while it reads one.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class SearchIndex implements AutoCloseable {
+
+    // <<-CONSTANTS->>
+    /**
+     * Messages in a segment, the unit of eviction.
+     */
+    static final int SEGMENT_MESSAGES = 8192;
+    /**
+     * Shortest prefix of a prefix query, a shorter one would match most of the index.
+     */
+    static final int MIN_PREFIX_LENGTH = 2;
+    /**
+     * Longest term, in code points: longer words are indexed (and looked up) by their beginning.
+     */
+    private static final int MAX_TERM_LENGTH = 32;
+    /**
+     * Most messages added under the write lock at a time, so a query never waits for long.
+     */
+    private static final int BATCH_MESSAGES = 1024;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")
+                                                                   .withZone(ZoneId.systemDefault());
+
+    // <<-FIELDS->>
+    private final int _maxMessages;
+    private final BlockingQueue<Entry> _queue;
+    private final Metrics _metrics;
+    /**
+     * A lock instead of {@code synchronized}, it doesn't pin the carrier of a virtual thread.
+     */
+    private final ReentrantReadWriteLock _lock;
+    /**
+     * Oldest first, the last one takes the new messages. Guarded by the lock.
+     */
+    private final List<Segment> _segments;
+    private final Thread _indexer;
+    private volatile boolean _running;
+    /**
+     * Messages in every segment, guarded by the lock.
+     */
+    private long _messages;
+
+    // <<-CONSTRUCTOR->>
+    /**
+     * Constructs an empty index, nothing is indexed until it is started.
+     *
+     * @param config the server settings, how many messages are kept and how many may wait
+     * @param metrics the metrics of the server
+     */
+    public SearchIndex(ServerConfig config, Metrics metrics) {
+        _maxMessages = config.getSearchMaxMessages();
+        _queue       = new ArrayBlockingQueue<>(config.getSearchQueueMessages());
+        _metrics     = metrics;
+        _lock        = new ReentrantReadWriteLock();
+        _segments    = new ArrayList<>();
+        _indexer     = Thread.ofPlatform().name("chat-search-indexer").daemon().unstarted(this::indexLoop);
+        _segments.add(new Segment());
+    }
+
+    // <<-METHODS->>
+    /**
+     * Starts the indexer thread.
+     */
+    public void start() {
+        _running = true;
+        _indexer.start();
+    }
+
+    /**
+     * Queues a message for the indexer, without waiting.
+     *
+     * @param msg a message sent to everyone
+     */
+    public void add(Payload msg) {
+        if (!_queue.offer(new Entry(msg, System.nanoTime())))
+            _metrics.searchDropped();
+    }
+
+    /**
+     * Adds the queued messages a batch at a time, their terms split before the write lock is taken.
+     */
+    private void indexLoop() {
+        List<Entry> batch = new ArrayList<>();
+        while (_running || !_queue.isEmpty()) {
+            try {
+                Entry first = _queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                _queue.drainTo(batch, BATCH_MESSAGES - 1);
+                for (Entry entry : batch)
+                    entry._terms = terms(entry._payload);
+                _lock.writeLock().lock();
+                try {
+                    for (Entry entry : batch)
+                        append(entry._payload, entry._terms);
+                } finally {
+                    _lock.writeLock().unlock();
+                }
+                for (Entry entry : batch)
+                    _metrics.searchIndexed(entry._queuedNanos);
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Adds a message right away, on the calling thread.
+     *
+     * @param msg a message sent to everyone
+     */
+    void index(Payload msg) {
+        List<String> terms = terms(msg);
+        _lock.writeLock().lock();
+        try {
+            append(msg, terms);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a message to the newest segment under the write lock, sealing it first if it is full.
+     */
+    private void append(Payload msg, List<String> terms) {
+        int last = _segments.size() - 1;
+        Segment active = _segments.get(last);
+        if (active._size == SEGMENT_MESSAGES) {
+            // Queries that started before keep reading the segment as it was
+            _segments.set(last, active.seal());
+            active = new Segment();
+            _segments.add(active);
+        }
+        active.add(msg, terms);
+        _messages++;
+        while (_segments.size() > 1 && _messages - _segments.get(0)._size >= _maxMessages)
+            _messages -= _segments.remove(0)._size;
+    }
+
+    /**
+     * Returns the terms a message is found by: the words of its body and its sender.
+     */
+    private static List<String> terms(Payload msg) {
+        List<String> terms = terms(msg.getBody());
+        terms.add("@" + PeerRegistry.normalize(msg.getFrom()));
+        return terms;
+    }
+
+    /**
+     * Splits a text into terms: its runs of letters and digits, lower-cased.
+     *
+     * @param text the text
+     * @return the terms, in order, repeated if they are
+     */
+    static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            if (Character.isLetterOrDigit(codePoint)) {
+                if (start < 0) start = i;
+            } else if (start >= 0) {
+                terms.add(term(text, start, i));
+                start = -1;
+            }
+            i += Character.charCount(codePoint);
+        }
+        if (start >= 0)
+            terms.add(term(text, start, text.length()));
+        return terms;
+    }
+
+    private static String term(String text, int start, int end) {
+        int cut = start;
+        for (int length = 0; length < MAX_TERM_LENGTH && cut < end; length++)
+            cut += Character.charCount(text.codePointAt(cut));
+        return text.substring(start, cut).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Starts a search of the messages kept.<br>
+     * <br>
+     * Every word must be in a message for it to match. A word ending with {@code *} matches every term it starts.
+     *
+     * @param words the words to look for, separated by spaces (a word with punctuation is several terms)
+     * @param from the nickname of the sender, {@code null} for anyone
+     * @param since the earliest message, in milliseconds since the epoch
+     * @param until the moment the messages must be older than, in milliseconds since the epoch
+     * @param limit the most messages found, the newest first
+     * @return the results, a replay that searches as it is read
+     * @throws IllegalArgumentException if there is nothing to search for, or a prefix is too short
+     */
+    public Replay search(String words, String from, long since, long until, int limit) {
+        List<String> terms = new ArrayList<>();
+        List<Boolean> prefixes = new ArrayList<>();
+        for (String word : words.trim().split(" +")) {
+            boolean prefix = word.endsWith("*");
+            List<String> split = terms(prefix ? word.substring(0, word.length() - 1) : word);
+            for (int i = 0; i < split.size(); i++) {
+                boolean last = i == split.size() - 1;
+                if (prefix && last && split.get(i).codePointCount(0, split.get(i).length()) < MIN_PREFIX_LENGTH)
+                    throw new IllegalArgumentException("Prefix too short: " + word);
+                terms.add(split.get(i));
+                prefixes.add(prefix && last);
+            }
+        }
+        if (from != null) {
+            terms.add("@" + PeerRegistry.normalize(from));
+            prefixes.add(false);
+        }
+        if (terms.isEmpty())
+            throw new IllegalArgumentException("Nothing to search for");
+
+        boolean[] prefix = new boolean[terms.size()];
+        for (int i = 0; i < prefix.length; i++)
+            prefix[i] = prefixes.get(i);
+        String query = (words.trim() + (from != null ? " from " + from : "")).trim();
+        _lock.readLock().lock();
+        try {
+            Segment[] segments = _segments.toArray(new Segment[0]);
+            // The newest segment keeps changing, only its messages indexed by now are searched
+            int[] ends = new int[segments.length];
+            for (int i = 0; i < segments.length; i++)
+                ends[i] = segments[i]._size;
+            return new Results(this, query, terms.toArray(new String[0]), prefix, since, until, limit, segments, ends);
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stops the indexer once it has added the messages queued.
+     */
+    @Override
+    public void close() {
+        _running = false;
+        try {
+            _indexer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // <<-GETTERS->>
+    /**
+     * Returns the number of messages in the index.
+     *
+     * @return the indexed messages
+     */
+    public long size() {
+        _lock.readLock().lock();
+        try {
+            return _messages;
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns about how much memory the index takes: its arrays, its terms and its postings.
+     *
+     * @return the size in bytes
+     */
+    public long getBytes() {
+        _lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (Segment segment : _segments)
+                bytes += segment.getBytes();
+            return bytes;
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of messages waiting for the indexer.
+     *
+     * @return the pending messages
+     */
+    public int getPending() {
+        return _queue.size();
+    }
+
+    // <<-ENTRY->>
+    private static final class Entry {
+        private final Payload _payload;
+        private final long _queuedNanos;
+        /**
+         * Split by the indexer before it takes the lock.
+         */
+        private List<String> _terms;
+
+        private Entry(Payload payload, long queuedNanos) {
+            _payload     = payload;
+            _queuedNanos = queuedNanos;
+        }
+    }
+
+    // <<-SEGMENT->>
+    /**
+     * Up to {@link #SEGMENT_MESSAGES} messages and their postings.<br>
+     * <br>
+     * The newest segment keeps its terms in a map, each with a list of its own that grows.
+     * A sealed one never changes: its terms are sorted by their UTF-8 bytes and follow each other in a single array,
+     * and so do their postings, a term costing its bytes and two offsets rather than a few objects.
+     */
+    private static final class Segment {
+        /**
+         * A {@link String} and the array of its bytes, about, on top of the bytes themselves.
+         */
+        private static final int STRING_BYTES = 56;
+        /**
+         * An entry of a {@link HashMap} and its {@link Postings}, about.
+         */
+        private static final int TERM_BYTES = 96;
+
+        private final long[] _timestamps;
+        /**
+         * Where the line of every message starts in the text, one more for where the last one ends.
+         */
+        private final int[] _offsets;
+        private byte[] _text;
+        private int _size;
+        private long _minTimestamp = Long.MAX_VALUE;
+        private long _maxTimestamp = Long.MIN_VALUE;
+        // While it takes messages
+        private final Map<String, Postings> _dictionary;
+        private long _dictionaryBytes;
+        // Once sealed
+        private final byte[] _terms;
+        /**
+         * Where every term starts, and its postings, one more for where the last ones end.
+         */
+        private final int[] _termStarts;
+        private final int[] _starts;
+        private final byte[] _postings;
+
+        private Segment() {
+            _timestamps = new long[SEGMENT_MESSAGES];
+            _offsets    = new int[SEGMENT_MESSAGES + 1];
+            _text       = new byte[64 * 1024];
+            _dictionary = new HashMap<>();
+            _terms      = null;
+            _termStarts = null;
+            _starts     = null;
+            _postings   = null;
+        }
+
+        private Segment(Segment full, byte[] terms, int[] termStarts, int[] starts, byte[] postings) {
+            _timestamps   = full._timestamps;
+            _offsets      = full._offsets;
+            _text         = Arrays.copyOf(full._text, full._offsets[full._size]);
+            _size         = full._size;
+            _minTimestamp = full._minTimestamp;
+            _maxTimestamp = full._maxTimestamp;
+            _dictionary   = null;
+            _terms        = terms;
+            _termStarts   = termStarts;
+            _starts       = starts;
+            _postings     = postings;
+        }
+
+        private void add(Payload msg, List<String> terms) {
+            byte[] line = msg.getText().getBytes(Payload.CHARSET);
+            int offset = _offsets[_size];
+            if (offset + line.length > _text.length)
+                _text = Arrays.copyOf(_text, Math.max(offset + line.length, _text.length * 2));
+            System.arraycopy(line, 0, _text, offset, line.length);
+            _offsets[_size + 1] = offset + line.length;
+            _timestamps[_size]  = msg.getTimestamp();
+            _minTimestamp = Math.min(_minTimestamp, msg.getTimestamp());
+            _maxTimestamp = Math.max(_maxTimestamp, msg.getTimestamp());
+            for (String term : terms) {
+                Postings postings = _dictionary.get(term);
+                if (postings == null) {
+                    _dictionary.put(term, postings = new Postings());
+                    _dictionaryBytes += TERM_BYTES + STRING_BYTES + term.length();
+                }
+                _dictionaryBytes += postings.add(_size);
+            }
+            _size++;
+        }
+
+        /**
+         * Builds the sealed copy of the segment, this one is left as it is for the queries reading it.
+         */
+        private Segment seal() {
+            List<Map.Entry<byte[], Postings>> entries = new ArrayList<>(_dictionary.size());
+            for (Map.Entry<String, Postings> entry : _dictionary.entrySet())
+                entries.add(Map.entry(entry.getKey().getBytes(Payload.CHARSET), entry.getValue()));
+            entries.sort((a, b) -> Arrays.compareUnsigned(a.getKey(), b.getKey()));
+
+            int[] termStarts = new int[entries.size() + 1];
+            int[] starts = new int[entries.size() + 1];
+            for (int i = 0; i < entries.size(); i++) {
+                termStarts[i + 1] = termStarts[i] + entries.get(i).getKey().length;
+                starts[i + 1]     = starts[i] + entries.get(i).getValue()._length;
+            }
+            byte[] terms = new byte[termStarts[entries.size()]];
+            byte[] postings = new byte[starts[entries.size()]];
+            for (int i = 0; i < entries.size(); i++) {
+                byte[] term = entries.get(i).getKey();
+                Postings termPostings = entries.get(i).getValue();
+                System.arraycopy(term, 0, terms, termStarts[i], term.length);
+                System.arraycopy(termPostings._bytes, 0, postings, starts[i], termPostings._length);
+            }
+            return new Segment(this, terms, termStarts, starts, postings);
+        }
+
+        /**
+         * Finds the messages a term is in.
+         *
+         * @param term the term, or the beginning of the terms
+         * @param key the term in UTF-8
+         * @param prefix whether every term it starts matches
+         * @param end the messages (by number in the segment) to look at, those before it
+         * @return the messages found
+         */
+        private BitSet find(String term, byte[] key, boolean prefix, int end) {
+            BitSet found = new BitSet(end);
+            if (_dictionary != null) {
+                if (!prefix) {
+                    Postings postings = _dictionary.get(term);
+                    if (postings != null)
+                        decode(postings._bytes, 0, postings._length, end, found);
+                } else
+                    for (Map.Entry<String, Postings> entry : _dictionary.entrySet())
+                        if (entry.getKey().startsWith(term))
+                            decode(entry.getValue()._bytes, 0, entry.getValue()._length, end, found);
+                return found;
+            }
+
+            // The first term from the key on, the terms it starts come right after it
+            int low = 0;
+            int high = _starts.length - 1;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (Arrays.compareUnsigned(_terms, _termStarts[middle], _termStarts[middle + 1], key, 0, key.length) < 0)
+                    low = middle + 1;
+                else high = middle;
+            }
+            for (int i = low; i < _starts.length - 1 && startsWith(i, key); i++) {
+                if (!prefix && _termStarts[i + 1] - _termStarts[i] != key.length) break;
+                decode(_postings, _starts[i], _starts[i + 1], end, found);
+            }
+            return found;
+        }
+
+        private boolean startsWith(int term, byte[] key) {
+            int start = _termStarts[term];
+            return _termStarts[term + 1] - start >= key.length
+                   && Arrays.equals(_terms, start, start + key.length, key, 0, key.length);
+        }
+
+        private static void decode(byte[] postings, int from, int to, int end, BitSet found) {
+            int message = -1;
+            int position = from;
+            while (position < to) {
+                int gap = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = postings[position++];
+                    gap |= (b & 0x7F) << shift;
+                    if ((b & 0x80) == 0) break;
+                }
+                message += gap;
+                if (message >= end) return;
+                found.set(message);
+            }
+        }
+
+        /**
+         * Returns the line of a message, with when it was sent.
+         */
+        private Payload line(int message) {
+            String line = new String(_text, _offsets[message], _offsets[message + 1] - _offsets[message], Payload.CHARSET);
+            return Payload.of("[" + TIME.format(Instant.ofEpochMilli(_timestamps[message])) + "] " + line);
+        }
+
+        private long getBytes() {
+            long bytes = _text.length + 4L * _offsets.length + 8L * _timestamps.length;
+            if (_dictionary != null) return bytes + _dictionaryBytes;
+            return bytes + _terms.length + 4L * _termStarts.length + _postings.length + 4L * _starts.length;
+        }
+    }
+
+    /**
+     * The messages a term is in, while its segment takes messages: the gaps between their numbers, as varints.
+     */
+    private static final class Postings {
+        private byte[] _bytes = new byte[4];
+        private int _length;
+        private int _last = -1;
+
+        /**
+         * Adds a message, unless the term was already found in it.
+         *
+         * @return the bytes the list grew by
+         */
+        private int add(int message) {
+            if (message == _last) return 0;
+            int gap = message - _last;
+            _last = message;
+            int grown = 0;
+            if (_length + 5 > _bytes.length) {
+                grown  = _bytes.length;
+                _bytes = Arrays.copyOf(_bytes, _bytes.length * 2);
+            }
+            while ((gap & ~0x7F) != 0) {
+                _bytes[_length++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            _bytes[_length++] = (byte) gap;
+            return grown;
+        }
+    }
+
+    // <<-RESULTS->>
+    /**
+     * The messages found by a search, looked for a segment at a time as they are read.<br>
+     * <br>
+     * It starts with a header line and ends with a footer line. Segments evicted meanwhile are still read:
+     * the search covers the messages kept when it started.
+     */
+    private static final class Results implements Replay {
+
+        private final SearchIndex _index;
+        private final String _query;
+        private final String[] _terms;
+        /**
+         * The terms in UTF-8, as sealed segments keep them.
+         */
+        private final byte[][] _keys;
+        private final boolean[] _prefixes;
+        private final long _since;
+        private final long _until;
+        private final int _limit;
+        private final Segment[] _segments;
+        private final int[] _ends;
+        /**
+         * The segment being read, from the newest down.
+         */
+        private int _segment;
+        private BitSet _found;
+        /**
+         * The next message of the segment to look at, from the newest down, {@code -1} once it is read.
+         */
+        private int _message;
+        private int _count;
+        private long _nanos;
+        private boolean _headerSent;
+        private boolean _footerSent;
+
+        private Results(SearchIndex index, String query, String[] terms, boolean[] prefixes, long since, long until,
+                        int limit, Segment[] segments, int[] ends) {
+            _index    = index;
+            _query    = query;
+            _terms    = terms;
+            _keys     = new byte[terms.length][];
+            _prefixes = prefixes;
+            _since    = since;
+            _until    = until;
+            _limit    = limit;
+            _segments = segments;
+            _ends     = ends;
+            _segment  = segments.length;
+            _message  = -1;
+            for (int i = 0; i < terms.length; i++)
+                _keys[i] = terms[i].getBytes(Payload.CHARSET);
+        }
+
+        @Override
+        public int next(Payload[] batch, int length) {
+            int count = 0;
+            if (!_headerSent && count < length) {
+                batch[count++] = Payload.of("S Y S T E M: Messages matching '" + _query + "', newest first:");
+                _headerSent = true;
+            }
+            long start = System.nanoTime();
+            _index._lock.readLock().lock();
+            try {
+                while (count < length && _count < _limit) {
+                    if (_message < 0 && !nextSegment()) break;
+                    _message = _found.previousSetBit(_message);
+                    if (_message < 0) continue;
+                    Segment segment = _segments[_segment];
+                    long timestamp = segment._timestamps[_message];
+                    if (timestamp >= _since && timestamp < _until) {
+                        batch[count++] = segment.line(_message);
+                        _count++;
+                    }
+                    _message--;
+                }
+            } finally {
+                _index._lock.readLock().unlock();
+            }
+            _nanos += System.nanoTime() - start;
+            if (!_footerSent && count < length && (_count == _limit || _segment == 0 && _message < 0)) {
+                batch[count++] = Payload.of(_count == 0 ? "S Y S T E M: No messages found"
+                                            : _count == _limit ? "S Y S T E M: The newest " + _count + " messages found"
+                                            : "S Y S T E M: " + _count + " messages found");
+                _footerSent = true;
+                _index._metrics.searchQuery(_nanos);
+            }
+            return count;
+        }
+
+        /**
+         * Moves to the next segment with messages that match, under the read lock.
+         *
+         * @return {@code false} if there is none
+         */
+        private boolean nextSegment() {
+            while (_segment > 0) {
+                Segment segment = _segments[--_segment];
+                int end = _ends[_segment];
+                if (end == 0 || segment._maxTimestamp < _since || segment._minTimestamp >= _until) continue;
+                BitSet found = segment.find(_terms[0], _keys[0], _prefixes[0], end);
+                for (int i = 1; i < _terms.length && !found.isEmpty(); i++)
+                    found.and(segment.find(_terms[i], _keys[i], _prefixes[i], end));
+                if (found.isEmpty()) continue;
+                _found   = found;
+                _message = end - 1;
+                return true;
+            }
+            _message = -1;
+            return false;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+
+    }
+
+}
@@ -0,0 +1,954 @@
+package com.quathar.chatserver;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <h1>ServerConfig</h1>
+ * <br>
+ * The tunable settings of the chat server.<br>
+ * <br>
+ * Every setting has a default and can be overridden with a system property,
+ * e.g. {@code -Dchatserver.outbound.overflow=drop-oldest}.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public class ServerConfig {
+
+    // <<-CONSTANTS->>
+    /**
+     * Prefix of the system properties read by {@link #fromSystemProperties()}.
+     */
+    private static final String PREFIX = "chatserver.";
+
+    // <<-FIELDS->>
+    /**
+     * Most messages waiting to be written to a single peer.
+     */
+    private int _outboundCapacity = 1024;
+    /**
+     * What to do when a peer's outbound queue is full.
+     */
+    private OverflowPolicy _overflowPolicy = OverflowPolicy.DISCONNECT;
+    /**
+     * How long a sender waits for room with {@link OverflowPolicy#BLOCK}.
+     */
+    private long _blockTimeoutMillis = 100;
+    /**
+     * Writes every message to the socket on its own, as soon as possible (lowest latency).
+     */
+    private boolean _flushImmediate = false;
+    /**
+     * How long a writer waits for more messages before writing a batch.
+     * With {@code 0} it only gathers the messages that are already queued.
+     * The outbound capacity must hold whatever a peer may get within this window.
+     */
+    private long _flushMaxDelayMillis = 0;
+    /**
+     * Most bytes gathered in a single write.
+     */
+    private int _flushMaxBytes = 16 * 1024;
+    /**
+     * Most messages kept in the history of the chat and of every room ({@code 0} keeps none).
+     */
+    private int _historyMaxMessages = 1000;
+    /**
+     * Most bytes (of encoded messages) kept in the history of the chat and of every room.
+     */
+    private long _historyMaxBytes = 256 * 1024;
+    /**
+     * Most bytes kept in the histories of the chat and of all the rooms together.
+     */
+    private long _historyTotalMaxBytes = 64 * 1024 * 1024;
+    /**
+     * Messages replayed to a peer when it enters the chat or joins a room ({@code 0} replays none).
+     */
+    private int _historyReplayOnJoin = 20;
+    /**
+     * Most rooms open at once ({@code 0} for no limit).
+     */
+    private int _roomsMax = 10_000;
+    /**
+     * Directory of the durable message log, there is no log if it isn't set.
+     */
+    private Path _logDirectory = null;
+    /**
+     * Size at which a log segment is sealed and a new one started.
+     */
+    private int _logSegmentBytes = 64 * 1024 * 1024;
+    /**
+     * Shortest time between two syncs of the log, the messages arriving meanwhile share the next one.
+     */
+    private long _logSyncIntervalMillis = 5;
+    /**
+     * Bytes between two entries of the sparse index of a log segment.
+     */
+    private int _logIndexIntervalBytes = 4 * 1024;
+    /**
+     * Age at which a log segment is deleted ({@code 0} keeps them forever).
+     */
+    private long _logRetentionHours = 7 * 24;
+    /**
+     * Size of the whole log above which the oldest segments are deleted ({@code 0} for no limit).
+     */
+    private long _logRetentionBytes = 1024L * 1024 * 1024;
+    /**
+     * Local port of the metrics scrape endpoint ({@code 0} turns it off).
+     */
+    private int _metricsPort = 0;
+    /**
+     * Most messages a peer may send per second ({@code 0} for no limit).
+     */
+    private long _rateMessagesPerSecond = 0;
+    /**
+     * Most bytes a peer may send per second ({@code 0} for no limit).
+     */
+    private long _rateBytesPerSecond = 0;
+    /**
+     * Most messages all peers together may send per second ({@code 0} for no limit).
+     */
+    private long _rateGlobalMessagesPerSecond = 0;
+    /**
+     * Most bytes all peers together may send per second ({@code 0} for no limit).
+     */
+    private long _rateGlobalBytesPerSecond = 0;
+    /**
+     * How much of a rate may come at once, in milliseconds worth of it.
+     */
+    private long _rateBurstMillis = 1000;
+    /**
+     * What to do with a peer that goes over its rate limits.
+     */
+    private RateLimitPolicy _rateLimitPolicy = RateLimitPolicy.DELAY;
+    /**
+     * Password of the '/admin' command, there are no admins if it isn't set.
+     */
+    private String _adminPassword = null;
+    /**
+     * Name of this node in a cluster, unique in it. The server runs on its own if it isn't set.
+     */
+    private String _clusterNode = null;
+    /**
+     * Port the other nodes of the cluster connect to ({@code 0} for none, this node only dials out).
+     */
+    private int _clusterPort = 0;
+    /**
+     * Nodes this one connects to, as {@code host:port} separated by commas.
+     */
+    private String _clusterSeeds = "";
+    /**
+     * Address the cluster port is bound to, loopback unless the nodes run on other hosts.
+     */
+    private String _clusterBindAddress = "127.0.0.1";
+    /**
+     * Secret every node of the cluster shares, a node that doesn't prove it knows it isn't linked.
+     */
+    private String _clusterSecret = null;
+    /**
+     * Port of the TLS listener, next to the plain one ({@code 0} turns it off).
+     */
+    private int _tlsPort = 0;
+    /**
+     * Key store (PKCS12 or JKS) with the key and certificate of the TLS listener.
+     */
+    private Path _tlsKeyStore = null;
+    private String _tlsKeyStorePassword = "";
+    /**
+     * Threads running the TLS handshakes, the rest of the cores are left to the chat.
+     */
+    private int _tlsHandshakeThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    /**
+     * Most connections waiting for a handshake thread, the ones beyond are closed right away.
+     */
+    private int _tlsHandshakeBacklog = 1024;
+    /**
+     * How long a client has to finish its TLS handshake.
+     */
+    private long _tlsHandshakeTimeoutMillis = 10_000;
+    /**
+     * Most TLS sessions kept for clients to resume.
+     */
+    private int _tlsSessionCacheSize = 20_000;
+    /**
+     * How long a client may resume its TLS session.
+     */
+    private int _tlsSessionTimeoutSeconds = 24 * 60 * 60;
+    /**
+     * Most connections going through the nickname handshake at once, each on a thread of its own
+     * (thread and virtual modes).
+     */
+    private int _handshakeThreads = 256;
+    /**
+     * Most connections waiting for a handshake thread, the ones beyond are closed right away.
+     */
+    private int _handshakeBacklog = 1024;
+    /**
+     * How long a client has to choose its nickname once connected.
+     */
+    private long _handshakeTimeoutMillis = 30_000;
+    /**
+     * How long a stopping server waits for the peers to get what was queued for them.
+     */
+    private long _shutdownDrainMillis = 5_000;
+    /**
+     * Stops the server when the last user leaves (a node of a cluster never stops on its own).
+     */
+    private boolean _shutdownWhenEmpty = true;
+    /**
+     * How long a binary peer may stay silent before the server pings it ({@code 0} for no pings).
+     */
+    private long _heartbeatIntervalMillis = 15_000;
+    /**
+     * How long a binary peer may stay silent, pongs included, before it is taken for dead ({@code 0} for ever).
+     */
+    private long _idleReadTimeoutMillis = 45_000;
+    /**
+     * How long a text peer may stay silent ({@code 0} for ever): it can't be pinged, so only silence tells.
+     */
+    private long _idleTextReadTimeoutMillis = 0;
+    /**
+     * How long a write to a peer may stay unfinished, its client not reading at all, before it is taken for dead
+     * ({@code 0} for ever).
+     */
+    private long _idleWriteTimeoutMillis = 30_000;
+    /**
+     * The tick of the timer wheel that watches the peers, the precision of every idle timeout.
+     */
+    private long _idleTickMillis = 100;
+    /**
+     * How long the session of a binary peer whose connection dropped is kept for it to resume ({@code 0} for no sessions).
+     */
+    private long _sessionGraceMillis = 60_000;
+    /**
+     * Most messages kept for a session while its peer is away, the oldest go first.
+     */
+    private int _sessionBacklogMessages = 256;
+    /**
+     * Most private messages held for a peer that can't take them right now (changing its nickname, away).
+     */
+    private int _pmInboxMessages = 256;
+    /**
+     * Most bytes of private messages held for a peer.
+     */
+    private long _pmInboxBytes = 64 * 1024;
+    /**
+     * Most bytes of private messages held for all the peers together.
+     */
+    private long _pmTotalInboxBytes = 16 * 1024 * 1024;
+    /**
+     * Whether binary peers that ask for it get their large frames compressed.
+     */
+    private boolean _compressionEnabled = true;
+    /**
+     * The deflate level of the frames the server compresses, from {@code 1} (fastest) to {@code 9} (smallest).
+     */
+    private int _compressionLevel = 6;
+    /**
+     * Smallest frame (in bytes) the server compresses, below it deflate costs more than it saves.
+     */
+    private int _compressionThresholdBytes = 512;
+    /**
+     * Most messages sent to everyone that '/search' finds, the oldest are forgotten a few thousand at a time.
+     * {@code 0} turns the search off.
+     */
+    private int _searchMaxMessages = 100_000;
+    /**
+     * Most messages waiting for the search indexer, beyond it they are left out of the index.
+     */
+    private int _searchQueueMessages = 16_384;
+
+    // <<-METHODS->>
+    /**
+     * Builds a configuration with the defaults overridden by the {@code chatserver.*} system properties.
+     *
+     * @return the configuration
+     * @throws IllegalArgumentException if a property has an invalid value
+     */
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config._outboundCapacity   = intProperty("outbound.capacity", config._outboundCapacity);
+        config._blockTimeoutMillis = longProperty("outbound.blockTimeoutMillis", config._blockTimeoutMillis);
+        config._flushImmediate      = booleanProperty("flush.immediate", config._flushImmediate);
+        config._flushMaxDelayMillis = longProperty("flush.maxDelayMillis", config._flushMaxDelayMillis);
+        config._flushMaxBytes       = intProperty("flush.maxBytes", config._flushMaxBytes);
+        config._historyMaxMessages   = intProperty("history.maxMessages", config._historyMaxMessages);
+        config._historyMaxBytes      = longProperty("history.maxBytes", config._historyMaxBytes);
+        config._historyReplayOnJoin  = intProperty("history.replayOnJoin", config._historyReplayOnJoin);
+        config._historyTotalMaxBytes = longProperty("history.totalMaxBytes", config._historyTotalMaxBytes);
+        config._roomsMax             = intProperty("rooms.max", config._roomsMax);
+        config._logSegmentBytes       = intProperty("log.segmentBytes", config._logSegmentBytes);
+        config._logSyncIntervalMillis = longProperty("log.syncIntervalMillis", config._logSyncIntervalMillis);
+        config._logIndexIntervalBytes = intProperty("log.indexIntervalBytes", config._logIndexIntervalBytes);
+        config._logRetentionHours     = longProperty("log.retentionHours", config._logRetentionHours);
+        config._logRetentionBytes     = longProperty("log.retentionBytes", config._logRetentionBytes);
+        config._metricsPort           = intProperty("metrics.port", config._metricsPort);
+        config._rateMessagesPerSecond       = longProperty("rate.messagesPerSecond", config._rateMessagesPerSecond);
+        config._rateBytesPerSecond          = longProperty("rate.bytesPerSecond", config._rateBytesPerSecond);
+        config._rateGlobalMessagesPerSecond = longProperty("rate.globalMessagesPerSecond", config._rateGlobalMessagesPerSecond);
+        config._rateGlobalBytesPerSecond    = longProperty("rate.globalBytesPerSecond", config._rateGlobalBytesPerSecond);
+        config._rateBurstMillis             = longProperty("rate.burstMillis", config._rateBurstMillis);
+        config._adminPassword               = System.getProperty(PREFIX + "admin.password", config._adminPassword);
+        config._clusterNode                 = System.getProperty(PREFIX + "cluster.node", config._clusterNode);
+        config._clusterPort                 = intProperty("cluster.port", config._clusterPort);
+        config._clusterSeeds                = System.getProperty(PREFIX + "cluster.seeds", config._clusterSeeds);
+        config._clusterBindAddress          = System.getProperty(PREFIX + "cluster.bindAddress", config._clusterBindAddress);
+        config._clusterSecret               = System.getProperty(PREFIX + "cluster.secret", config._clusterSecret);
+        config._tlsPort                     = intProperty("tls.port", config._tlsPort);
+        config._tlsKeyStorePassword         = System.getProperty(PREFIX + "tls.keyStorePassword", config._tlsKeyStorePassword);
+        config._tlsHandshakeThreads         = intProperty("tls.handshakeThreads", config._tlsHandshakeThreads);
+        config._tlsHandshakeBacklog         = intProperty("tls.handshakeBacklog", config._tlsHandshakeBacklog);
+        config._tlsHandshakeTimeoutMillis   = longProperty("tls.handshakeTimeoutMillis", config._tlsHandshakeTimeoutMillis);
+        config._tlsSessionCacheSize         = intProperty("tls.sessionCacheSize", config._tlsSessionCacheSize);
+        config._tlsSessionTimeoutSeconds    = intProperty("tls.sessionTimeoutSeconds", config._tlsSessionTimeoutSeconds);
+        config._handshakeThreads            = intProperty("handshake.threads", config._handshakeThreads);
+        config._handshakeBacklog            = intProperty("handshake.backlog", config._handshakeBacklog);
+        config._handshakeTimeoutMillis      = longProperty("handshake.timeoutMillis", config._handshakeTimeoutMillis);
+        config._shutdownDrainMillis         = longProperty("shutdown.drainMillis", config._shutdownDrainMillis);
+        config._shutdownWhenEmpty           = booleanProperty("shutdown.whenEmpty", config._shutdownWhenEmpty);
+        config._heartbeatIntervalMillis     = longProperty("heartbeat.intervalMillis", config._heartbeatIntervalMillis);
+        config._idleReadTimeoutMillis       = longProperty("idle.readTimeoutMillis", config._idleReadTimeoutMillis);
+        config._idleTextReadTimeoutMillis   = longProperty("idle.textReadTimeoutMillis", config._idleTextReadTimeoutMillis);
+        config._idleWriteTimeoutMillis      = longProperty("idle.writeTimeoutMillis", config._idleWriteTimeoutMillis);
+        config._idleTickMillis              = longProperty("idle.tickMillis", config._idleTickMillis);
+        config._sessionGraceMillis          = longProperty("session.graceMillis", config._sessionGraceMillis);
+        config._sessionBacklogMessages      = intProperty("session.backlogMessages", config._sessionBacklogMessages);
+        config._pmInboxMessages             = intProperty("pm.inboxMessages", config._pmInboxMessages);
+        config._pmInboxBytes                = longProperty("pm.inboxBytes", config._pmInboxBytes);
+        config._pmTotalInboxBytes           = longProperty("pm.totalInboxBytes", config._pmTotalInboxBytes);
+        config._compressionEnabled          = booleanProperty("compression.enabled", config._compressionEnabled);
+        config._compressionLevel            = intProperty("compression.level", config._compressionLevel);
+        config._compressionThresholdBytes   = intProperty("compression.thresholdBytes", config._compressionThresholdBytes);
+        config._searchMaxMessages           = intProperty("search.maxMessages", config._searchMaxMessages);
+        config._searchQueueMessages         = intProperty("search.queueMessages", config._searchQueueMessages);
+        String tlsKeyStore = System.getProperty(PREFIX + "tls.keyStore");
+        if (tlsKeyStore != null && !tlsKeyStore.isBlank())
+            config._tlsKeyStore = Path.of(tlsKeyStore.trim());
+        if (config._tlsPort > 0 && config._tlsKeyStore == null)
+            throw new IllegalArgumentException(PREFIX + "tls.keyStore is needed for the TLS port");
+        if (config._tlsHandshakeThreads <= 0 || config._tlsHandshakeBacklog <= 0)
+            throw new IllegalArgumentException(PREFIX + "tls.handshakeThreads and " + PREFIX + "tls.handshakeBacklog must be above 0");
+        if (config._handshakeThreads <= 0 || config._handshakeBacklog <= 0 || config._handshakeTimeoutMillis <= 0)
+            throw new IllegalArgumentException(PREFIX + "handshake.threads, " + PREFIX + "handshake.backlog and "
+                                               + PREFIX + "handshake.timeoutMillis must be above 0");
+        if (config._heartbeatIntervalMillis < 0 || config._idleReadTimeoutMillis < 0
+            || config._idleTextReadTimeoutMillis < 0 || config._idleWriteTimeoutMillis < 0)
+            throw new IllegalArgumentException(PREFIX + "heartbeat.intervalMillis and the " + PREFIX + "idle.* timeouts can't be negative");
+        if (config._idleTickMillis <= 0)
+            throw new IllegalArgumentException(PREFIX + "idle.tickMillis must be above 0");
+        if (config._sessionGraceMillis < 0 || config._sessionBacklogMessages <= 0)
+            throw new IllegalArgumentException(PREFIX + "session.graceMillis can't be negative and "
+                                               + PREFIX + "session.backlogMessages must be above 0");
+        if (config._historyTotalMaxBytes < 0 || config._roomsMax < 0)
+            throw new IllegalArgumentException(PREFIX + "history.totalMaxBytes and " + PREFIX + "rooms.max can't be negative");
+        if (config._pmInboxMessages < 0 || config._pmInboxBytes < 0 || config._pmTotalInboxBytes < 0)
+            throw new IllegalArgumentException(PREFIX + "pm.inboxMessages, " + PREFIX + "pm.inboxBytes and "
+                                               + PREFIX + "pm.totalInboxBytes can't be negative");
+        if (config._compressionLevel < 1 || config._compressionLevel > 9 || config._compressionThresholdBytes < 0)
+            throw new IllegalArgumentException(PREFIX + "compression.level must be between 1 and 9 and "
+                                               + PREFIX + "compression.thresholdBytes can't be negative");
+        if (config._searchMaxMessages < 0 || config._searchQueueMessages <= 0)
+            throw new IllegalArgumentException(PREFIX + "search.maxMessages can't be negative and "
+                                               + PREFIX + "search.queueMessages must be above 0");
+        if (config._clusterNode != null && (config._clusterNode.isBlank() || config._clusterNode.contains(" ")))
+            throw new IllegalArgumentException(PREFIX + "cluster.node must be a name without spaces");
+        if (config._clusterNode != null && (config._clusterSecret == null || config._clusterSecret.isBlank()))
+            throw new IllegalArgumentException(PREFIX + "cluster.secret is needed for a node of a cluster");
+        String logDirectory = System.getProperty(PREFIX + "log.dir");
+        if (logDirectory != null && !logDirectory.isBlank())
+            config._logDirectory = Path.of(logDirectory.trim());
+        if (config._logSegmentBytes <= 0)
+            throw new IllegalArgumentException(PREFIX + "log.segmentBytes must be between 1 and " + Integer.MAX_VALUE);
+        String overflowPolicy = System.getProperty(PREFIX + "outbound.overflow");
+        if (overflowPolicy != null) {
+            try {
+                config._overflowPolicy = OverflowPolicy.parse(overflowPolicy);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(PREFIX + "outbound.overflow must be 'drop-oldest', 'disconnect' or 'block'", e);
+            }
+        }
+        String rateLimitPolicy = System.getProperty(PREFIX + "rate.action");
+        if (rateLimitPolicy != null) {
+            try {
+                config._rateLimitPolicy = RateLimitPolicy.parse(rateLimitPolicy);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(PREFIX + "rate.action must be 'delay', 'drop' or 'disconnect'", e);
+            }
+        }
+        return config;
+    }
+
+    private static boolean booleanProperty(String name, boolean defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    private static int intProperty(String name, int defaultValue) {
+        return (int) longProperty(name, defaultValue);
+    }
+
+    private static long longProperty(String name, long defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(PREFIX + name + " must be an integer value", e);
+        }
+    }
+
+    /**
+     * Creates an outbound queue for a peer with these settings.
+     *
+     * @return a new outbound queue
+     */
+    public OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(_outboundCapacity, _overflowPolicy, _blockTimeoutMillis);
+    }
+
+    /**
+     * Creates a message history with these settings and a byte budget of its own.
+     *
+     * @param name what the history belongs to (e.g. a room name)
+     * @return a new history
+     */
+    public History newHistory(String name) {
+        return newHistory(name, new AtomicLong());
+    }
+
+    /**
+     * Creates a message history with these settings, sharing a byte budget with other histories.
+     *
+     * @param name what the history belongs to (e.g. a room name)
+     * @param totalBytes the bytes kept by every history of the budget
+     * @return a new history
+     */
+    public History newHistory(String name, AtomicLong totalBytes) {
+        return new History(name, _historyMaxMessages, _historyMaxBytes, totalBytes, _historyTotalMaxBytes);
+    }
+
+    // <<-GETTERS & SETTERS->>
+    public int getOutboundCapacity() {
+        return _outboundCapacity;
+    }
+
+    public ServerConfig setOutboundCapacity(int outboundCapacity) {
+        _outboundCapacity = outboundCapacity;
+        return this;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return _overflowPolicy;
+    }
+
+    public ServerConfig setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        _overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    public long getBlockTimeoutMillis() {
+        return _blockTimeoutMillis;
+    }
+
+    public ServerConfig setBlockTimeoutMillis(long blockTimeoutMillis) {
+        _blockTimeoutMillis = blockTimeoutMillis;
+        return this;
+    }
+
+    public boolean isFlushImmediate() {
+        return _flushImmediate;
+    }
+
+    public ServerConfig setFlushImmediate(boolean flushImmediate) {
+        _flushImmediate = flushImmediate;
+        return this;
+    }
+
+    public long getFlushMaxDelayMillis() {
+        return _flushMaxDelayMillis;
+    }
+
+    public ServerConfig setFlushMaxDelayMillis(long flushMaxDelayMillis) {
+        _flushMaxDelayMillis = flushMaxDelayMillis;
+        return this;
+    }
+
+    public int getFlushMaxBytes() {
+        return _flushMaxBytes;
+    }
+
+    public ServerConfig setFlushMaxBytes(int flushMaxBytes) {
+        _flushMaxBytes = flushMaxBytes;
+        return this;
+    }
+
+    public int getHistoryMaxMessages() {
+        return _historyMaxMessages;
+    }
+
+    public ServerConfig setHistoryMaxMessages(int historyMaxMessages) {
+        _historyMaxMessages = historyMaxMessages;
+        return this;
+    }
+
+    public long getHistoryMaxBytes() {
+        return _historyMaxBytes;
+    }
+
+    public ServerConfig setHistoryMaxBytes(long historyMaxBytes) {
+        _historyMaxBytes = historyMaxBytes;
+        return this;
+    }
+
+    public int getHistoryReplayOnJoin() {
+        return _historyReplayOnJoin;
+    }
+
+    public ServerConfig setHistoryReplayOnJoin(int historyReplayOnJoin) {
+        _historyReplayOnJoin = historyReplayOnJoin;
+        return this;
+    }
+
+    public long getHistoryTotalMaxBytes() {
+        return _historyTotalMaxBytes;
+    }
+
+    public ServerConfig setHistoryTotalMaxBytes(long historyTotalMaxBytes) {
+        _historyTotalMaxBytes = historyTotalMaxBytes;
+        return this;
+    }
+
+    public int getRoomsMax() {
+        return _roomsMax;
+    }
+
+    public ServerConfig setRoomsMax(int roomsMax) {
+        _roomsMax = roomsMax;
+        return this;
+    }
+
+    public Path getLogDirectory() {
+        return _logDirectory;
+    }
+
+    public ServerConfig setLogDirectory(Path logDirectory) {
+        _logDirectory = logDirectory;
+        return this;
+    }
+
+    public int getLogSegmentBytes() {
+        return _logSegmentBytes;
+    }
+
+    public ServerConfig setLogSegmentBytes(int logSegmentBytes) {
+        _logSegmentBytes = logSegmentBytes;
+        return this;
+    }
+
+    public long getLogSyncIntervalMillis() {
+        return _logSyncIntervalMillis;
+    }
+
+    public ServerConfig setLogSyncIntervalMillis(long logSyncIntervalMillis) {
+        _logSyncIntervalMillis = logSyncIntervalMillis;
+        return this;
+    }
+
+    public int getLogIndexIntervalBytes() {
+        return _logIndexIntervalBytes;
+    }
+
+    public ServerConfig setLogIndexIntervalBytes(int logIndexIntervalBytes) {
+        _logIndexIntervalBytes = logIndexIntervalBytes;
+        return this;
+    }
+
+    public long getLogRetentionHours() {
+        return _logRetentionHours;
+    }
+
+    public ServerConfig setLogRetentionHours(long logRetentionHours) {
+        _logRetentionHours = logRetentionHours;
+        return this;
+    }
+
+    public long getLogRetentionBytes() {
+        return _logRetentionBytes;
+    }
+
+    public ServerConfig setLogRetentionBytes(long logRetentionBytes) {
+        _logRetentionBytes = logRetentionBytes;
+        return this;
+    }
+
+    public int getMetricsPort() {
+        return _metricsPort;
+    }
+
+    public ServerConfig setMetricsPort(int metricsPort) {
+        _metricsPort = metricsPort;
+        return this;
+    }
+
+    public long getRateMessagesPerSecond() {
+        return _rateMessagesPerSecond;
+    }
+
+    public ServerConfig setRateMessagesPerSecond(long rateMessagesPerSecond) {
+        _rateMessagesPerSecond = rateMessagesPerSecond;
+        return this;
+    }
+
+    public long getRateBytesPerSecond() {
+        return _rateBytesPerSecond;
+    }
+
+    public ServerConfig setRateBytesPerSecond(long rateBytesPerSecond) {
+        _rateBytesPerSecond = rateBytesPerSecond;
+        return this;
+    }
+
+    public long getRateGlobalMessagesPerSecond() {
+        return _rateGlobalMessagesPerSecond;
+    }
+
+    public ServerConfig setRateGlobalMessagesPerSecond(long rateGlobalMessagesPerSecond) {
+        _rateGlobalMessagesPerSecond = rateGlobalMessagesPerSecond;
+        return this;
+    }
+
+    public long getRateGlobalBytesPerSecond() {
+        return _rateGlobalBytesPerSecond;
+    }
+
+    public ServerConfig setRateGlobalBytesPerSecond(long rateGlobalBytesPerSecond) {
+        _rateGlobalBytesPerSecond = rateGlobalBytesPerSecond;
+        return this;
+    }
+
+    public long getRateBurstMillis() {
+        return _rateBurstMillis;
+    }
+
+    public ServerConfig setRateBurstMillis(long rateBurstMillis) {
+        _rateBurstMillis = rateBurstMillis;
+        return this;
+    }
+
+    public RateLimitPolicy getRateLimitPolicy() {
+        return _rateLimitPolicy;
+    }
+
+    public ServerConfig setRateLimitPolicy(RateLimitPolicy rateLimitPolicy) {
+        _rateLimitPolicy = rateLimitPolicy;
+        return this;
+    }
+
+    public String getAdminPassword() {
+        return _adminPassword;
+    }
+
+    public ServerConfig setAdminPassword(String adminPassword) {
+        _adminPassword = adminPassword;
+        return this;
+    }
+
+    public String getClusterNode() {
+        return _clusterNode;
+    }
+
+    public ServerConfig setClusterNode(String clusterNode) {
+        _clusterNode = clusterNode;
+        return this;
+    }
+
+    public int getClusterPort() {
+        return _clusterPort;
+    }
+
+    public ServerConfig setClusterPort(int clusterPort) {
+        _clusterPort = clusterPort;
+        return this;
+    }
+
+    public String getClusterSeeds() {
+        return _clusterSeeds;
+    }
+
+    public ServerConfig setClusterSeeds(String clusterSeeds) {
+        _clusterSeeds = clusterSeeds;
+        return this;
+    }
+
+    public String getClusterBindAddress() {
+        return _clusterBindAddress;
+    }
+
+    public ServerConfig setClusterBindAddress(String clusterBindAddress) {
+        _clusterBindAddress = clusterBindAddress;
+        return this;
+    }
+
+    public String getClusterSecret() {
+        return _clusterSecret;
+    }
+
+    public ServerConfig setClusterSecret(String clusterSecret) {
+        _clusterSecret = clusterSecret;
+        return this;
+    }
+
+    public int getTlsPort() {
+        return _tlsPort;
+    }
+
+    public ServerConfig setTlsPort(int tlsPort) {
+        _tlsPort = tlsPort;
+        return this;
+    }
+
+    public Path getTlsKeyStore() {
+        return _tlsKeyStore;
+    }
+
+    public ServerConfig setTlsKeyStore(Path tlsKeyStore) {
+        _tlsKeyStore = tlsKeyStore;
+        return this;
+    }
+
+    public String getTlsKeyStorePassword() {
+        return _tlsKeyStorePassword;
+    }
+
+    public ServerConfig setTlsKeyStorePassword(String tlsKeyStorePassword) {
+        _tlsKeyStorePassword = tlsKeyStorePassword;
+        return this;
+    }
+
+    public int getTlsHandshakeThreads() {
+        return _tlsHandshakeThreads;
+    }
+
+    public ServerConfig setTlsHandshakeThreads(int tlsHandshakeThreads) {
+        _tlsHandshakeThreads = tlsHandshakeThreads;
+        return this;
+    }
+
+    public int getTlsHandshakeBacklog() {
+        return _tlsHandshakeBacklog;
+    }
+
+    public ServerConfig setTlsHandshakeBacklog(int tlsHandshakeBacklog) {
+        _tlsHandshakeBacklog = tlsHandshakeBacklog;
+        return this;
+    }
+
+    public long getTlsHandshakeTimeoutMillis() {
+        return _tlsHandshakeTimeoutMillis;
+    }
+
+    public ServerConfig setTlsHandshakeTimeoutMillis(long tlsHandshakeTimeoutMillis) {
+        _tlsHandshakeTimeoutMillis = tlsHandshakeTimeoutMillis;
+        return this;
+    }
+
+    public int getTlsSessionCacheSize() {
+        return _tlsSessionCacheSize;
+    }
+
+    public ServerConfig setTlsSessionCacheSize(int tlsSessionCacheSize) {
+        _tlsSessionCacheSize = tlsSessionCacheSize;
+        return this;
+    }
+
+    public int getTlsSessionTimeoutSeconds() {
+        return _tlsSessionTimeoutSeconds;
+    }
+
+    public ServerConfig setTlsSessionTimeoutSeconds(int tlsSessionTimeoutSeconds) {
+        _tlsSessionTimeoutSeconds = tlsSessionTimeoutSeconds;
+        return this;
+    }
+
+    public int getHandshakeThreads() {
+        return _handshakeThreads;
+    }
+
+    public ServerConfig setHandshakeThreads(int handshakeThreads) {
+        _handshakeThreads = handshakeThreads;
+        return this;
+    }
+
+    public int getHandshakeBacklog() {
+        return _handshakeBacklog;
+    }
+
+    public ServerConfig setHandshakeBacklog(int handshakeBacklog) {
+        _handshakeBacklog = handshakeBacklog;
+        return this;
+    }
+
+    public long getHandshakeTimeoutMillis() {
+        return _handshakeTimeoutMillis;
+    }
+
+    public ServerConfig setHandshakeTimeoutMillis(long handshakeTimeoutMillis) {
+        _handshakeTimeoutMillis = handshakeTimeoutMillis;
+        return this;
+    }
+
+    public long getShutdownDrainMillis() {
+        return _shutdownDrainMillis;
+    }
+
+    public ServerConfig setShutdownDrainMillis(long shutdownDrainMillis) {
+        _shutdownDrainMillis = shutdownDrainMillis;
+        return this;
+    }
+
+    public boolean isShutdownWhenEmpty() {
+        return _shutdownWhenEmpty;
+    }
+
+    public ServerConfig setShutdownWhenEmpty(boolean shutdownWhenEmpty) {
+        _shutdownWhenEmpty = shutdownWhenEmpty;
+        return this;
+    }
+
+    public long getHeartbeatIntervalMillis() {
+        return _heartbeatIntervalMillis;
+    }
+
+    public ServerConfig setHeartbeatIntervalMillis(long heartbeatIntervalMillis) {
+        _heartbeatIntervalMillis = heartbeatIntervalMillis;
+        return this;
+    }
+
+    public long getIdleReadTimeoutMillis() {
+        return _idleReadTimeoutMillis;
+    }
+
+    public ServerConfig setIdleReadTimeoutMillis(long idleReadTimeoutMillis) {
+        _idleReadTimeoutMillis = idleReadTimeoutMillis;
+        return this;
+    }
+
+    public long getIdleTextReadTimeoutMillis() {
+        return _idleTextReadTimeoutMillis;
+    }
+
+    public ServerConfig setIdleTextReadTimeoutMillis(long idleTextReadTimeoutMillis) {
+        _idleTextReadTimeoutMillis = idleTextReadTimeoutMillis;
+        return this;
+    }
+
+    public long getIdleWriteTimeoutMillis() {
+        return _idleWriteTimeoutMillis;
+    }
+
+    public ServerConfig setIdleWriteTimeoutMillis(long idleWriteTimeoutMillis) {
+        _idleWriteTimeoutMillis = idleWriteTimeoutMillis;
+        return this;
+    }
+
+    public long getIdleTickMillis() {
+        return _idleTickMillis;
+    }
+
+    public ServerConfig setIdleTickMillis(long idleTickMillis) {
+        _idleTickMillis = idleTickMillis;
+        return this;
+    }
+
+    public long getSessionGraceMillis() {
+        return _sessionGraceMillis;
+    }
+
+    public ServerConfig setSessionGraceMillis(long sessionGraceMillis) {
+        _sessionGraceMillis = sessionGraceMillis;
+        return this;
+    }
+
+    public int getSessionBacklogMessages() {
+        return _sessionBacklogMessages;
+    }
+
+    public ServerConfig setSessionBacklogMessages(int sessionBacklogMessages) {
+        _sessionBacklogMessages = sessionBacklogMessages;
+        return this;
+    }
+
+    public int getPmInboxMessages() {
+        return _pmInboxMessages;
+    }
+
+    public ServerConfig setPmInboxMessages(int pmInboxMessages) {
+        _pmInboxMessages = pmInboxMessages;
+        return this;
+    }
+
+    public long getPmInboxBytes() {
+        return _pmInboxBytes;
+    }
+
+    public ServerConfig setPmInboxBytes(long pmInboxBytes) {
+        _pmInboxBytes = pmInboxBytes;
+        return this;
+    }
+
+    public long getPmTotalInboxBytes() {
+        return _pmTotalInboxBytes;
+    }
+
+    public ServerConfig setPmTotalInboxBytes(long pmTotalInboxBytes) {
+        _pmTotalInboxBytes = pmTotalInboxBytes;
+        return this;
+    }
+
+    public boolean isCompressionEnabled() {
+        return _compressionEnabled;
+    }
+
+    public ServerConfig setCompressionEnabled(boolean compressionEnabled) {
+        _compressionEnabled = compressionEnabled;
+        return this;
+    }
+
+    public int getCompressionLevel() {
+        return _compressionLevel;
+    }
+
+    public ServerConfig setCompressionLevel(int compressionLevel) {
+        _compressionLevel = compressionLevel;
+        return this;
+    }
+
+    public int getCompressionThresholdBytes() {
+        return _compressionThresholdBytes;
+    }
+
+    public ServerConfig setCompressionThresholdBytes(int compressionThresholdBytes) {
+        _compressionThresholdBytes = compressionThresholdBytes;
+        return this;
+    }
+
+    public int getSearchMaxMessages() {
+        return _searchMaxMessages;
+    }
+
+    public ServerConfig setSearchMaxMessages(int searchMaxMessages) {
+        _searchMaxMessages = searchMaxMessages;
+        return this;
+    }
+
+    public int getSearchQueueMessages() {
+        return _searchQueueMessages;
+    }
+
+    public ServerConfig setSearchQueueMessages(int searchQueueMessages) {
+        _searchQueueMessages = searchQueueMessages;
+        return this;
+    }
+
+}
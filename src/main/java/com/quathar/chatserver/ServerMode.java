@@ -0,0 +1,41 @@
+package com.quathar.chatserver;
+
+import java.util.Locale;
+
+/**
+ * <h1>ServerMode</h1>
+ * <br>
+ * The ways the chat server can serve its connections.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public enum ServerMode {
+
+    /**
+     * One platform thread per connected peer, blocking on its socket.
+     */
+    THREAD,
+    /**
+     * One virtual thread per connected peer, same blocking code as {@link #THREAD}
+     * but parked instead of holding an OS thread while it waits.
+     */
+    VIRTUAL,
+    /**
+     * A small pool of selector event loops (about one per core) shared by every peer.
+     */
+    NIO;
+
+    /**
+     * Parses a server mode from the command line, ignoring case in any default locale.
+     *
+     * @param mode the mode name
+     * @return the matching server mode
+     * @throws IllegalArgumentException if there is no mode with that name
+     */
+    public static ServerMode parse(String mode) {
+        return valueOf(mode.trim().toUpperCase(Locale.ROOT));
+    }
+
+}
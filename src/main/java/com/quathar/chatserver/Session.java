@@ -0,0 +1,320 @@
+package com.quathar.chatserver;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <h1>Session</h1>
+ * <br>
+ * What the server keeps of a binary peer so that it can connect again without going through its nickname handshake.<br>
+ * <br>
+ * The peer gets a token when it joins. If its connection drops, the session takes its place in the chat server
+ * for a grace period: it holds the nickname and the rooms of the peer, and it keeps the messages sent to it
+ * (the last ones, up to its backlog) after those the peer was never written. A client that comes back with the token
+ * in time gets its place back and just those messages: no nickname to choose, no history to replay.
+ * Otherwise the session leaves the chat, as the peer would have.<br>
+ * <br>
+ * Everything changes under the lock of the session, which the server also holds while it moves a peer in or out.
+ * The lock isn't a monitor, a virtual thread waiting for it doesn't pin its carrier.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+final class Session implements Peer {
+
+    // <<-CONSTANTS->>
+    private static final String SYSTEM = "S Y S T E M: ";
+
+    // <<-FIELDS->>
+    private final ChatServer _chatServer;
+    private final String _token;
+    private final int _capacity;
+    /**
+     * The messages for the peer while it is away, oldest first.
+     */
+    private final ArrayDeque<Payload> _backlog;
+    private final ReentrantLock _lock;
+    /**
+     * The peer of the session, {@code null} while it is away.
+     */
+    private Peer _peer;
+    /**
+     * The nickname of the peer when it went away.
+     */
+    private String _nickname;
+    /**
+     * Messages thrown away while the peer is away because the backlog was full.
+     */
+    private long _missed;
+    /**
+     * Times the peer went away, so a late expiry doesn't end the session after it came back and went again.
+     */
+    private int _parks;
+    private TimerWheel.Timeout _expiry;
+    private boolean _ended;
+
+    // <<-CONSTRUCTOR->>
+    /**
+     * Constructs the session of a peer that has just joined.
+     *
+     * @param chatServer the chat server, its settings and its timer wheel
+     * @param token the token the client gets back its session with
+     * @param peer the peer
+     */
+    Session(ChatServer chatServer, String token, Peer peer) {
+        _chatServer = chatServer;
+        _token      = token;
+        _capacity   = chatServer.getConfig().getSessionBacklogMessages();
+        _backlog    = new ArrayDeque<>();
+        _lock       = new ReentrantLock();
+        _peer       = peer;
+    }
+
+    // <<-METHODS->>
+    /**
+     * Takes the place of the peer, whose connection dropped, until it comes back or the grace period is over.
+     *
+     * @param peer the peer
+     * @param unsent the messages queued for the peer, they are kept for it
+     * @return {@code false} if the peer doesn't have the session anymore (it was resumed elsewhere or it ended)
+     */
+    boolean park(Peer peer, OutboundQueue unsent) {
+        _lock.lock();
+        try {
+            if (_ended || _peer != peer) return false;
+
+            _peer     = null;
+            _nickname = peer.getNickname();
+            Payload msg;
+            while ((msg = unsent.poll()) != null)
+                keep(msg);
+            int parks = ++_parks;
+            long grace = TimeUnit.MILLISECONDS.toNanos(_chatServer.getConfig().getSessionGraceMillis());
+            // The wheel thread must not block, the session leaves on a thread of its own
+            _expiry = _chatServer.getTimerWheel().schedule(() -> Thread.startVirtualThread(() -> expire(parks)), grace);
+            return true;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    private void keep(Payload msg) {
+        if (msg.getOpcode() == Frame.PING || msg.getOpcode() == Frame.ACK) return;
+        if (_backlog.size() == _capacity) {
+            _backlog.poll();
+            _missed++;
+        }
+        _backlog.add(msg);
+    }
+
+    /**
+     * Gives the session to the peer of a new connection, along with what it missed.<br>
+     * <br>
+     * If the previous connection of the peer looks alive to the server (it didn't notice it dropped yet),
+     * the new one takes its place all the same.
+     *
+     * @param peer the peer of the new connection
+     * @return whose place the peer takes: this session, or the previous peer; {@code null} if the session ended
+     */
+    Peer resume(Peer peer) {
+        _lock.lock();
+        try {
+            if (_ended) return null;
+
+            Peer previous = _peer != null ? _peer : this;
+            _peer = peer;
+            if (previous == this)
+                _expiry.cancel();
+            // Before anything that is forwarded to it from now on
+            peer.replay(missed());
+            _backlog.clear();
+            _missed = 0;
+            return previous;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Returns what a peer that comes back gets: its token (so its client knows it is back), a welcome,
+     * then the messages it missed.
+     *
+     * @return the replay
+     */
+    private Replay missed() {
+        Payload[] messages = new Payload[_backlog.size() + (_missed > 0 ? 4 : 3)];
+        int count = 0;
+        messages[count++] = Payload.session(_token);
+        messages[count++] = Payload.of(ChatServer.statusMessage(0));
+        messages[count++] = Payload.of(SYSTEM + "Welcome back, you are connected to the server");
+        if (_missed > 0)
+            messages[count++] = Payload.of(SYSTEM + _missed + " messages were lost while you were away");
+        for (Payload msg : _backlog)
+            messages[count++] = msg;
+        return new Missed(messages);
+    }
+
+    /**
+     * Ends the session, its peer left for good.
+     *
+     * @return {@code false} if it had already ended
+     */
+    boolean end() {
+        _lock.lock();
+        try {
+            if (_ended) return false;
+            _ended = true;
+            if (_expiry != null)
+                _expiry.cancel();
+            return true;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    private void expire(int parks) {
+        _lock.lock();
+        try {
+            if (_ended || _peer != null || _parks != parks) return;
+            _ended = true;
+        } finally {
+            _lock.unlock();
+        }
+        _chatServer.getMetrics().sessionExpired();
+        _chatServer.remove(this);
+    }
+
+    // <<-OVERRIDE->>
+    @Override
+    public String getNickname() {
+        _lock.lock();
+        try {
+            return _peer != null ? _peer.getNickname() : _nickname;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public void send(Payload msg) {
+        Peer peer;
+        _lock.lock();
+        try {
+            peer = _peer;
+            if (peer == null) {
+                if (!_ended) keep(msg);
+                return;
+            }
+        } finally {
+            _lock.unlock();
+        }
+        // Whoever found the session was just before the peer got its place back
+        peer.send(msg);
+    }
+
+    /**
+     * Sends a message to the peer if it is there, private messages wait in the inbox of the session meanwhile.
+     */
+    @Override
+    public boolean deliver(Payload msg) {
+        Peer peer;
+        _lock.lock();
+        try {
+            peer = _peer;
+        } finally {
+            _lock.unlock();
+        }
+        return peer != null && peer.deliver(msg);
+    }
+
+    /**
+     * Does nothing, only peers that are there ask for history.
+     */
+    @Override
+    public void replay(Replay replay) {}
+
+    /**
+     * Ends the session right away, its peer isn't there to get the farewell.
+     */
+    @Override
+    public void disconnect(Payload farewell) {
+        _lock.lock();
+        try {
+            if (_peer != null || !end()) return;
+        } finally {
+            _lock.unlock();
+        }
+        _chatServer.remove(this);
+    }
+
+    /**
+     * Does nothing, only peers that are there run commands.
+     */
+    @Override
+    public void changeNickname() {}
+
+    // <<-GETTERS->>
+    String getToken() {
+        return _token;
+    }
+
+    /**
+     * Returns the lock of the session, the server holds it while it moves a peer in or out.
+     *
+     * @return the lock
+     */
+    ReentrantLock getLock() {
+        return _lock;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        _lock.lock();
+        try {
+            return _backlog.size();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        _lock.lock();
+        try {
+            return _missed;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    // <<-MISSED->>
+    /**
+     * The messages a peer that comes back gets.
+     */
+    private static final class Missed implements Replay {
+
+        private final Payload[] _messages;
+        private int _next;
+
+        private Missed(Payload[] messages) {
+            _messages = messages;
+        }
+
+        @Override
+        public int next(Payload[] batch, int length) {
+            int count = Math.min(length, _messages.length - _next);
+            System.arraycopy(_messages, _next, batch, 0, count);
+            _next += count;
+            return count;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.quathar.chatserver;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <h1>SessionRegistry</h1>
+ * <br>
+ * The {@link Session sessions} of the chat server, indexed by token and by the peer they belong to.<br>
+ * <br>
+ * Tokens are 128 random bits, whoever has one gets the session: only its client ever sees it.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+final class SessionRegistry {
+
+    // <<-CONSTANTS->>
+    private static final int TOKEN_BYTES = 16;
+
+    // <<-FIELDS->>
+    private final ConcurrentMap<String, Session> _byToken;
+    /**
+     * The sessions of the peers that are there, the ones away are only found by token.
+     */
+    private final ConcurrentMap<Peer, Session> _byPeer;
+    private final SecureRandom _random;
+
+    // <<-CONSTRUCTOR->>
+    SessionRegistry() {
+        _byToken = new ConcurrentHashMap<>();
+        _byPeer  = new ConcurrentHashMap<>();
+        _random  = new SecureRandom();
+    }
+
+    // <<-METHODS->>
+    /**
+     * Opens a session for a peer that has just joined.
+     *
+     * @param chatServer the chat server
+     * @param peer the peer
+     * @return the session
+     */
+    Session open(ChatServer chatServer, Peer peer) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        _random.nextBytes(bytes);
+        Session session = new Session(chatServer, Base64.getUrlEncoder().withoutPadding().encodeToString(bytes), peer);
+        _byToken.put(session.getToken(), session);
+        _byPeer.put(peer, session);
+        return session;
+    }
+
+    /**
+     * Finds a session by its token.
+     *
+     * @param token the token
+     * @return the session, or {@code null} if there is none (or it ended)
+     */
+    Session get(String token) {
+        return _byToken.get(token);
+    }
+
+    /**
+     * Finds the session of a peer that is there.
+     *
+     * @param peer the peer
+     * @return the session, or {@code null} if it has none
+     */
+    Session get(Peer peer) {
+        return _byPeer.get(peer);
+    }
+
+    /**
+     * Notes that a session changed hands: its peer went away, or came back on a new connection.
+     *
+     * @param session the session
+     * @param previous who had it (the previous peer, or the session itself while the peer was away)
+     * @param peer who has it now (the new peer, or the session itself while the peer is away)
+     */
+    void move(Session session, Peer previous, Peer peer) {
+        _byPeer.remove(previous, session);
+        if (peer != session)
+            _byPeer.put(peer, session);
+    }
+
+    /**
+     * Forgets the session of a peer that left for good, or a session that ended.
+     *
+     * @param peer the peer, or the session
+     */
+    void end(Peer peer) {
+        Session session = peer instanceof Session ended ? ended : _byPeer.remove(peer);
+        if (session == null) return;
+        session.end();
+        _byToken.remove(session.getToken(), session);
+    }
+
+}
@@ -0,0 +1,211 @@
+package com.quathar.chatserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * <h1>TimerWheel</h1>
+ * <br>
+ * A hashed timer wheel: one thread runs the timeouts of every peer, however many there are.<br>
+ * <br>
+ * Time goes by in ticks. A timeout goes into the slot of the tick it is due at (modulo the size of the wheel),
+ * with the number of turns of the wheel still to wait. Every tick the thread runs the timeouts of one slot
+ * that are due, so scheduling and expiring cost the same with ten peers or a hundred thousand,
+ * and a timeout runs up to a tick late. Cancelled timeouts are only dropped when their slot comes up.<br>
+ * <br>
+ * Timeouts are scheduled from any thread, through a queue the wheel thread empties every tick.
+ * They run on the wheel thread, so they must be quick and never block.
+ * The time is {@link System#nanoTime()}, unless a test gives the wheel a clock of its own and ticks it itself.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+final class TimerWheel {
+
+    // <<-FIELDS->>
+    private final long _tickNanos;
+    private final List<List<Timeout>> _slots;
+    private final int _mask;
+    /**
+     * Timeouts scheduled since the last tick, the only state shared with other threads.
+     */
+    private final Queue<Timeout> _incoming;
+    private final LongSupplier _clock;
+    /**
+     * The moment the ticks are counted from.
+     */
+    private final long _origin;
+    /**
+     * Ticks done so far, wheel thread only.
+     */
+    private long _tick;
+    private volatile boolean _running;
+    private Thread _thread;
+
+    // <<-CONSTRUCTOR->>
+    /**
+     * Constructs a wheel, nothing runs until it is started.
+     *
+     * @param tickMillis the length of a tick
+     * @param slots the slots of the wheel, rounded up to a power of two
+     */
+    TimerWheel(long tickMillis, int slots) {
+        this(tickMillis, slots, System::nanoTime);
+    }
+
+    /**
+     * Constructs a wheel on a clock of its own, nothing runs until it is started (or ticked).
+     *
+     * @param tickMillis the length of a tick
+     * @param slots the slots of the wheel, rounded up to a power of two
+     * @param clock the time in nanoseconds, as {@link System#nanoTime()} gives it
+     */
+    TimerWheel(long tickMillis, int slots, LongSupplier clock) {
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        _tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        _slots     = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            _slots.add(new ArrayList<>());
+        _mask      = size - 1;
+        _incoming  = new ConcurrentLinkedQueue<>();
+        _clock     = clock;
+        _origin    = clock.getAsLong();
+    }
+
+    // <<-METHODS->>
+    /**
+     * Starts the wheel thread.
+     *
+     * @param name the name of the thread
+     */
+    synchronized void start(String name) {
+        if (_thread != null) return;
+        _running = true;
+        _thread  = Thread.ofPlatform().name(name).start(this::run);
+    }
+
+    /**
+     * Stops the wheel thread and waits for it, the timeouts still pending never run.
+     */
+    synchronized void stop() {
+        _running = false;
+        if (_thread == null) return;
+        LockSupport.unpark(_thread);
+        try {
+            _thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Schedules a task.
+     *
+     * @param task what to run, on the wheel thread
+     * @param delayNanos how long from now
+     * @return the timeout, to cancel it
+     */
+    Timeout schedule(Runnable task, long delayNanos) {
+        Timeout timeout = new Timeout(task, now() - _origin + Math.max(0, delayNanos));
+        _incoming.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Returns the time on the clock of the wheel, what the deadlines of the timeouts are measured against.
+     *
+     * @return the time in nanoseconds, as {@link System#nanoTime()} gives it
+     */
+    long now() {
+        return _clock.getAsLong();
+    }
+
+    private void run() {
+        while (_running) {
+            long wait = _origin + (_tick + 1) * _tickNanos - now();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            tick();
+        }
+    }
+
+    /**
+     * Runs the timeouts of the next tick, on the wheel thread or, when the wheel isn't started, a test.
+     */
+    void tick() {
+        transferIncoming();
+        expire(_slots.get((int) (_tick & _mask)));
+        _tick++;
+    }
+
+    /**
+     * Puts the timeouts scheduled since the last tick into their slots.
+     */
+    private void transferIncoming() {
+        Timeout timeout;
+        while ((timeout = _incoming.poll()) != null) {
+            if (timeout._cancelled) continue;
+            // The first tick at or after the deadline, never one that is already done
+            long due = Math.max(_tick, (timeout._deadline + _tickNanos - 1) / _tickNanos);
+            timeout._rounds = (due - _tick) / _slots.size();
+            _slots.get((int) (due & _mask)).add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> slot) {
+        int kept = 0;
+        for (int i = 0, size = slot.size(); i < size; i++) {
+            Timeout timeout = slot.get(i);
+            if (timeout._cancelled) continue;
+            if (timeout._rounds > 0) {
+                timeout._rounds--;
+                slot.set(kept++, timeout);
+                continue;
+            }
+            try {
+                timeout._task.run();
+            } catch (RuntimeException e) {
+                System.err.println("E R R O R: TimerWheel --> " + e);
+            }
+        }
+        slot.subList(kept, slot.size()).clear();
+    }
+
+    // <<-TIMEOUT->>
+    /**
+     * A scheduled task.
+     */
+    static final class Timeout {
+        private final Runnable _task;
+        /**
+         * When it is due, in nanoseconds from the origin of the wheel.
+         */
+        private final long _deadline;
+        /**
+         * Turns of the wheel still to wait, wheel thread only.
+         */
+        private long _rounds;
+        private volatile boolean _cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            _task     = task;
+            _deadline = deadline;
+        }
+
+        /**
+         * Cancels the task, unless it already ran.
+         */
+        void cancel() {
+            _cancelled = true;
+        }
+    }
+
+}
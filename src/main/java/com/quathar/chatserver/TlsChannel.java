@@ -0,0 +1,416 @@
+package com.quathar.chatserver;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <h1>TlsChannel</h1>
+ * <br>
+ * A socket channel encrypted by an {@link SSLEngine}, blocking or not like the channel underneath.<br>
+ * <br>
+ * The server hands it to the peers in place of the plain channel: a {@link ChannelPeer} reads and writes it
+ * from its event loop, a {@link ChatPeer} through its {@link #newInputStream() streams}.
+ * Reading and writing may happen at once from two threads, each side has its own buffers and lock.
+ * The locks aren't monitors, a virtual thread waiting on the channel doesn't pin its carrier.<br>
+ * <br>
+ * Whatever is written in one go is encrypted in as few records as it fits in (16 KiB each),
+ * so the batches of the writers save records (and their MACs) as well as syscalls.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public final class TlsChannel implements ByteChannel {
+
+    // <<-CONSTANTS->>
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    // <<-FIELDS->>
+    private final SocketChannel _channel;
+    private final SSLEngine _engine;
+    private final ReentrantLock _readLock;
+    private final ReentrantLock _writeLock;
+    /**
+     * Encrypted bytes read from the channel and not decrypted yet (in write mode).
+     */
+    private ByteBuffer _netIn;
+    /**
+     * Decrypted bytes nobody has read yet (in write mode).
+     */
+    private ByteBuffer _appIn;
+    /**
+     * Encrypted bytes the channel didn't take yet (in read mode).
+     */
+    private ByteBuffer _netOut;
+    private boolean _inboundDone;
+    private boolean _resumed;
+    private volatile boolean _closed;
+
+    // <<-CONSTRUCTOR->>
+    /**
+     * Wraps a connected channel, nothing is exchanged until the {@link #handshake()}.
+     *
+     * @param channel the connected channel
+     * @param engine the engine, in server or client mode
+     */
+    public TlsChannel(SocketChannel channel, SSLEngine engine) {
+        SSLSession session = engine.getSession();
+        _channel   = channel;
+        _engine    = engine;
+        _readLock  = new ReentrantLock();
+        _writeLock = new ReentrantLock();
+        _netIn     = ByteBuffer.allocate(session.getPacketBufferSize());
+        _appIn     = ByteBuffer.allocate(session.getApplicationBufferSize());
+        _netOut    = ByteBuffer.allocate(session.getPacketBufferSize()).flip();
+    }
+
+    // <<-METHODS->>
+    /**
+     * Goes through the whole handshake, the channel must be blocking meanwhile.<br>
+     * <br>
+     * Anything the other end sends right after its last handshake message is kept for the first read.
+     *
+     * @throws IOException if the handshake fails or the other end leaves
+     */
+    public void handshake() throws IOException {
+        long started = System.currentTimeMillis();
+        _readLock.lock();
+        _writeLock.lock();
+        try {
+            _engine.beginHandshake();
+            while (true) {
+                switch (_engine.getHandshakeStatus()) {
+                    case NEED_WRAP -> {
+                        wrap(EMPTY);
+                        flushOut();
+                    }
+                    case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+                        SSLEngineResult result = unwrapOnce();
+                        if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                            throw new SSLException("Closed during the handshake");
+                        if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && readMore() == -1)
+                            throw new EOFException("Closed during the handshake");
+                    }
+                    case NEED_TASK -> runTasks();
+                    default -> {
+                        // A resumed session was created by an earlier handshake
+                        _resumed = _engine.getSession().getCreationTime() < started;
+                        return;
+                    }
+                }
+            }
+        } finally {
+            _writeLock.unlock();
+            _readLock.unlock();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = _engine.getDelegatedTask()) != null)
+            task.run();
+    }
+
+    /**
+     * Reads more encrypted bytes, making room for a whole record if the buffer is full.
+     */
+    private int readMore() throws IOException {
+        if (!_netIn.hasRemaining())
+            _netIn = enlarge(_netIn, _engine.getSession().getPacketBufferSize());
+        return _channel.read(_netIn);
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int atLeast) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, atLeast));
+        return larger.put(buffer.flip());
+    }
+
+    private SSLEngineResult unwrapOnce() throws SSLException {
+        _netIn.flip();
+        try {
+            return _engine.unwrap(_netIn, _appIn);
+        } finally {
+            _netIn.compact();
+        }
+    }
+
+    /**
+     * Decrypts every complete record read so far, as long as there is room for it.
+     *
+     * @return {@code true} if any record was decrypted (or the other end closed)
+     */
+    private boolean unwrap() throws IOException {
+        boolean progress = false;
+        while (_netIn.position() > 0) {
+            SSLEngineResult result = unwrapOnce();
+            switch (result.getStatus()) {
+                case CLOSED -> {
+                    _inboundDone = true;
+                    return true;
+                }
+                case BUFFER_UNDERFLOW -> {
+                    return progress;
+                }
+                case BUFFER_OVERFLOW -> {
+                    // There will be room once the caller reads what is there
+                    if (_appIn.position() > 0) return progress;
+                    _appIn = enlarge(_appIn, _engine.getSession().getApplicationBufferSize());
+                }
+                case OK -> {
+                    if (result.bytesConsumed() == 0) return progress;
+                    progress = true;
+                    afterRecord(result.getHandshakeStatus());
+                }
+            }
+        }
+        return progress;
+    }
+
+    /**
+     * Answers the handshake messages that come after the handshake (e.g. a key update).
+     */
+    private void afterRecord(SSLEngineResult.HandshakeStatus status) throws IOException {
+        if (status == SSLEngineResult.HandshakeStatus.NEED_TASK)
+            runTasks();
+        if (_engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP) return;
+
+        _writeLock.lock();
+        try {
+            if (flushOut()) {
+                wrap(EMPTY);
+                flushOut();
+            }
+        } finally {
+            _writeLock.unlock();
+        }
+    }
+
+    /**
+     * Encrypts into the outbound buffer, which must be empty.
+     */
+    private SSLEngineResult wrap(ByteBuffer src) throws SSLException {
+        while (true) {
+            _netOut.clear();
+            SSLEngineResult result;
+            try {
+                result = _engine.wrap(src, _netOut);
+            } finally {
+                _netOut.flip();
+            }
+            if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) return result;
+            _netOut = ByteBuffer.allocate(Math.max(_netOut.capacity() * 2, _engine.getSession().getPacketBufferSize())).flip();
+        }
+    }
+
+    /**
+     * Writes the encrypted bytes the channel didn't take yet.
+     *
+     * @return {@code true} if they are all written
+     */
+    private boolean flushOut() throws IOException {
+        while (_netOut.hasRemaining())
+            if (_channel.write(_netOut) == 0) return false;
+        return true;
+    }
+
+    /**
+     * Writes whatever encrypted bytes the channel didn't take before, without blocking on a non-blocking channel.
+     *
+     * @return {@code true} if there is nothing left to write
+     * @throws IOException if an I/O error occurs while writing
+     */
+    public boolean flush() throws IOException {
+        _writeLock.lock();
+        try {
+            return flushOut();
+        } finally {
+            _writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns input streams for blocking channels, without a monitor (unlike {@code Channels.newInputStream}).
+     *
+     * @return a stream reading this channel
+     */
+    public InputStream newInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return len == 0 ? 0 : TlsChannel.this.read(ByteBuffer.wrap(b, off, len));
+            }
+
+            @Override
+            public void close() throws IOException {
+                TlsChannel.this.close();
+            }
+        };
+    }
+
+    /**
+     * Returns output streams for blocking channels, without a monitor (unlike {@code Channels.newOutputStream}).
+     *
+     * @return a stream writing this channel
+     */
+    public OutputStream newOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer src = ByteBuffer.wrap(b, off, len);
+                while (src.hasRemaining())
+                    TlsChannel.this.write(src);
+            }
+
+            @Override
+            public void close() throws IOException {
+                TlsChannel.this.close();
+            }
+        };
+    }
+
+    // <<-OVERRIDE->>
+    /**
+     * Reads decrypted bytes.
+     *
+     * @param dst the buffer to fill
+     * @return the bytes read, {@code 0} if a non-blocking channel has no whole record yet,
+     *         {@code -1} if the other end closed
+     * @throws IOException if an I/O error occurs or a record isn't valid
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        _readLock.lock();
+        try {
+            while (_appIn.position() == 0) {
+                if (_inboundDone) return -1;
+                if (unwrap()) continue;
+                int read = readMore();
+                if (read == -1) _inboundDone = true;
+                if (read <= 0) return read;
+            }
+            _appIn.flip();
+            int count = Math.min(dst.remaining(), _appIn.remaining());
+            dst.put(dst.position(), _appIn, _appIn.position(), count);
+            dst.position(dst.position() + count);
+            _appIn.position(_appIn.position() + count);
+            _appIn.compact();
+            return count;
+        } finally {
+            _readLock.unlock();
+        }
+    }
+
+    /**
+     * Encrypts and writes bytes.<br>
+     * <br>
+     * On a non-blocking channel the last record may not be written yet when it returns,
+     * see {@link #hasPendingOutput()} and {@link #flush()}.
+     *
+     * @param src the bytes to write
+     * @return the bytes taken from the buffer
+     * @throws IOException if an I/O error occurs or the channel is closed
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        _writeLock.lock();
+        try {
+            int written = 0;
+            while (flushOut() && src.hasRemaining()) {
+                SSLEngineResult result = wrap(src);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                    throw new ClosedChannelException();
+                written += result.bytesConsumed();
+            }
+            return written;
+        } finally {
+            _writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !_closed && _channel.isOpen();
+    }
+
+    /**
+     * Closes the channel, telling the other end first (a {@code close_notify}) if it can be done without waiting:
+     * on a blocking channel the write could wait forever on a client that doesn't read.
+     *
+     * @throws IOException if the channel can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (_closed) return;
+        _closed = true;
+        if (!_channel.isBlocking() && _writeLock.tryLock()) {
+            try {
+                _engine.closeOutbound();
+                if (flushOut()) {
+                    wrap(EMPTY);
+                    flushOut();
+                }
+            } catch (IOException e) {
+                // Closing anyway
+            } finally {
+                _writeLock.unlock();
+            }
+        }
+        _channel.close();
+    }
+
+    // <<-GETTERS->>
+    public SocketChannel getSocketChannel() {
+        return _channel;
+    }
+
+    /**
+     * Checks if the handshake resumed a session instead of negotiating a new one.
+     *
+     * @return {@code true} if the session was resumed
+     */
+    public boolean isResumed() {
+        return _resumed;
+    }
+
+    /**
+     * Checks if there are encrypted bytes the channel didn't take yet.
+     *
+     * @return {@code true} if they must be {@link #flush() flushed}
+     */
+    public boolean hasPendingOutput() {
+        return _netOut.hasRemaining();
+    }
+
+    /**
+     * Checks if there are bytes already read from the channel that weren't read from this one yet:
+     * the channel won't be readable for them.
+     *
+     * @return {@code true} if they must be read
+     */
+    public boolean hasBufferedInput() {
+        return _appIn.position() > 0 || _netIn.position() > 0;
+    }
+
+}
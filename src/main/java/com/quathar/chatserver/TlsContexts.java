@@ -0,0 +1,73 @@
+package com.quathar.chatserver;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * <h1>TlsContexts</h1>
+ * <br>
+ * The TLS contexts of the server and of its clients.<br>
+ * <br>
+ * A context keeps the sessions it has been through: a client that connects again with the same
+ * context resumes its session (an abbreviated handshake, no certificate nor key exchange to verify)
+ * as long as the server still takes it, see {@link ServerConfig#getTlsSessionTimeoutSeconds()}.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+public final class TlsContexts {
+
+    // <<-CONSTANTS->>
+    private static final String PROTOCOL = "TLS";
+
+    // <<-CONSTRUCTOR->>
+    private TlsContexts() {}
+
+    // <<-METHODS->>
+    /**
+     * Creates the context of the TLS listener, with the key store and session cache of the settings.
+     *
+     * @param config the server settings
+     * @return the server context
+     * @throws IOException if the key store can't be read
+     * @throws GeneralSecurityException if the key store or its password aren't valid
+     */
+    public static SSLContext server(ServerConfig config) throws IOException, GeneralSecurityException {
+        char[] password = config.getTlsKeyStorePassword().toCharArray();
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(KeyStore.getInstance(config.getTlsKeyStore().toFile(), password), password);
+
+        SSLContext context = SSLContext.getInstance(PROTOCOL);
+        context.init(keys.getKeyManagers(), null, null);
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(config.getTlsSessionCacheSize());
+        sessions.setSessionTimeout(config.getTlsSessionTimeoutSeconds());
+        return context;
+    }
+
+    /**
+     * Creates a client context that trusts the certificates of a trust store,
+     * e.g. the key store of a server with a self-signed certificate.
+     *
+     * @param trustStore the trust store (PKCS12 or JKS)
+     * @param password the password of the trust store
+     * @return the client context
+     * @throws IOException if the trust store can't be read
+     * @throws GeneralSecurityException if the trust store or its password aren't valid
+     */
+    public static SSLContext client(Path trustStore, String password) throws IOException, GeneralSecurityException {
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(KeyStore.getInstance(trustStore.toFile(), password.toCharArray()));
+        SSLContext context = SSLContext.getInstance(PROTOCOL);
+        context.init(null, trust.getTrustManagers(), null);
+        return context;
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.quathar.chatserver;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.function.Consumer;
+
+/**
+ * <h1>TlsListener</h1>
+ * <br>
+ * The TLS port of the chat server, next to the plain one.<br>
+ * <br>
+ * Handshakes are expensive (a full one costs milliseconds of CPU), so they never run on the accept thread
+ * nor on the threads that deliver messages: a few handshake threads of their own run them,
+ * with a bounded queue in front (a {@link HandshakeExecutor}). A burst of reconnecting clients waits there,
+ * and if the queue is full the newest connections are closed right away, the chat itself goes on at its pace.
+ * A client that doesn't finish its handshake in time is closed as well.<br>
+ * <br>
+ * Once through, the connection is handed over to the server, which serves it like a plain one.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+final class TlsListener {
+
+    // <<-CONSTANTS->>
+    /**
+     * Pending connections the OS may queue up.
+     */
+    private static final int BACKLOG = 1024;
+
+    // <<-FIELDS->>
+    private final ServerSocketChannel _server;
+    private final SSLContext _context;
+    private final Metrics _metrics;
+    private final HandshakeExecutor _handshakes;
+    private final int _threads;
+
+    // <<-CONSTRUCTOR->>
+    /**
+     * Binds the TLS port, nothing is accepted until the listener is started.
+     *
+     * @param config the server settings
+     * @param metrics where the handshakes are recorded
+     * @throws IOException if the port can't be bound or the key store can't be read
+     * @throws GeneralSecurityException if the key store isn't valid
+     */
+    TlsListener(ServerConfig config, Metrics metrics) throws IOException, GeneralSecurityException {
+        _context    = TlsContexts.server(config);
+        _metrics    = metrics;
+        _threads    = config.getTlsHandshakeThreads();
+        _handshakes = new HandshakeExecutor("chat-tls-handshake-", _threads, config.getTlsHandshakeBacklog(),
+                                            config.getTlsHandshakeTimeoutMillis(),
+                                            Thread.ofPlatform().name("chat-tls-handshake-", 0).daemon().factory(),
+                                            metrics::tlsFailed);
+        _server     = ServerSocketChannel.open();
+        _server.bind(new InetSocketAddress(config.getTlsPort()), BACKLOG);
+    }
+
+    // <<-METHODS->>
+    /**
+     * Starts accepting connections on a thread of its own.
+     *
+     * @param handoff takes every connection once its handshake is done
+     */
+    void start(Consumer<TlsChannel> handoff) {
+        Thread.ofPlatform().name("chat-tls-listener").daemon().start(() -> accept(handoff));
+        System.out.printf("S E R V E R --> TLS on port %d, %d handshake threads%n", getPort(), _threads);
+    }
+
+    private void accept(Consumer<TlsChannel> handoff) {
+        try {
+            while (true) {
+                SocketChannel channel = _server.accept();
+                long accepted = System.nanoTime();
+                _metrics.connectionAccepted();
+                channel.socket().setTcpNoDelay(true);
+                if (!_handshakes.execute(channel, () -> handshake(channel, accepted, handoff)))
+                    _metrics.tlsRefused();
+            }
+        } catch (IOException e) {
+            if (_server.isOpen())
+                System.err.println("E R R O R: TlsListener --> accept()");
+        }
+    }
+
+    /**
+     * Runs the handshake of a connection on a handshake thread.
+     *
+     * @return hands the connection over to the server
+     */
+    private Runnable handshake(SocketChannel channel, long accepted, Consumer<TlsChannel> handoff) throws IOException {
+        SSLEngine engine = _context.createSSLEngine();
+        engine.setUseClientMode(false);
+        TlsChannel tls = new TlsChannel(channel, engine);
+        tls.handshake();
+        _metrics.tlsHandshake(accepted, tls.isResumed());
+        return () -> handoff.accept(tls);
+    }
+
+    /**
+     * Stops accepting connections and closes the ones still in their handshake.
+     */
+    void stop() {
+        try {
+            _server.close();
+        } catch (IOException e) {
+            System.err.println("E R R O R: TlsListener --> stop()");
+        }
+        _handshakes.shutdownNow();
+    }
+
+    // <<-GETTERS->>
+    int getPort() {
+        return _server.socket().getLocalPort();
+    }
+
+}
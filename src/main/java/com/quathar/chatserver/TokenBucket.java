@@ -0,0 +1,74 @@
+package com.quathar.chatserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <h1>TokenBucket</h1>
+ * <br>
+ * A token bucket kept as a single {@link AtomicLong}: the time at which it will be full again
+ * (the "theoretical arrival time" of the generic cell rate algorithm).<br>
+ * <br>
+ * Taking tokens moves that time forward by what they are worth at the rate,
+ * and is refused if it would end more than a burst ahead of now.
+ * There is no refill thread and no lock, just a compare-and-set.
+ * The rate and the burst are given on every call, so they can change at any time.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+final class TokenBucket {
+
+    // <<-FIELDS->>
+    private final AtomicLong _fullAt;
+
+    // <<-CONSTRUCTOR->>
+    TokenBucket() {
+        _fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    // <<-METHODS->>
+    /**
+     * Takes tokens from the bucket.<br>
+     * <br>
+     * A take larger than the whole burst costs just the burst,
+     * so it goes through once the bucket is full instead of never.
+     *
+     * @param tokens the tokens to take
+     * @param nanosPerToken what a token is worth, the nanoseconds the bucket takes to get it back
+     * @param burstNanos how much time worth of tokens the bucket holds
+     * @param borrow {@code true} to take them anyway, leaving the bucket in debt
+     * @param now the current time, from {@link System#nanoTime()}
+     * @return {@code 0} if there were tokens enough, otherwise the nanoseconds until there would have been
+     *         (they are taken only when borrowing)
+     */
+    long take(long tokens, double nanosPerToken, long burstNanos, boolean borrow, long now) {
+        long cost = cost(tokens, nanosPerToken, burstNanos);
+        while (true) {
+            long fullAt = _fullAt.get();
+            long next = (fullAt - now > 0 ? fullAt : now) + cost;
+            long wait = next - now - burstNanos;
+            if (wait > 0 && !borrow) return wait;
+            if (_fullAt.compareAndSet(fullAt, next)) return Math.max(wait, 0);
+        }
+    }
+
+    /**
+     * Puts back tokens taken by {@link #take(long, double, long, boolean, long)}
+     * for something that didn't go through after all.<br>
+     * <br>
+     * If the bucket was full when they were taken it ends up full again, never fuller.
+     *
+     * @param tokens the tokens taken
+     * @param nanosPerToken what a token was worth when they were taken
+     * @param burstNanos how much time worth of tokens the bucket held when they were taken
+     */
+    void giveBack(long tokens, double nanosPerToken, long burstNanos) {
+        _fullAt.addAndGet(-cost(tokens, nanosPerToken, burstNanos));
+    }
+
+    private static long cost(long tokens, double nanosPerToken, long burstNanos) {
+        return Math.min((long) (tokens * nanosPerToken), burstNanos);
+    }
+
+}
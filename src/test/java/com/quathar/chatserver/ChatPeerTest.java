@@ -0,0 +1,115 @@
+package com.quathar.chatserver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * <h1>ChatPeerTest</h1>
+ * <br>
+ * A binary client of the thread and virtual modes, over loopback, through a '/nick' that outlasts the heartbeat.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+class ChatPeerTest {
+
+    // <<-CONSTANTS->>
+    private static final long HEARTBEAT_MILLIS = 100;
+
+    // <<-FIELDS->>
+    private ChatServer _server;
+
+    @AfterEach
+    void stop() {
+        if (_server != null) _server.stop();
+    }
+
+    @Test
+    void slowRenameOutlastsThePingsOfThreadMode() throws IOException {
+        slowRename(ServerMode.THREAD);
+    }
+
+    @Test
+    void slowRenameOutlastsThePingsOfVirtualMode() throws IOException {
+        slowRename(ServerMode.VIRTUAL);
+    }
+
+    private void slowRename(ServerMode mode) throws IOException {
+        _server = new ChatServer(0, mode, new ServerConfig().setShutdownWhenEmpty(false)
+                                                            .setHeartbeatIntervalMillis(HEARTBEAT_MILLIS)
+                                                            .setIdleTickMillis(HEARTBEAT_MILLIS / 2));
+        _server.start();
+        try (Socket socket = new Socket("127.0.0.1", _server.getPort())) {
+            socket.setSoTimeout(5_000);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            out.write(Frame.PREFACE);
+            awaitPreface(in);
+            out.write(Frame.encode(Frame.NICKNAME, 0, 0, 0, "", "", "alice"));
+            awaitText(in, out, "Welcome");
+
+            out.write(Frame.encode(Frame.COMMAND, 0, 0, 0, "", "", "/nick"));
+            awaitPrompt(in, out);
+            // Thinking about it for a few heartbeats, answering the pings meanwhile
+            int pings = 0;
+            long until = System.currentTimeMillis() + 5 * HEARTBEAT_MILLIS;
+            while (System.currentTimeMillis() < until || pings == 0) {
+                Frame frame = Frame.read(in);
+                assertNotNull(frame, "The server closed the connection");
+                if (frame.getOpcode() == Frame.PING) {
+                    out.write(Frame.encode(Frame.PONG, 0, 0, 0, "", "", ""));
+                    pings++;
+                }
+            }
+            out.write(Frame.encode(Frame.NICKNAME, 0, 0, 0, "", "", "alicia"));
+            assertTrue(awaitText(in, out, "successfully changed").contains("successfully changed"));
+        }
+    }
+
+    /**
+     * Skips the text prompt sent before the client switched, up to the preface sent back.
+     */
+    static void awaitPreface(InputStream in) throws IOException {
+        int b;
+        while ((b = in.read()) != Frame.PREFACE[0])
+            assertTrue(b >= 0, "The server closed the connection");
+        byte[] preface = new byte[Frame.PREFACE.length];
+        in.readNBytes(preface, 1, preface.length - 1);
+        assertTrue(Frame.isPreface(preface));
+    }
+
+    /**
+     * Reads frames, answering pings, until a text frame holds something.
+     */
+    static String awaitText(InputStream in, OutputStream out, String text) throws IOException {
+        while (true) {
+            Frame frame = Frame.read(in);
+            assertNotNull(frame, "The server closed the connection");
+            if (frame.getOpcode() == Frame.PING)
+                out.write(Frame.encode(Frame.PONG, 0, 0, 0, "", "", ""));
+            else if (frame.getOpcode() == Frame.TEXT && frame.getBody().contains(text))
+                return frame.getBody();
+        }
+    }
+
+    private static void awaitPrompt(InputStream in, OutputStream out) throws IOException {
+        while (true) {
+            Frame frame = Frame.read(in);
+            assertNotNull(frame, "The server closed the connection");
+            if (frame.getOpcode() == Frame.PING)
+                out.write(Frame.encode(Frame.PONG, 0, 0, 0, "", "", ""));
+            else if (frame.getOpcode() == Frame.NICKNAME)
+                return;
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.quathar.chatserver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * <h1>ChatServerTest</h1>
+ * <br>
+ * Commands that only admins may run, through a binary client over loopback.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+class ChatServerTest {
+
+    // <<-FIELDS->>
+    private ChatServer _server;
+
+    @AfterEach
+    void stop() {
+        if (_server != null) _server.stop();
+    }
+
+    @Test
+    void statsAreForAdminsOnly() throws IOException {
+        _server = new ChatServer(0, ServerMode.THREAD, new ServerConfig().setShutdownWhenEmpty(false)
+                                                                         .setAdminPassword("secret"));
+        _server.start();
+        try (Socket socket = new Socket("127.0.0.1", _server.getPort())) {
+            socket.setSoTimeout(5_000);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            out.write(Frame.PREFACE);
+            ChatPeerTest.awaitPreface(in);
+            out.write(Frame.encode(Frame.NICKNAME, 0, 0, 0, "", "", "alice"));
+            ChatPeerTest.awaitText(in, out, "Welcome");
+
+            out.write(Frame.encode(Frame.COMMAND, 0, 0, 0, "", "", "/stats"));
+            String refused = ChatPeerTest.awaitText(in, out, "E R R O R: ");
+            assertTrue(refused.contains("Only admins"), refused);
+            assertFalse(refused.contains("alice"), refused);
+
+            out.write(Frame.encode(Frame.COMMAND, 0, 0, 0, "", "", "/admin secret"));
+            ChatPeerTest.awaitText(in, out, "You are an admin now");
+            out.write(Frame.encode(Frame.COMMAND, 0, 0, 0, "", "", "/stats"));
+            assertTrue(ChatPeerTest.awaitText(in, out, "Server stats:").contains("> Queues:"));
+        }
+    }
+
+}
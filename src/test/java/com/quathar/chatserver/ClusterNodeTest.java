@@ -0,0 +1,268 @@
+package com.quathar.chatserver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * <h1>ClusterNodeTest</h1>
+ * <br>
+ * Node << a >> of a cluster, over loopback, and whoever connects to its cluster port:
+ * a node that knows the secret, one that doesn't, and one that speaks for users it doesn't have.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+class ClusterNodeTest {
+
+    // <<-CONSTANTS->>
+    private static final String SECRET = "s3cret";
+    private static final int TIMEOUT_MILLIS = 5_000;
+
+    // <<-FIELDS->>
+    private int _clusterPort;
+    private ChatServer _a;
+    private ChatServer _b;
+
+    @BeforeEach
+    void start() throws IOException {
+        _clusterPort = freePort();
+        _a = new ChatServer(0, ServerMode.THREAD, node("a", SECRET).setClusterPort(_clusterPort));
+        _a.start();
+    }
+
+    @AfterEach
+    void stop() {
+        if (_b != null) _b.stop();
+        _a.stop();
+    }
+
+    @Test
+    void nodesWithTheSecretLink() throws IOException {
+        _b = new ChatServer(0, ServerMode.VIRTUAL, node("b", SECRET).setClusterSeeds("127.0.0.1:" + _clusterPort));
+        _b.start();
+        try (TextClient alice = new TextClient(_a, "alice"); TextClient bob = new TextClient(_b, "bob")) {
+            awaitLinked(bob, "alice (@a)");
+            bob.send("hi from b");
+            alice.await("bob: hi from b");
+        }
+    }
+
+    @Test
+    void nodeWithAnotherSecretIsRefused() throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", _clusterPort)) {
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            String challenge = "00".repeat(32);
+            out.write(Frame.encode(ClusterNode.HELLO, 0, 0, 0, "", challenge, "m"));
+            Frame hello = Frame.read(in);
+            assertNotNull(hello);
+            assertEquals("a", hello.getBody());
+            out.write(Frame.encode(ClusterNode.AUTH, 0, 0, 0, "", "", answer("wrong", "m", "a", challenge, hello.getTarget())));
+            assertClosed(in);
+        }
+    }
+
+    @Test
+    void framesBeforeTheHandshakeAreIgnored() throws IOException {
+        try (TextClient alice = new TextClient(_a, "alice");
+             Socket socket = new Socket("127.0.0.1", _clusterPort)) {
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            out.write(Frame.encode(ClusterNode.HELLO, 0, 0, 0, "", "00".repeat(32), "m"));
+            out.write(Frame.encode(ClusterNode.CLAIM, 0, 0, 1, "mallory", "", ""));
+            out.write(Frame.encode(Frame.BROADCAST, 0, 1, 1, "mallory", "", "forged"));
+            assertNotNull(Frame.read(in));
+            assertClosed(in);
+            alice.send("/people");
+            assertFalse(alice.readUntil("> alice").contains("forged"));
+            assertFalse(alice.drain().contains("mallory"));
+        }
+    }
+
+    @Test
+    void nodeSpeaksForItsOwnUsersOnly() throws IOException {
+        try (TextClient alice = new TextClient(_a, "alice");
+             Socket socket = new Socket("127.0.0.1", _clusterPort)) {
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            String challenge = "01".repeat(32);
+            out.write(Frame.encode(ClusterNode.HELLO, 0, 0, 0, "", challenge, "m"));
+            Frame hello = Frame.read(in);
+            assertNotNull(hello);
+            out.write(Frame.encode(ClusterNode.AUTH, 0, 0, 0, "", "", answer(SECRET, "m", "a", challenge, hello.getTarget())));
+            assertEquals(ClusterNode.AUTH, Frame.read(in).getOpcode());
+
+            // A claim out of the logical clock can't take alice's nickname
+            out.write(Frame.encode(ClusterNode.CLAIM, 0, 0, 0, "alice", "", ""));
+            out.write(Frame.encode(ClusterNode.CLAIM, 0, 0, 1, "mallory", "", ""));
+            out.write(Frame.encode(Frame.BROADCAST, 0, 1, 1, "alice", "", "forged as alice"));
+            out.write(Frame.encode(Frame.PRIVATE, 0, 2, 1, "nobody", "alice", "forged by nobody"));
+            out.write(Frame.encode(Frame.BROADCAST, 0, 3, 1, "mallory", "", "from a user of m"));
+            // Frames of the same link are handled in order, the forged ones went before
+            String lines = alice.readUntil("mallory: from a user of m");
+            assertFalse(lines.contains("forged"), lines);
+            // Still connected, and still alice
+            alice.send("/people");
+            String people = alice.readUntil("(@m)");
+            assertTrue(people.contains("> alice\n"), people);
+            assertTrue(people.contains("> mallory (@m)"), people);
+        }
+    }
+
+    // <<-HELPERS->>
+    private static ServerConfig node(String name, String secret) {
+        return new ServerConfig().setShutdownWhenEmpty(false)
+                                 .setClusterNode(name)
+                                 .setClusterSecret(secret);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Answers the challenge of node << a >> as a node that dialed it.
+     */
+    private static String answer(String secret, String node, String otherNode, String challenge, String otherChallenge) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(Payload.CHARSET), "HmacSHA256"));
+            String signed = "dialed\n" + node + '\n' + otherNode + '\n' + challenge + '\n' + otherChallenge;
+            return HexFormat.of().formatHex(mac.doFinal(signed.getBytes(Payload.CHARSET)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void assertClosed(InputStream in) throws IOException {
+        try {
+            while (Frame.read(in) != null);
+        } catch (SocketTimeoutException e) {
+            throw new AssertionError("The link is still open", e);
+        } catch (IOException e) {
+            // Reset, closed all the same
+        }
+    }
+
+    /**
+     * Asks for the people until a user of the other node shows up.
+     */
+    private static void awaitLinked(TextClient client, String user) throws IOException {
+        long until = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < until) {
+            client.send("/people");
+            client.await("People connected");
+            String line;
+            while ((line = client.poll()) != null && line.startsWith("> "))
+                if (line.equals("> " + user)) return;
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        throw new AssertionError("The nodes never linked");
+    }
+
+    // <<-TEXT CLIENT->>
+    private static final class TextClient implements AutoCloseable {
+        private final Socket _socket;
+        private final BufferedReader _in;
+        private final OutputStream _out;
+
+        private TextClient(ChatServer server, String nickname) throws IOException {
+            _socket = new Socket("127.0.0.1", server.getPort());
+            _socket.setSoTimeout(TIMEOUT_MILLIS);
+            _in     = new BufferedReader(new InputStreamReader(_socket.getInputStream(), Payload.CHARSET));
+            _out    = _socket.getOutputStream();
+            send(nickname);
+            await("Welcome");
+        }
+
+        private void send(String line) throws IOException {
+            _out.write((line + "\n").getBytes(Payload.CHARSET));
+        }
+
+        /**
+         * Reads lines up to the first that holds some text.
+         */
+        private String await(String text) throws IOException {
+            String line;
+            while ((line = _in.readLine()) != null)
+                if (line.contains(text)) return line;
+            throw new AssertionError("Closed before '" + text + "'");
+        }
+
+        /**
+         * Reads lines up to the first that holds some text.
+         *
+         * @return every line read, that one included
+         */
+        private String readUntil(String text) throws IOException {
+            StringBuilder lines = new StringBuilder();
+            String line;
+            while ((line = _in.readLine()) != null) {
+                lines.append(line).append('\n');
+                if (line.contains(text)) return lines.toString();
+            }
+            throw new AssertionError("Closed before '" + text + "'");
+        }
+
+        /**
+         * Reads the lines that come, up to a moment without any.
+         */
+        private String drain() throws IOException {
+            StringBuilder lines = new StringBuilder();
+            String line;
+            while ((line = poll()) != null)
+                lines.append(line).append('\n');
+            return lines.toString();
+        }
+
+        /**
+         * Reads the next line, or {@code null} if none comes for a moment.
+         */
+        private String poll() throws IOException {
+            _socket.setSoTimeout(200);
+            try {
+                return _in.readLine();
+            } catch (SocketTimeoutException e) {
+                return null;
+            } finally {
+                _socket.setSoTimeout(TIMEOUT_MILLIS);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            _socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+package com.quathar.chatserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * <h1>CommandRegistryTest</h1>
+ * <br>
+ * Commands found straight from the line, and a '/help' that follows the commands registered,
+ * also while peers keep asking for it and when a command comes while one of them is being answered.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+class CommandRegistryTest {
+
+    // <<-CONSTANTS->>
+    private static final int THREADS = 4;
+    private static final int COMMANDS_PER_THREAD = 200;
+    private static final long TIMEOUT_MILLIS = 1_000;
+
+    @Test
+    void commandGetsItsArgument() throws IOException {
+        CommandRegistry commands = new CommandRegistry("");
+        commands.register("/echo", "/echo text", "Says it back",
+                (peer, line, argument) -> Payload.of(CommandRegistry.argument(line, argument)));
+        assertEquals("hi there", commands.execute(null, "/echo   hi there ").getText());
+        assertEquals("", commands.execute(null, "/echo").getText());
+        assertSame(CommandRegistry.UNKNOWN, commands.execute(null, "/echoes hi"));
+    }
+
+    @Test
+    void commandRegisteredWhileHelpIsAnsweredIsListed() throws InterruptedException, IOException {
+        CommandRegistry commands = new CommandRegistry("");
+        commands.register("/first", "/first", "Registered before", (peer, line, argument) -> null);
+        CountDownLatch answering = new CountDownLatch(1);
+        CountDownLatch registered = new CountDownLatch(1);
+        Thread asking = Thread.ofPlatform().unstarted(() -> {
+            commands.help();
+            // Nothing to publish for a peer that asks, if the registry is right
+            answering.countDown();
+        });
+        // A peer asking for '/help' holds the list it got, about to publish it
+        commands._beforeHelpPublished = () -> {
+            if (Thread.currentThread() != asking) return;
+            answering.countDown();
+            try {
+                registered.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        asking.start();
+        assertTrue(answering.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        commands.register("/second", "/second", "Registered meanwhile", (peer, line, argument) -> null);
+        registered.countDown();
+        asking.join();
+        String help = commands.help().getText();
+        assertTrue(help.contains("/first"));
+        assertTrue(help.contains("/second"));
+        assertNull(commands.execute(null, "/second"));
+    }
+
+    @Test
+    void helpShowsCommandsRegisteredAfterItWasAskedFor() throws InterruptedException {
+        CommandRegistry commands = new CommandRegistry("Anything else goes to everyone");
+        commands.register("/help", "/help", "Shows the commands", (peer, line, argument) -> commands.help());
+        assertTrue(commands.help().getText().contains("/help"));
+
+        // Peers asking for '/help' the whole time the commands are registered
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            threads.add(Thread.ofPlatform().start(() -> {
+                for (int i = 0; i < COMMANDS_PER_THREAD; i++) {
+                    String name = "/c" + thread + "_" + i;
+                    commands.register(name, name, "A command", (peer, line, argument) -> null);
+                    commands.help();
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        String help = commands.help().getText();
+        // The last registration rendered it, with every command
+        for (String name : commands.names())
+            assertTrue(help.contains(System.lineSeparator() + name + " "), name);
+        assertEquals(1 + THREADS * COMMANDS_PER_THREAD, commands.names().size());
+        assertTrue(help.endsWith("Anything else goes to everyone"));
+    }
+
+}
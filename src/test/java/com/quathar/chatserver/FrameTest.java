@@ -0,0 +1,229 @@
+package com.quathar.chatserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * <h1>FrameTest</h1>
+ * <br>
+ * Frames decoded from a stream ({@link Frame#read}) and from the pieces a channel gives ({@link Frame.Decoder}),
+ * whatever the pieces, and the malformed ones both of them refuse, compressed ones included.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+class FrameTest {
+
+    @Test
+    void decoderTakesFramesSplitAnywhere() throws IOException {
+        List<Frame> sent = List.of(
+                new Frame(Frame.BROADCAST, 0, 42, 1_690_700_000_000L, "alice", "", "héllo\nworld"),
+                Frame.of(Frame.PRIVATE, 300, "bob", "x".repeat(200)),
+                new Frame(Frame.PING, 0, 0, 0, "", "", ""));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Frame frame : sent)
+            frame.writeTo(out);
+        byte[] wire = out.toByteArray();
+
+        for (int split = 0; split <= wire.length; split++) {
+            Frame.Decoder decoder = new Frame.Decoder();
+            List<Frame> received = new ArrayList<>();
+            decodeAll(decoder, ByteBuffer.wrap(wire, 0, split), received);
+            decodeAll(decoder, ByteBuffer.wrap(wire, split, wire.length - split), received);
+            assertFrames(sent, received);
+        }
+
+        Frame.Decoder decoder = new Frame.Decoder();
+        List<Frame> received = new ArrayList<>();
+        for (byte b : wire)
+            decodeAll(decoder, ByteBuffer.wrap(new byte[] {b}), received);
+        assertFrames(sent, received);
+    }
+
+    @Test
+    void lengthVarintBoundaries() throws IOException {
+        // Opcode, three one byte varints, two empty strings and the size of the body take 7 bytes
+        byte[] oneByte = Frame.of(Frame.TEXT, 0, "", "x".repeat(120)).encode();
+        assertEquals(127, oneByte[0]);
+        assertEquals(128, oneByte.length);
+        byte[] twoBytes = Frame.of(Frame.TEXT, 0, "", "x".repeat(121)).encode();
+        assertEquals((byte) 0x80, twoBytes[0]);
+        assertEquals(1, twoBytes[1]);
+        assertEquals(130, twoBytes.length);
+        assertEquals(120, read(oneByte).getBody().length());
+        assertEquals(120, decode(oneByte).getBody().length());
+        assertEquals(121, read(twoBytes).getBody().length());
+        assertEquals(121, decode(twoBytes).getBody().length());
+    }
+
+    @Test
+    void fiveByteLengthIsTheLongest() throws IOException {
+        byte[] frame = Frame.of(Frame.TEXT, 0, "", "hi").encode();
+        byte[] fields = Arrays.copyOfRange(frame, 1, frame.length);
+        byte length = frame[0];
+
+        // The same length, padded to five bytes
+        byte[] padded = concat(new byte[] {(byte) (length | 0x80), (byte) 0x80, (byte) 0x80, (byte) 0x80, 0}, fields);
+        assertEquals("hi", read(padded).getBody());
+        assertEquals("hi", decode(padded).getBody());
+
+        // Bits past the 32nd, the low ones still a valid length
+        byte[] wrapping = concat(new byte[] {(byte) (length | 0x80), (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x10}, fields);
+        assertRefused(wrapping);
+
+        byte[] sixBytes = concat(new byte[] {(byte) (length | 0x80), (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0}, fields);
+        assertRefused(sixBytes);
+    }
+
+    @Test
+    void lengthAboveMaxIsRefused() {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        Frame.putVarint(header, Frame.MAX_LENGTH + 1);
+        assertRefused(Arrays.copyOf(header.array(), header.position()));
+        assertRefused(new byte[] {0});
+    }
+
+    @Test
+    void truncatedStringIsRefused() {
+        // The body says 10 bytes, 3 follow and the frame ends
+        byte[] frame = {10, Frame.TEXT, 0, 0, 0, 0, 0, 10, 'a', 'b', 'c'};
+        assertRefused(frame);
+        // Or the frame ends before its last string even starts
+        assertRefused(new byte[] {6, Frame.TEXT, 0, 0, 0, 0, 0});
+    }
+
+    @Test
+    void trailingBytesAreRefused() {
+        byte[] frame = Frame.of(Frame.TEXT, 0, "", "hi").encode();
+        byte[] longer = concat(new byte[] {(byte) (frame[0] + 2)}, Arrays.copyOfRange(frame, 1, frame.length));
+        assertRefused(concat(longer, new byte[] {'!', '!'}));
+    }
+
+    @Test
+    void streamEndingBetweenFrames() throws IOException {
+        assertNull(Frame.read(new ByteArrayInputStream(new byte[0])));
+    }
+
+    @Test
+    void compressedFrameRoundTrip() throws IOException {
+        Frame sent = new Frame(Frame.ROOM, 7, 42, 1_690_700_000_000L, "alice", "#dev", "compress me ".repeat(100));
+        byte[] plain = sent.encode();
+        byte[] compressed = Frame.compress(plain, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        assertNotNull(compressed);
+        assertTrue(compressed.length < plain.length);
+        assertArrayEquals(plain, read(compressed).encode());
+        assertArrayEquals(plain, decode(compressed).encode());
+        assertArrayEquals(compressed, new Compression(6, 0, null).compress(plain));
+
+        // Nothing to gain from a small frame
+        assertNull(Frame.compress(Frame.of(Frame.TEXT, 0, "", "hi").encode(), new Deflater(Deflater.DEFAULT_COMPRESSION, true)));
+    }
+
+    @Test
+    void compressedSizeMismatchIsRefused() throws IOException {
+        byte[] fields = fields(Frame.of(Frame.TEXT, 0, "", "compress me ".repeat(100)));
+        byte[] deflated = deflate(fields);
+        assertArrayEquals(fields, fields(read(compressed(fields.length, deflated))));
+        assertRefused(compressed(fields.length - 1, deflated));
+        assertRefused(compressed(fields.length + 1, deflated));
+        assertRefused(compressed(Frame.MAX_LENGTH + 1, deflated));
+        assertRefused(compressed(0, deflated));
+    }
+
+    @Test
+    void bytesAfterTheCompressedFieldsAreRefused() {
+        byte[] fields = fields(Frame.of(Frame.TEXT, 0, "", "compress me ".repeat(100)));
+        assertRefused(compressed(fields.length, concat(deflate(fields), new byte[] {1, 2, 3})));
+        // Nor inside them, once inflated
+        byte[] longer = concat(fields, new byte[] {'!'});
+        assertRefused(compressed(longer.length, deflate(longer)));
+    }
+
+    /**
+     * The fields of a frame, after its length and opcode.
+     */
+    private static byte[] fields(Frame frame) {
+        byte[] encoded = frame.encode();
+        int opcode = 0;
+        while ((encoded[opcode] & 0x80) != 0)
+            opcode++;
+        return Arrays.copyOfRange(encoded, opcode + 2, encoded.length);
+    }
+
+    private static byte[] deflate(byte[] fields) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(fields);
+        deflater.finish();
+        byte[] deflated = new byte[fields.length + 64];
+        int length = deflater.deflate(deflated);
+        deflater.end();
+        return Arrays.copyOf(deflated, length);
+    }
+
+    /**
+     * A compressed text frame saying its fields inflate to some size.
+     */
+    private static byte[] compressed(int size, byte[] deflated) {
+        ByteBuffer frame = ByteBuffer.allocate(16 + deflated.length);
+        Frame.putVarint(frame, 1 + Frame.varintSize(size) + deflated.length);
+        frame.put((byte) (Frame.TEXT | Frame.COMPRESSED));
+        Frame.putVarint(frame, size);
+        frame.put(deflated);
+        return Arrays.copyOf(frame.array(), frame.position());
+    }
+
+    private static void decodeAll(Frame.Decoder decoder, ByteBuffer src, List<Frame> received) throws ProtocolException {
+        Frame frame;
+        while ((frame = decoder.decode(src)) != null)
+            received.add(frame);
+    }
+
+    private static Frame read(byte[] wire) throws IOException {
+        return Frame.read(new ByteArrayInputStream(wire));
+    }
+
+    private static Frame decode(byte[] wire) throws ProtocolException {
+        List<Frame> received = new ArrayList<>();
+        decodeAll(new Frame.Decoder(), ByteBuffer.wrap(wire), received);
+        assertEquals(1, received.size());
+        return received.get(0);
+    }
+
+    /**
+     * Checks that both ways of decoding refuse some bytes.
+     */
+    private static void assertRefused(byte[] wire) {
+        assertThrows(ProtocolException.class, () -> read(wire));
+        assertThrows(ProtocolException.class, () -> new Frame.Decoder().decode(ByteBuffer.wrap(wire)));
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+
+    private static void assertFrames(List<Frame> expected, List<Frame> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertArrayEquals(expected.get(i).encode(), actual.get(i).encode());
+    }
+
+}
@@ -0,0 +1,177 @@
+package com.quathar.chatserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * <h1>HeartbeatTest</h1>
+ * <br>
+ * A peer watched from a wheel the test ticks itself: pinged when it is quiet, and reaped for every reason there is,
+ * in time and only then.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+class HeartbeatTest {
+
+    // <<-CONSTANTS->>
+    private static final long TICK_MILLIS = 10;
+    private static final long INTERVAL_MILLIS = 100;
+    private static final long READ_TIMEOUT_MILLIS = 300;
+    private static final long WRITE_TIMEOUT_MILLIS = 200;
+    private static final long HANDSHAKE_TIMEOUT_MILLIS = 150;
+
+    // <<-FIELDS->>
+    private final AtomicLong _clock = new AtomicLong(1_000_000_000L);
+    private final long _origin = _clock.get();
+    private final TimerWheel _wheel = new TimerWheel(TICK_MILLIS, 64, _clock::get);
+    private final List<Heartbeat.Reason> _reasons = new ArrayList<>();
+    private final Metrics _metrics = new Metrics() {
+        @Override
+        void reaped(Heartbeat.Reason reason, long idleNanos) {
+            _reasons.add(reason);
+        }
+
+        @Override
+        public void handshakeFailed() {
+            _reasons.add(Heartbeat.Reason.HANDSHAKE);
+        }
+    };
+    private final List<Long> _pings = new ArrayList<>();
+    /**
+     * When the peer was reaped, in milliseconds since the test started, {@code -1} while it wasn't.
+     */
+    private long _reapedAt = -1;
+    private final Heartbeat _heartbeat = new Heartbeat(new ServerConfig().setHeartbeatIntervalMillis(INTERVAL_MILLIS)
+                                                                         .setIdleReadTimeoutMillis(READ_TIMEOUT_MILLIS)
+                                                                         .setIdleWriteTimeoutMillis(WRITE_TIMEOUT_MILLIS)
+                                                                         .setHandshakeTimeoutMillis(HANDSHAKE_TIMEOUT_MILLIS),
+                                                       _wheel, _metrics, () -> _pings.add(elapsed()), () -> {
+        assertEquals(-1, _reapedAt, "reaped twice");
+        _reapedAt = elapsed();
+    });
+
+    @Test
+    void silentBinaryPeerIsPingedThenReaped() {
+        _heartbeat.binary();
+        _heartbeat.start(false);
+        advance(1000);
+        assertReaped(Heartbeat.Reason.READ, READ_TIMEOUT_MILLIS);
+        // A ping every interval of silence until then
+        assertEquals(READ_TIMEOUT_MILLIS / INTERVAL_MILLIS - 1, _pings.size());
+        for (int i = 0; i < _pings.size(); i++)
+            assertWithinTwoTicks((i + 1) * INTERVAL_MILLIS, _pings.get(i));
+    }
+
+    @Test
+    void peerThatAnswersIsKept() {
+        _heartbeat.binary();
+        _heartbeat.start(false);
+        for (int i = 0; i < 20; i++) {
+            advance(INTERVAL_MILLIS + 2 * TICK_MILLIS);
+            // The pong
+            _heartbeat.read();
+        }
+        assertEquals(List.of(), _reasons);
+        assertEquals(20, _pings.size());
+    }
+
+    @Test
+    void textPeerHasNoReadTimeoutByDefault() {
+        _heartbeat.start(false);
+        advance(2000);
+        assertEquals(List.of(), _reasons);
+        assertEquals(List.of(), _pings);
+    }
+
+    @Test
+    void stalledWriteIsReaped() {
+        _heartbeat.binary();
+        _heartbeat.start(false);
+        advance(50);
+        _heartbeat.writing();
+        for (int i = 0; i < 10; i++) {
+            advance(50);
+            _heartbeat.read();
+        }
+        assertReaped(Heartbeat.Reason.WRITE, 50 + WRITE_TIMEOUT_MILLIS);
+    }
+
+    @Test
+    void finishedWritesAreNotReaped() {
+        _heartbeat.binary();
+        _heartbeat.start(false);
+        for (int i = 0; i < 20; i++) {
+            _heartbeat.writing();
+            advance(WRITE_TIMEOUT_MILLIS / 2);
+            _heartbeat.written();
+            _heartbeat.read();
+        }
+        assertEquals(List.of(), _reasons);
+    }
+
+    @Test
+    void missedHandshakeDeadlineIsReaped() {
+        _heartbeat.binary();
+        _heartbeat.start(true);
+        advance(1000);
+        assertReaped(Heartbeat.Reason.HANDSHAKE, HANDSHAKE_TIMEOUT_MILLIS);
+        // Nobody is pinged before choosing a nickname
+        assertEquals(List.of(), _pings);
+    }
+
+    @Test
+    void joinedPeerHasNoHandshakeDeadline() {
+        _heartbeat.start(true);
+        advance(HANDSHAKE_TIMEOUT_MILLIS / 2);
+        _heartbeat.joined();
+        advance(1000);
+        assertEquals(List.of(), _reasons);
+    }
+
+    @Test
+    void stoppedPeerIsNotReaped() {
+        _heartbeat.binary();
+        _heartbeat.start(true);
+        advance(HANDSHAKE_TIMEOUT_MILLIS / 2);
+        _heartbeat.stop();
+        advance(1000);
+        assertEquals(List.of(), _reasons);
+        assertEquals(List.of(), _pings);
+    }
+
+    private long elapsed() {
+        return TimeUnit.NANOSECONDS.toMillis(_clock.get() - _origin);
+    }
+
+    /**
+     * Moves the clock forward a tick at a time, running every tick as it becomes due.
+     */
+    private void advance(long millis) {
+        for (long i = 0; i < millis / TICK_MILLIS; i++) {
+            _clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS));
+            _wheel.tick();
+        }
+    }
+
+    private void assertReaped(Heartbeat.Reason reason, long dueMillis) {
+        assertEquals(List.of(reason), _reasons);
+        assertWithinTwoTicks(dueMillis, _reapedAt);
+    }
+
+    /**
+     * Checks that something happened when it was due, or within the two ticks after.
+     */
+    private static void assertWithinTwoTicks(long dueMillis, long atMillis) {
+        assertTrue(atMillis >= dueMillis && atMillis <= dueMillis + 2 * TICK_MILLIS, atMillis + ", due at " + dueMillis);
+    }
+
+}
@@ -0,0 +1,89 @@
+package com.quathar.chatserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * <h1>HistoryTest</h1>
+ * <br>
+ * A history that grows its ring as it fills up, and histories sharing a budget of bytes.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+class HistoryTest {
+
+    @Test
+    void ringGrowsAndKeepsTheOrder() {
+        History history = new History("#test", 100, Long.MAX_VALUE, new AtomicLong(), Long.MAX_VALUE);
+        for (int i = 0; i < 250; i++) {
+            history.append(Payload.of("m" + i));
+            // Read while it grows, the oldest are evicted once it holds the most messages
+            assertEquals(messages(Math.max(0, i - 99), i), replay(history.last(i + 1)));
+        }
+        assertEquals(100, history.size());
+        assertEquals("m150", replay(history.last(100)).get(0));
+        assertEquals(replay(history.last(100)), replay(history.since(0)));
+    }
+
+    @Test
+    void sharedBudgetEvictsOwnMessagesOnly() {
+        AtomicLong total = new AtomicLong();
+        long size = Payload.of("m00").length();
+        History chat = new History("the chat", 100, Long.MAX_VALUE, total, 10 * size);
+        History room = new History("#room", 100, Long.MAX_VALUE, total, 10 * size);
+        for (int i = 0; i < 6; i++)
+            chat.append(Payload.of("m0" + i));
+        for (int i = 0; i < 6; i++)
+            room.append(Payload.of("m1" + i));
+
+        // The room made room for its own messages, the chat kept all of them
+        assertEquals(6, chat.size());
+        assertEquals(4, room.size());
+        assertEquals(10 * size, total.get());
+        assertEquals(List.of("m12", "m13", "m14", "m15"), replay(room.last(10)));
+
+        room.clear();
+        assertEquals(0, room.size());
+        assertEquals(6 * size, total.get());
+        chat.append(Payload.of("m06"));
+        assertEquals(7, chat.size());
+    }
+
+    @Test
+    void messageTheBudgetCantHoldIsntKept() {
+        AtomicLong total = new AtomicLong();
+        History history = new History("#room", 100, Long.MAX_VALUE, total, 8);
+        history.append(Payload.of("a message longer than the budget"));
+        assertEquals(0, history.size());
+        assertEquals(0, total.get());
+    }
+
+    private static List<String> messages(int first, int last) {
+        List<String> messages = new ArrayList<>();
+        for (int i = first; i <= last; i++)
+            messages.add("m" + i);
+        return messages;
+    }
+
+    /**
+     * Reads a replay a few messages at a time, without its header and footer.
+     */
+    private static List<String> replay(Replay replay) {
+        List<String> lines = new ArrayList<>();
+        Payload[] batch = new Payload[7];
+        int count;
+        while ((count = replay.next(batch, batch.length)) > 0)
+            for (int i = 0; i < count; i++)
+                if (!batch[i].getText().startsWith("S Y S T E M: "))
+                    lines.add(batch[i].getText());
+        return lines;
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.quathar.chatserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * <h1>LogSegmentTest</h1>
+ * <br>
+ * A segment whose write failed halfway through a record: it goes back to its last commit,
+ * and what is written next reads back after a restart as if the failed write never happened.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+class LogSegmentTest {
+
+    // <<-CONSTANTS->>
+    private static final int INDEX_INTERVAL = 64;
+    private static final byte[] CHANNEL = new byte[0];
+
+    // <<-FIELDS->>
+    @TempDir
+    Path _directory;
+
+    @Test
+    void tornWriteIsRolledBack() throws IOException {
+        LogSegment segment = LogSegment.create(_directory, 0);
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        CRC32C crc = new CRC32C();
+        for (int i = 0; i < 3; i++)
+            segment.append(buffer, 1_000 + i, CHANNEL, Payload.of("committed " + i), INDEX_INTERVAL, crc);
+        segment.write(buffer.flip());
+        segment.commit();
+        long committed = segment.getSize();
+
+        // Only half of the next records reaches the file
+        buffer.clear();
+        for (int i = 0; i < 3; i++)
+            segment.append(buffer, 2_000 + i, CHANNEL, Payload.of("lost " + i), INDEX_INTERVAL, crc);
+        buffer.flip().limit(buffer.limit() / 2);
+        segment.write(buffer);
+        segment.rollback(INDEX_INTERVAL);
+        assertEquals(3, segment.getRecords());
+        assertEquals(committed, segment.getWritePosition());
+        assertEquals(1_002, segment.getLastTimestamp());
+        assertEquals(committed, Files.size(_directory.resolve(String.format("%020d.log", 0))));
+
+        buffer.clear();
+        segment.append(buffer, 3_000, CHANNEL, Payload.of("after"), INDEX_INTERVAL, crc);
+        segment.write(buffer.flip());
+        segment.commit();
+        long size = segment.getSize();
+        segment.close();
+
+        // Every record checks out, nothing is cut
+        LogSegment reopened = LogSegment.open(_directory.resolve(String.format("%020d.log", 0)), true, INDEX_INTERVAL);
+        assertEquals(4, reopened.getRecords());
+        assertEquals(size, reopened.getSize());
+        assertEquals(3_000, reopened.getLastTimestamp());
+        reopened.close();
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.quathar.chatserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * <h1>MessageLogTest</h1>
+ * <br>
+ * Cursors over a log of several channels spread over several segments: the last messages of a channel
+ * and those since a moment, whatever segment and index entry they start in.<br>
+ * <br>
+ * The log is written in two runs, closed after each so that everything is on disk,
+ * with a moment in between that no record has.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+class MessageLogTest {
+
+    // <<-CONSTANTS->>
+    private static final String[] CHANNELS = {MessageLog.CHAT, "#dev", MessageLog.PRIVATE_PREFIX + "bob"};
+    private static final int RECORDS_PER_RUN = 200;
+
+    // <<-FIELDS->>
+    @TempDir
+    Path _directory;
+    /**
+     * What every channel got, oldest first.
+     */
+    private final Map<String, List<String>> _sent = new HashMap<>();
+    /**
+     * What every channel got in the second run.
+     */
+    private final Map<String, List<String>> _sentLater = new HashMap<>();
+
+    @Test
+    void cursorsStartAtTheRightRecord() throws IOException, InterruptedException {
+        write(0, _sent);
+        Thread.sleep(5);
+        long between = System.currentTimeMillis();
+        Thread.sleep(5);
+        write(RECORDS_PER_RUN, _sentLater);
+        for (String channel : CHANNELS)
+            _sent.get(channel).addAll(_sentLater.get(channel));
+
+        try (Stream<Path> files = Files.list(_directory)) {
+            assertTrue(files.filter(file -> file.toString().endsWith(".log")).count() >= 3);
+        }
+        try (MessageLog log = MessageLog.open(config())) {
+            for (String channel : CHANNELS) {
+                List<String> sent = _sent.get(channel);
+                for (int count : new int[] {0, 1, 7, 40, sent.size() - 1, sent.size(), sent.size() + 10})
+                    assertEquals(sent.subList(Math.max(sent.size() - count, 0), sent.size()),
+                                 read(log.last(channel, channel, count)), channel + ", last " + count);
+
+                assertEquals(_sentLater.get(channel), read(log.since(channel, channel, between)), channel + ", since");
+                assertEquals(sent, read(log.since(channel, channel, 0)), channel + ", since the beginning");
+                assertEquals(List.of(), read(log.since(channel, channel, System.currentTimeMillis() + 60_000)),
+                             channel + ", since later");
+            }
+        }
+    }
+
+    private ServerConfig config() {
+        // Segments of a few dozen records, an index entry every few records
+        return new ServerConfig().setLogDirectory(_directory)
+                                 .setLogSegmentBytes(4096)
+                                 .setLogIndexIntervalBytes(256)
+                                 .setLogSyncIntervalMillis(0);
+    }
+
+    /**
+     * Writes a run of records, the channels taking turns unevenly, and waits for all of them to be on disk.
+     */
+    private void write(int first, Map<String, List<String>> sent) throws IOException {
+        for (String channel : CHANNELS)
+            sent.put(channel, new ArrayList<>());
+        try (MessageLog log = MessageLog.open(config())) {
+            for (int i = first; i < first + RECORDS_PER_RUN; i++) {
+                String channel = CHANNELS[i % 6 < 3 ? 0 : i % 6 < 5 ? 1 : 2];
+                String text = "message " + i + " in '" + channel + "'";
+                log.append(channel, Payload.of(text));
+                sent.get(channel).add(text);
+            }
+        }
+    }
+
+    /**
+     * The lines of a replay, without its header and its footer.
+     */
+    private static List<String> read(Replay replay) {
+        List<String> lines = new ArrayList<>();
+        Payload[] batch = new Payload[16];
+        int count;
+        while ((count = replay.next(batch, batch.length)) > 0)
+            for (int i = 0; i < count; i++)
+                lines.add(batch[i].getText());
+        assertTrue(lines.get(0).startsWith("S Y S T E M: "));
+        assertTrue(lines.get(lines.size() - 1).startsWith("S Y S T E M: End of the history"));
+        return lines.subList(1, lines.size() - 1);
+    }
+
+}
@@ -0,0 +1,151 @@
+package com.quathar.chatserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * <h1>OutboundQueueTest</h1>
+ * <br>
+ * Replays queued by several threads at once while the writer waits on an empty queue,
+ * one queued right as another thread is done refilling, and a long replay that never takes more than half of the queue.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+class OutboundQueueTest {
+
+    // <<-CONSTANTS->>
+    private static final int PRODUCERS = 4;
+    private static final int ROUNDS = 5_000;
+    private static final long TIMEOUT_MILLIS = 1_000;
+
+    @Test
+    void replayQueuedWhileAnotherRefillsIsNotLost() throws InterruptedException, BrokenBarrierException {
+        OutboundQueue queue = new OutboundQueue(16, OverflowPolicy.DROP_OLDEST, 0);
+        Semaphore taken = new Semaphore(0);
+        Thread writer = Thread.ofPlatform().daemon().start(() -> {
+            try {
+                while (true) {
+                    queue.take();
+                    taken.release();
+                }
+            } catch (InterruptedException e) {
+                // Done
+            }
+        });
+
+        // Every round the producers queue a replay at once, then nothing more comes until the writer has them all:
+        // a replay left behind by a refill would stay there, the writer waiting on an empty queue
+        CyclicBarrier round = new CyclicBarrier(PRODUCERS + 1);
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++)
+            producers.add(Thread.ofPlatform().daemon().start(() -> {
+                try {
+                    while (true) {
+                        round.await();
+                        queue.replay(new Lines(Payload.of("line")));
+                    }
+                } catch (InterruptedException | BrokenBarrierException e) {
+                    // Done
+                }
+            }));
+        try {
+            for (int i = 0; i < ROUNDS; i++) {
+                round.await();
+                assertTrue(taken.tryAcquire(PRODUCERS, TIMEOUT_MILLIS, TimeUnit.MILLISECONDS),
+                           "Round " + i + ": a replay was left behind");
+            }
+        } finally {
+            for (Thread producer : producers)
+                producer.interrupt();
+            writer.interrupt();
+        }
+    }
+
+    @Test
+    void replayQueuedAsARefillEndsIsMoved() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(16, OverflowPolicy.DROP_OLDEST, 0);
+        CountDownLatch releasing = new CountDownLatch(1);
+        CountDownLatch queued = new CountDownLatch(1);
+        Thread refilling = Thread.ofPlatform().unstarted(() -> queue.replay(new Lines(Payload.of("first"))));
+        // The refilling thread has moved every line there was, and waits before it lets go
+        queue._beforeRelease = () -> {
+            if (Thread.currentThread() != refilling) return;
+            releasing.countDown();
+            try {
+                queued.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        refilling.start();
+        assertTrue(releasing.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        // Refilling is taken, so this replay is left to the thread that has it
+        queue.replay(new Lines(Payload.of("second")));
+        assertEquals(1, queue.getDepth());
+        queued.countDown();
+        refilling.join();
+        // Counted without taking anything, taking refills again
+        assertEquals(2, queue.getDepth());
+    }
+
+    @Test
+    void longReplayFillsHalfTheQueueAtMost() {
+        OutboundQueue queue = new OutboundQueue(8, OverflowPolicy.DISCONNECT, 0);
+        Payload[] lines = new Payload[100];
+        for (int i = 0; i < lines.length; i++)
+            lines[i] = Payload.of("line " + i);
+        queue.replay(new Lines(lines));
+        assertEquals(4, queue.getDepth());
+        // Live messages still have room
+        for (int i = 0; i < 4; i++)
+            assertTrue(queue.offer(Payload.of("live " + i)));
+
+        List<String> written = new ArrayList<>();
+        Payload msg;
+        while ((msg = queue.poll()) != null)
+            written.add(msg.getText());
+        assertEquals(lines.length + 4, written.size());
+        assertEquals(0, queue.getDropped());
+        assertEquals(0, queue.getBytes());
+    }
+
+    // <<-TEST REPLAY->>
+    /**
+     * A replay of some lines, in order.
+     */
+    private static final class Lines implements Replay {
+        private final Payload[] _lines;
+        private int _next;
+
+        private Lines(Payload... lines) {
+            _lines = lines;
+        }
+
+        @Override
+        public int next(Payload[] batch, int length) {
+            int count = Math.min(length, _lines.length - _next);
+            System.arraycopy(_lines, _next, batch, 0, count);
+            _next += count;
+            return count;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return _next == _lines.length;
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.quathar.chatserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * <h1>PayloadTest</h1>
+ * <br>
+ * The line of a chat message stays a line of its sender, whatever a binary peer puts in the body.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+class PayloadTest {
+
+    @Test
+    void singleLineIsLeftAsItIs() {
+        String text = "alice: hello\tworld";
+        assertSame(text, Payload.lines(text, 7));
+        assertEquals("alice: hello\tworld\n", new String(bytes(message("hello\tworld")), Payload.CHARSET));
+    }
+
+    @Test
+    void everyLineOfTheBodyGetsThePrefix() throws IOException {
+        Payload msg = message("hi\nS Y S T E M: You are an admin\r\n[PM] admin: really");
+        assertEquals("alice: hi\nalice: S Y S T E M: You are an admin\nalice: [PM] admin: really", msg.getText());
+        // The frame keeps the body as it was sent
+        assertEquals("hi\nS Y S T E M: You are an admin\r\n[PM] admin: really",
+                     Frame.read(new ByteArrayInputStream(bytes(msg.framed()))).getBody());
+    }
+
+    @Test
+    void loneCarriageReturnsAndUnicodeBreaksSplitToo() {
+        assertEquals("[PM] bob: a\n[PM] bob: b\n[PM] bob: c",
+                Payload.message(Frame.PRIVATE, 1, 0, "bob", "carol", "a\rb\u2028c", "[PM] bob: a\rb\u2028c").getText());
+    }
+
+    @Test
+    void otherControlCharactersAreReplaced() {
+        assertEquals("alice: \uFFFD[2Jcleared", message("\u001B[2Jcleared").getText());
+        // Before the body, a line break can't start a line either
+        assertEquals("[#dev\uFFFDx] alice: hi", Payload.lines("[#dev\nx] alice: hi", 15));
+    }
+
+    @Test
+    void singleLineCheck() {
+        assertTrue(Payload.isSingleLine("alice"));
+        assertTrue(Payload.isSingleLine("tab\there"));
+        assertFalse(Payload.isSingleLine("alice\nS Y S T E M: x"));
+        assertFalse(Payload.isSingleLine("bell\u0007"));
+        assertFalse(Payload.isSingleLine("line\u2029"));
+    }
+
+    private static Payload message(String body) {
+        return Payload.message(Frame.BROADCAST, 1, 0, "alice", "", body, "alice: " + body);
+    }
+
+    private static byte[] bytes(Payload payload) {
+        java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(payload.length());
+        payload.copyTo(buffer);
+        return buffer.array();
+    }
+
+}
@@ -0,0 +1,230 @@
+package com.quathar.chatserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * <h1>PeerRegistryTest</h1>
+ * <br>
+ * Thousands of peers claiming, renaming and releasing a few dozen nicknames at once.<br>
+ * <br>
+ * Next to the registry every nickname has an owner the test keeps itself: a peer takes it over right after
+ * the registry gave it the nickname, and gives it up right before the registry takes it back.
+ * Taking over a nickname somebody else still owns means the registry gave it away twice.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+class PeerRegistryTest {
+
+    // <<-CONSTANTS->>
+    private static final int THREADS = 8;
+    private static final int PEERS_PER_THREAD = 256;
+    private static final int NICKNAMES = 64;
+    private static final int OPERATIONS_PER_THREAD = 50_000;
+
+    @Test
+    void claimRenameReleaseNeverShareANickname() throws InterruptedException {
+        PeerRegistry registry = new PeerRegistry();
+        AtomicReferenceArray<Peer> owners = new AtomicReferenceArray<>(NICKNAMES);
+        ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+        List<TestPeer> everyPeer = new ArrayList<>();
+        CountDownLatch ready = new CountDownLatch(1);
+        AtomicBoolean done = new AtomicBoolean();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            List<TestPeer> peers = new ArrayList<>();
+            for (int p = 0; p < PEERS_PER_THREAD; p++)
+                peers.add(new TestPeer(t * PEERS_PER_THREAD + p));
+            everyPeer.addAll(peers);
+            Random random = new Random(t);
+            threads.add(Thread.ofPlatform().start(() -> {
+                await(ready);
+                for (int i = 0; i < OPERATIONS_PER_THREAD && failures.isEmpty(); i++)
+                    step(registry, owners, peers.get(random.nextInt(peers.size())), random, failures);
+            }));
+        }
+        // Readers going through the registry meanwhile, as '/people' and private messages do
+        Thread reader = Thread.ofPlatform().start(() -> {
+            await(ready);
+            Random random = new Random(THREADS);
+            while (!done.get()) {
+                // The view is weakly consistent: a peer renamed during the walk may be seen under both nicknames,
+                // so only what it yields is checked here, the counts are checked at rest
+                for (Peer peer : registry.peers())
+                    if (!(peer instanceof TestPeer))
+                        failures.add("Not a peer of the test: " + peer);
+                Peer holder = registry.get(nickname(random.nextInt(NICKNAMES), random));
+                if (holder != null && !(holder instanceof TestPeer))
+                    failures.add("Not a peer of the test: " + holder);
+            }
+        });
+
+        ready.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        done.set(true);
+        reader.join();
+        assertTrue(failures.isEmpty(), String.join("\n", failures));
+
+        // At rest, the registry holds exactly the nicknames the peers think they hold
+        Set<Peer> holders = new HashSet<>();
+        for (TestPeer peer : everyPeer) {
+            if (peer._nickname == null) continue;
+            holders.add(peer);
+            assertSame(peer, registry.get(peer._nickname.toUpperCase(Locale.ROOT)));
+            assertSame(peer, owners.get(index(peer._nickname)));
+        }
+        assertEquals(holders.size(), registry.size());
+        assertEquals(holders, new HashSet<>(registry.peers()));
+        for (int i = 0; i < NICKNAMES; i++)
+            assertEquals(owners.get(i) != null, registry.contains("nick" + i));
+    }
+
+    @Test
+    void renameToTheSameNicknameKeepsIt() {
+        PeerRegistry registry = new PeerRegistry();
+        TestPeer alice = new TestPeer(0);
+        TestPeer bob = new TestPeer(1);
+        assertTrue(registry.claim("alice", alice));
+        assertFalse(registry.claim("ALICE", bob));
+        assertTrue(registry.rename("alice", "Alice", alice));
+        assertFalse(registry.rename("alice", "Alice", bob));
+        assertSame(alice, registry.get("aLiCe"));
+        assertFalse(registry.release("alice", bob));
+        assertTrue(registry.release("ALICE", alice));
+        assertEquals(0, registry.size());
+    }
+
+    /**
+     * Claims a nickname for a peer that has none, or renames it or releases it,
+     * taking over and giving up the owner of the test around the registry.
+     */
+    private static void step(PeerRegistry registry, AtomicReferenceArray<Peer> owners, TestPeer peer,
+                             Random random, ConcurrentLinkedQueue<String> failures) {
+        String nickname = nickname(random.nextInt(NICKNAMES), random);
+        if (peer._nickname == null) {
+            if (registry.claim(nickname, peer)) {
+                takeOver(owners, nickname, peer, failures);
+                peer._nickname = nickname;
+            }
+        } else if (random.nextBoolean()) {
+            String old = peer._nickname;
+            boolean same = index(old) == index(nickname);
+            if (!same)
+                giveUp(owners, old, peer, failures);
+            if (registry.rename(old, nickname, peer)) {
+                if (!same)
+                    takeOver(owners, nickname, peer, failures);
+                peer._nickname = nickname;
+            } else if (same) {
+                failures.add(peer + " couldn't rename " + old + " to " + nickname);
+            } else {
+                // Still the peer's, nobody could have claimed it meanwhile
+                takeOver(owners, old, peer, failures);
+            }
+        } else {
+            giveUp(owners, peer._nickname, peer, failures);
+            if (!registry.release(peer._nickname, peer))
+                failures.add(peer + " couldn't release " + peer._nickname);
+            peer._nickname = null;
+        }
+    }
+
+    private static void takeOver(AtomicReferenceArray<Peer> owners, String nickname, Peer peer,
+                                 ConcurrentLinkedQueue<String> failures) {
+        Peer owner = owners.compareAndExchange(index(nickname), null, peer);
+        if (owner != null)
+            failures.add(nickname + " given to " + peer + " while " + owner + " held it");
+    }
+
+    private static void giveUp(AtomicReferenceArray<Peer> owners, String nickname, Peer peer,
+                               ConcurrentLinkedQueue<String> failures) {
+        if (!owners.compareAndSet(index(nickname), peer, null))
+            failures.add(peer + " held " + nickname + " but " + owners.get(index(nickname)) + " owned it");
+    }
+
+    /**
+     * Returns a nickname, in any case: they are the same nickname to the registry.
+     */
+    private static String nickname(int index, Random random) {
+        String nickname = "nick" + index;
+        return random.nextBoolean() ? nickname : nickname.toUpperCase(Locale.ROOT);
+    }
+
+    private static int index(String nickname) {
+        return Integer.parseInt(nickname.substring(4));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // <<-TEST PEER->>
+    /**
+     * A peer that only has a nickname, changed by the single thread that drives it.
+     */
+    private static final class TestPeer implements Peer {
+        private final int _id;
+        private String _nickname;
+
+        private TestPeer(int id) {
+            _id = id;
+        }
+
+        @Override
+        public String getNickname() {
+            return _nickname;
+        }
+
+        @Override
+        public void send(Payload msg) {}
+
+        @Override
+        public void replay(Replay replay) {}
+
+        @Override
+        public void disconnect(Payload farewell) {}
+
+        @Override
+        public void changeNickname() throws IOException {}
+
+        @Override
+        public int getQueueDepth() {
+            return 0;
+        }
+
+        @Override
+        public long getDroppedMessages() {
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "peer" + _id;
+        }
+    }
+
+}
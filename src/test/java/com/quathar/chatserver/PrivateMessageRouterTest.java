@@ -0,0 +1,146 @@
+package com.quathar.chatserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * <h1>PrivateMessageRouterTest</h1>
+ * <br>
+ * Private messages to a recipient that takes them, one that doesn't for a while,
+ * and one whose delivery blocks, as under the {@code block} policy.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+class PrivateMessageRouterTest {
+
+    @Test
+    void heldMessagesGoFirstAndInOrder() {
+        PrivateMessageRouter router = new PrivateMessageRouter(new ServerConfig(), new Metrics());
+        TestPeer bob = new TestPeer();
+        bob._taking = false;
+        assertTrue(router.route(null, 0, bob, Payload.of("1"), System.nanoTime()));
+        assertTrue(router.route(null, 0, bob, Payload.of("2"), System.nanoTime()));
+        assertTrue(bob._received.isEmpty());
+
+        // Taking messages again, but not flushed yet: the new one waits behind the others
+        bob._taking = true;
+        assertTrue(router.route(null, 0, bob, Payload.of("3"), System.nanoTime()));
+        assertTrue(bob._received.isEmpty());
+        router.flush(bob);
+        assertTrue(router.route(null, 0, bob, Payload.of("4"), System.nanoTime()));
+        assertEquals(List.of("1", "2", "3", "4"), bob._received);
+    }
+
+    @Test
+    void fullInboxRefuses() {
+        PrivateMessageRouter router = new PrivateMessageRouter(new ServerConfig().setPmInboxMessages(2), new Metrics());
+        TestPeer alice = new TestPeer();
+        TestPeer bob = new TestPeer();
+        bob._taking = false;
+        assertTrue(router.route(alice, 0, bob, Payload.of("1"), System.nanoTime()));
+        assertTrue(router.route(alice, 0, bob, Payload.of("2"), System.nanoTime()));
+        assertFalse(router.route(alice, 0, bob, Payload.of("3"), System.nanoTime()));
+        assertTrue(alice._received.get(0).contains("can't take more messages"));
+    }
+
+    @Test
+    void blockedDeliveryLeavesTheCarriers() throws InterruptedException {
+        PrivateMessageRouter router = new PrivateMessageRouter(new ServerConfig(), new Metrics());
+        CountDownLatch unblock = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        TestPeer bob = new TestPeer() {
+            @Override
+            public boolean deliver(Payload msg) {
+                if (!isTaking()) return false;
+                // Waits as a full outbound queue would, with the lock of the inbox held
+                blocked.countDown();
+                try {
+                    unblock.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.deliver(msg);
+            }
+        };
+        bob._taking = false;
+        router.route(null, 0, bob, Payload.of("held"), System.nanoTime());
+        bob._taking = true;
+
+        Thread.ofVirtual().start(() -> router.flush(bob));
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        // More senders waiting for the inbox than there are carriers
+        int senders = Runtime.getRuntime().availableProcessors() + 1;
+        CountDownLatch routed = new CountDownLatch(senders);
+        for (int i = 0; i < senders; i++)
+            Thread.ofVirtual().start(() -> {
+                router.route(null, 0, bob, Payload.of("routed"), System.nanoTime());
+                routed.countDown();
+            });
+        Thread.sleep(100);
+        // Only runs if the waiting threads left a carrier
+        Thread.ofVirtual().start(unblock::countDown);
+        assertTrue(routed.await(5, TimeUnit.SECONDS), "The senders pinned every carrier");
+        assertEquals(1 + senders, bob._received.size());
+        assertEquals("held", bob._received.get(0));
+    }
+
+    // <<-TEST PEER->>
+    /**
+     * A peer that keeps what it gets, and takes messages or not.
+     */
+    private static class TestPeer implements Peer {
+        private final List<String> _received = new ArrayList<>();
+        private volatile boolean _taking = true;
+
+        @Override
+        public String getNickname() {
+            return "bob";
+        }
+
+        @Override
+        public synchronized void send(Payload msg) {
+            _received.add(msg.getText());
+        }
+
+        @Override
+        public boolean deliver(Payload msg) {
+            if (!_taking) return false;
+            send(msg);
+            return true;
+        }
+
+        boolean isTaking() {
+            return _taking;
+        }
+
+        @Override
+        public void replay(Replay replay) {}
+
+        @Override
+        public void disconnect(Payload farewell) {}
+
+        @Override
+        public void changeNickname() {}
+
+        @Override
+        public int getQueueDepth() {
+            return 0;
+        }
+
+        @Override
+        public long getDroppedMessages() {
+            return 0;
+        }
+    }
+
+}
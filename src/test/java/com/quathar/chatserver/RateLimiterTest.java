@@ -0,0 +1,122 @@
+package com.quathar.chatserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * <h1>RateLimiterTest</h1>
+ * <br>
+ * Messages refused by one bucket after others gave their tokens, and a peer within its limits
+ * refused by those of the whole server.<br>
+ * <br>
+ * The limits hold two messages and take a second to give one back, far longer than the tests run.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+class RateLimiterTest {
+
+    // <<-CONSTANTS->>
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    void givenBackTokensCanBeTakenAgain() {
+        TokenBucket bucket = new TokenBucket();
+        long now = System.nanoTime();
+        assertEquals(0, bucket.take(1, SECOND, 2 * SECOND, false, now));
+        assertEquals(0, bucket.take(1, SECOND, 2 * SECOND, false, now));
+        assertEquals(SECOND, bucket.take(1, SECOND, 2 * SECOND, false, now));
+
+        bucket.giveBack(1, SECOND, 2 * SECOND);
+        assertEquals(0, bucket.take(1, SECOND, 2 * SECOND, false, now));
+        assertEquals(SECOND, bucket.take(1, SECOND, 2 * SECOND, false, now));
+    }
+
+    @Test
+    void refusedMessageTakesNoTokens() {
+        RateLimiter limiter = new RateLimiter(new ServerConfig().setRateMessagesPerSecond(1)
+                                                                .setRateBytesPerSecond(50)
+                                                                .setRateBurstMillis(2000)
+                                                                .setRateLimitPolicy(RateLimitPolicy.DROP), new Metrics());
+        RateLimiter.Quota quota = limiter.newQuota();
+        TestPeer alice = new TestPeer("alice");
+        assertEquals(0, limiter.admit(alice, quota, 60));
+        // Two messages may go, but not 120 bytes: the message bucket gets its token back
+        assertEquals(RateLimiter.SKIP, limiter.admit(alice, quota, 60));
+        assertEquals(0, limiter.admit(alice, quota, 40));
+        assertEquals(RateLimiter.SKIP, limiter.admit(alice, quota, 0));
+        assertEquals(1, alice._received.size());
+    }
+
+    @Test
+    void serverLimitsNeverDisconnect() {
+        RateLimiter limiter = new RateLimiter(new ServerConfig().setRateMessagesPerSecond(1)
+                                                                .setRateGlobalMessagesPerSecond(1)
+                                                                .setRateBurstMillis(2000)
+                                                                .setRateLimitPolicy(RateLimitPolicy.DISCONNECT), new Metrics());
+        TestPeer alice = new TestPeer("alice");
+        TestPeer bob = new TestPeer("bob");
+        RateLimiter.Quota aliceQuota = limiter.newQuota();
+        RateLimiter.Quota bobQuota = limiter.newQuota();
+        assertEquals(0, limiter.admit(alice, aliceQuota, 10));
+        assertEquals(0, limiter.admit(alice, aliceQuota, 10));
+
+        // Alice used up what the server allows, Bob is within the limits of a peer
+        assertEquals(RateLimiter.SKIP, limiter.admit(bob, bobQuota, 10));
+        assertEquals(RateLimiter.SKIP, limiter.admit(bob, bobQuota, 10));
+        assertEquals(1, bob._received.size());
+        assertTrue(bob._received.get(0).contains("too fast"));
+
+        // Without the server limit Bob still has the two messages a peer may send, not a third
+        limiter.set("global-messages", "0");
+        assertEquals(0, limiter.admit(bob, bobQuota, 10));
+        assertEquals(0, limiter.admit(bob, bobQuota, 10));
+        assertEquals(RateLimiter.CLOSE, limiter.admit(bob, bobQuota, 10));
+    }
+
+    // <<-TEST PEER->>
+    private static class TestPeer implements Peer {
+        private final String _nickname;
+        private final List<String> _received = new ArrayList<>();
+
+        private TestPeer(String nickname) {
+            _nickname = nickname;
+        }
+
+        @Override
+        public String getNickname() {
+            return _nickname;
+        }
+
+        @Override
+        public void send(Payload msg) {
+            _received.add(msg.getText());
+        }
+
+        @Override
+        public void replay(Replay replay) {}
+
+        @Override
+        public void disconnect(Payload farewell) {}
+
+        @Override
+        public void changeNickname() {}
+
+        @Override
+        public int getQueueDepth() {
+            return 0;
+        }
+
+        @Override
+        public long getDroppedMessages() {
+            return 0;
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.quathar.chatserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * <h1>RoomRegistryTest</h1>
+ * <br>
+ * The cap on the rooms open at once, and the history bytes a room gives back when it is torn down.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+class RoomRegistryTest {
+
+    @Test
+    void noRoomBeyondTheCap() {
+        RoomRegistry rooms = new RoomRegistry(new ServerConfig().setRoomsMax(2), new AtomicLong());
+        Peer alice = new TestPeer("alice");
+        Peer bob = new TestPeer("bob");
+        assertNotNull(rooms.join("#one", alice));
+        assertNotNull(rooms.join("#two", alice));
+        assertNull(rooms.join("#three", bob));
+        assertNull(rooms.get("#three"));
+        // Open rooms may still be joined
+        assertNotNull(rooms.join("#TWO", bob));
+
+        assertTrue(rooms.leave("#one", alice));
+        assertNotNull(rooms.join("#three", bob));
+        assertEquals(2, rooms.size());
+        assertFalse(rooms.leave("#three", alice));
+    }
+
+    @Test
+    void roomTornDownGivesItsHistoryBack() {
+        AtomicLong historyBytes = new AtomicLong();
+        RoomRegistry rooms = new RoomRegistry(new ServerConfig(), historyBytes);
+        Peer alice = new TestPeer("alice");
+        Room room = rooms.join("#room", alice);
+        room.getHistory().append(Payload.of("hello"));
+        assertEquals(Payload.of("hello").length(), historyBytes.get());
+
+        rooms.leaveAll(alice);
+        assertEquals(0, rooms.size());
+        assertEquals(0, historyBytes.get());
+    }
+
+    // <<-TEST PEER->>
+    private static final class TestPeer implements Peer {
+        private final String _nickname;
+
+        private TestPeer(String nickname) {
+            _nickname = nickname;
+        }
+
+        @Override
+        public String getNickname() {
+            return _nickname;
+        }
+
+        @Override
+        public void send(Payload msg) {}
+
+        @Override
+        public void replay(Replay replay) {}
+
+        @Override
+        public void disconnect(Payload farewell) {}
+
+        @Override
+        public void changeNickname() {}
+
+        @Override
+        public int getQueueDepth() {
+            return 0;
+        }
+
+        @Override
+        public long getDroppedMessages() {
+            return 0;
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.quathar.chatserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * <h1>SearchIndexTest</h1>
+ * <br>
+ * Queries over sealed segments and the active one, checked against a filter of every message sent,
+ * and the oldest segments going as a whole once the index holds the most messages kept.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+class SearchIndexTest {
+
+    // <<-CONSTANTS->>
+    private static final String[] WORDS = {"apple", "apricot", "banana", "band", "cherry", "Ünïcode", "zebra"};
+    private static final String[] SENDERS = {"alice", "Bob", "carol"};
+    private static final long START = 1_690_700_000_000L;
+
+    @Test
+    void queriesMatchEveryMessageThatMatches() {
+        SearchIndex index = new SearchIndex(new ServerConfig(), new Metrics());
+        List<Payload> sent = new ArrayList<>();
+        Random random = new Random(42);
+        // Two sealed segments and part of the active one
+        for (int i = 0; i < 2 * SearchIndex.SEGMENT_MESSAGES + 500; i++) {
+            Payload msg = message(i, SENDERS[random.nextInt(SENDERS.length)],
+                                  WORDS[random.nextInt(WORDS.length)] + ", " + WORDS[random.nextInt(WORDS.length)]);
+            sent.add(msg);
+            index.index(msg);
+        }
+
+        long all = Long.MAX_VALUE;
+        assertSearch(index, sent, "banana", null, 0, all, hasWord("banana"));
+        assertSearch(index, sent, "BANANA cherry", null, 0, all, hasWord("banana").and(hasWord("cherry")));
+        assertSearch(index, sent, "ünïcode", null, 0, all, hasWord("ünïcode"));
+        assertSearch(index, sent, "ap*", null, 0, all, hasWord("apple").or(hasWord("apricot")));
+        assertSearch(index, sent, "ban*", null, 0, all, hasWord("banana").or(hasWord("band")));
+        assertSearch(index, sent, "band", null, 0, all, hasWord("band"));
+        assertSearch(index, sent, "zebra", "bob", 0, all, hasWord("zebra").and(msg -> msg.getFrom().equals("Bob")));
+        assertSearch(index, sent, "m17", null, 0, all, msg -> msg.getId() == 17);
+        assertSearch(index, sent, "durian", null, 0, all, msg -> false);
+
+        // A range across the end of the first sealed segment and one within the active segment
+        long since = START + (SearchIndex.SEGMENT_MESSAGES - 300) * 1000L;
+        long until = START + (SearchIndex.SEGMENT_MESSAGES + 300) * 1000L;
+        assertSearch(index, sent, "cherry", null, since, until, hasWord("cherry"));
+        since = START + (2 * SearchIndex.SEGMENT_MESSAGES + 100) * 1000L;
+        assertSearch(index, sent, "apple", "carol", since, all, hasWord("apple").and(msg -> msg.getFrom().equals("carol")));
+
+        assertThrows(IllegalArgumentException.class, () -> index.search("a*", null, 0, all, 10));
+        assertThrows(IllegalArgumentException.class, () -> index.search("   ", null, 0, all, 10));
+    }
+
+    @Test
+    void limitKeepsTheNewest() {
+        SearchIndex index = new SearchIndex(new ServerConfig(), new Metrics());
+        List<Payload> sent = new ArrayList<>();
+        for (int i = 0; i < SearchIndex.SEGMENT_MESSAGES + 10; i++) {
+            Payload msg = message(i, "alice", "hello");
+            sent.add(msg);
+            index.index(msg);
+        }
+        List<String> found = search(index, "hello", null, 0, Long.MAX_VALUE, 20);
+        assertEquals(expected(sent, msg -> true, 0, Long.MAX_VALUE).subList(0, 20), found);
+    }
+
+    @Test
+    void evictionDropsWholeSegments() {
+        int kept = 2 * SearchIndex.SEGMENT_MESSAGES;
+        SearchIndex index = new SearchIndex(new ServerConfig().setSearchMaxMessages(kept), new Metrics());
+        for (int i = 0; i < 3 * SearchIndex.SEGMENT_MESSAGES + 10; i++) {
+            index.index(message(i, "alice", "hello"));
+            // The oldest segment goes once the two after it hold the messages kept, not a message earlier
+            int sent = i + 1;
+            assertEquals(sent < 3 * SearchIndex.SEGMENT_MESSAGES ? sent : sent - SearchIndex.SEGMENT_MESSAGES, index.size());
+        }
+        int oldest = SearchIndex.SEGMENT_MESSAGES;
+        assertEquals(List.of(), search(index, "m" + (oldest - 1), null, 0, Long.MAX_VALUE, 10));
+        assertEquals(1, search(index, "m" + oldest, null, 0, Long.MAX_VALUE, 10).size());
+    }
+
+    private static Payload message(int i, String from, String body) {
+        // Every message has a term of its own, "m" and its number
+        String text = body + " m" + i;
+        return Payload.message(Frame.BROADCAST, i, START + i * 1000L, from, "", text, from + ": " + text);
+    }
+
+    private static Predicate<Payload> hasWord(String word) {
+        return msg -> SearchIndex.terms(msg.getBody()).contains(word);
+    }
+
+    private static void assertSearch(SearchIndex index, List<Payload> sent, String words, String from,
+                                     long since, long until, Predicate<Payload> matches) {
+        assertEquals(expected(sent, matches, since, until), search(index, words, from, since, until, Integer.MAX_VALUE),
+                     words + (from != null ? " from " + from : ""));
+    }
+
+    /**
+     * The lines of the messages that match, the newest first, as a brute force search finds them.
+     */
+    private static List<String> expected(List<Payload> sent, Predicate<Payload> matches, long since, long until) {
+        List<String> lines = new ArrayList<>();
+        for (int i = sent.size() - 1; i >= 0; i--) {
+            Payload msg = sent.get(i);
+            if (msg.getTimestamp() >= since && msg.getTimestamp() < until && matches.test(msg))
+                lines.add(msg.getText());
+        }
+        return lines;
+    }
+
+    /**
+     * The lines a search finds, without the header, the footer and the time of every message.
+     */
+    private static List<String> search(SearchIndex index, String words, String from, long since, long until, int limit) {
+        Replay results = index.search(words, from, since, until, limit);
+        List<String> lines = new ArrayList<>();
+        Payload[] batch = new Payload[64];
+        int count;
+        while ((count = results.next(batch, batch.length)) > 0)
+            for (int i = 0; i < count; i++)
+                lines.add(batch[i].getText());
+        assertEquals(0, lines.get(0).indexOf("S Y S T E M: "));
+        assertEquals(0, lines.get(lines.size() - 1).indexOf("S Y S T E M: "));
+        List<String> found = new ArrayList<>();
+        for (String line : lines.subList(1, lines.size() - 1))
+            found.add(line.substring(line.indexOf("] ") + 2));
+        return found;
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.quathar.chatserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * <h1>SelfSignedKeyStore</h1>
+ * <br>
+ * Key stores with a self-signed certificate, for the tests, the benchmarks and the load generator,
+ * made with the {@code keytool} of the running JDK. A real server gets its key store from its operator.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+final class SelfSignedKeyStore {
+
+    // <<-CONSTANTS->>
+    private static final String ALIAS = "chatserver";
+
+    // <<-CONSTRUCTOR->>
+    private SelfSignedKeyStore() {}
+
+    // <<-METHODS->>
+    /**
+     * Generates a key store with a self-signed certificate for {@code localhost} and {@code 127.0.0.1}.
+     *
+     * @param directory where to write the key store
+     * @param password the password of the key store and of its key
+     * @return the key store (PKCS12)
+     * @throws IOException if {@code keytool} fails
+     */
+    static Path create(Path directory, String password) throws IOException {
+        return create(directory, password, "localhost", "dns:localhost,ip:127.0.0.1");
+    }
+
+    /**
+     * Generates a key store with a self-signed certificate for some host.
+     *
+     * @param directory where to write the key store
+     * @param password the password of the key store and of its key
+     * @param commonName the common name of the certificate, e.g. {@code localhost}
+     * @param subjectAlternativeNames the names it is valid for, e.g. {@code dns:localhost,ip:127.0.0.1}
+     * @return the key store (PKCS12)
+     * @throws IOException if {@code keytool} fails
+     */
+    static Path create(Path directory, String password, String commonName, String subjectAlternativeNames) throws IOException {
+        Path keyStore = directory.resolve(ALIAS + ".p12");
+        Files.deleteIfExists(keyStore);
+        Process keytool = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", ALIAS,
+                // EC keys make the handshakes much cheaper than RSA ones
+                "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=" + commonName, "-ext", "SAN=" + subjectAlternativeNames,
+                "-validity", "365", "-storetype", "PKCS12",
+                "-keystore", keyStore.toString(), "-storepass", password, "-keypass", password)
+                .redirectErrorStream(true)
+                .start();
+        try {
+            String output = new String(keytool.getInputStream().readAllBytes());
+            if (keytool.waitFor() != 0)
+                throw new IOException("keytool failed: " + output.trim());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("keytool was interrupted", e);
+        }
+        return keyStore;
+    }
+
+}
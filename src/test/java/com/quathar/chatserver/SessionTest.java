@@ -0,0 +1,135 @@
+package com.quathar.chatserver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * <h1>SessionTest</h1>
+ * <br>
+ * A binary client whose connection drops, and comes back with its token to what it missed meanwhile,
+ * in the thread and virtual modes, over loopback.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+class SessionTest {
+
+    // <<-CONSTANTS->>
+    private static final int TIMEOUT_MILLIS = 5_000;
+
+    // <<-FIELDS->>
+    private ChatServer _server;
+
+    @AfterEach
+    void stop() {
+        if (_server != null) _server.stop();
+    }
+
+    @Test
+    void resumedSessionGetsWhatItMissedInThreadMode() throws IOException, InterruptedException {
+        resume(ServerMode.THREAD);
+    }
+
+    @Test
+    void resumedSessionGetsWhatItMissedInVirtualMode() throws IOException, InterruptedException {
+        resume(ServerMode.VIRTUAL);
+    }
+
+    private void resume(ServerMode mode) throws IOException, InterruptedException {
+        _server = new ChatServer(0, mode, new ServerConfig().setShutdownWhenEmpty(false));
+        _server.start();
+        try (Socket bob = join("bob")) {
+            String token;
+            try (Socket alice = join("alice")) {
+                InputStream in = alice.getInputStream();
+                token = awaitFrame(in, alice.getOutputStream(), Frame.SESSION, null).getBody();
+                assertFalse(token.isEmpty());
+                // The server parks alice before it closes her connection: once it is closed, her session has her place
+                alice.shutdownOutput();
+                while (Frame.read(in) != null);
+            }
+            OutputStream out = bob.getOutputStream();
+            out.write(Frame.encode(Frame.PRIVATE, 0, 0, 0, "", "alice", "psst"));
+            out.write(Frame.encode(Frame.BROADCAST, 1, 0, 0, "", "", "hello all"));
+            awaitFrame(bob.getInputStream(), out, Frame.ACK, null);
+
+            try (Socket alice = connect()) {
+                InputStream in = alice.getInputStream();
+                alice.getOutputStream().write(Frame.encode(Frame.SESSION, 0, 0, 0, "", "", token));
+                assertEquals(token, awaitFrame(in, alice.getOutputStream(), Frame.SESSION, null).getBody());
+                awaitText(in, alice.getOutputStream(), "Welcome back");
+                // What the session kept, then the private messages its inbox held
+                awaitFrame(in, alice.getOutputStream(), Frame.BROADCAST, "hello all");
+                assertEquals("bob", awaitFrame(in, alice.getOutputStream(), Frame.PRIVATE, "psst").getFrom());
+
+                // Still alice to everyone else
+                out.write(Frame.encode(Frame.PRIVATE, 0, 0, 0, "", "alice", "welcome back"));
+                awaitFrame(in, alice.getOutputStream(), Frame.PRIVATE, "welcome back");
+            }
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("127.0.0.1", _server.getPort());
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+        socket.getOutputStream().write(Frame.PREFACE);
+        awaitPreface(socket.getInputStream());
+        return socket;
+    }
+
+    private Socket join(String nickname) throws IOException {
+        Socket socket = connect();
+        socket.getOutputStream().write(Frame.encode(Frame.NICKNAME, 0, 0, 0, "", "", nickname));
+        awaitText(socket.getInputStream(), socket.getOutputStream(), "Welcome");
+        return socket;
+    }
+
+    private static void awaitPreface(InputStream in) throws IOException {
+        int b;
+        while ((b = in.read()) != Frame.PREFACE[0])
+            assertTrue(b >= 0, "The server closed the connection");
+        byte[] preface = new byte[Frame.PREFACE.length];
+        in.readNBytes(preface, 1, preface.length - 1);
+        assertTrue(Frame.isPreface(preface));
+    }
+
+    /**
+     * Reads frames, answering pings, until a text frame holds something.
+     */
+    private static String awaitText(InputStream in, OutputStream out, String text) throws IOException {
+        while (true) {
+            Frame frame = Frame.read(in);
+            assertNotNull(frame, "The server closed the connection");
+            if (frame.getOpcode() == Frame.PING)
+                out.write(Frame.encode(Frame.PONG, 0, 0, 0, "", "", ""));
+            else if (frame.getOpcode() == Frame.TEXT && frame.getBody().contains(text))
+                return frame.getBody();
+        }
+    }
+
+    /**
+     * Reads frames, answering pings, up to one of some kind (and body, if given).
+     */
+    private static Frame awaitFrame(InputStream in, OutputStream out, byte opcode, String body) throws IOException {
+        while (true) {
+            Frame frame = Frame.read(in);
+            assertNotNull(frame, "The server closed the connection");
+            if (frame.getOpcode() == Frame.PING)
+                out.write(Frame.encode(Frame.PONG, 0, 0, 0, "", "", ""));
+            else if (frame.getOpcode() == opcode && (body == null || frame.getBody().equals(body)))
+                return frame;
+        }
+    }
+
+}
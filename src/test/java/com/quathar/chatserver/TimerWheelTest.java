@@ -0,0 +1,132 @@
+package com.quathar.chatserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * <h1>TimerWheelTest</h1>
+ * <br>
+ * A wheel on a clock of the test's own, ticked by the test: every timeout runs once,
+ * not before it is due and at most a tick late, unless it was cancelled.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+class TimerWheelTest {
+
+    // <<-CONSTANTS->>
+    private static final long TICK_MILLIS = 10;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+
+    // <<-FIELDS->>
+    private final AtomicLong _clock = new AtomicLong(1_000_000_000L);
+    private final long _origin = _clock.get();
+    /**
+     * A small wheel, a few ticks ahead is already a turn of it.
+     */
+    private final TimerWheel _wheel = new TimerWheel(TICK_MILLIS, 8, _clock::get);
+    /**
+     * When every task ran, in milliseconds since the wheel was built.
+     */
+    private final List<String> _ran = new ArrayList<>();
+
+    @Test
+    void timeoutsRunOnceDueAndInOrder() {
+        schedule("a", 25);
+        schedule("b", 0);
+        schedule("c", 210);
+        schedule("d", 80);
+
+        advance(200);
+        assertEquals(List.of("b", "a", "d"), tasks());
+        advance(100);
+        assertEquals(List.of("b", "a", "d", "c"), tasks());
+        assertOnTime(List.of(0L, 25L, 80L, 210L));
+    }
+
+    @Test
+    void cancelledTimeoutsNeverRun() {
+        TimerWheel.Timeout beforeTransfer = schedule("a", 50);
+        beforeTransfer.cancel();
+        TimerWheel.Timeout inSlot = schedule("b", 50);
+        TimerWheel.Timeout laterRound = schedule("c", 150);
+        schedule("d", 60);
+        advance(20);
+        // Both are in their slots by now
+        inSlot.cancel();
+        laterRound.cancel();
+
+        advance(300);
+        assertEquals(List.of("d"), tasks());
+    }
+
+    @Test
+    void tasksScheduledByTasksRunLater() {
+        _wheel.schedule(() -> {
+            _ran.add("first@" + elapsed());
+            schedule("second", 30);
+        }, TimeUnit.MILLISECONDS.toNanos(20));
+        advance(100);
+        assertEquals(List.of("first", "second"), tasks());
+        long first = ranAt(0);
+        assertOnTime(List.of(20L, first + 30));
+    }
+
+    @Test
+    void failingTaskDoesNotStopTheOthers() {
+        _wheel.schedule(() -> {
+            throw new IllegalStateException("on purpose");
+        }, 0);
+        schedule("after", 0);
+        advance(20);
+        assertEquals(List.of("after"), tasks());
+    }
+
+    private TimerWheel.Timeout schedule(String name, long delayMillis) {
+        return _wheel.schedule(() -> _ran.add(name + "@" + elapsed()), TimeUnit.MILLISECONDS.toNanos(delayMillis));
+    }
+
+    private long elapsed() {
+        return TimeUnit.NANOSECONDS.toMillis(_clock.get() - _origin);
+    }
+
+    /**
+     * Moves the clock forward a tick at a time, running every tick as it becomes due.
+     */
+    private void advance(long millis) {
+        for (long i = 0; i < millis / TICK_MILLIS; i++) {
+            _clock.addAndGet(TICK_NANOS);
+            _wheel.tick();
+        }
+    }
+
+    private List<String> tasks() {
+        List<String> tasks = new ArrayList<>();
+        for (String ran : _ran)
+            tasks.add(ran.substring(0, ran.indexOf('@')));
+        return tasks;
+    }
+
+    /**
+     * Checks that every task ran when it was due, or within the two ticks after:
+     * the tick its deadline falls in, done when that tick ends.
+     */
+    private void assertOnTime(List<Long> due) {
+        assertEquals(due.size(), _ran.size());
+        for (int i = 0; i < due.size(); i++)
+            assertTrue(ranAt(i) >= due.get(i) && ranAt(i) <= due.get(i) + 2 * TICK_MILLIS, _ran.get(i) + ", due at " + due.get(i));
+    }
+
+    private long ranAt(int i) {
+        return Long.parseLong(_ran.get(i).substring(_ran.get(i).indexOf('@') + 1));
+    }
+
+}
@@ -0,0 +1,108 @@
+package com.quathar.chatserver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLHandshakeException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * <h1>TlsContextsTest</h1>
+ * <br>
+ * The TLS port of a server, over loopback, through the {@link ChatConnection} of the client:
+ * the handshake, the check of the host name against the certificate, and the sessions resumed.
+ *
+ * @since 2023-07-30
+ * @version 1.0
+ * @author Q
+ */
+class TlsContextsTest {
+
+    // <<-CONSTANTS->>
+    private static final String PASSWORD = "changeit";
+    private static final long TIMEOUT_MILLIS = 5_000;
+
+    // <<-FIELDS->>
+    @TempDir
+    Path _directory;
+    private ChatServer _server;
+
+    @AfterEach
+    void stop() {
+        if (_server != null) _server.stop();
+    }
+
+    @Test
+    void clientTrustingTheKeyStoreConnects() throws IOException, GeneralSecurityException, InterruptedException {
+        Path keyStore = SelfSignedKeyStore.create(_directory, PASSWORD);
+        int port = start(keyStore);
+        new ChatConnection(InetAddress.getByName("localhost"), port, TlsContexts.client(keyStore, PASSWORD)).close();
+        awaitHandshakes(1);
+    }
+
+    @Test
+    void certificateOfAnotherHostIsRefused() throws IOException, GeneralSecurityException {
+        // Trusted, but not for this host
+        Path keyStore = SelfSignedKeyStore.create(_directory, PASSWORD, "chat.example.com", "dns:chat.example.com");
+        int port = start(keyStore);
+        SSLContext client = TlsContexts.client(keyStore, PASSWORD);
+        assertThrows(SSLHandshakeException.class, () -> new ChatConnection(InetAddress.getByName("localhost"), port, client));
+    }
+
+    @Test
+    void sameContextResumesItsSession() throws IOException, GeneralSecurityException, InterruptedException {
+        Path keyStore = SelfSignedKeyStore.create(_directory, PASSWORD);
+        int port = start(keyStore);
+        SSLContext client = TlsContexts.client(keyStore, PASSWORD);
+        for (int i = 0; i < 3; i++)
+            new ChatConnection(InetAddress.getByName("localhost"), port, client).close();
+        awaitHandshakes(3);
+        assertEquals(2, metric("chatserver_tls_resumed_total"));
+
+        // Another context knows nothing of that session
+        new ChatConnection(InetAddress.getByName("localhost"), port, TlsContexts.client(keyStore, PASSWORD)).close();
+        awaitHandshakes(4);
+        assertEquals(2, metric("chatserver_tls_resumed_total"));
+    }
+
+    private int start(Path keyStore) throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        _server = new ChatServer(0, ServerMode.THREAD, new ServerConfig().setShutdownWhenEmpty(false)
+                                                                         .setTlsPort(port)
+                                                                         .setTlsKeyStore(keyStore)
+                                                                         .setTlsKeyStorePassword(PASSWORD));
+        _server.start();
+        return port;
+    }
+
+    /**
+     * Waits for the server to record the handshakes, it does once the connection is handed off.
+     */
+    private void awaitHandshakes(long count) throws InterruptedException {
+        long until = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (metric("chatserver_tls_handshake_seconds_count") < count && System.currentTimeMillis() < until)
+            Thread.sleep(10);
+        assertEquals(count, metric("chatserver_tls_handshake_seconds_count"));
+    }
+
+    private long metric(String name) {
+        for (String line : _server.getMetrics().scrape(List.of(), 0, null).split("\n"))
+            if (line.startsWith(name + " "))
+                return (long) Double.parseDouble(line.substring(name.length() + 1));
+        throw new AssertionError("No metric " + name);
+    }
+
+}